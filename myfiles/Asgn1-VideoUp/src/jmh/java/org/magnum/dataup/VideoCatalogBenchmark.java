@@ -0,0 +1,227 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.magnum.dataup.model.Video;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares VideoCatalog with a ConcurrentHashMap<Long, Video> holding the
+ * same videos, for lookups, updates, a read-mostly mix of the two,
+ * iterating over every video (what GET /video does), removing and adding
+ * videos again (which changes the id index as well) and reading a page of
+ * ids in order (what GET /video?limit=256 does, catalog only). Run the
+ * writes with several threads (-t) to see how well concurrent writers are
+ * striped.
+ * 
+ * Before the measurements start, each trial also prints how much heap the
+ * map itself takes per video, not counting the videos. Run it with, e.g.,
+ * 
+ *     gradle jmh -PjmhArgs="VideoCatalogBenchmark -f 1 -wi 5 -i 5"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class VideoCatalogBenchmark {
+
+	private interface Catalog {
+		Video get(long id);
+
+		void put(long id, Video v);
+
+		Collection<Video> values();
+
+		void remove(long id);
+
+		int keysAfter(long after, long[] ids, int max);
+	}
+
+	@Param({ "catalog", "chm" })
+	public String impl;
+
+	@Param({ "1000000" })
+	public int size;
+
+	private Catalog catalog;
+
+	private Video[] videos;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		videos = new Video[size];
+		for (int i = 0; i < size; i++) {
+			Video v = new Video();
+			v.setId(i + 1);
+			videos[i] = v;
+		}
+
+		long before = usedHeap();
+		catalog = "chm".equals(impl) ? newConcurrentHashMap() : newVideoCatalog();
+		for (Video v : videos) {
+			catalog.put(v.getId(), v);
+		}
+		long after = usedHeap();
+		System.out.printf("%n%s: %.1f bytes per video (excluding the videos)%n",
+				impl, (double) (after - before) / size);
+	}
+
+	@State(Scope.Thread)
+	public static class Ids {
+		private final Random random = new Random();
+
+		private final long[] page = new long[256];
+
+		private long next(int size) {
+			return random.nextInt(size) + 1;
+		}
+	}
+
+	@Benchmark
+	public Video get(Ids ids) {
+		return catalog.get(ids.next(size));
+	}
+
+	@Benchmark
+	public void put(Ids ids) {
+		long id = ids.next(size);
+		catalog.put(id, videos[(int) id - 1]);
+	}
+
+	@Benchmark
+	public void removeAndPut(Ids ids) {
+		long id = ids.next(size);
+		catalog.remove(id);
+		catalog.put(id, videos[(int) id - 1]);
+	}
+
+	@Benchmark
+	public int keysAfter(Ids ids) {
+		return catalog.keysAfter(ids.next(size), ids.page, ids.page.length);
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(3)
+	public Video readMostlyGet(Ids ids) {
+		return catalog.get(ids.next(size));
+	}
+
+	@Benchmark
+	@Group("readMostly")
+	@GroupThreads(1)
+	public void readMostlyPut(Ids ids) {
+		long id = ids.next(size);
+		catalog.put(id, videos[(int) id - 1]);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void iterate(Blackhole bh) {
+		for (Video v : catalog.values()) {
+			bh.consume(v);
+		}
+	}
+
+	private static Catalog newVideoCatalog() {
+		final VideoCatalog videos = new VideoCatalog();
+		return new Catalog() {
+			@Override
+			public Video get(long id) {
+				return videos.get(id);
+			}
+
+			@Override
+			public void put(long id, Video v) {
+				videos.put(id, v);
+			}
+
+			@Override
+			public Collection<Video> values() {
+				return videos.values();
+			}
+
+			@Override
+			public void remove(long id) {
+				videos.remove(id);
+			}
+
+			@Override
+			public int keysAfter(long after, long[] ids, int max) {
+				return videos.keysAfter(after, ids, max);
+			}
+		};
+	}
+
+	private static Catalog newConcurrentHashMap() {
+		final ConcurrentHashMap<Long, Video> videos = new ConcurrentHashMap<Long, Video>();
+		return new Catalog() {
+			@Override
+			public Video get(long id) {
+				return videos.get(id);
+			}
+
+			@Override
+			public void put(long id, Video v) {
+				videos.put(id, v);
+			}
+
+			@Override
+			public Collection<Video> values() {
+				return videos.values();
+			}
+
+			@Override
+			public void remove(long id) {
+				videos.remove(id);
+			}
+
+			// A ConcurrentHashMap has no order to page through, so there
+			// is nothing to compare keysAfter with
+			@Override
+			public int keysAfter(long after, long[] ids, int max) {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
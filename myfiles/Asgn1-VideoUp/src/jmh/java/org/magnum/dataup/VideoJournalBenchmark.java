@@ -0,0 +1,183 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.model.Video;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what the VideoJournal costs: the time addVideo spends on a
+ * journal append (compare addVideo with addVideoWithoutJournal), with the
+ * journal forced on every append and every 100ms, and the time it takes to
+ * restart with a catalog of millions of videos, either from a snapshot or
+ * by replaying the journal alone. Run it with, e.g.,
+ * 
+ *     gradle jmh -PjmhArgs="VideoJournalBenchmark -f 1"
+ */
+public class VideoJournalBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Appending {
+
+		@Param({ "0", "100" })
+		public long fsyncMillis;
+
+		private Path dir;
+		private VideoCatalog catalog;
+		private AtomicLong ids;
+		private VideoJournal journal;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			dir = Files.createTempDirectory("journal");
+			catalog = new VideoCatalog();
+			ids = new AtomicLong();
+			journal = new VideoJournal(dir, fsyncMillis, Long.MAX_VALUE);
+			journal.recover(catalog, ids);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			journal.close();
+			delete(dir);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Restarting {
+
+		@Param({ "1000000", "4000000" })
+		public int videos;
+
+		@Param({ "snapshot", "journal" })
+		public String from;
+
+		private Path dir;
+		private VideoJournal journal;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			dir = Files.createTempDirectory("journal");
+			VideoCatalog catalog = new VideoCatalog();
+			AtomicLong ids = new AtomicLong();
+			VideoJournal journal = new VideoJournal(dir, 1000, Long.MAX_VALUE);
+			journal.recover(catalog, ids);
+			for (int i = 0; i < videos; i++) {
+				Video v = newVideo(ids.incrementAndGet());
+				catalog.put(v.getId(), v);
+				journal.append(v);
+			}
+			if ("snapshot".equals(from)) {
+				journal.shutdown();
+			} else {
+				journal.close();
+			}
+			System.out.printf("%n%d videos: %d bytes on disk%n", videos, size(dir));
+		}
+
+		@TearDown(Level.Invocation)
+		public void closeJournal() throws IOException {
+			journal.close();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			delete(dir);
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Video addVideo(Appending state) throws IOException {
+		Video v = newVideo(state.ids.incrementAndGet());
+		state.catalog.put(v.getId(), v);
+		state.journal.append(v);
+		return v;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Video addVideoWithoutJournal(Appending state) {
+		Video v = newVideo(state.ids.incrementAndGet());
+		state.catalog.put(v.getId(), v);
+		return v;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 2)
+	@Measurement(iterations = 5)
+	public VideoCatalog restart(Restarting state) throws IOException {
+		VideoCatalog catalog = new VideoCatalog();
+		state.journal = new VideoJournal(state.dir, 1000, Long.MAX_VALUE);
+		state.journal.recover(catalog, new AtomicLong());
+		return catalog;
+	}
+
+	private static Video newVideo(long id) {
+		Video v = new Video();
+		v.setId(id);
+		v.setTitle("Video number " + id);
+		v.setDuration(id % 3600);
+		v.setSubject("subject" + (id % 100));
+		v.setContentType("video/mp4");
+		v.setDataUrl("http://localhost:8080/video/" + id + "/data");
+		return v;
+	}
+
+	private static long size(Path dir) throws IOException {
+		long size = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				size += Files.size(file);
+			}
+		}
+		return size;
+	}
+
+	private static void delete(Path dir) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.magnum.dataup.VideoStorage.Backend;
+import org.magnum.dataup.model.Video;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Compares the VideoStorage backends on the same work: looking a video up,
+ * reading a small range of it (as a seek in a player does), streaming all
+ * of it to a channel, and publishing new data. The backend, the number of
+ * stored videos and their size are parameters. Run it with, e.g.,
+ * 
+ *     gradle jmh -PjmhArgs="VideoStorageBenchmark -f 1 -t 4"
+ * 
+ * The memory backend shows what the work costs with no file system
+ * involved at all. The file-based backends read through the page cache,
+ * so the numbers show the cost of the system calls and copies rather than
+ * of the disk, unless the videos don't fit in memory.
+ */
+public class VideoStorageBenchmark {
+
+	private static final int RANGE_LENGTH = 16 * 1024;
+
+	@State(Scope.Benchmark)
+	public static class Stored {
+
+		@Param({ "FLAT", "SHARDED", "MAPPED", "MEMORY", "PACKED" })
+		public Backend backend;
+
+		@Param({ "10000" })
+		public int videos;
+
+		@Param({ "262144" })
+		public int videoSize;
+
+		private Path dir;
+		private VideoStorage storage;
+		private byte[] data;
+
+		@Setup(Level.Trial)
+		public void setUp() throws IOException {
+			dir = Files.createTempDirectory("storage");
+			storage = backend.create(dir);
+			data = new byte[videoSize];
+			new Random(16).nextBytes(data);
+			for (int id = 0; id < videos; id++) {
+				storage.saveVideoData(newVideo(id), new ByteArrayInputStream(data));
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws IOException {
+			if (storage instanceof Closeable) {
+				((Closeable) storage).close();
+			}
+			FileUtils.deleteDirectory(dir.toFile());
+		}
+
+		private Video randomVideo() {
+			return newVideo(ThreadLocalRandom.current().nextInt(videos));
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Sink {
+		private final OutputStream out = ByteStreams.nullOutputStream();
+		private final WritableByteChannel channel = Channels.newChannel(out);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public long lookup(Stored state) throws IOException {
+		Video v = state.randomVideo();
+		return state.storage.hasVideoData(v) ? state.storage.getVideoDataLength(v) : -1;
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void readRange(Stored state, Sink sink) throws IOException {
+		long offset = ThreadLocalRandom.current().nextInt(state.videoSize - RANGE_LENGTH);
+		state.storage.copyVideoData(state.randomVideo(), offset, RANGE_LENGTH, sink.out);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void transferWhole(Stored state, Sink sink) throws IOException {
+		state.storage.transferVideoData(state.randomVideo(), 0, state.videoSize, sink.channel);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void publish(Stored state) throws IOException {
+		Path staged = state.storage.createStagingFile();
+		Files.write(staged, state.data);
+		state.storage.publishVideoData(state.randomVideo(), staged);
+	}
+
+	private static Video newVideo(long id) {
+		Video v = new Video();
+		v.setId(id);
+		v.setContentType("video/mp4");
+		return v;
+	}
+
+}
@@ -17,17 +17,32 @@
  */
 package org.magnum.dataup;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+
 import javax.servlet.MultipartConfigElement;
+import javax.servlet.http.HttpServletRequest;
 
+import org.magnum.dataup.VideoStorage.Backend;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.MultipartAutoConfiguration;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
 import org.springframework.boot.context.embedded.MultiPartConfigFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.filter.HiddenHttpMethodFilter;
+import org.springframework.web.multipart.MultipartResolver;
+import org.springframework.web.servlet.DispatcherServlet;
 
-// This annotation tells Spring to auto-wire your application
-@EnableAutoConfiguration
+// This annotation tells Spring to auto-wire your application. The
+// multipart resolver is set up below instead of automatically so that
+// video data can be streamed to disk (see StreamingMultipartResolver).
+@EnableAutoConfiguration(exclude = MultipartAutoConfiguration.class)
 // This annotation tells Spring to look for controllers, etc.
 // starting in the current package
 @ComponentScan
@@ -39,6 +54,8 @@ public class Application {
 
 	private static final String MAX_REQUEST_SIZE = "150MB";
 
+	public static final String VIDEO_IO_EXECUTOR = "videoIoExecutor";
+
 	// The entry point to the application.
 	public static void main(String[] args) {
 		// This call tells spring to launch the application and
@@ -62,4 +79,74 @@ public class Application {
 		return factory.createMultipartConfig();
 	}
 
+	// This resolver turns multipart requests into MultipartFiles, except for
+	// uploads of video data, which the controller streams straight to disk.
+	@Bean(name = DispatcherServlet.MULTIPART_RESOLVER_BEAN_NAME)
+	public MultipartResolver multipartResolver() {
+		return new StreamingMultipartResolver();
+	}
+
+	// The default version of this filter looks up the "_method" parameter of
+	// every POST, which makes the container parse multipart bodies. It must
+	// leave the streamed video data uploads alone.
+	@Bean
+	public HiddenHttpMethodFilter hiddenHttpMethodFilter() {
+		return new HiddenHttpMethodFilter() {
+			@Override
+			protected boolean shouldNotFilter(HttpServletRequest request) {
+				return StreamingMultipartResolver.isStreamed(request);
+			}
+		};
+	}
+
+	// Checks signed data URLs before any other filter runs, so that a
+	// security filter chain can let the verified ones through without
+	// resolving a token (see SignedDataUrls)
+	@Bean
+	public FilterRegistrationBean signedDataUrlFilter(SignedDataUrls signedUrls) {
+		FilterRegistrationBean registration = new FilterRegistrationBean(new SignedDataUrlFilter(signedUrls));
+		registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+		registration.addUrlPatterns(VideoSvcApi.VIDEO_SVC_PATH + "/*");
+		return registration;
+	}
+
+	// This pool streams video data to clients off of the web container's
+	// request threads. It is bounded on both threads and queued downloads;
+	// when it is full, new downloads are turned away with a 503 instead of
+	// piling up.
+	@Bean(name = VIDEO_IO_EXECUTOR)
+	public ThreadPoolTaskExecutor videoIoExecutor(
+			@Value("${video.io.threads:64}") int threads,
+			@Value("${video.io.queueCapacity:1024}") int queueCapacity) {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setThreadNamePrefix("video-io-");
+		executor.setCorePoolSize(threads);
+		executor.setMaxPoolSize(threads);
+		executor.setQueueCapacity(queueCapacity);
+		return executor;
+	}
+
+	// The one place that video data is stored, picked with the
+	// video.storage.backend property (flat, sharded, mapped, memory or
+	// packed; see VideoStorage). Every component that reads or writes video
+	// data gets this bean. The packed backend has settings of its own: the
+	// size of its segments, whether full segments are read with pread or
+	// mmap, and when the compactor rewrites a segment.
+	@Bean
+	public VideoStorage videoStorage(
+			@Value("${video.storage.backend:flat}") String backend,
+			@Value("${video.storage.dir:" + VideoFileManager.DEFAULT_DIR + "}") String dir,
+			@Value("${video.pack.segmentBytes:" + PackedVideoStorage.DEFAULT_SEGMENT_BYTES + "}") long segmentBytes,
+			@Value("${video.pack.readMode:pread}") String readMode,
+			@Value("${video.pack.compactGarbageRatio:" + PackedVideoStorage.DEFAULT_COMPACT_GARBAGE_RATIO + "}") double compactGarbageRatio,
+			@Value("${video.pack.compactIntervalMillis:" + PackedVideoStorage.DEFAULT_COMPACT_INTERVAL_MILLIS + "}") long compactIntervalMillis)
+			throws IOException {
+		Backend chosen = Backend.valueOf(backend.trim().toUpperCase());
+		if (chosen == Backend.PACKED) {
+			return new PackedVideoStorage(Paths.get(dir), segmentBytes, "mmap".equalsIgnoreCase(readMode.trim()),
+					compactGarbageRatio, compactIntervalMillis);
+		}
+		return chosen.create(Paths.get(dir));
+	}
+
 }
@@ -0,0 +1,529 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+/**
+ * A token-bucket traffic shaper for video data. Uploads and downloads are
+ * shaped separately, each with an optional global limit and an optional
+ * limit per client (by remote address), in bytes per second. A limit of 0
+ * means unlimited, which is the default, so nothing is shaped unless it is
+ * configured.
+ * 
+ * Every transfer has its own token bucket. Whenever a transfer starts or
+ * ends, the rates of all buckets are recomputed: each client's limit is
+ * split between its transfers by weight, and the global limit is then
+ * shared by weight between all transfers with max-min fairness (water
+ * filling), so that bandwidth a client-limited transfer can't use goes to
+ * the others. Transfers smaller than smallTransferBytes get a higher
+ * weight, and every bucket starts out full with burstBytes of tokens, so
+ * a small request usually finishes without waiting at all instead of
+ * queueing behind large ones.
+ * 
+ * A bucket may go into debt for a large write, and the writer then sleeps
+ * until the debt is paid off, in naps of at most MAX_SLEEP_MILLIS so that
+ * a changed rate takes effect quickly. Bursts mean the global limit holds
+ * on average, not in every instant.
+ * 
+ * Downloads through sendfile bypass the JVM and can't be shaped, so the
+ * controller copies through a shaped stream instead whenever downloads
+ * are being shaped.
+ */
+@Component
+public class BandwidthShaper {
+
+	public enum Direction {
+		UPLOAD, DOWNLOAD
+	}
+
+	private static final long MAX_SLEEP_MILLIS = 50;
+
+	// The largest write that is passed through at once, so that big
+	// writes are smoothed out instead of sent as one burst after a long wait
+	private static final int SLICE_SIZE = 16 * 1024;
+
+	@Value("${video.shaping.download.globalBytesPerSec:0}")
+	private long downloadGlobalRate;
+
+	@Value("${video.shaping.download.clientBytesPerSec:0}")
+	private long downloadClientRate;
+
+	@Value("${video.shaping.upload.globalBytesPerSec:0}")
+	private long uploadGlobalRate;
+
+	@Value("${video.shaping.upload.clientBytesPerSec:0}")
+	private long uploadClientRate;
+
+	@Value("${video.shaping.burstBytes:262144}")
+	private long burstBytes = 256 * 1024;
+
+	@Value("${video.shaping.smallTransferBytes:1048576}")
+	private long smallTransferBytes = 1024 * 1024;
+
+	@Value("${video.shaping.smallTransferWeight:4}")
+	private double smallTransferWeight = 4;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	private final Link[] links = new Link[Direction.values().length];
+
+	public BandwidthShaper() {
+	}
+
+	/**
+	 * Creates a shaper outside of Spring with the given limits in bytes per
+	 * second, 0 meaning unlimited.
+	 * 
+	 * @param downloadGlobalRate
+	 * @param downloadClientRate
+	 * @param uploadGlobalRate
+	 * @param uploadClientRate
+	 * @param burstBytes
+	 */
+	public BandwidthShaper(long downloadGlobalRate, long downloadClientRate, long uploadGlobalRate,
+			long uploadClientRate, long burstBytes) {
+		this.downloadGlobalRate = downloadGlobalRate;
+		this.downloadClientRate = downloadClientRate;
+		this.uploadGlobalRate = uploadGlobalRate;
+		this.uploadClientRate = uploadClientRate;
+		this.burstBytes = burstBytes;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		links[Direction.DOWNLOAD.ordinal()] = new Link(Direction.DOWNLOAD, downloadGlobalRate, downloadClientRate);
+		links[Direction.UPLOAD.ordinal()] = new Link(Direction.UPLOAD, uploadGlobalRate, uploadClientRate);
+	}
+
+	/**
+	 * Returns whether transfers in the given direction are limited at all.
+	 * 
+	 * @param direction
+	 * @return
+	 */
+	public boolean isShaping(Direction direction) {
+		return links[direction.ordinal()].isLimited();
+	}
+
+	/**
+	 * Starts a transfer for the client that sent the request. The transfer
+	 * must be closed when it is done, which hands its share of the bandwidth
+	 * to the others.
+	 * 
+	 * @param direction
+	 * @param request
+	 * @param length the number of bytes that will be transferred, or -1 if unknown
+	 * @return
+	 */
+	public Transfer begin(Direction direction, HttpServletRequest request, long length) {
+		return begin(direction, request.getRemoteAddr(), length);
+	}
+
+	/**
+	 * Starts a transfer for the given client.
+	 * 
+	 * @param direction
+	 * @param client
+	 * @param length the number of bytes that will be transferred, or -1 if unknown
+	 * @return
+	 */
+	public Transfer begin(Direction direction, String client, long length) {
+		Link link = links[direction.ordinal()];
+		boolean small = length >= 0 && length <= smallTransferBytes;
+		Transfer transfer = new Transfer(link, client, small ? smallTransferWeight : 1);
+		link.join(transfer);
+		return transfer;
+	}
+
+	public long getBytes(Direction direction) {
+		return links[direction.ordinal()].bytes.get();
+	}
+
+	/**
+	 * Returns the number of bytes that had to wait for tokens.
+	 * 
+	 * @param direction
+	 * @return
+	 */
+	public long getThrottledBytes(Direction direction) {
+		return links[direction.ordinal()].throttledBytes.get();
+	}
+
+	/**
+	 * Returns the total time transfers spent waiting for tokens.
+	 * 
+	 * @param direction
+	 * @return
+	 */
+	public long getWaitMillis(Direction direction) {
+		return TimeUnit.NANOSECONDS.toMillis(links[direction.ordinal()].waitNanos.get());
+	}
+
+	public int getActiveTransfers(Direction direction) {
+		return links[direction.ordinal()].activeCount();
+	}
+
+	private void publish(Link link) {
+		if (gauges == null) {
+			return;
+		}
+		String prefix = "video.shaping." + link.direction.name().toLowerCase() + ".";
+		gauges.submit(prefix + "bytes", link.bytes.get());
+		gauges.submit(prefix + "throttledBytes", link.throttledBytes.get());
+		gauges.submit(prefix + "waitMillis", TimeUnit.NANOSECONDS.toMillis(link.waitNanos.get()));
+		gauges.submit(prefix + "activeTransfers", link.activeCount());
+	}
+
+	/**
+	 * The transfers in one direction and the limits they share.
+	 */
+	private final class Link {
+		private final Direction direction;
+		private final double globalRate;
+		private final double clientRate;
+
+		// Guarded by this
+		private final Set<Transfer> active = new LinkedHashSet<Transfer>();
+
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong throttledBytes = new AtomicLong();
+		private final AtomicLong waitNanos = new AtomicLong();
+
+		private Link(Direction direction, long globalRate, long clientRate) {
+			this.direction = direction;
+			this.globalRate = globalRate;
+			this.clientRate = clientRate;
+		}
+
+		private boolean isLimited() {
+			return globalRate > 0 || clientRate > 0;
+		}
+
+		private synchronized int activeCount() {
+			return active.size();
+		}
+
+		private synchronized void join(Transfer t) {
+			active.add(t);
+			rebalance();
+		}
+
+		private void leave(Transfer t) {
+			synchronized (this) {
+				active.remove(t);
+				rebalance();
+			}
+			publish(this);
+		}
+
+		private void record(long n, long waited) {
+			bytes.addAndGet(n);
+			if (waited > 0) {
+				throttledBytes.addAndGet(n);
+				waitNanos.addAndGet(waited);
+			}
+		}
+
+		// Gives every active transfer its weighted max-min fair share
+		private void rebalance() {
+			if (!isLimited()) {
+				return;
+			}
+
+			Map<String, Double> clientWeights = new HashMap<String, Double>();
+			for (Transfer t : active) {
+				Double w = clientWeights.get(t.client);
+				clientWeights.put(t.client, (w == null ? 0 : w) + t.weight);
+			}
+
+			double totalWeight = 0;
+			final Map<Transfer, Double> caps = new HashMap<Transfer, Double>();
+			for (Transfer t : active) {
+				double cap = clientRate > 0 ? clientRate * t.weight / clientWeights.get(t.client)
+						: Double.POSITIVE_INFINITY;
+				caps.put(t, cap);
+				totalWeight += t.weight;
+			}
+
+			if (globalRate <= 0) {
+				for (Transfer t : active) {
+					t.setRate(caps.get(t));
+				}
+				return;
+			}
+
+			// Fill up the transfers whose cap is smallest relative to their
+			// weight first, and split what they leave over among the rest
+			List<Transfer> byCap = new ArrayList<Transfer>(active);
+			Collections.sort(byCap, new Comparator<Transfer>() {
+				@Override
+				public int compare(Transfer a, Transfer b) {
+					return Double.compare(caps.get(a) / a.weight, caps.get(b) / b.weight);
+				}
+			});
+			double remaining = globalRate;
+			for (Transfer t : byCap) {
+				double rate = Math.min(caps.get(t), remaining * t.weight / totalWeight);
+				t.setRate(rate);
+				remaining -= rate;
+				totalWeight -= t.weight;
+			}
+		}
+	}
+
+	/**
+	 * One upload or download and its token bucket. Its streams wait for
+	 * tokens before bytes go through.
+	 */
+	public final class Transfer implements Closeable {
+		private final Link link;
+		private final String client;
+		private final double weight;
+
+		// Guarded by this
+		private double rate = Double.POSITIVE_INFINITY;
+		private double tokens = burstBytes;
+		private long lastRefill = System.nanoTime();
+
+		private boolean closed;
+
+		private Transfer(Link link, String client, double weight) {
+			this.link = link;
+			this.client = client;
+			this.weight = weight;
+		}
+
+		/**
+		 * Returns the rate this transfer is currently allowed, in bytes per
+		 * second; infinite if it isn't limited.
+		 * 
+		 * @return
+		 */
+		public synchronized double getRate() {
+			return rate;
+		}
+
+		/**
+		 * Waits until n bytes may go through.
+		 * 
+		 * @param n
+		 * @throws InterruptedIOException if the thread is interrupted while waiting
+		 */
+		public void acquire(long n) throws InterruptedIOException {
+			long start = 0;
+			synchronized (this) {
+				refill();
+				tokens -= n;
+			}
+			while (true) {
+				long sleepNanos;
+				synchronized (this) {
+					refill();
+					if (tokens >= 0) {
+						break;
+					}
+					sleepNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(MAX_SLEEP_MILLIS),
+							(long) (-tokens / rate * 1e9) + 1);
+				}
+				if (start == 0) {
+					start = System.nanoTime();
+				}
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			link.record(n, start == 0 ? 0 : System.nanoTime() - start);
+		}
+
+		/**
+		 * Returns a request whose body is read through this transfer.
+		 * 
+		 * @param request
+		 * @return
+		 */
+		public HttpServletRequest wrap(HttpServletRequest request) {
+			if (!link.isLimited()) {
+				return request;
+			}
+			return new HttpServletRequestWrapper(request) {
+				private ServletInputStream in;
+
+				@Override
+				public ServletInputStream getInputStream() throws IOException {
+					if (in == null) {
+						in = new ShapedInputStream(super.getInputStream());
+					}
+					return in;
+				}
+			};
+		}
+
+		/**
+		 * Returns a response whose body is written through this transfer.
+		 * 
+		 * @param response
+		 * @return
+		 */
+		public HttpServletResponse wrap(HttpServletResponse response) {
+			if (!link.isLimited()) {
+				return response;
+			}
+			return new HttpServletResponseWrapper(response) {
+				private ServletOutputStream out;
+
+				@Override
+				public ServletOutputStream getOutputStream() throws IOException {
+					if (out == null) {
+						out = new ShapedOutputStream(super.getOutputStream());
+					}
+					return out;
+				}
+			};
+		}
+
+		/**
+		 * Ends the transfer and hands its bandwidth to the others.
+		 */
+		@Override
+		public void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			link.leave(this);
+		}
+
+		private synchronized void setRate(double rate) {
+			refill();
+			this.rate = rate;
+		}
+
+		private void refill() {
+			long now = System.nanoTime();
+			if (Double.isInfinite(rate)) {
+				tokens = burstBytes;
+			} else {
+				tokens = Math.min(burstBytes, tokens + rate * (now - lastRefill) / 1e9);
+			}
+			lastRefill = now;
+		}
+
+		private final class ShapedInputStream extends ServletInputStream {
+			private final InputStream in;
+
+			private ShapedInputStream(InputStream in) {
+				this.in = in;
+			}
+
+			@Override
+			public int read() throws IOException {
+				int b = in.read();
+				if (b >= 0) {
+					acquire(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				// Bytes are paid for after they have been read, which slows
+				// down reading and so, through TCP flow control, the sender
+				int read = in.read(b, off, Math.min(len, SLICE_SIZE));
+				if (read > 0) {
+					acquire(read);
+				}
+				return read;
+			}
+
+			@Override
+			public void close() throws IOException {
+				in.close();
+			}
+		}
+
+		private final class ShapedOutputStream extends ServletOutputStream {
+			private final ServletOutputStream out;
+
+			private ShapedOutputStream(ServletOutputStream out) {
+				this.out = out;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				acquire(1);
+				out.write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				while (len > 0) {
+					int slice = Math.min(len, SLICE_SIZE);
+					acquire(slice);
+					out.write(b, off, slice);
+					off += slice;
+					len -= slice;
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.close();
+			}
+		}
+	}
+
+}
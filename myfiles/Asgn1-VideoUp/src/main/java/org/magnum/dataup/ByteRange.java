@@ -0,0 +1,226 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single satisfiable byte range of a video's binary data, as requested
+ * by a client through the HTTP "Range" header (e.g., "bytes=0-499",
+ * "bytes=500-", or "bytes=-500"). Both the first and last positions are
+ * inclusive, just like they are in the header itself.
+ */
+public class ByteRange {
+
+	public static final String BYTES_UNIT = "bytes";
+
+	// Clients can ask for an arbitrary number of ranges in one request. To
+	// keep a hostile client from turning a small request into a huge
+	// multipart response, requests with more ranges than this are coalesced
+	// into one range spanning all of them.
+	public static final int MAX_RANGES = 16;
+
+	private final long first;
+	private final long last;
+
+	public ByteRange(long first, long last) {
+		if (first < 0 || last < first) {
+			throw new IllegalArgumentException("Invalid byte range: " + first + "-" + last);
+		}
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * Returns the value of the Content-Range header that describes this
+	 * range of an entity with the given total length.
+	 * 
+	 * @param totalLength
+	 * @return
+	 */
+	public String toContentRange(long totalLength) {
+		return BYTES_UNIT + " " + first + "-" + last + "/" + totalLength;
+	}
+
+	/**
+	 * Returns the value of the Content-Range header that must accompany a
+	 * 416 (Range Not Satisfiable) response.
+	 * 
+	 * @param totalLength
+	 * @return
+	 */
+	public static String toUnsatisfiedContentRange(long totalLength) {
+		return BYTES_UNIT + " */" + totalLength;
+	}
+
+	/**
+	 * This method parses the value of a Range header against an entity of
+	 * the given length.
+	 * 
+	 * It returns null if the header is syntactically invalid or uses a unit
+	 * other than bytes. In that case the header must be ignored and the whole
+	 * entity served. It returns an empty list if the header is valid but none
+	 * of its ranges overlap the entity, which calls for a 416 response.
+	 * Otherwise it returns the satisfiable ranges, clipped to the entity, in
+	 * the order the client asked for them. If any of them overlap, they are
+	 * merged and returned in ascending order instead.
+	 * 
+	 * @param header
+	 * @param totalLength
+	 * @return
+	 */
+	public static List<ByteRange> parse(String header, long totalLength) {
+		if (header == null) {
+			return null;
+		}
+
+		String value = header.trim();
+		int eq = value.indexOf('=');
+		if (eq < 0 || !BYTES_UNIT.equalsIgnoreCase(value.substring(0, eq).trim())) {
+			return null;
+		}
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		boolean sawSpec = false;
+		for (String spec : value.substring(eq + 1).split(",")) {
+			spec = spec.trim();
+			if (spec.isEmpty()) {
+				continue;
+			}
+			sawSpec = true;
+
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			String firstPart = spec.substring(0, dash).trim();
+			String lastPart = spec.substring(dash + 1).trim();
+
+			try {
+				if (firstPart.isEmpty()) {
+					// Suffix range: the final N bytes of the entity
+					long suffix = Long.parseLong(lastPart);
+					if (suffix < 0) {
+						return null;
+					}
+					if (suffix > 0 && totalLength > 0) {
+						ranges.add(new ByteRange(Math.max(0, totalLength - suffix), totalLength - 1));
+					}
+				} else {
+					long first = Long.parseLong(firstPart);
+					long last = lastPart.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPart);
+					if (first < 0 || last < first) {
+						return null;
+					}
+					if (first < totalLength) {
+						ranges.add(new ByteRange(first, Math.min(last, totalLength - 1)));
+					}
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		if (!sawSpec) {
+			return null;
+		}
+		return coalesce(ranges);
+	}
+
+	// Merges overlapping ranges so that no byte is sent twice, preserving the
+	// order the client asked for, and collapses requests with too many ranges.
+	private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+
+		List<ByteRange> sorted = new ArrayList<ByteRange>(ranges);
+		Collections.sort(sorted, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange a, ByteRange b) {
+				return a.first < b.first ? -1 : (a.first == b.first ? 0 : 1);
+			}
+		});
+
+		if (sorted.size() > MAX_RANGES) {
+			long last = 0;
+			for (ByteRange r : sorted) {
+				last = Math.max(last, r.last);
+			}
+			return Collections.singletonList(new ByteRange(sorted.get(0).first, last));
+		}
+
+		boolean overlapping = false;
+		for (int i = 1; i < sorted.size(); i++) {
+			if (sorted.get(i).first <= sorted.get(i - 1).last) {
+				overlapping = true;
+				break;
+			}
+		}
+		if (!overlapping) {
+			return ranges;
+		}
+
+		List<ByteRange> merged = new ArrayList<ByteRange>();
+		ByteRange current = sorted.get(0);
+		for (int i = 1; i < sorted.size(); i++) {
+			ByteRange next = sorted.get(i);
+			if (next.first <= current.last) {
+				current = new ByteRange(current.first, Math.max(current.last, next.last));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (first ^ (first >>> 32)) * 31 + (int) (last ^ (last >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		return (obj instanceof ByteRange)
+				&& first == ((ByteRange) obj).first
+				&& last == ((ByteRange) obj).last;
+	}
+
+	@Override
+	public String toString() {
+		return first + "-" + last;
+	}
+
+}
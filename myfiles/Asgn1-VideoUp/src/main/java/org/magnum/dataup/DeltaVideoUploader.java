@@ -0,0 +1,155 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.model.BlockSignatures;
+import org.magnum.dataup.model.VideoStatus;
+
+import retrofit.RetrofitError;
+import retrofit.mime.TypedFile;
+
+/**
+ * Client-side driver for re-uploading a video whose data the server
+ * already has a similar version of, e.g., after a small edit. It fetches
+ * the block signatures of the server's version, encodes the new file as a
+ * delta against them (see VideoDelta) and sends only the delta. When the
+ * video has no data yet, or the delta would be more than maxLiteralRatio
+ * of the file in literal bytes, the file is sent whole instead. When the
+ * server's data changed since the signatures were fetched, the upload
+ * starts over once.
+ * 
+ * VideoSvcApi videoSvc = ... // use retrofit to create the client
+ * DeltaVideoUploader uploader = new DeltaVideoUploader(videoSvc);
+ * VideoStatus status = uploader.upload(video.getId(), new File("movie-v2.mp4"));
+ */
+public class DeltaVideoUploader {
+
+	public static final double DEFAULT_MAX_LITERAL_RATIO = 0.5;
+
+	private static final String CONTENT_TYPE = "application/octet-stream";
+
+	private static final int NOT_FOUND = 404;
+
+	private static final int CONFLICT = 409;
+
+	private final VideoSvcApi videoSvc;
+
+	private final double maxLiteralRatio;
+
+	// What the last upload sent, for callers that keep statistics
+	private volatile long lastSentBytes;
+
+	public DeltaVideoUploader(VideoSvcApi videoSvc) {
+		this(videoSvc, DEFAULT_MAX_LITERAL_RATIO);
+	}
+
+	public DeltaVideoUploader(VideoSvcApi videoSvc, double maxLiteralRatio) {
+		this.videoSvc = videoSvc;
+		this.maxLiteralRatio = maxLiteralRatio;
+	}
+
+	/**
+	 * Uploads the file as the data of the given video, sending only what
+	 * differs from the server's version where that pays off.
+	 * 
+	 * @param videoId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoStatus upload(long videoId, File file) throws IOException {
+		try {
+			return uploadDelta(videoId, file);
+		} catch (RetrofitError e) {
+			if (e.getResponse() == null || e.getResponse().getStatus() != CONFLICT) {
+				throw e;
+			}
+			return uploadDelta(videoId, file);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the request body that the last upload
+	 * sent: the delta, or the whole file.
+	 * 
+	 * @return
+	 */
+	public long getLastSentBytes() {
+		return lastSentBytes;
+	}
+
+	private VideoStatus uploadDelta(long videoId, File file) throws IOException {
+		if (file.length() > Integer.MAX_VALUE) {
+			return uploadWhole(videoId, file);
+		}
+		BlockSignatures base;
+		try {
+			base = videoSvc.getBlockSignatures(videoId, null);
+		} catch (RetrofitError e) {
+			if (e.getResponse() != null && e.getResponse().getStatus() == NOT_FOUND) {
+				// No data to make a delta against
+				return uploadWhole(videoId, file);
+			}
+			throw e;
+		}
+
+		Path delta = Files.createTempFile("video", ".delta");
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			String digest = digest(data);
+
+			long literal;
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(delta))) {
+				literal = VideoDelta.encode(data, base, out);
+			}
+			if (literal > maxLiteralRatio * file.length()) {
+				return uploadWhole(videoId, file);
+			}
+
+			lastSentBytes = Files.size(delta);
+			return videoSvc.putVideoDelta(videoId, base.getDigest(), digest, new TypedFile(CONTENT_TYPE,
+					delta.toFile()));
+		} finally {
+			Files.deleteIfExists(delta);
+		}
+	}
+
+	private VideoStatus uploadWhole(long videoId, File file) {
+		lastSentBytes = file.length();
+		return videoSvc.putVideoData(videoId, new TypedFile(CONTENT_TYPE, file));
+	}
+
+	private static String digest(MappedByteBuffer data) {
+		MessageDigest md = VideoDataDigests.newDigest();
+		md.update(data.duplicate());
+		return Hex.encodeHexString(md.digest());
+	}
+
+}
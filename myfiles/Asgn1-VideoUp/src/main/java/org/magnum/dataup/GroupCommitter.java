@@ -0,0 +1,551 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoStatus.VideoState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Makes uploaded video data durable before it is published, without paying
+ * for a separate fsync on every upload.
+ * 
+ * Uploads are written to staging files and handed to commit(). A single
+ * committer thread collects the commits that arrive within
+ * video.durability.windowMillis of each other (up to
+ * video.durability.maxBatch of them) and then, for the whole batch:
+ * 
+ * 1. forces all of the staging files to disk at once, on a pool of
+ *    video.durability.forceThreads threads, so that the batch waits for
+ *    about one flush rather than one per file (the disk works through
+ *    concurrent flushes together),
+ * 2. publishes each forced file in the order they were submitted
+ *    (publishing is an atomic rename into place, see
+ *    VideoStorage.publishVideoData()), and then
+ * 3. forces the storage directories once, so that all of the renames
+ *    survive a crash too (and syncs the storage, for backends that append
+ *    published data to files of their own, see VideoStorage.sync()).
+ * 
+ * A crash at any point leaves either the old data or the complete new data
+ * in place, never a torn file. The window trades upload latency for fewer
+ * disk flushes under load; 0 commits whatever is queued right away (which
+ * still batches uploads that arrive while a flush is running), and a
+ * negative window turns forcing off and publishes immediately.
+ * 
+ * A caller of commit() waits up to video.durability.ackTimeoutMillis for
+ * its commit; submit() hands a commit over without waiting for it, which
+ * is how the processing pipeline publishes, so that a batch isn't limited
+ * to one upload per pipeline thread. The state of a video stays PROCESSING until all of its commits are
+ * durable. Batch counts are published as the gauges video.commit.batches,
+ * video.commit.commits and video.commit.meanBatchSize, and the number of
+ * files and directories forced as video.commit.forces and
+ * video.commit.forcesPerCommit.
+ */
+@Component
+public class GroupCommitter {
+
+	private static final Logger LOG = LoggerFactory.getLogger(GroupCommitter.class);
+
+	/**
+	 * Moves a forced staging file into place. Called on the committer
+	 * thread, in submission order. The staging file is deleted afterwards
+	 * if the publisher leaves it behind.
+	 */
+	public interface Publisher {
+		public void publish(Path staged) throws IOException;
+	}
+
+	@Value("${video.durability.windowMillis:10}")
+	private long windowMillis = 10;
+
+	@Value("${video.durability.maxBatch:64}")
+	private int maxBatch = 64;
+
+	@Value("${video.durability.ackTimeoutMillis:30000}")
+	private long ackTimeoutMillis = 30000;
+
+	@Value("${video.durability.forceThreads:4}")
+	private int forceThreads = 4;
+
+	@Autowired
+	private VideoStorage storage;
+
+	@Autowired
+	private VideoBlobStore blobStore;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	private final BlockingQueue<Commit> queue = new LinkedBlockingQueue<Commit>();
+
+	// How many commits are outstanding for each video
+	private final Map<Long, Integer> pending = new HashMap<Long, Integer>();
+
+	// The directories whose entries change when data is published, besides
+	// the one each video's data is renamed into
+	private final Set<Path> directories = new LinkedHashSet<Path>();
+
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong forces = new AtomicLong();
+
+	private volatile boolean running;
+
+	private Thread committer;
+
+	private ExecutorService forcers;
+
+	public GroupCommitter() {
+	}
+
+	/**
+	 * Creates a committer that publishes into the given storage. Call
+	 * start() before using it.
+	 * 
+	 * @param storage
+	 * @param windowMillis
+	 * @param maxBatch
+	 * @param forceThreads
+	 */
+	public GroupCommitter(VideoStorage storage, long windowMillis, int maxBatch, int forceThreads) {
+		this.storage = storage;
+		this.windowMillis = windowMillis;
+		this.maxBatch = maxBatch;
+		this.forceThreads = forceThreads;
+	}
+
+	@PostConstruct
+	public void start() throws IOException {
+		if (!isEnabled()) {
+			return;
+		}
+		if (blobStore != null) {
+			directories.addAll(blobStore.getDirectories());
+		}
+
+		forcers = Executors.newFixedThreadPool(Math.max(1, forceThreads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "video-group-commit-force");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		running = true;
+		committer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				commitBatches();
+			}
+		}, "video-group-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Stops the committer after it has finished the commits that are
+	 * already queued.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		if (committer == null) {
+			return;
+		}
+		running = false;
+		committer.interrupt();
+		committer.join();
+		forcers.shutdown();
+	}
+
+	public boolean isEnabled() {
+		return windowMillis >= 0;
+	}
+
+	/**
+	 * Makes the given staging file durable and publishes it as part of the
+	 * next batch, then waits for that batch. Returns READY once the data is
+	 * durable, or PROCESSING if that takes longer than the ack timeout; the
+	 * commit still completes in the background. The staging file belongs to
+	 * the committer from here on.
+	 * 
+	 * Either argument may be null: with no staging file nothing is forced,
+	 * and with no publisher the commit only waits for the storage
+	 * directories to be forced (e.g., after linking existing data).
+	 * 
+	 * @param videoId
+	 * @param staged
+	 * @param publisher
+	 * @return
+	 * @throws IOException if the data could not be made durable or published
+	 */
+	public VideoState commit(long videoId, Path staged, Publisher publisher) throws IOException {
+		ListenableFuture<Void> done = submit(videoId, staged, publisher);
+		try {
+			done.get(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+			return VideoState.READY;
+		} catch (TimeoutException e) {
+			return VideoState.PROCESSING;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return VideoState.PROCESSING;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Queues the given staging file to be made durable and published as
+	 * part of the next batch, like commit(), but returns right away with a
+	 * future that completes once the data is durable, or fails with the
+	 * IOException that kept it from being made durable or published. When
+	 * forcing is turned off, the data is published before this returns.
+	 * 
+	 * @param videoId
+	 * @param staged
+	 * @param publisher
+	 * @return
+	 */
+	public ListenableFuture<Void> submit(long videoId, Path staged, Publisher publisher) {
+		if (!isEnabled()) {
+			try {
+				try {
+					if (publisher != null) {
+						publisher.publish(staged);
+					}
+				} finally {
+					if (staged != null) {
+						Files.deleteIfExists(staged);
+					}
+				}
+				return Futures.immediateFuture(null);
+			} catch (IOException e) {
+				return Futures.immediateFailedFuture(e);
+			}
+		}
+
+		Commit commit = new Commit(videoId, staged, publisher);
+		synchronized (pending) {
+			Integer count = pending.get(videoId);
+			pending.put(videoId, count == null ? 1 : count + 1);
+		}
+		queue.add(commit);
+		return commit.done;
+	}
+
+	/**
+	 * Returns PROCESSING while the given video has data that isn't durable
+	 * yet, and READY otherwise.
+	 * 
+	 * @param videoId
+	 * @return
+	 */
+	public VideoState getState(long videoId) {
+		synchronized (pending) {
+			return pending.containsKey(videoId) ? VideoState.PROCESSING : VideoState.READY;
+		}
+	}
+
+	private void commitBatches() {
+		long windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		while (running || !queue.isEmpty()) {
+			List<Commit> batch = new ArrayList<Commit>();
+			try {
+				Commit first = running ? queue.take() : queue.poll();
+				if (first == null) {
+					break;
+				}
+				batch.add(first);
+				long deadline = first.submitted + windowNanos;
+				while (batch.size() < maxBatch) {
+					long wait = deadline - System.nanoTime();
+					Commit next = wait > 0 && running ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				// Stopping; commit what we have and drain the queue
+			}
+			if (!batch.isEmpty()) {
+				commitBatch(batch);
+			}
+		}
+	}
+
+	private void commitBatch(List<Commit> batch) {
+		Map<Commit, Future<Void>> forced = forceStaged(batch);
+
+		List<Commit> published = new ArrayList<Commit>();
+		for (Commit commit : batch) {
+			try {
+				Future<Void> f = forced.get(commit);
+				if (f != null) {
+					awaitForced(f);
+				}
+				if (commit.publisher != null) {
+					commit.publisher.publish(commit.staged);
+				}
+				published.add(commit);
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Could not commit data of video " + commit.videoId, e);
+				finish(commit, e);
+			} finally {
+				deleteStaged(commit);
+			}
+		}
+
+		IOException failure = null;
+		if (!published.isEmpty()) {
+			Set<Path> changed = new LinkedHashSet<Path>(directories);
+			for (Commit commit : published) {
+				Video v = new Video();
+				v.setId(commit.videoId);
+				Path dir = storage.getVideoDataDirectory(v);
+				if (dir != null) {
+					changed.add(dir);
+				}
+			}
+			try {
+				storage.sync();
+				for (Path dir : changed) {
+					forceDirectory(dir);
+				}
+			} catch (IOException e) {
+				LOG.warn("Could not force the video storage directories", e);
+				failure = e;
+			}
+		}
+		batches.incrementAndGet();
+		commits.addAndGet(batch.size());
+		publishMetrics();
+
+		for (Commit commit : published) {
+			finish(commit, failure);
+		}
+	}
+
+	/**
+	 * Starts forcing the staging file of every commit in the batch. The
+	 * last one is forced on the committer thread while the pool works on
+	 * the others.
+	 */
+	private Map<Commit, Future<Void>> forceStaged(List<Commit> batch) {
+		Map<Commit, Future<Void>> forced = new HashMap<Commit, Future<Void>>();
+		Commit last = null;
+		for (Commit commit : batch) {
+			if (commit.staged == null) {
+				continue;
+			}
+			if (last != null) {
+				forced.put(last, submitForce(last));
+			}
+			last = commit;
+		}
+		if (last != null) {
+			SettableFuture<Void> f = SettableFuture.create();
+			try {
+				forceFile(last.staged);
+				f.set(null);
+			} catch (IOException | RuntimeException e) {
+				f.setException(e);
+			}
+			forced.put(last, f);
+		}
+		return forced;
+	}
+
+	private Future<Void> submitForce(final Commit commit) {
+		return forcers.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				forceFile(commit.staged);
+				return null;
+			}
+		});
+	}
+
+	// Waits for a staging file to be forced, even if the committer is
+	// interrupted to stop, since the file can't be published before that
+	private void awaitForced(Future<Void> f) throws IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					f.get();
+					return;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						throw (IOException) e.getCause();
+					}
+					throw new IOException(e.getCause());
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Forces a staging file's data to disk. Called on the committer thread
+	 * and on the pool, for different files at the same time.
+	 * 
+	 * @param staged
+	 * @throws IOException
+	 */
+	protected void forceFile(Path staged) throws IOException {
+		force(staged, StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Returns how many files and directories have been forced so far.
+	 * 
+	 * @return
+	 */
+	public long getForces() {
+		return forces.get();
+	}
+
+	/**
+	 * Returns how many commits have been completed so far.
+	 * 
+	 * @return
+	 */
+	public long getCommits() {
+		return commits.get();
+	}
+
+	private void finish(Commit commit, Exception failure) {
+		synchronized (pending) {
+			Integer count = pending.get(commit.videoId);
+			if (count == null || count <= 1) {
+				pending.remove(commit.videoId);
+			} else {
+				pending.put(commit.videoId, count - 1);
+			}
+		}
+		if (failure == null) {
+			commit.done.set(null);
+		} else {
+			commit.done.setException(failure);
+		}
+	}
+
+	private void deleteStaged(Commit commit) {
+		if (commit.staged == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(commit.staged);
+		} catch (IOException e) {
+			LOG.warn("Could not delete staging file " + commit.staged, e);
+		}
+	}
+
+	private void force(Path path, StandardOpenOption mode) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, mode)) {
+			channel.force(true);
+		}
+		forces.incrementAndGet();
+	}
+
+	// Not every platform lets a directory be opened and forced (Windows
+	// doesn't); there, renames are as durable as the file system makes them.
+	private void forceDirectory(Path dir) throws IOException {
+		try {
+			force(dir, StandardOpenOption.READ);
+		} catch (IOException e) {
+			if (Files.isDirectory(dir) && !System.getProperty("os.name", "").startsWith("Windows")) {
+				throw e;
+			}
+		}
+	}
+
+	private void publishMetrics() {
+		if (gauges == null) {
+			return;
+		}
+		long b = batches.get();
+		long c = commits.get();
+		gauges.submit("video.commit.batches", b);
+		gauges.submit("video.commit.commits", c);
+		gauges.submit("video.commit.meanBatchSize", b == 0 ? 0 : (double) c / b);
+		long f = forces.get();
+		gauges.submit("video.commit.forces", f);
+		gauges.submit("video.commit.forcesPerCommit", c == 0 ? 0 : (double) f / c);
+	}
+
+	private static class Commit {
+		private final long videoId;
+		private final Path staged;
+		private final Publisher publisher;
+		private final long submitted = System.nanoTime();
+		private final SettableFuture<Void> done = SettableFuture.create();
+
+		private Commit(long videoId, Path staged, Publisher publisher) {
+			this.videoId = videoId;
+			this.staged = staged;
+			this.publisher = publisher;
+		}
+	}
+
+}
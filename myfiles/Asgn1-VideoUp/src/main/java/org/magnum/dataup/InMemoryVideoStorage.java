@@ -0,0 +1,266 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.model.Video;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * The "memory" VideoStorage backend. The data of every video is a byte
+ * array on the heap, so nothing about serving it depends on the disk.
+ * This makes it the baseline to compare the other backends with in
+ * benchmarks, and a quick backend for tests. Everything is gone when the
+ * application stops, and a video's data must fit in an array.
+ * 
+ * Uploads are still staged in files (the rest of the application hands
+ * staging files around), and the storage directories for the journal and
+ * the blob store are still on disk, both under the given folder. Publishing
+ * reads a staging file into memory and deletes it.
+ */
+public class InMemoryVideoStorage implements VideoStorage {
+
+	private static final String STAGING_DIR = ".staging";
+
+	private final Path dir_;
+	private final Path stagingDir_;
+
+	private final ConcurrentMap<Long, Data> data = new ConcurrentHashMap<Long, Data>();
+	private final ConcurrentMap<Long, String> digests = new ConcurrentHashMap<Long, String>();
+
+	// Every stored array gets a new key, like a new file would
+	private final AtomicLong keys = new AtomicLong();
+
+	public InMemoryVideoStorage(Path dir) throws IOException {
+		dir_ = dir;
+		stagingDir_ = dir.resolve(STAGING_DIR);
+		Files.createDirectories(stagingDir_);
+		VideoFileManager.deleteStagingFiles(stagingDir_);
+	}
+
+	@Override
+	public boolean hasVideoData(Video v) {
+		return data.containsKey(v.getId());
+	}
+
+	@Override
+	public void copyVideoData(Video v, OutputStream out) throws IOException {
+		byte[] bytes = bytes(v);
+		out.write(bytes);
+	}
+
+	@Override
+	public void copyVideoData(Video v, long offset, long length, OutputStream out) throws IOException {
+		byte[] bytes = bytes(v);
+		checkRange(v.getId(), bytes, offset, length);
+		out.write(bytes, (int) offset, (int) length);
+	}
+
+	@Override
+	public void transferVideoData(Video v, long offset, long length, WritableByteChannel target) throws IOException {
+		byte[] bytes = bytes(v);
+		checkRange(v.getId(), bytes, offset, length);
+		write(bytes, offset, length, target);
+	}
+
+	/**
+	 * A version holds on to the array it was acquired with. Publishing puts
+	 * a new array in its place instead of writing into it, and the garbage
+	 * collector reclaims the old one once no version refers to it.
+	 */
+	@Override
+	public VideoDataVersion acquireVideoData(Video v) throws IOException {
+		final long id = v.getId();
+		final Data d = data.get(id);
+		if (d == null) {
+			throw new FileNotFoundException("Unable to find the referenced video data for videoId:" + id);
+		}
+		return new VideoDataVersion() {
+			@Override
+			public BasicFileAttributes getAttributes() {
+				return d;
+			}
+
+			@Override
+			public void copyTo(long offset, long length, OutputStream out) throws IOException {
+				checkRange(id, d.bytes, offset, length);
+				out.write(d.bytes, (int) offset, (int) length);
+			}
+
+			@Override
+			public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+				checkRange(id, d.bytes, offset, length);
+				write(d.bytes, offset, length, target);
+			}
+
+			@Override
+			public ByteBuffer map() {
+				return null;
+			}
+
+			@Override
+			public Path getPath() {
+				return null;
+			}
+
+			@Override
+			public Path getPinnedPath() {
+				return null;
+			}
+
+			@Override
+			public boolean isCurrent() {
+				return data.get(id) == d;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public Path getVideoDataPath(Video v) {
+		return null;
+	}
+
+	@Override
+	public long getVideoDataLength(Video v) throws IOException {
+		return getVideoDataAttributes(v).size();
+	}
+
+	@Override
+	public long getVideoDataLastModified(Video v) throws IOException {
+		return getVideoDataAttributes(v).lastModifiedTime().toMillis();
+	}
+
+	@Override
+	public BasicFileAttributes getVideoDataAttributes(Video v) throws IOException {
+		Data d = data.get(v.getId());
+		if (d == null) {
+			throw new NoSuchFileException("video" + v.getId());
+		}
+		return d;
+	}
+
+	@Override
+	public void saveVideoData(Video v, InputStream videoData) throws IOException {
+		store(v, ByteStreams.toByteArray(videoData));
+	}
+
+	@Override
+	public Path createStagingFile() throws IOException {
+		return Files.createTempFile(stagingDir_, "upload", ".part");
+	}
+
+	@Override
+	public void publishVideoData(Video v, Path staged) throws IOException {
+		store(v, Files.readAllBytes(staged));
+		Files.deleteIfExists(staged);
+	}
+
+	@Override
+	public void linkVideoData(Video v, Path existing) throws IOException {
+		store(v, Files.readAllBytes(existing));
+	}
+
+	@Override
+	public boolean deleteVideoData(Video v) throws IOException {
+		digests.remove(v.getId());
+		return data.remove(v.getId()) != null;
+	}
+
+	@Override
+	public Path getVideoDataDirectory(Video v) {
+		return null;
+	}
+
+	@Override
+	public void sync() throws IOException {
+		// Nothing to make durable
+	}
+
+	@Override
+	public Path getStorageDirectory(String name) throws IOException {
+		Path dir = dir_.resolve(name);
+		Files.createDirectories(dir);
+		return dir;
+	}
+
+	@Override
+	public void saveVideoDataDigest(Video v, String digest) throws IOException {
+		digests.put(v.getId(), digest);
+	}
+
+	@Override
+	public String loadVideoDataDigest(Video v) throws IOException {
+		return digests.get(v.getId());
+	}
+
+	private void store(Video v, byte[] bytes) {
+		data.put(v.getId(), new Data(bytes, keys.incrementAndGet()));
+	}
+
+	private byte[] bytes(Video v) throws FileNotFoundException {
+		Data d = data.get(v.getId());
+		if (d == null) {
+			throw new FileNotFoundException("Unable to find the referenced video data for videoId:" + v.getId());
+		}
+		return d.bytes;
+	}
+
+	private static void checkRange(long id, byte[] bytes, long offset, long length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > bytes.length) {
+			throw new IOException("Unexpected end of video data for videoId:" + id);
+		}
+	}
+
+	private static void write(byte[] bytes, long offset, long length, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes, (int) offset, (int) length);
+		while (buffer.hasRemaining()) {
+			target.write(buffer);
+		}
+	}
+
+	/**
+	 * A video's data and the attributes a file holding it would have.
+	 */
+	private static class Data extends StoredVideoAttributes {
+		private final byte[] bytes;
+
+		private Data(byte[] bytes, long key) {
+			super(bytes.length, System.currentTimeMillis(), key);
+			this.bytes = bytes;
+		}
+	}
+
+}
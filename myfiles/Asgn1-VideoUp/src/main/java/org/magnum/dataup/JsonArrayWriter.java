@@ -0,0 +1,97 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes a JSON array to a response one element at a time, straight from
+ * an iterator, instead of building a collection and handing it to Spring
+ * to serialize afterward. Only the element being written and the output
+ * buffers are in memory at any time, so the heap a response needs doesn't
+ * grow with the number of elements.
+ * 
+ * The generator is flushed after every flushEvery elements, which pushes
+ * what has been written so far to the client rather than letting it wait
+ * behind the rest of the array. The output is the same JSON that a
+ * @ResponseBody collection produces. Once the first bytes have been sent
+ * an error can no longer change the status code, so the client sees a
+ * truncated array instead.
+ */
+public class JsonArrayWriter {
+
+	public static final int DEFAULT_FLUSH_EVERY = 256;
+
+	public static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+	private final ObjectMapper mapper;
+
+	private final ObjectWriter writer;
+
+	private final int flushEvery;
+
+	public JsonArrayWriter() {
+		this(new ObjectMapper(), DEFAULT_FLUSH_EVERY);
+	}
+
+	public JsonArrayWriter(ObjectMapper mapper, int flushEvery) {
+		this.mapper = mapper;
+		// Flushing after each element would send one tiny packet per video
+		this.writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		this.flushEvery = Math.max(1, flushEvery);
+	}
+
+	/**
+	 * Writes the remaining elements of the iterator to the response as a
+	 * JSON array.
+	 * 
+	 * @param elements
+	 * @param response
+	 * @return the number of elements written
+	 * @throws IOException
+	 */
+	public int write(Iterator<?> elements, HttpServletResponse response) throws IOException {
+		response.setContentType(JSON_CONTENT_TYPE);
+
+		JsonGenerator generator = mapper.getFactory().createGenerator(response.getOutputStream(), JsonEncoding.UTF8);
+		// The container closes the response stream
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+
+		int count = 0;
+		generator.writeStartArray();
+		while (elements.hasNext()) {
+			writer.writeValue(generator, elements.next());
+			if (++count % flushEvery == 0) {
+				generator.flush();
+			}
+		}
+		generator.writeEndArray();
+		generator.close();
+		return count;
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * The "mapped" VideoStorage backend. It stores files exactly like
+ * VideoFileManager, but reads them through memory mappings instead of
+ * read calls: the requested range is mapped (in pieces of at most
+ * MAP_CHUNK bytes) and written straight from the mapping, so the bytes go
+ * from the page cache to the output without being copied into a buffer
+ * first. Mappings live outside the Java heap and are released by the
+ * garbage collector.
+ * 
+ * Unlike VideoDataCache, nothing is kept mapped between reads, so the
+ * backend needs no memory budget and can't serve data that has been
+ * replaced.
+ */
+public class MappedVideoStorage extends VideoFileManager {
+
+	private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+	public MappedVideoStorage(Path dir) throws IOException {
+		super(dir);
+	}
+
+	@Override
+	public void copyVideoData(Video v, OutputStream out) throws IOException {
+		try (FileChannel channel = openVideoData(v)) {
+			write(v, channel, 0, channel.size(), Channels.newChannel(out));
+		}
+	}
+
+	@Override
+	protected void copyVideoData(Video v, FileChannel channel, long offset, long length, OutputStream out)
+			throws IOException {
+		write(v, channel, offset, length, Channels.newChannel(out));
+	}
+
+	@Override
+	protected void transferVideoData(Video v, FileChannel channel, long offset, long length,
+			WritableByteChannel target) throws IOException {
+		write(v, channel, offset, length, target);
+	}
+
+	private void write(Video v, FileChannel channel, long offset, long length, WritableByteChannel target)
+			throws IOException {
+		if (offset + length > channel.size()) {
+			throw new IOException("Unexpected end of video data for videoId:" + v.getId());
+		}
+		long position = offset;
+		long remaining = length;
+		while (remaining > 0) {
+			long chunk = Math.min(remaining, MAP_CHUNK);
+			MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, chunk);
+			while (mapped.hasRemaining()) {
+				target.write(mapped);
+			}
+			position += chunk;
+			remaining -= chunk;
+		}
+	}
+
+}
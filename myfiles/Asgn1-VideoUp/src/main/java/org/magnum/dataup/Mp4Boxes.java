@@ -0,0 +1,383 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the box structure of MP4 and QuickTime files (ISO base media
+ * files), a few header bytes at a time, so that a file of any size can be
+ * checked and indexed without reading its media data.
+ * 
+ * A file is a sequence of top-level boxes, each starting with a 32-bit size
+ * and a four character type. A size of 1 means a 64-bit size follows the
+ * type, and a size of 0 means the box runs to the end of the file. Boxes
+ * like moov hold further boxes; mdat holds the media samples.
+ */
+public final class Mp4Boxes {
+
+	// The types a top-level box of an ISO base media file may have first.
+	// Anything else is taken to be some other kind of file.
+	private static final Set<String> FIRST_BOX_TYPES = new HashSet<String>(Arrays.asList(
+			"ftyp", "moov", "mdat", "free", "skip", "wide", "pnot"));
+
+	private static final int HEADER_SIZE = 8;
+	private static final int LARGE_HEADER_SIZE = 16;
+
+	private Mp4Boxes() {
+	}
+
+	/**
+	 * One box: its type, where it starts and how long it is, header
+	 * included.
+	 */
+	public static class Box {
+		private final String type;
+		private final long offset;
+		private final long size;
+		private final int headerSize;
+
+		public Box(String type, long offset, long size, int headerSize) {
+			this.type = type;
+			this.offset = offset;
+			this.size = size;
+			this.headerSize = headerSize;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public int getHeaderSize() {
+			return headerSize;
+		}
+
+		public long getContentOffset() {
+			return offset + headerSize;
+		}
+
+		public long getEnd() {
+			return offset + size;
+		}
+
+		@Override
+		public String toString() {
+			return type + "@" + offset + "+" + size;
+		}
+	}
+
+	/**
+	 * The top-level layout of a file and what its movie header says about
+	 * it: the major brand from ftyp, and the movie's time scale (units per
+	 * second) and duration in those units, from moov/mvhd.
+	 */
+	public static class Layout {
+		private final List<Box> boxes;
+		private final String majorBrand;
+		private final long timescale;
+		private final long duration;
+
+		public Layout(List<Box> boxes, String majorBrand, long timescale, long duration) {
+			this.boxes = Collections.unmodifiableList(new ArrayList<Box>(boxes));
+			this.majorBrand = majorBrand;
+			this.timescale = timescale;
+			this.duration = duration;
+		}
+
+		public List<Box> getBoxes() {
+			return boxes;
+		}
+
+		public String getMajorBrand() {
+			return majorBrand;
+		}
+
+		public long getTimescale() {
+			return timescale;
+		}
+
+		public long getDuration() {
+			return duration;
+		}
+
+		public long getDurationMillis() {
+			return timescale == 0 ? 0 : duration * 1000 / timescale;
+		}
+
+		/**
+		 * Returns the first top-level box of the given type, or null.
+		 */
+		public Box find(String type) {
+			for (Box box : boxes) {
+				if (box.getType().equals(type)) {
+					return box;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * A file is fast-start if a player gets the movie box, which it
+		 * needs before it can play anything, before the media data.
+		 */
+		public boolean isFastStart() {
+			Box moov = find("moov");
+			Box mdat = find("mdat");
+			return moov != null && (mdat == null || moov.getOffset() < mdat.getOffset());
+		}
+	}
+
+	/**
+	 * Thrown when a file starts like an ISO base media file but its boxes
+	 * don't add up, e.g., because it was cut short.
+	 */
+	public static class InvalidContainerException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidContainerException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Returns whether the file starts with a box header that an ISO base
+	 * media file can start with.
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isIsoMedia(FileChannel channel) throws IOException {
+		if (channel.size() < HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer header = read(channel, 0, HEADER_SIZE);
+		long size = header.getInt() & 0xffffffffL;
+		String type = type(header);
+		return FIRST_BOX_TYPES.contains(type) && (size == 0 || size == 1 || size >= HEADER_SIZE);
+	}
+
+	/**
+	 * Reads the layout of an ISO base media file. The top-level boxes must
+	 * cover the file exactly and there must be a movie box, or the file is
+	 * not playable and an InvalidContainerException is thrown.
+	 * 
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static Layout readLayout(FileChannel channel) throws IOException {
+		List<Box> boxes = scan(channel, 0, channel.size());
+		String brand = null;
+		long timescale = 0;
+		long duration = 0;
+		Box moov = null;
+		for (Box box : boxes) {
+			if (brand == null && box.getType().equals("ftyp") && box.getSize() >= box.getHeaderSize() + 4) {
+				brand = type(read(channel, box.getContentOffset(), 4));
+			} else if (moov == null && box.getType().equals("moov")) {
+				moov = box;
+			}
+		}
+		if (moov == null) {
+			throw new InvalidContainerException("no moov box");
+		}
+		for (Box child : children(channel, moov)) {
+			if (child.getType().equals("mvhd")) {
+				ByteBuffer mvhd = read(channel, child.getContentOffset(),
+						(int) Math.min(child.getSize() - child.getHeaderSize(), 32));
+				if (mvhd.remaining() < 20) {
+					throw new InvalidContainerException("mvhd box too short");
+				}
+				int version = mvhd.get() & 0xff;
+				mvhd.position(4);
+				if (version == 1) {
+					if (mvhd.remaining() < 28) {
+						throw new InvalidContainerException("mvhd box too short");
+					}
+					mvhd.position(mvhd.position() + 16);
+					timescale = mvhd.getInt() & 0xffffffffL;
+					duration = mvhd.getLong();
+				} else {
+					mvhd.position(mvhd.position() + 8);
+					timescale = mvhd.getInt() & 0xffffffffL;
+					duration = mvhd.getInt() & 0xffffffffL;
+				}
+				break;
+			}
+		}
+		return new Layout(boxes, brand, timescale, duration);
+	}
+
+	/**
+	 * Returns the boxes directly inside the given box.
+	 * 
+	 * @param channel
+	 * @param parent
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Box> children(FileChannel channel, Box parent) throws IOException {
+		return scan(channel, parent.getContentOffset(), parent.getEnd());
+	}
+
+	/**
+	 * Returns the boxes between start and end, which must cover the range
+	 * exactly.
+	 * 
+	 * @param channel
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Box> scan(FileChannel channel, long start, long end) throws IOException {
+		List<Box> boxes = new ArrayList<Box>();
+		long offset = start;
+		while (offset < end) {
+			if (end - offset < HEADER_SIZE) {
+				throw new InvalidContainerException("trailing bytes at " + offset);
+			}
+			ByteBuffer header = read(channel, offset, HEADER_SIZE);
+			long size = header.getInt() & 0xffffffffL;
+			String type = type(header);
+			int headerSize = HEADER_SIZE;
+			if (size == 1) {
+				if (end - offset < LARGE_HEADER_SIZE) {
+					throw new InvalidContainerException("truncated " + type + " box at " + offset);
+				}
+				size = read(channel, offset + HEADER_SIZE, 8).getLong();
+				headerSize = LARGE_HEADER_SIZE;
+			} else if (size == 0) {
+				size = end - offset;
+			}
+			if (size < headerSize || size > end - offset) {
+				throw new InvalidContainerException("bad size " + size + " of " + type + " box at " + offset);
+			}
+			boxes.add(new Box(type, offset, size, headerSize));
+			offset += size;
+		}
+		return boxes;
+	}
+
+	/**
+	 * Returns the boxes between start and end of a buffer holding part of a
+	 * file (e.g., a whole movie box), which must cover the range exactly.
+	 * Their offsets are positions in the buffer.
+	 * 
+	 * @param buffer
+	 * @param start
+	 * @param end
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<Box> scan(ByteBuffer buffer, int start, int end) throws IOException {
+		List<Box> boxes = new ArrayList<Box>();
+		int offset = start;
+		while (offset < end) {
+			if (end - offset < HEADER_SIZE) {
+				throw new InvalidContainerException("trailing bytes at " + offset);
+			}
+			long size = buffer.getInt(offset) & 0xffffffffL;
+			String type = type(buffer, offset + 4);
+			int headerSize = HEADER_SIZE;
+			if (size == 1) {
+				if (end - offset < LARGE_HEADER_SIZE) {
+					throw new InvalidContainerException("truncated " + type + " box at " + offset);
+				}
+				size = buffer.getLong(offset + HEADER_SIZE);
+				headerSize = LARGE_HEADER_SIZE;
+			} else if (size == 0) {
+				size = end - offset;
+			}
+			if (size < headerSize || size > end - offset) {
+				throw new InvalidContainerException("bad size " + size + " of " + type + " box at " + offset);
+			}
+			boxes.add(new Box(type, offset, size, headerSize));
+			offset += (int) size;
+		}
+		return boxes;
+	}
+
+	/**
+	 * Returns the first box of the given type among the boxes directly
+	 * inside the given box of a buffer, or null.
+	 * 
+	 * @param buffer
+	 * @param parent
+	 * @param type
+	 * @return
+	 * @throws IOException
+	 */
+	public static Box child(ByteBuffer buffer, Box parent, String type) throws IOException {
+		for (Box box : scan(buffer, (int) parent.getContentOffset(), (int) parent.getEnd())) {
+			if (box.getType().equals(type)) {
+				return box;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reads exactly length bytes at the given position and returns them,
+	 * ready to be read.
+	 */
+	static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("unexpected end of file at " + (position + buffer.position()));
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String type(ByteBuffer buffer) {
+		byte[] type = new byte[4];
+		buffer.get(type);
+		return new String(type, StandardCharsets.ISO_8859_1);
+	}
+
+	static String type(ByteBuffer buffer, int offset) {
+		byte[] type = new byte[4];
+		for (int i = 0; i < 4; i++) {
+			type[i] = buffer.get(offset + i);
+		}
+		return new String(type, StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,182 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.magnum.dataup.Mp4Boxes.Box;
+import org.magnum.dataup.Mp4Boxes.Layout;
+
+/**
+ * Rewrites MP4 and QuickTime files whose movie box (moov) comes after their
+ * media data (mdat) so that it comes first, the way qt-faststart does. A
+ * player needs the movie box before it can play anything, so with it at
+ * the end a client has to download the whole file, or guess where the box
+ * is and ask for it with a range request, before playback starts.
+ * 
+ * The movie box is moved in front of the first mdat box. That moves the
+ * media data along by the size of the movie box, so the chunk offsets in
+ * every stco and co64 box are moved along with it. Only the movie box is
+ * read into memory; everything else is copied from file to file with
+ * FileChannel.transferTo(), which the kernel can do without the data
+ * passing through the heap.
+ * 
+ * Files that can't be rewritten safely are left as they are: fragmented
+ * files (whose fragments have offsets of their own), files with a
+ * compressed movie box, and files whose chunk offsets would no longer fit
+ * in an stco box.
+ */
+public final class Mp4FastStart {
+
+	// Boxes on the way from moov to the chunk offset tables
+	private static final Set<String> CONTAINERS = new HashSet<String>(Arrays.asList(
+			"moov", "trak", "mdia", "minf", "stbl"));
+
+	private static final long MAX_STCO_OFFSET = 0xffffffffL;
+
+	private Mp4FastStart() {
+	}
+
+	/**
+	 * Returns whether a file with the given layout (see
+	 * VideoContainerIndex.read()) has its movie box after its media data
+	 * and can be rewritten.
+	 * 
+	 * @param layout
+	 *            the layout, or null if the file isn't an ISO base media file
+	 * @return
+	 */
+	public static boolean needsRelocation(Layout layout) {
+		return layout != null && !layout.isFastStart() && layout.find("mdat") != null
+				&& layout.find("moof") == null;
+	}
+
+	/**
+	 * Writes a copy of the file with the given layout to out, with its movie
+	 * box moved in front of its media data. Returns false, having written
+	 * nothing useful, if the file can't be rewritten safely or its movie
+	 * box is larger than maxMoovBytes.
+	 * 
+	 * @param in
+	 * @param layout
+	 * @param out
+	 *            an empty file
+	 * @param maxMoovBytes
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean relocate(FileChannel in, Layout layout, FileChannel out, int maxMoovBytes)
+			throws IOException {
+		if (!needsRelocation(layout)) {
+			return false;
+		}
+		Box moov = layout.find("moov");
+		Box mdat = layout.find("mdat");
+		if (moov.getSize() > maxMoovBytes) {
+			return false;
+		}
+
+		// Everything from the first mdat up to the old movie box ends up
+		// that much further into the file; what comes after it stays put
+		ByteBuffer movie = Mp4Boxes.read(in, moov.getOffset(), (int) moov.getSize());
+		if (!shiftChunkOffsets(movie, 0, movie.limit(), mdat.getOffset(), moov.getOffset(), moov.getSize())) {
+			return false;
+		}
+
+		long position = 0;
+		for (Box box : layout.getBoxes()) {
+			if (box == moov) {
+				continue;
+			}
+			if (box == mdat) {
+				movie.rewind();
+				while (movie.hasRemaining()) {
+					position += out.write(movie, position);
+				}
+			}
+			position += transfer(in, box.getOffset(), box.getSize(), out, position);
+		}
+		out.force(false);
+		return true;
+	}
+
+	/**
+	 * Adds shift to the chunk offsets of every stco and co64 box between
+	 * start and end of the buffer that point into [from, to). Returns
+	 * false if the boxes can't be rewritten.
+	 */
+	private static boolean shiftChunkOffsets(ByteBuffer movie, int start, int end, long from, long to, long shift)
+			throws IOException {
+		for (Box box : Mp4Boxes.scan(movie, start, end)) {
+			String type = box.getType();
+			int content = (int) box.getContentOffset();
+			int boxEnd = (int) box.getEnd();
+
+			if (type.equals("cmov")) {
+				return false;
+			} else if (CONTAINERS.contains(type)) {
+				if (!shiftChunkOffsets(movie, content, boxEnd, from, to, shift)) {
+					return false;
+				}
+			} else if (type.equals("stco") || type.equals("co64")) {
+				int width = type.equals("stco") ? 4 : 8;
+				// Version and flags, then the number of entries
+				long count = movie.getInt(content + 4) & 0xffffffffL;
+				if (count * width > boxEnd - content - 8) {
+					throw new Mp4Boxes.InvalidContainerException(type + " box too short for " + count + " entries");
+				}
+				for (int i = 0; i < count; i++) {
+					int entry = content + 8 + i * width;
+					long chunk = width == 4 ? movie.getInt(entry) & 0xffffffffL : movie.getLong(entry);
+					if (chunk < from || chunk >= to) {
+						continue;
+					}
+					chunk += shift;
+					if (width == 4) {
+						if (chunk > MAX_STCO_OFFSET) {
+							return false;
+						}
+						movie.putInt(entry, (int) chunk);
+					} else {
+						movie.putLong(entry, chunk);
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	private static long transfer(FileChannel in, long offset, long length, FileChannel out, long position)
+			throws IOException {
+		long done = 0;
+		while (done < length) {
+			long n = in.transferTo(offset + done, length - done, out.position(position + done));
+			if (n <= 0) {
+				throw new IOException("could not copy " + (length - done) + " bytes at " + (offset + done));
+			}
+			done += n;
+		}
+		return done;
+	}
+
+}
@@ -0,0 +1,418 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.UploadSessionManager.CompletedUpload;
+import org.magnum.dataup.model.MultipartUpload;
+import org.magnum.dataup.model.UploadPart;
+import org.magnum.dataup.model.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of multipart uploads of video data, which let a client send
+ * a large file as numbered parts over several connections at once instead
+ * of one sequential stream. The client starts an upload with a part size,
+ * sends the parts in any order (and again, if one fails), and completes the
+ * upload with the list of parts that make up the video.
+ * 
+ * Part n is written straight into its place in a single staging file,
+ * starting at (n - 1) * partSize, so completing the upload needs no
+ * assembly: the file is cut to the length of the listed parts and
+ * published with a rename, like a resumable upload (see
+ * UploadSessionManager). The SHA-256 of the whole file can only be computed
+ * in order, so it is brought up to date whenever the parts at the front of
+ * the file are complete, while later parts are still arriving; those
+ * parts are read back from the page cache right after they were written,
+ * and only what is left when the upload completes is hashed then.
+ */
+@Component
+public class MultipartUploadManager {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// The smallest part size a client may pick. Only the last part of an
+	// upload may be shorter.
+	@Value("${video.multipart.minPartSize:1048576}")
+	private long minPartSize = 1024 * 1024;
+
+	@Value("${video.multipart.maxPartSize:67108864}")
+	private long maxPartSize = 64 * 1024 * 1024;
+
+	@Value("${video.multipart.maxParts:10000}")
+	private int maxParts = 10000;
+
+	// Uploads that haven't been touched for this long are discarded
+	@Value("${video.upload.sessionTimeoutMinutes:1440}")
+	private long sessionTimeoutMinutes = 24 * 60;
+
+	@Autowired
+	private VideoStorage storage;
+
+	private final ConcurrentMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+	public MultipartUploadManager() {
+	}
+
+	public MultipartUploadManager(VideoStorage storage, long minPartSize, long maxPartSize, int maxParts) {
+		this.storage = storage;
+		this.minPartSize = minPartSize;
+		this.maxPartSize = maxPartSize;
+		this.maxParts = maxParts;
+	}
+
+	/**
+	 * Starts a new multipart upload for the given video.
+	 * 
+	 * @param v
+	 * @param length the total number of bytes the client will send, or -1 if unknown
+	 * @param partSize the size of every part but the last
+	 * @return
+	 * @throws IOException
+	 */
+	public MultipartUpload create(Video v, long length, long partSize) throws IOException {
+		if (partSize < minPartSize || partSize > maxPartSize) {
+			throw new InvalidPartException("The part size must be between " + minPartSize + " and " + maxPartSize);
+		}
+		if (length > partSize * maxParts) {
+			throw new InvalidPartException("An upload may have at most " + maxParts + " parts");
+		}
+		expireIdleUploads();
+
+		Path file = storage.createStagingFile();
+		Upload upload = new Upload(UUID.randomUUID().toString(), v.getId(), length, partSize, file,
+				FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.READ));
+		uploads.put(upload.id, upload);
+		return upload.toMultipartUpload();
+	}
+
+	/**
+	 * Returns the state of an upload, including the parts received so far,
+	 * or null if there is no such upload for the given video.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @return
+	 */
+	public MultipartUpload get(long videoId, String uploadId) {
+		Upload upload = find(videoId, uploadId);
+		return upload == null ? null : upload.toMultipartUpload();
+	}
+
+	/**
+	 * Stores one part of an upload, replacing the part if it was sent
+	 * before. Every part but the last must be exactly the upload's part
+	 * size, and no part may be longer; a part that is, or that is already
+	 * being received on another connection, is rejected with an
+	 * InvalidPartException. A part that fails part way through has to be
+	 * sent again.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @param partNumber
+	 * @param data
+	 * @return the part, with the etag to complete the upload with, or null if there is no such upload
+	 * @throws IOException
+	 */
+	public UploadPart putPart(long videoId, String uploadId, int partNumber, InputStream data) throws IOException {
+		Upload upload = find(videoId, uploadId);
+		if (upload == null) {
+			return null;
+		}
+		if (partNumber < 1 || partNumber > maxParts) {
+			throw new InvalidPartException("Part numbers go from 1 to " + maxParts);
+		}
+		long start = (partNumber - 1) * upload.partSize;
+		long limit = upload.partSize;
+		if (upload.length >= 0) {
+			limit = Math.min(limit, upload.length - start);
+			// An empty upload still has an (empty) part 1
+			if (limit < 0 || (limit == 0 && partNumber > 1)) {
+				throw new InvalidPartException("Part " + partNumber + " is past the end of the upload");
+			}
+		}
+
+		upload.touch();
+		upload.hashLock.lock();
+		try {
+			if (!upload.receiving.add(partNumber)) {
+				throw new InvalidPartException("Part " + partNumber + " is already being received");
+			}
+			upload.parts.remove(partNumber);
+			// Data that was already hashed is about to change
+			if (start < upload.hashed) {
+				upload.resetHash();
+			}
+		} finally {
+			upload.hashLock.unlock();
+		}
+
+		try {
+			UploadPart part = write(upload, partNumber, start, limit, data);
+			upload.parts.put(partNumber, part);
+			return part;
+		} finally {
+			upload.receiving.remove(partNumber);
+			if (upload.hashLock.tryLock()) {
+				// Otherwise, the thread that holds the lock hashes this part
+				// too, or completing the upload does
+				try {
+					upload.hash(Integer.MAX_VALUE);
+				} finally {
+					upload.hashLock.unlock();
+				}
+			}
+		}
+	}
+
+	private UploadPart write(Upload upload, int partNumber, long start, long limit, InputStream data)
+			throws IOException {
+		MessageDigest md = VideoDataDigests.newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		long received = 0;
+		while (true) {
+			int read = data.read(buffer.array(), 0, buffer.capacity());
+			if (read < 0) {
+				break;
+			}
+			if (received + read > limit) {
+				throw new InvalidPartException("Part " + partNumber + " is longer than " + limit + " bytes");
+			}
+			md.update(buffer.array(), 0, read);
+			buffer.clear();
+			buffer.limit(read);
+			while (buffer.hasRemaining()) {
+				upload.channel.write(buffer, start + received + buffer.position());
+			}
+			received += read;
+		}
+		return new UploadPart(partNumber, received, Hex.encodeHexString(md.digest()));
+	}
+
+	/**
+	 * Completes an upload and discards it, handing its staging file over to
+	 * the caller, who publishes it as the binary data of the video (see
+	 * GroupCommitter). The parts must be numbered 1 to n in order, with the
+	 * etags the server returned for them; parts after n are dropped. If
+	 * the client announced a length, the parts must add up to it. Otherwise,
+	 * or if parts are still being received, an InvalidPartException is
+	 * thrown and the upload stays as it is.
+	 * 
+	 * @param v
+	 * @param uploadId
+	 * @param parts
+	 * @return the staging file and its digest, or null if there is no such upload
+	 * @throws IOException
+	 */
+	public CompletedUpload complete(Video v, String uploadId, List<UploadPart> parts) throws IOException {
+		Upload upload = find(v.getId(), uploadId);
+		if (upload == null) {
+			return null;
+		}
+
+		upload.hashLock.lock();
+		try {
+			if (!upload.receiving.isEmpty()) {
+				throw new InvalidPartException("Parts of upload " + uploadId + " are still being received");
+			}
+			long length = 0;
+			for (int i = 0; i < parts.size(); i++) {
+				UploadPart listed = parts.get(i);
+				UploadPart received = upload.parts.get(i + 1);
+				if (listed.getPartNumber() != i + 1 || received == null
+						|| !received.getEtag().equalsIgnoreCase(String.valueOf(listed.getEtag()))) {
+					throw new InvalidPartException("Part " + (i + 1) + " is missing or doesn't match");
+				}
+				if (i < parts.size() - 1 && received.getSize() != upload.partSize) {
+					throw new InvalidPartException("Part " + (i + 1) + " is shorter than the part size");
+				}
+				length += received.getSize();
+			}
+			if (upload.length >= 0 && length != upload.length) {
+				throw new InvalidPartException("The parts add up to " + length + " bytes, not " + upload.length);
+			}
+			if (!uploads.remove(upload.id, upload)) {
+				return null;
+			}
+
+			try {
+				// Parts after the last one listed may have been hashed
+				if (upload.hashed > length) {
+					upload.resetHash();
+				}
+				upload.hash(parts.size());
+				upload.channel.truncate(length);
+				upload.channel.force(false);
+			} finally {
+				upload.channel.close();
+			}
+			return new CompletedUpload(upload.file, Hex.encodeHexString(upload.digest.digest()));
+		} finally {
+			upload.hashLock.unlock();
+		}
+	}
+
+	/**
+	 * Discards an upload and any data received for it.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @throws IOException
+	 */
+	public void abort(long videoId, String uploadId) throws IOException {
+		Upload upload = find(videoId, uploadId);
+		if (upload != null) {
+			discard(upload);
+		}
+	}
+
+	private Upload find(long videoId, String uploadId) {
+		Upload upload = uploads.get(uploadId);
+		return (upload != null && upload.videoId == videoId) ? upload : null;
+	}
+
+	private void discard(Upload upload) throws IOException {
+		if (uploads.remove(upload.id, upload)) {
+			// Writes of parts still being received fail from here on
+			upload.channel.close();
+			Files.deleteIfExists(upload.file);
+		}
+	}
+
+	private void expireIdleUploads() throws IOException {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(sessionTimeoutMinutes);
+		Iterator<Upload> it = uploads.values().iterator();
+		while (it.hasNext()) {
+			Upload upload = it.next();
+			if (upload.lastTouched < cutoff) {
+				discard(upload);
+			}
+		}
+	}
+
+	private static class Upload {
+		private final String id;
+		private final long videoId;
+		private final long length;
+		private final long partSize;
+		private final Path file;
+		private final FileChannel channel;
+
+		// The parts that were completely received, and those being received
+		private final ConcurrentSkipListMap<Integer, UploadPart> parts = new ConcurrentSkipListMap<Integer, UploadPart>();
+		private final Set<Integer> receiving = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+		// The digest of the first hashed bytes of the file
+		private final ReentrantLock hashLock = new ReentrantLock();
+		private MessageDigest digest = VideoDataDigests.newDigest();
+		private long hashed;
+
+		private volatile long lastTouched = System.currentTimeMillis();
+
+		private Upload(String id, long videoId, long length, long partSize, Path file, FileChannel channel) {
+			this.id = id;
+			this.videoId = videoId;
+			this.length = length;
+			this.partSize = partSize;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		private void touch() {
+			lastTouched = System.currentTimeMillis();
+		}
+
+		// Called with hashLock held
+		private void resetHash() {
+			digest = VideoDataDigests.newDigest();
+			hashed = 0;
+		}
+
+		// Hashes the parts that follow the hashed bytes, as long as they are
+		// complete, up to the given part. Called with hashLock held.
+		private void hash(int lastPart) throws IOException {
+			ByteBuffer buffer = null;
+			while (hashed % partSize == 0) {
+				int next = (int) (hashed / partSize) + 1;
+				UploadPart part = parts.get(next);
+				if (next > lastPart || part == null || receiving.contains(next)) {
+					return;
+				}
+				if (buffer == null) {
+					buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				}
+				long end = hashed + part.getSize();
+				while (hashed < end) {
+					buffer.clear();
+					if (end - hashed < buffer.capacity()) {
+						buffer.limit((int) (end - hashed));
+					}
+					int read = channel.read(buffer, hashed);
+					if (read < 0) {
+						throw new IOException("Part " + next + " of upload " + id + " is missing data");
+					}
+					digest.update(buffer.array(), 0, read);
+					hashed += read;
+				}
+				if (part.getSize() < partSize) {
+					// The last part
+					return;
+				}
+			}
+		}
+
+		private MultipartUpload toMultipartUpload() {
+			return new MultipartUpload(id, videoId, partSize, length, new ArrayList<UploadPart>(parts.values()));
+		}
+	}
+
+	/**
+	 * Thrown when a part or the list of parts to complete an upload with
+	 * doesn't fit the upload.
+	 */
+	public static class InvalidPartException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidPartException(String message) {
+			super(message);
+		}
+	}
+
+}
@@ -0,0 +1,984 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import org.magnum.dataup.model.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+
+/**
+ * The "packed" VideoStorage backend: a log-structured store that appends
+ * the data of every video to a few large segment files instead of keeping
+ * a file per video. For a catalog of many small clips, this saves an inode,
+ * a directory entry and an open/close per video. All segments stay open,
+ * and a read is a lookup in an in-memory index followed by positional
+ * reads (or, for segments that are full, reads from a memory mapping of
+ * the segment, when mmap is on).
+ * 
+ * Each segment (pack/segment-NNNNNNNNNN.pack) is a sequence of records:
+ * 
+ *   int magic, byte type, long videoId, long version, long modified,
+ *   long length, int crc32, and then length bytes of payload
+ * 
+ * A record stores a video's data, the text of its digest (see
+ * VideoDataDigests), or marks it as deleted. New records go to the end of
+ * the last segment, which is closed off once it would grow past
+ * segmentBytes. The index maps each video to its latest data and digest
+ * records; it is rebuilt at startup by reading the record headers of every
+ * segment in order. The records at the end of the last segment are checked
+ * against their CRCs, and a record that was only partly written before a
+ * crash is cut off. The version of a record is its file key, and stays the
+ * same when the record is moved by the compactor, so that recorded digests
+ * stay valid.
+ * 
+ * Replacing or deleting a video leaves its old records behind as garbage.
+ * Every compactIntervalMillis, the compactor looks for full segments where
+ * at least compactGarbageRatio of the bytes are garbage, copies the live
+ * records of each to the end of the log, forces it, and deletes the
+ * segment. Readers that are still reading the segment, or holding a
+ * version of a record in it (see VideoDataVersion), finish first.
+ * Deletion records are only kept while an older segment could still hold
+ * data they cover.
+ * 
+ * Appends are serialized, like any log: publishing copies the staging file
+ * into the segment (so the data is written twice, as with a copy), and the
+ * data is durable once sync() has forced the segment, which GroupCommitter
+ * does once per batch. Data is never in a file of its own, so sendfile and
+ * the VideoDataCache aren't used for this backend.
+ * 
+ * The store is described by the gauges video.pack.videos, segments,
+ * liveBytes, garbageBytes, compactions and reclaimedBytes.
+ */
+public class PackedVideoStorage implements VideoStorage, Closeable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PackedVideoStorage.class);
+
+	public static final long DEFAULT_SEGMENT_BYTES = 256L * 1024 * 1024;
+	public static final double DEFAULT_COMPACT_GARBAGE_RATIO = 0.5;
+	public static final long DEFAULT_COMPACT_INTERVAL_MILLIS = 60000;
+
+	private static final String STAGING_DIR = ".staging";
+	private static final String PACK_DIR = "pack";
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".pack";
+
+	private static final int MAGIC = 0x56504b31;
+
+	private static final byte DATA = 1;
+	private static final byte DIGEST = 2;
+	private static final byte DELETE = 3;
+
+	private static final int HEADER_SIZE = 4 + 1 + 8 + 8 + 8 + 8 + 4;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Path dir_;
+	private final Path stagingDir_;
+	private final Path packDir_;
+
+	private final long segmentBytes;
+	private final boolean mmap;
+	private final double compactGarbageRatio;
+	private final long compactIntervalMillis;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	// Every segment by number; the last one is the one being appended to
+	private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+	// The latest data and digest record of each video
+	private final ConcurrentMap<Long, Record> data = new ConcurrentHashMap<Long, Record>();
+	private final ConcurrentMap<Long, Record> digests = new ConcurrentHashMap<Long, Record>();
+
+	// Appending a record and updating the index happen together under this
+	// lock, so the index always agrees with the order of the log
+	private final Object appendLock = new Object();
+
+	// Guarded by appendLock
+	private Segment active;
+	private long nextVersion = 1;
+
+	private final AtomicLong compactions = new AtomicLong();
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+
+	private ScheduledExecutorService compactor;
+
+	/**
+	 * Opens the store in the given directory with the default settings.
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public PackedVideoStorage(Path dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_BYTES, false, DEFAULT_COMPACT_GARBAGE_RATIO, DEFAULT_COMPACT_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Opens the store in the given directory, recovering the index from the
+	 * segments that are already there. With a compaction interval of 0
+	 * there is no background compaction and compact() has to be called
+	 * instead.
+	 * 
+	 * @param dir
+	 * @param segmentBytes
+	 * @param mmap
+	 * @param compactGarbageRatio
+	 * @param compactIntervalMillis
+	 * @throws IOException
+	 */
+	public PackedVideoStorage(Path dir, long segmentBytes, boolean mmap, double compactGarbageRatio,
+			long compactIntervalMillis) throws IOException {
+		this.dir_ = dir;
+		this.stagingDir_ = dir.resolve(STAGING_DIR);
+		this.packDir_ = dir.resolve(PACK_DIR);
+		this.segmentBytes = segmentBytes;
+		this.mmap = mmap;
+		this.compactGarbageRatio = compactGarbageRatio;
+		this.compactIntervalMillis = compactIntervalMillis;
+		open();
+	}
+
+	private void open() throws IOException {
+		Files.createDirectories(stagingDir_);
+		VideoFileManager.deleteStagingFiles(stagingDir_);
+		Files.createDirectories(packDir_);
+
+		long start = System.nanoTime();
+		List<Long> numbers = listSegments();
+		long maxVersion = 0;
+		for (int i = 0; i < numbers.size(); i++) {
+			Segment segment = openSegment(numbers.get(i));
+			segments.put(segment.number, segment);
+			boolean last = i == numbers.size() - 1;
+			maxVersion = Math.max(maxVersion, recover(segment, last));
+			segment.sealed = !last;
+		}
+		synchronized (appendLock) {
+			nextVersion = maxVersion + 1;
+			if (segments.isEmpty()) {
+				Segment first = openSegment(1);
+				segments.put(first.number, first);
+			}
+			active = segments.lastEntry().getValue();
+		}
+		LOG.info("Opened " + data.size() + " videos in " + segments.size() + " segments in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+
+		if (compactIntervalMillis > 0) {
+			compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "video-pack-compactor");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			compactor.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} catch (IOException | RuntimeException e) {
+						LOG.warn("Could not compact the video pack", e);
+					}
+				}
+			}, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Reads the records of a segment into the index and returns the highest
+	// version in it
+	private long recover(Segment segment, boolean verify) throws IOException {
+		final long[] maxVersion = new long[1];
+		long end = scan(segment, verify, new RecordVisitor() {
+			@Override
+			public void visit(byte type, long id, Record r) {
+				index(type, id, r);
+				maxVersion[0] = Math.max(maxVersion[0], r.version);
+			}
+		});
+		if (end < segment.channel.size()) {
+			LOG.warn("Discarding the damaged end of " + segment.file + " after " + end + " bytes");
+			segment.channel.truncate(end);
+			segment.channel.force(true);
+		}
+		segment.size = end;
+		return maxVersion[0];
+	}
+
+	@Override
+	public boolean hasVideoData(Video v) {
+		return data.containsKey(v.getId());
+	}
+
+	@Override
+	public void copyVideoData(Video v, OutputStream out) throws IOException {
+		Record r = acquire(v);
+		try {
+			copy(r, 0, r.length, out);
+		} finally {
+			r.segment.release();
+		}
+	}
+
+	@Override
+	public void copyVideoData(Video v, long offset, long length, OutputStream out) throws IOException {
+		Record r = acquire(v);
+		try {
+			checkRange(v.getId(), r, offset, length);
+			copy(r, offset, length, out);
+		} finally {
+			r.segment.release();
+		}
+	}
+
+	@Override
+	public void transferVideoData(Video v, long offset, long length, WritableByteChannel target) throws IOException {
+		Record r = acquire(v);
+		try {
+			checkRange(v.getId(), r, offset, length);
+			transfer(r, offset, length, target);
+		} finally {
+			r.segment.release();
+		}
+	}
+
+	/**
+	 * A version holds the segment of the record it was acquired with, so
+	 * the compactor can't delete the segment until the version is closed.
+	 * Publishing appends a new record and points the index at it; the old
+	 * record stays where it is, as garbage, until it is compacted away.
+	 */
+	@Override
+	public VideoDataVersion acquireVideoData(Video v) throws IOException {
+		final long id = v.getId();
+		final Record r = acquire(v);
+		return new VideoDataVersion() {
+			private final AtomicBoolean closed = new AtomicBoolean();
+
+			@Override
+			public BasicFileAttributes getAttributes() {
+				return r;
+			}
+
+			@Override
+			public void copyTo(long offset, long length, OutputStream out) throws IOException {
+				checkRange(id, r, offset, length);
+				copy(r, offset, length, out);
+			}
+
+			@Override
+			public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+				checkRange(id, r, offset, length);
+				transfer(r, offset, length, target);
+			}
+
+			@Override
+			public ByteBuffer map() {
+				return null;
+			}
+
+			@Override
+			public Path getPath() {
+				return null;
+			}
+
+			@Override
+			public Path getPinnedPath() {
+				return null;
+			}
+
+			@Override
+			public boolean isCurrent() {
+				// The compactor moves records, but keeps their version
+				Record current = data.get(id);
+				return current != null && current.version == r.version;
+			}
+
+			@Override
+			public void close() {
+				if (closed.compareAndSet(false, true)) {
+					r.segment.release();
+				}
+			}
+		};
+	}
+
+	@Override
+	public Path getVideoDataPath(Video v) {
+		return null;
+	}
+
+	@Override
+	public long getVideoDataLength(Video v) throws IOException {
+		return getVideoDataAttributes(v).size();
+	}
+
+	@Override
+	public long getVideoDataLastModified(Video v) throws IOException {
+		return getVideoDataAttributes(v).lastModifiedTime().toMillis();
+	}
+
+	@Override
+	public BasicFileAttributes getVideoDataAttributes(Video v) throws IOException {
+		Record r = data.get(v.getId());
+		if (r == null) {
+			throw new NoSuchFileException("video" + v.getId());
+		}
+		return r;
+	}
+
+	@Override
+	public void saveVideoData(Video v, InputStream videoData) throws IOException {
+		Path staged = createStagingFile();
+		try {
+			Files.copy(videoData, staged, StandardCopyOption.REPLACE_EXISTING);
+			publishVideoData(v, staged);
+		} finally {
+			Files.deleteIfExists(staged);
+		}
+	}
+
+	@Override
+	public Path createStagingFile() throws IOException {
+		return Files.createTempFile(stagingDir_, "upload", ".part");
+	}
+
+	@Override
+	public void publishVideoData(Video v, Path staged) throws IOException {
+		try {
+			linkVideoData(v, staged);
+		} finally {
+			Files.deleteIfExists(staged);
+		}
+	}
+
+	@Override
+	public void linkVideoData(Video v, Path existing) throws IOException {
+		try (FileChannel source = FileChannel.open(existing, StandardOpenOption.READ)) {
+			synchronized (appendLock) {
+				Record r = append(DATA, v.getId(), nextVersion++, System.currentTimeMillis(), source, 0,
+						source.size(), null);
+				index(DATA, v.getId(), r);
+			}
+		}
+	}
+
+	@Override
+	public boolean deleteVideoData(Video v) throws IOException {
+		synchronized (appendLock) {
+			boolean hadData = data.containsKey(v.getId());
+			if (hadData || digests.containsKey(v.getId())) {
+				Record r = append(DELETE, v.getId(), nextVersion++, System.currentTimeMillis(), null, 0, 0, null);
+				index(DELETE, v.getId(), r);
+			}
+			return hadData;
+		}
+	}
+
+	@Override
+	public Path getVideoDataDirectory(Video v) {
+		return null;
+	}
+
+	/**
+	 * Forces the segment that is being appended to. Full segments were
+	 * forced when they were closed off.
+	 */
+	@Override
+	public void sync() throws IOException {
+		Segment segment;
+		synchronized (appendLock) {
+			segment = active;
+		}
+		segment.channel.force(false);
+	}
+
+	@Override
+	public Path getStorageDirectory(String name) throws IOException {
+		Path dir = dir_.resolve(name);
+		Files.createDirectories(dir);
+		return dir;
+	}
+
+	@Override
+	public void saveVideoDataDigest(Video v, String digest) throws IOException {
+		synchronized (appendLock) {
+			Record r = append(DIGEST, v.getId(), nextVersion++, System.currentTimeMillis(), null, 0, 0, digest);
+			index(DIGEST, v.getId(), r);
+		}
+	}
+
+	@Override
+	public String loadVideoDataDigest(Video v) throws IOException {
+		Record r = digests.get(v.getId());
+		return r == null ? null : r.text;
+	}
+
+	/**
+	 * Copies the live records out of every full segment that is mostly
+	 * garbage, and deletes the segment. Normally called in the background.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		for (Segment segment : new ArrayList<Segment>(segments.values())) {
+			long size = segment.size;
+			if (segment.sealed && size > 0 && 1.0 - (double) segment.liveBytes.get() / size >= compactGarbageRatio) {
+				compact(segment);
+			}
+		}
+		publish();
+	}
+
+	private void compact(final Segment segment) throws IOException {
+		final boolean oldest = segments.firstKey() == segment.number;
+		final long[] moved = new long[1];
+		scan(segment, false, new RecordVisitor() {
+			@Override
+			public void visit(byte type, long id, Record r) throws IOException {
+				synchronized (appendLock) {
+					if (type == DELETE) {
+						// Still needed if an older segment may hold data
+						// for the video
+						if (!oldest && !data.containsKey(id)) {
+							append(DELETE, id, r.version, r.modified, null, 0, 0, null);
+							moved[0] += r.recordSize();
+						}
+						return;
+					}
+					ConcurrentMap<Long, Record> index = type == DATA ? data : digests;
+					Record current = index.get(id);
+					if (current != null && current.segment == segment && current.offset == r.offset) {
+						Record copy = append(type, id, r.version, r.modified, segment.channel, r.payload(), r.length,
+								current.text);
+						index(type, id, copy);
+						moved[0] += r.recordSize();
+					}
+				}
+			}
+		});
+		sync();
+
+		segments.remove(segment.number);
+		segment.retire();
+		compactions.incrementAndGet();
+		reclaimedBytes.addAndGet(segment.size - moved[0]);
+	}
+
+	/**
+	 * Stops the compactor and closes every segment, after forcing the last
+	 * one.
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compactor != null) {
+			compactor.shutdown();
+			try {
+				compactor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (appendLock) {
+			active.channel.force(true);
+			for (Segment segment : segments.values()) {
+				segment.channel.close();
+			}
+		}
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	public long getLiveBytes() {
+		long live = 0;
+		for (Segment segment : segments.values()) {
+			live += segment.liveBytes.get();
+		}
+		return live;
+	}
+
+	public long getGarbageBytes() {
+		long garbage = 0;
+		for (Segment segment : segments.values()) {
+			garbage += segment.size - segment.liveBytes.get();
+		}
+		return garbage;
+	}
+
+	public long getCompactions() {
+		return compactions.get();
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	private void publish() {
+		if (gauges == null) {
+			return;
+		}
+		gauges.submit("video.pack.videos", data.size());
+		gauges.submit("video.pack.segments", segments.size());
+		gauges.submit("video.pack.liveBytes", getLiveBytes());
+		gauges.submit("video.pack.garbageBytes", getGarbageBytes());
+		gauges.submit("video.pack.compactions", compactions.get());
+		gauges.submit("video.pack.reclaimedBytes", reclaimedBytes.get());
+	}
+
+	// Returns the latest data record of the video, with its segment held
+	// open until the caller releases it
+	private Record acquire(Video v) throws FileNotFoundException {
+		for (;;) {
+			Record r = data.get(v.getId());
+			if (r == null) {
+				throw new FileNotFoundException("Unable to find the referenced video data for videoId:" + v.getId());
+			}
+			// A retired segment has already been compacted, so the index
+			// points somewhere else by now
+			if (r.segment.acquire()) {
+				return r;
+			}
+		}
+	}
+
+	private void checkRange(long id, Record r, long offset, long length) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > r.length) {
+			throw new IOException("Unexpected end of video data for videoId:" + id);
+		}
+	}
+
+	private void copy(Record r, long offset, long length, OutputStream out) throws IOException {
+		ByteBuffer mapped = mapped(r, offset, length);
+		if (mapped != null) {
+			WritableByteChannel channel = Channels.newChannel(out);
+			while (mapped.hasRemaining()) {
+				channel.write(mapped);
+			}
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+		long position = r.payload() + offset;
+		long remaining = length;
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) {
+				buffer.limit((int) remaining);
+			}
+			int read = r.segment.channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of video data in " + r.segment.file);
+			}
+			out.write(buffer.array(), 0, read);
+			position += read;
+			remaining -= read;
+		}
+	}
+
+	private void transfer(Record r, long offset, long length, WritableByteChannel target) throws IOException {
+		ByteBuffer mapped = mapped(r, offset, length);
+		if (mapped != null) {
+			while (mapped.hasRemaining()) {
+				target.write(mapped);
+			}
+			return;
+		}
+		long position = r.payload() + offset;
+		long remaining = length;
+		while (remaining > 0) {
+			long sent = r.segment.channel.transferTo(position, remaining, target);
+			if (sent <= 0) {
+				throw new IOException("Unexpected end of video data in " + r.segment.file);
+			}
+			position += sent;
+			remaining -= sent;
+		}
+	}
+
+	// Returns the given range of the record's payload from a mapping of its
+	// segment, or null if it has to be read instead
+	private ByteBuffer mapped(Record r, long offset, long length) throws IOException {
+		if (!mmap || !r.segment.sealed) {
+			return null;
+		}
+		ByteBuffer segment = r.segment.map();
+		if (segment == null) {
+			return null;
+		}
+		ByteBuffer range = segment.duplicate();
+		long start = r.payload() + offset;
+		range.limit((int) (start + length));
+		range.position((int) start);
+		return range;
+	}
+
+	// Appends a record to the log, with its payload copied from the given
+	// channel or, for a digest, the given text. Called under appendLock.
+	private Record append(byte type, long id, long version, long modified, FileChannel source, long sourcePosition,
+			long length, String text) throws IOException {
+		byte[] textBytes = text == null ? null : text.getBytes(StandardCharsets.US_ASCII);
+		if (textBytes != null) {
+			length = textBytes.length;
+		}
+
+		Segment segment = roll(length);
+		long offset = segment.size;
+		long position = offset + HEADER_SIZE;
+		CRC32 crc = new CRC32();
+		if (textBytes != null) {
+			crc.update(textBytes);
+			position += writeFully(segment.channel, ByteBuffer.wrap(textBytes), position);
+		} else if (length > 0) {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+			long copied = 0;
+			while (copied < length) {
+				buffer.clear();
+				if (length - copied < buffer.capacity()) {
+					buffer.limit((int) (length - copied));
+				}
+				int read = source.read(buffer, sourcePosition + copied);
+				if (read < 0) {
+					throw new IOException("Video data ended before " + length + " bytes");
+				}
+				crc.update(buffer.array(), 0, read);
+				buffer.flip();
+				position += writeFully(segment.channel, buffer, position);
+				copied += read;
+			}
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).put(type).putLong(id).putLong(version).putLong(modified).putLong(length)
+				.putInt((int) crc.getValue());
+		header.flip();
+		writeFully(segment.channel, header, offset);
+
+		segment.size = offset + HEADER_SIZE + length;
+		return new Record(segment, offset, length, modified, version, text);
+	}
+
+	// Closes off the segment being appended to if the record wouldn't fit,
+	// and starts a new one. A record larger than a segment gets one of its
+	// own. Called under appendLock.
+	private Segment roll(long length) throws IOException {
+		if (active.size > 0 && active.size + HEADER_SIZE + length > segmentBytes) {
+			active.channel.force(false);
+			active.sealed = true;
+			Segment next = openSegment(active.number + 1);
+			segments.put(next.number, next);
+			active = next;
+		}
+		return active;
+	}
+
+	// Applies a record to the index, keeping track of how many bytes of
+	// each segment are still live. Called under appendLock, or while
+	// recovering.
+	private void index(byte type, long id, Record r) {
+		switch (type) {
+		case DATA:
+			r.segment.liveBytes.addAndGet(r.recordSize());
+			release(data.put(id, r));
+			break;
+		case DIGEST:
+			r.segment.liveBytes.addAndGet(r.recordSize());
+			release(digests.put(id, r));
+			break;
+		default:
+			// The deletion record itself is garbage right away
+			release(data.remove(id));
+			release(digests.remove(id));
+			break;
+		}
+	}
+
+	private void release(Record old) {
+		if (old != null) {
+			old.segment.liveBytes.addAndGet(-old.recordSize());
+		}
+	}
+
+	/**
+	 * Called for each record of a segment by scan().
+	 */
+	private interface RecordVisitor {
+		public void visit(byte type, long id, Record r) throws IOException;
+	}
+
+	// Reads the records of a segment in order and returns the position
+	// after the last complete one. With verify, the payload of every record
+	// is checked against its CRC.
+	private long scan(Segment segment, boolean verify, RecordVisitor visitor) throws IOException {
+		long end = segment.channel.size();
+		long position = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		while (position + HEADER_SIZE <= end) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			header.flip();
+			if (header.getInt() != MAGIC) {
+				break;
+			}
+			byte type = header.get();
+			long id = header.getLong();
+			long version = header.getLong();
+			long modified = header.getLong();
+			long length = header.getLong();
+			int crc = header.getInt();
+			if (type < DATA || type > DELETE || length < 0 || position + HEADER_SIZE + length > end) {
+				break;
+			}
+			if (verify && crc != crc(segment.channel, position + HEADER_SIZE, length)) {
+				break;
+			}
+			String text = null;
+			if (type == DIGEST) {
+				ByteBuffer payload = ByteBuffer.allocate((int) length);
+				readFully(segment.channel, payload, position + HEADER_SIZE);
+				text = new String(payload.array(), StandardCharsets.US_ASCII);
+			}
+			visitor.visit(type, id, new Record(segment, position, length, modified, version, text));
+			position += HEADER_SIZE + length;
+		}
+		return position;
+	}
+
+	private static int crc(FileChannel channel, long position, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+		long remaining = length;
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) {
+				buffer.limit((int) remaining);
+			}
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				break;
+			}
+			crc.update(buffer.array(), 0, read);
+			position += read;
+			remaining -= read;
+		}
+		return (int) crc.getValue();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+			position += read;
+		}
+	}
+
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		return written;
+	}
+
+	private List<Long> listSegments() throws IOException {
+		List<Long> numbers = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(packDir_, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					numbers.add(Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					LOG.warn("Ignoring " + file);
+				}
+			}
+		}
+		Collections.sort(numbers);
+		return numbers;
+	}
+
+	private Segment openSegment(long number) throws IOException {
+		Path file = packDir_.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		return new Segment(number, file, channel);
+	}
+
+	/**
+	 * One segment file. It stays open while it is in use; once the compactor
+	 * has retired it, it is closed and deleted as soon as the last reader
+	 * releases it.
+	 */
+	private static class Segment {
+		private static final int RETIRED = Integer.MIN_VALUE;
+
+		private final long number;
+		private final Path file;
+		private final FileChannel channel;
+
+		// Where the next record goes. Only changes under appendLock.
+		private volatile long size;
+
+		// Full segments are never written again
+		private volatile boolean sealed;
+
+		private final AtomicLong liveBytes = new AtomicLong();
+
+		private volatile ByteBuffer mapped;
+
+		// The number of readers holding the segment, with the sign bit set
+		// once it is retired. Readers take and release it with a CAS, never a
+		// lock.
+		private final AtomicInteger users = new AtomicInteger();
+
+		private Segment(long number, Path file, FileChannel channel) {
+			this.number = number;
+			this.file = file;
+			this.channel = channel;
+		}
+
+		private boolean acquire() {
+			for (;;) {
+				int n = users.get();
+				if (n < 0) {
+					return false;
+				}
+				if (users.compareAndSet(n, n + 1)) {
+					return true;
+				}
+			}
+		}
+
+		private void release() {
+			// Only the last reader of a retired segment sees it go to exactly
+			// RETIRED, since nobody can acquire it any more
+			if (users.decrementAndGet() == RETIRED) {
+				delete();
+			}
+		}
+
+		private void retire() {
+			for (;;) {
+				int n = users.get();
+				if (users.compareAndSet(n, n | RETIRED)) {
+					if (n == 0) {
+						delete();
+					}
+					return;
+				}
+			}
+		}
+
+		// Maps a full segment the first time it is read. Segments too large
+		// to map in one piece are read instead.
+		private ByteBuffer map() throws IOException {
+			ByteBuffer m = mapped;
+			if (m == null && size <= Integer.MAX_VALUE) {
+				synchronized (this) {
+					m = mapped;
+					if (m == null) {
+						m = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+						mapped = m;
+					}
+				}
+			}
+			return m;
+		}
+
+		private void delete() {
+			mapped = null;
+			try {
+				channel.close();
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				LOG.warn("Could not delete compacted segment " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * Where a record is and what it holds. For a data record, these are also
+	 * the attributes of the video's data; the version is the file key.
+	 */
+	private static class Record extends StoredVideoAttributes {
+		private final Segment segment;
+		private final long offset;
+		private final long length;
+		private final long modified;
+		private final long version;
+		private final String text;
+
+		private Record(Segment segment, long offset, long length, long modified, long version, String text) {
+			super(length, modified, version);
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.modified = modified;
+			this.version = version;
+			this.text = text;
+		}
+
+		private long payload() {
+			return offset + HEADER_SIZE;
+		}
+
+		private long recordSize() {
+			return HEADER_SIZE + length;
+		}
+	}
+
+}
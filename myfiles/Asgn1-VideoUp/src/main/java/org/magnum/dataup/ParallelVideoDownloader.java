@@ -0,0 +1,383 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import retrofit.RetrofitError;
+import retrofit.client.Header;
+import retrofit.client.Response;
+
+/**
+ * Client-side driver for downloading video data over several connections
+ * at once with the ranged getDataRange() endpoint of VideoSvcApi. The
+ * video is split into ranges of rangeSize bytes, which are fetched
+ * concurrently and written straight into their place in the target file.
+ * A range that fails is fetched again from where it stopped, up to
+ * maxRetries times. Every range is requested with If-Range set to the
+ * ETag of the first one, so that data replaced during the download is
+ * noticed (with a DataChangedException) instead of being mixed with the
+ * old data.
+ * 
+ * The number of connections tunes itself: the download starts with
+ * minConnections, and every sampleMillis adds one more as long as that
+ * raised the throughput by at least a tenth, up to maxConnections. If the
+ * last connection made things worse, it is dropped again, and the number
+ * stays put from then on.
+ * 
+ * The connections come from the client the RestAdapter was built with.
+ * The default client keeps http.maxConnections (by default 5) idle
+ * connections per server, so raise that property, or use a client with a
+ * larger pool, when maxConnections is larger.
+ * 
+ * VideoSvcApi videoSvc = ... // use retrofit to create the client
+ * ParallelVideoDownloader downloader = new ParallelVideoDownloader(videoSvc);
+ * long length = downloader.download(video.getId(), new File("movie.mp4"));
+ */
+public class ParallelVideoDownloader {
+
+	public static final long DEFAULT_RANGE_SIZE = 4 * 1024 * 1024;
+
+	public static final int DEFAULT_MIN_CONNECTIONS = 2;
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	public static final long DEFAULT_SAMPLE_MILLIS = 500;
+
+	// How much the throughput must grow for another connection to be kept
+	private static final double MIN_GAIN = 0.1;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int PARTIAL_CONTENT = 206;
+
+	private static final int RANGE_NOT_SATISFIABLE = 416;
+
+	private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (\\d+)-(\\d+)/(\\d+)");
+
+	private final VideoSvcApi videoSvc;
+
+	private final long rangeSize;
+
+	private final int minConnections;
+
+	private final int maxConnections;
+
+	private final int maxRetries;
+
+	private final long sampleMillis;
+
+	// The number of connections the last download settled on
+	private volatile int connections;
+
+	public ParallelVideoDownloader(VideoSvcApi videoSvc) {
+		this(videoSvc, DEFAULT_RANGE_SIZE, DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_RETRIES,
+				DEFAULT_SAMPLE_MILLIS);
+	}
+
+	public ParallelVideoDownloader(VideoSvcApi videoSvc, long rangeSize, int minConnections, int maxConnections,
+			int maxRetries, long sampleMillis) {
+		this.videoSvc = videoSvc;
+		this.rangeSize = rangeSize;
+		this.minConnections = minConnections;
+		this.maxConnections = maxConnections;
+		this.maxRetries = maxRetries;
+		this.sampleMillis = sampleMillis;
+	}
+
+	/**
+	 * Downloads the data of the given video into the file, replacing what
+	 * was in it.
+	 * 
+	 * @param videoId
+	 * @param file
+	 * @return the length of the video data
+	 * @throws IOException
+	 */
+	public long download(long videoId, File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			// The first range tells how long the video is and what its ETag is
+			Response first;
+			try {
+				first = videoSvc.getDataRange(videoId, rangeHeader(0, rangeSize - 1), null);
+			} catch (RetrofitError e) {
+				if (e.getResponse() != null && e.getResponse().getStatus() == RANGE_NOT_SATISFIABLE) {
+					// No data to split up
+					connections = 1;
+					return write(videoSvc.getData(videoId), channel, Range.whole(), null);
+				}
+				throw e;
+			}
+
+			Matcher contentRange = CONTENT_RANGE.matcher(String.valueOf(header(first, "Content-Range")));
+			if (first.getStatus() != PARTIAL_CONTENT || !contentRange.matches()) {
+				// The whole video came back
+				connections = 1;
+				return write(first, channel, Range.whole(), null);
+			}
+			long length = Long.parseLong(contentRange.group(3));
+			String etag = header(first, "ETag");
+			Range firstRange = new Range(0, Long.parseLong(contentRange.group(2)));
+			write(first, channel, firstRange, null);
+			if (firstRange.next <= firstRange.last) {
+				fetch(videoId, channel, firstRange, etag, null);
+			}
+
+			Download download = new Download(videoId, channel, etag);
+			for (long start = firstRange.last + 1; start < length; start += rangeSize) {
+				download.ranges.add(new Range(start, Math.min(length, start + rangeSize) - 1));
+			}
+			download.run();
+			return length;
+		}
+	}
+
+	/**
+	 * Returns the number of connections that the last download settled on.
+	 * 
+	 * @return
+	 */
+	public int getConnections() {
+		return connections;
+	}
+
+	/**
+	 * The state of one download: the ranges that are left, and the
+	 * connections working through them.
+	 */
+	private class Download {
+		private final long videoId;
+		private final FileChannel channel;
+		private final String etag;
+
+		private final Queue<Range> ranges = new ConcurrentLinkedQueue<Range>();
+		private final AtomicLong transferred = new AtomicLong();
+		private final AtomicInteger running = new AtomicInteger();
+		private volatile int target = minConnections;
+
+		private Download(long videoId, FileChannel channel, String etag) {
+			this.videoId = videoId;
+			this.channel = channel;
+			this.etag = etag;
+		}
+
+		private void run() throws IOException {
+			ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "video-download-range");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			CompletionService<Void> workers = new ExecutorCompletionService<Void>(executor);
+			try {
+				for (int i = 0; i < target; i++) {
+					start(workers);
+				}
+
+				boolean tuning = true;
+				double bestRate = 0;
+				long sampled = 0;
+				while (running.get() > 0) {
+					Future<Void> done = workers.poll(sampleMillis, TimeUnit.MILLISECONDS);
+					if (done != null) {
+						done.get();
+						continue;
+					}
+					if (!tuning || ranges.isEmpty()) {
+						continue;
+					}
+
+					long now = transferred.get();
+					double rate = now - sampled;
+					sampled = now;
+					if (rate == 0) {
+						// Nothing landed since the last sample, e.g., while
+						// the connections wait for their first bytes, so
+						// there is no rate to compare
+						continue;
+					}
+					if (rate >= bestRate * (1 + MIN_GAIN) && target < maxConnections) {
+						bestRate = rate;
+						target++;
+						start(workers);
+					} else {
+						if (rate < bestRate && target > minConnections) {
+							// The connection added last made it slower; it
+							// stops after its current range
+							target--;
+						}
+						tuning = false;
+					}
+				}
+				connections = target;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while downloading video data", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				if (e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Could not download video data", e.getCause());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		private void start(CompletionService<Void> workers) {
+			running.incrementAndGet();
+			workers.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try {
+						Range range;
+						while (running.get() <= target && (range = ranges.poll()) != null) {
+							fetch(videoId, channel, range, etag, transferred);
+						}
+						return null;
+					} finally {
+						running.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	// Fetches what is left of a range, retrying from where each attempt
+	// stopped
+	private void fetch(long videoId, FileChannel channel, Range range, String etag, AtomicLong progress)
+			throws IOException {
+		int failures = 0;
+		while (range.next <= range.last) {
+			try {
+				Response response = videoSvc.getDataRange(videoId, rangeHeader(range.next, range.last), etag);
+				if (response.getStatus() != PARTIAL_CONTENT) {
+					response.getBody().in().close();
+					throw new DataChangedException(videoId);
+				}
+				write(response, channel, range, progress);
+			} catch (DataChangedException e) {
+				throw e;
+			} catch (RetrofitError | IOException e) {
+				if (++failures > maxRetries) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	// Writes the body of a response into the file from where the range is
+	// up to, and returns the number of bytes written. The bytes are also
+	// added to progress, if given, as they land, so that the throughput
+	// can be sampled in the middle of a range.
+	private long write(Response response, FileChannel channel, Range range, AtomicLong progress)
+			throws IOException {
+		long written = 0;
+		try (InputStream in = response.getBody().in()) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (range.next <= range.last) {
+				int read = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), range.last - range.next + 1));
+				if (read < 0) {
+					break;
+				}
+				buffer.clear();
+				buffer.limit(read);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer, range.next + buffer.position());
+				}
+				range.next += read;
+				written += read;
+				if (progress != null) {
+					progress.addAndGet(read);
+				}
+			}
+		}
+		return written;
+	}
+
+	private static String rangeHeader(long first, long last) {
+		return "bytes=" + first + "-" + last;
+	}
+
+	private static String header(Response response, String name) {
+		for (Header header : response.getHeaders()) {
+			if (name.equalsIgnoreCase(header.getName())) {
+				return header.getValue();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Thrown when the data of a video is replaced while it is being
+	 * downloaded. The download has to start over.
+	 */
+	public static class DataChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public DataChangedException(long videoId) {
+			super("The data of video " + videoId + " changed during the download");
+		}
+	}
+
+	/**
+	 * A range of bytes of the video, and how far it has been written.
+	 */
+	private static class Range {
+		private final long last;
+		private long next;
+
+		private Range(long first, long last) {
+			this.next = first;
+			this.last = last;
+		}
+
+		// All of the data, however long it is
+		private static Range whole() {
+			return new Range(0, Long.MAX_VALUE - 1);
+		}
+	}
+
+}
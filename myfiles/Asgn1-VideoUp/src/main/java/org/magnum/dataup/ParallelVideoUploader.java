@@ -0,0 +1,224 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.magnum.dataup.model.MultipartUpload;
+import org.magnum.dataup.model.UploadPart;
+import org.magnum.dataup.model.VideoStatus;
+
+import retrofit.RetrofitError;
+import retrofit.mime.TypedOutput;
+
+/**
+ * Client-side driver for the multipart upload endpoints of VideoSvcApi. It
+ * splits a file into parts and sends several of them at once, each on its
+ * own connection, so a large upload isn't limited to what one TCP
+ * connection gets through on a link with a long round trip time. A part
+ * that fails is sent again, up to maxRetries times; if one still fails,
+ * the upload is aborted.
+ * 
+ * Parts are streamed from the file as they are sent, so memory use doesn't
+ * grow with the part size or the number of connections.
+ * 
+ * VideoSvcApi videoSvc = ... // use retrofit to create the client
+ * ParallelVideoUploader uploader = new ParallelVideoUploader(videoSvc);
+ * VideoStatus status = uploader.upload(video.getId(), new File("movie.mp4"));
+ */
+public class ParallelVideoUploader {
+
+	public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	// Must match the server's video.multipart.maxParts for large files
+	public static final int MAX_PARTS = 10000;
+
+	private static final String PART_CONTENT_TYPE = "application/octet-stream";
+
+	private final VideoSvcApi videoSvc;
+
+	private final long partSize;
+
+	private final int connections;
+
+	private final int maxRetries;
+
+	public ParallelVideoUploader(VideoSvcApi videoSvc) {
+		this(videoSvc, DEFAULT_PART_SIZE, DEFAULT_CONNECTIONS, DEFAULT_MAX_RETRIES);
+	}
+
+	public ParallelVideoUploader(VideoSvcApi videoSvc, long partSize, int connections, int maxRetries) {
+		this.videoSvc = videoSvc;
+		this.partSize = partSize;
+		this.connections = connections;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Uploads the whole file as the data of the given video. The part size
+	 * is raised if the file would otherwise need more than MAX_PARTS parts.
+	 * 
+	 * @param videoId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoStatus upload(final long videoId, File file) throws IOException {
+		final long length = file.length();
+		long size = Math.max(partSize, (length + MAX_PARTS - 1) / MAX_PARTS);
+		final MultipartUpload upload = videoSvc.createMultipartUpload(videoId, length, size);
+		int count = (int) Math.max(1, (length + size - 1) / size);
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(connections, count), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "video-upload-part");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		boolean completed = false;
+		try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			List<Future<UploadPart>> pending = new ArrayList<Future<UploadPart>>();
+			for (int i = 0; i < count; i++) {
+				final int partNumber = i + 1;
+				final long offset = i * size;
+				final long partLength = Math.min(size, length - offset);
+				pending.add(executor.submit(new Callable<UploadPart>() {
+					@Override
+					public UploadPart call() throws Exception {
+						return sendPart(videoId, upload.getId(), partNumber,
+								new FileRange(channel, offset, partLength));
+					}
+				}));
+			}
+
+			List<UploadPart> parts = new ArrayList<UploadPart>();
+			for (Future<UploadPart> part : pending) {
+				parts.add(part.get());
+			}
+			VideoStatus status = videoSvc.completeMultipartUpload(videoId, upload.getId(), parts);
+			completed = true;
+			return status;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while uploading video data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IOException("Could not upload video data", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			if (!completed) {
+				abort(videoId, upload.getId());
+			}
+		}
+	}
+
+	private UploadPart sendPart(long videoId, String uploadId, int partNumber, FileRange range) {
+		int failures = 0;
+		while (true) {
+			try {
+				return videoSvc.uploadPart(videoId, uploadId, partNumber, range);
+			} catch (RetrofitError e) {
+				if (++failures > maxRetries) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	// Best effort, so that the server doesn't keep the parts until the
+	// upload expires
+	private void abort(long videoId, String uploadId) {
+		try {
+			videoSvc.abortMultipartUpload(videoId, uploadId);
+		} catch (RetrofitError e) {
+			// the server discards the upload eventually
+		}
+	}
+
+	/**
+	 * A range of a file as the body of a request, read with positional reads
+	 * so that several ranges of the same file can be sent at once.
+	 */
+	private static class FileRange implements TypedOutput {
+		private final FileChannel channel;
+		private final long offset;
+		private final long length;
+
+		private FileRange(FileChannel channel, long offset, long length) {
+			this.channel = channel;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String fileName() {
+			return null;
+		}
+
+		@Override
+		public String mimeType() {
+			return PART_CONTENT_TYPE;
+		}
+
+		@Override
+		public long length() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(length, 1)));
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				buffer.clear();
+				if (end - position < buffer.capacity()) {
+					buffer.limit((int) (end - position));
+				}
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IOException("The file ended before its part did");
+				}
+				out.write(buffer.array(), 0, read);
+				position += read;
+			}
+		}
+	}
+
+}
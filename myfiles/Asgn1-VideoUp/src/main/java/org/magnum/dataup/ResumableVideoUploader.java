@@ -0,0 +1,123 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.magnum.dataup.model.UploadSession;
+import org.magnum.dataup.model.VideoStatus;
+
+import retrofit.RetrofitError;
+import retrofit.mime.TypedByteArray;
+
+/**
+ * Client-side driver for the resumable upload endpoints of VideoSvcApi.
+ * It sends a file in fixed-size chunks and, when a chunk fails, asks the
+ * server how much it actually received and continues from there, so a
+ * dropped connection only costs the chunk that was in flight.
+ * 
+ * VideoSvcApi videoSvc = ... // use retrofit to create the client
+ * ResumableVideoUploader uploader = new ResumableVideoUploader(videoSvc);
+ * VideoStatus status = uploader.upload(video.getId(), new File("movie.mp4"));
+ */
+public class ResumableVideoUploader {
+
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	private static final String CHUNK_CONTENT_TYPE = "application/octet-stream";
+
+	private final VideoSvcApi videoSvc;
+
+	private final int chunkSize;
+
+	private final int maxRetries;
+
+	public ResumableVideoUploader(VideoSvcApi videoSvc) {
+		this(videoSvc, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_RETRIES);
+	}
+
+	public ResumableVideoUploader(VideoSvcApi videoSvc, int chunkSize, int maxRetries) {
+		this.videoSvc = videoSvc;
+		this.chunkSize = chunkSize;
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * Uploads the whole file as the data of the given video.
+	 * 
+	 * @param videoId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoStatus upload(long videoId, File file) throws IOException {
+		UploadSession session = videoSvc.createUploadSession(videoId, file.length());
+		return resume(videoId, session.getId(), file);
+	}
+
+	/**
+	 * Continues an upload that was started earlier, e.g., by a previous run
+	 * of the app that was killed part way through.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoStatus resume(long videoId, String uploadId, File file) throws IOException {
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			long length = in.length();
+			long offset = videoSvc.getUploadSession(videoId, uploadId).getOffset();
+			int failures = 0;
+
+			while (offset < length) {
+				byte[] chunk = new byte[(int) Math.min(chunkSize, length - offset)];
+				in.seek(offset);
+				in.readFully(chunk);
+
+				try {
+					offset = videoSvc.appendUploadChunk(videoId, uploadId, offset,
+							new TypedByteArray(CHUNK_CONTENT_TYPE, chunk)).getOffset();
+					failures = 0;
+				} catch (RetrofitError e) {
+					if (++failures > maxRetries) {
+						throw e;
+					}
+					offset = currentOffset(videoId, uploadId, offset);
+				}
+			}
+		}
+		return videoSvc.finalizeUpload(videoId, uploadId);
+	}
+
+	// Asks the server where to resume. If the server can't be reached
+	// either, the next attempt simply retries from the same offset.
+	private long currentOffset(long videoId, String uploadId, long lastKnown) {
+		try {
+			return videoSvc.getUploadSession(videoId, uploadId).getOffset();
+		} catch (RetrofitError e) {
+			return lastKnown;
+		}
+	}
+
+}
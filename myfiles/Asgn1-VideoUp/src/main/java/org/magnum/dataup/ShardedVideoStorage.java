@@ -0,0 +1,75 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.magnum.dataup.model.Video;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * The "sharded" VideoStorage backend. It works like VideoFileManager, but
+ * spreads the video files over two levels of subfolders named by the
+ * first two bytes of a hash of the video's id, e.g.,
+ * videos/3f/a0/video42.mpg. With 65536 leaf folders, even tens of millions
+ * of videos leave only a few hundred files in each, so creating, renaming
+ * and looking up a file never has to search a huge directory. Hashing the
+ * id, rather than using its low digits, keeps consecutive ids in different
+ * folders.
+ * 
+ * The folders are created as videos are stored in them. Everything else,
+ * including the staging folder and the storage tiers, is the same as for
+ * the flat layout.
+ */
+public class ShardedVideoStorage extends VideoFileManager {
+
+	private static final int LEVELS = 2;
+
+	private static final HashFunction SHARD_HASH = Hashing.murmur3_32();
+
+	// Folder names by byte value, so that resolving a path formats nothing
+	private static final String[] SHARD_NAMES = new String[256];
+	static {
+		for (int i = 0; i < SHARD_NAMES.length; i++) {
+			SHARD_NAMES[i] = String.format("%02x", i);
+		}
+	}
+
+	public ShardedVideoStorage(Path dir) throws IOException {
+		super(dir);
+	}
+
+	@Override
+	protected Path resolveVideoFile(Path root, Video v) {
+		int hash = SHARD_HASH.hashLong(v.getId()).asInt();
+		Path dir = root;
+		for (int level = 0; level < LEVELS; level++) {
+			dir = dir.resolve(SHARD_NAMES[(hash >>> (24 - 8 * level)) & 0xff]);
+		}
+		return super.resolveVideoFile(dir, v);
+	}
+
+	@Override
+	protected int getShardLevels() {
+		return LEVELS;
+	}
+
+}
@@ -0,0 +1,155 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.magnum.dataup.SignedDataUrls.Verdict;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.UrlPathHelper;
+
+/**
+ * Checks the signatures of signed data URLs (see SignedDataUrls) on GET
+ * and HEAD requests for video data. It is registered ahead of every other
+ * filter, so that a request with a valid signature is marked as verified
+ * before any security filter looks at it. A request with a signature that
+ * is bad or has expired is turned away with a 403 right here; so is an
+ * unsigned one when signatures are required.
+ * 
+ * The filter looks at the same decoded path that the controller's request
+ * mappings are matched against, without path parameters, so it sees the
+ * id that getData() will be called with, whether it is zero-padded or the
+ * path ends with a slash or a suffix like .mp4. When signatures are
+ * required, any other GET of a path under /video/{id}/data, one whose id
+ * the filter can't read, is turned away, and getData() checks that the
+ * request was verified in case a request reaches it some other way.
+ * 
+ * The check is an HMAC over 16 bytes with a cached Mac and no lookups
+ * besides the key id, so it costs about as much as a single in-memory
+ * token lookup, without the rest of a security filter chain (see
+ * SignedDataUrlBenchmark).
+ */
+public class SignedDataUrlFilter extends OncePerRequestFilter {
+
+	public static final String EXPIRED_MSG = "The signed URL has expired";
+
+	public static final String BAD_SIGNATURE_MSG = "The URL is not signed correctly";
+
+	public static final String SIGNATURE_REQUIRED_MSG = "A signed data URL is required";
+
+	// Anything that might be mapped to GET /video/{id}/data, but not, e.g.,
+	// GET /video/{id}/dataUrl
+	private static final Pattern UNDER_DATA_PATH = Pattern.compile(
+			VideoSvcApi.VIDEO_SVC_PATH + "/[^/]+/" + VideoSvcApi.DATA_PARAMETER + "(?:[./].*)?");
+
+	// The paths that are, with their optional suffix or trailing slash
+	private static final Pattern DATA_PATH = Pattern.compile(
+			VideoSvcApi.VIDEO_SVC_PATH + "/(\\d+)/" + VideoSvcApi.DATA_PARAMETER + "(?:\\.[^/]*|/)?");
+
+	private static final UrlPathHelper PATH_HELPER = new UrlPathHelper();
+
+	static {
+		PATH_HELPER.setAlwaysUseFullPath(true);
+	}
+
+	private final SignedDataUrls signedUrls;
+
+	public SignedDataUrlFilter(SignedDataUrls signedUrls) {
+		this.signedUrls = signedUrls;
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		if (!signedUrls.isEnabled()) {
+			return true;
+		}
+		String method = request.getMethod();
+		return !("GET".equals(method) || "HEAD".equals(method));
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		String path = PATH_HELPER.getLookupPathForRequest(request);
+		if (!UNDER_DATA_PATH.matcher(path).matches()) {
+			chain.doFilter(request, response);
+			return;
+		}
+		long id = videoId(path);
+		if (id < 0) {
+			if (!signedUrls.isRequired()) {
+				chain.doFilter(request, response);
+				return;
+			}
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, SIGNATURE_REQUIRED_MSG);
+			return;
+		}
+
+		Verdict verdict = signedUrls.verify(id,
+				request.getParameter(SignedDataUrls.EXPIRES_PARAMETER),
+				request.getParameter(SignedDataUrls.KEY_ID_PARAMETER),
+				request.getParameter(SignedDataUrls.SIGNATURE_PARAMETER),
+				System.currentTimeMillis());
+		switch (verdict) {
+		case VALID:
+			request.setAttribute(SignedDataUrls.VERIFIED_ATTRIBUTE, Boolean.TRUE);
+			chain.doFilter(request, response);
+			return;
+		case UNSIGNED:
+			if (!signedUrls.isRequired()) {
+				chain.doFilter(request, response);
+				return;
+			}
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, SIGNATURE_REQUIRED_MSG);
+			return;
+		case EXPIRED:
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, EXPIRED_MSG);
+			return;
+		default:
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, BAD_SIGNATURE_MSG);
+		}
+	}
+
+	/**
+	 * The id of the video whose data the given lookup path is for, or -1 if
+	 * it isn't the path of video data or its id isn't a valid one
+	 * 
+	 * @param path
+	 * @return
+	 */
+	static long videoId(String path) {
+		Matcher m = DATA_PATH.matcher(path);
+		if (!m.matches()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(m.group(1));
+		} catch (NumberFormatException e) {
+			// More digits than a long has
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,455 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletRequest;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Signs data URLs so that they can be used without any other credentials
+ * until they expire. A signed URL is the video's data URL with three more
+ * query parameters:
+ * 
+ *   expires - when the URL stops working, in seconds since the epoch
+ *   kid     - the id of the key that signed it
+ *   sig     - the HMAC-SHA256 of the video id and the expiry time under
+ *             that key, base64url-encoded
+ * 
+ * The signature covers the video, not the rest of the query, so a client
+ * may add t or any other parameter, and a player may send as many Range
+ * requests with it as it likes. SignedDataUrlFilter checks the signatures
+ * before any other filter runs, and marks the requests that pass with the
+ * VERIFIED_ATTRIBUTE. In a deployment behind Spring Security, that
+ * attribute is what lets the security filter chain skip those requests,
+ * e.g., with
+ * 
+ *   web.ignoring().requestMatchers(new RequestMatcher() {
+ *       public boolean matches(HttpServletRequest request) {
+ *           return SignedDataUrls.isVerified(request);
+ *       }
+ *   });
+ * 
+ * so that the many range requests of a playing video don't each go
+ * through the OAuth2 token lookup. Here, without a security chain,
+ * video.url.signing.required=true makes a valid signature the only way to
+ * download video data.
+ * 
+ * Signing is off unless video.url.signing.enabled is true. Signed URLs
+ * last video.url.signing.ttlSeconds. The keys come from
+ * video.url.signing.keys, a comma-separated list of id=secret pairs with
+ * base64 secrets of at least MIN_SECRET_BYTES bytes; the first key signs
+ * and the others are only accepted, which is how keys are rotated across
+ * several servers: add the new key at the end, then move it to the front
+ * once every server has it, then drop the old one after ttlSeconds. When
+ * no keys are configured, a random key is made at startup and replaced
+ * every video.url.signing.rotateIntervalMillis. A replaced key is still
+ * accepted for ttlSeconds, until the URLs it signed have expired.
+ */
+@Component
+public class SignedDataUrls {
+
+	public enum Verdict {
+		VALID, UNSIGNED, MALFORMED, EXPIRED, UNKNOWN_KEY, BAD_SIGNATURE
+	}
+
+	public static final String EXPIRES_PARAMETER = "expires";
+
+	public static final String KEY_ID_PARAMETER = "kid";
+
+	public static final String SIGNATURE_PARAMETER = "sig";
+
+	/**
+	 * The request attribute that SignedDataUrlFilter sets to Boolean.TRUE on
+	 * requests with a valid signature.
+	 */
+	public static final String VERIFIED_ATTRIBUTE = SignedDataUrls.class.getName() + ".VERIFIED";
+
+	public static final int MIN_SECRET_BYTES = 16;
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final int GENERATED_SECRET_BYTES = 32;
+
+	private static final int GENERATED_KEY_ID_BYTES = 6;
+
+	// Unlike the codec's Base64, this doesn't allocate a buffer per call
+	private static final BaseEncoding SIGNATURE_ENCODING = BaseEncoding.base64Url().omitPadding();
+
+	private static final Pattern KEY_ID = Pattern.compile("[A-Za-z0-9_-]+");
+
+	@Value("${video.url.signing.enabled:false}")
+	private boolean enabled;
+
+	@Value("${video.url.signing.keys:}")
+	private String keys = "";
+
+	@Value("${video.url.signing.ttlSeconds:300}")
+	private long ttlSeconds = 300;
+
+	@Value("${video.url.signing.rotateIntervalMillis:3600000}")
+	private long rotateIntervalMillis = 3600000;
+
+	@Value("${video.url.signing.required:false}")
+	private boolean required;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private volatile KeyRing ring;
+
+	private ScheduledExecutorService rotator;
+
+	public SignedDataUrls() {
+	}
+
+	/**
+	 * Creates enabled signing outside of Spring. With no keys, a random key
+	 * is made, and replaced every rotateIntervalMillis unless that is 0.
+	 * 
+	 * @param keys
+	 *            id=secret pairs as in video.url.signing.keys, or ""
+	 * @param ttlSeconds
+	 * @param rotateIntervalMillis
+	 * @param required
+	 */
+	public SignedDataUrls(String keys, long ttlSeconds, long rotateIntervalMillis, boolean required) {
+		this.enabled = true;
+		this.keys = keys;
+		this.ttlSeconds = ttlSeconds;
+		this.rotateIntervalMillis = rotateIntervalMillis;
+		this.required = required;
+		init();
+	}
+
+	@PostConstruct
+	public void init() {
+		if (!enabled) {
+			return;
+		}
+		List<Key> configured = parseKeys(keys);
+		if (!configured.isEmpty()) {
+			ring = new KeyRing(configured.get(0), configured.subList(1, configured.size()));
+			return;
+		}
+
+		ring = new KeyRing(newKey(), Collections.<Key> emptyList());
+		if (rotateIntervalMillis > 0) {
+			rotator = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "video-url-key-rotator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			rotator.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					rotate();
+				}
+			}, rotateIntervalMillis, rotateIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		if (rotator != null) {
+			rotator.shutdownNow();
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public boolean isRequired() {
+		return enabled && required;
+	}
+
+	public long getTtlSeconds() {
+		return ttlSeconds;
+	}
+
+	/**
+	 * The id of the key that signs new URLs
+	 * 
+	 * @return
+	 */
+	public String getCurrentKeyId() {
+		return ring.current.id;
+	}
+
+	/**
+	 * Replaces the signing key with a new random one.
+	 * 
+	 * @return the id of the new key
+	 */
+	public String rotate() {
+		Key key = newKey();
+		rotate(key);
+		return key.id;
+	}
+
+	/**
+	 * Replaces the signing key with the given one. The key it replaces is
+	 * still accepted for ttlSeconds.
+	 * 
+	 * @param keyId
+	 * @param secret
+	 */
+	public void rotate(String keyId, byte[] secret) {
+		rotate(new Key(checkKeyId(keyId), checkSecret(keyId, secret), Long.MAX_VALUE));
+	}
+
+	private synchronized void rotate(Key next) {
+		long now = System.currentTimeMillis();
+		KeyRing old = ring;
+		List<Key> accepted = new ArrayList<Key>();
+		accepted.add(old.current.acceptedUntil(now + ttlSeconds * 1000));
+		for (Key k : old.previous) {
+			if (k.acceptUntil > now && !k.id.equals(next.id)) {
+				accepted.add(k);
+			}
+		}
+		ring = new KeyRing(next, accepted);
+	}
+
+	/**
+	 * When a URL signed now expires, in seconds since the epoch
+	 * 
+	 * @return
+	 */
+	public long expiresFromNow() {
+		return System.currentTimeMillis() / 1000 + ttlSeconds;
+	}
+
+	/**
+	 * Signs the data URL of the given video with the current key.
+	 * 
+	 * @param dataUrl
+	 * @param videoId
+	 * @param expires
+	 *            in seconds since the epoch
+	 * @return the signed URL
+	 */
+	public String sign(String dataUrl, long videoId, long expires) {
+		Key key = ring.current;
+		return dataUrl + (dataUrl.indexOf('?') < 0 ? '?' : '&')
+				+ EXPIRES_PARAMETER + "=" + expires
+				+ "&" + KEY_ID_PARAMETER + "=" + key.id
+				+ "&" + SIGNATURE_PARAMETER + "=" + SIGNATURE_ENCODING.encode(key.mac(videoId, expires));
+	}
+
+	/**
+	 * Checks the signature parameters of a request for the data of the
+	 * given video.
+	 * 
+	 * @param videoId
+	 * @param expires
+	 * @param keyId
+	 * @param signature
+	 * @param nowMillis
+	 * @return VALID if the URL was signed for the video by one of the
+	 *         accepted keys and has not expired, UNSIGNED if it has none of
+	 *         the parameters, or why it was turned down
+	 */
+	public Verdict verify(long videoId, String expires, String keyId, String signature, long nowMillis) {
+		if (expires == null && keyId == null && signature == null) {
+			return Verdict.UNSIGNED;
+		}
+		if (expires == null || keyId == null || signature == null) {
+			return Verdict.MALFORMED;
+		}
+		long expiresSeconds;
+		try {
+			expiresSeconds = Long.parseLong(expires);
+		} catch (NumberFormatException e) {
+			return Verdict.MALFORMED;
+		}
+		if (expiresSeconds <= nowMillis / 1000) {
+			return Verdict.EXPIRED;
+		}
+		Key key = ring.find(keyId, nowMillis);
+		if (key == null) {
+			return Verdict.UNKNOWN_KEY;
+		}
+		byte[] given;
+		try {
+			given = SIGNATURE_ENCODING.decode(signature);
+		} catch (IllegalArgumentException e) {
+			return Verdict.BAD_SIGNATURE;
+		}
+		return MessageDigest.isEqual(key.mac(videoId, expiresSeconds), given) ? Verdict.VALID : Verdict.BAD_SIGNATURE;
+	}
+
+	/**
+	 * Whether SignedDataUrlFilter found a valid signature on the request
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public static boolean isVerified(ServletRequest request) {
+		return Boolean.TRUE.equals(request.getAttribute(VERIFIED_ATTRIBUTE));
+	}
+
+	private Key newKey() {
+		byte[] id = new byte[GENERATED_KEY_ID_BYTES];
+		byte[] secret = new byte[GENERATED_SECRET_BYTES];
+		random.nextBytes(id);
+		random.nextBytes(secret);
+		return new Key(SIGNATURE_ENCODING.encode(id), secret, Long.MAX_VALUE);
+	}
+
+	private static List<Key> parseKeys(String keys) {
+		List<Key> parsed = new ArrayList<Key>();
+		if (keys == null) {
+			return parsed;
+		}
+		for (String pair : keys.split(",")) {
+			pair = pair.trim();
+			if (pair.isEmpty()) {
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("video.url.signing.keys must be id=secret pairs, not " + pair);
+			}
+			String id = checkKeyId(pair.substring(0, eq).trim());
+			byte[] secret = checkSecret(id, Base64.decodeBase64(pair.substring(eq + 1).trim()));
+			for (Key k : parsed) {
+				if (k.id.equals(id)) {
+					throw new IllegalArgumentException("Duplicate signing key id " + id);
+				}
+			}
+			parsed.add(new Key(id, secret, Long.MAX_VALUE));
+		}
+		return parsed;
+	}
+
+	private static String checkKeyId(String keyId) {
+		if (keyId == null || !KEY_ID.matcher(keyId).matches()) {
+			throw new IllegalArgumentException("Signing key ids may only have letters, digits, - and _: " + keyId);
+		}
+		return keyId;
+	}
+
+	private static byte[] checkSecret(String keyId, byte[] secret) {
+		if (secret == null || secret.length < MIN_SECRET_BYTES) {
+			throw new IllegalArgumentException("The secret of signing key " + keyId + " must have at least "
+					+ MIN_SECRET_BYTES + " bytes");
+		}
+		return secret;
+	}
+
+	/**
+	 * The signing key and the keys that are still accepted. It is replaced
+	 * as a whole on rotation, so verifying never takes a lock.
+	 */
+	private static final class KeyRing {
+
+		final Key current;
+
+		final Key[] previous;
+
+		KeyRing(Key current, List<Key> previous) {
+			this.current = current;
+			this.previous = previous.toArray(new Key[previous.size()]);
+		}
+
+		Key find(String id, long nowMillis) {
+			if (current.id.equals(id)) {
+				return current;
+			}
+			for (Key k : previous) {
+				if (k.id.equals(id) && k.acceptUntil > nowMillis) {
+					return k;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Key {
+
+		final String id;
+
+		// When the key stops being accepted, for keys that were replaced
+		final long acceptUntil;
+
+		private final SecretKeySpec spec;
+
+		// Mac instances aren't thread-safe, and getting one is much slower
+		// than using it, so every thread keeps its own
+		private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+			@Override
+			protected Mac initialValue() {
+				try {
+					Mac mac = Mac.getInstance(ALGORITHM);
+					mac.init(spec);
+					return mac;
+				} catch (GeneralSecurityException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+
+		Key(String id, byte[] secret, long acceptUntil) {
+			this(id, new SecretKeySpec(secret, ALGORITHM), acceptUntil);
+		}
+
+		private Key(String id, SecretKeySpec spec, long acceptUntil) {
+			this.id = id;
+			this.spec = spec;
+			this.acceptUntil = acceptUntil;
+		}
+
+		Key acceptedUntil(long until) {
+			return new Key(id, spec, Math.min(acceptUntil, until));
+		}
+
+		byte[] mac(long videoId, long expires) {
+			byte[] message = new byte[16];
+			for (int i = 0; i < 8; i++) {
+				message[i] = (byte) (videoId >>> (56 - 8 * i));
+				message[8 + i] = (byte) (expires >>> (56 - 8 * i));
+			}
+			return macs.get().doFinal(message);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes of video data that isn't kept in a file of its own (see
+ * InMemoryVideoStorage and PackedVideoStorage). They look like those of a
+ * regular file, and the key changes whenever the data is replaced, so
+ * that VideoDataDigests and the caches can tell versions apart.
+ */
+class StoredVideoAttributes implements BasicFileAttributes {
+
+	private final long size;
+	private final FileTime modified;
+	private final Long key;
+
+	StoredVideoAttributes(long size, long modified, long key) {
+		this.size = size;
+		this.modified = FileTime.fromMillis(modified);
+		this.key = key;
+	}
+
+	@Override
+	public FileTime lastModifiedTime() {
+		return modified;
+	}
+
+	@Override
+	public FileTime lastAccessTime() {
+		return modified;
+	}
+
+	@Override
+	public FileTime creationTime() {
+		return modified;
+	}
+
+	@Override
+	public boolean isRegularFile() {
+		return true;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return false;
+	}
+
+	@Override
+	public boolean isSymbolicLink() {
+		return false;
+	}
+
+	@Override
+	public boolean isOther() {
+		return false;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Object fileKey() {
+		return key;
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.regex.Pattern;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+
+/**
+ * The default multipart resolver parses every multipart request up front,
+ * which makes the container spool each uploaded part to memory or a temp
+ * file before the controller sees a single byte. This resolver leaves the
+ * video data uploads alone so that VideoSvcCtrl can read their bodies with
+ * the streaming API of commons-fileupload and write them straight to disk.
+ * All other multipart requests are resolved as usual.
+ * 
+ * Anything that reads request parameters before the controller runs (like
+ * the HiddenHttpMethodFilter) has to skip these requests too, because the
+ * container parses the whole multipart body to answer getParameter().
+ */
+public class StreamingMultipartResolver extends StandardServletMultipartResolver {
+
+	// POST /video/{id}/data
+	private static final Pattern STREAMED_PATH = Pattern.compile(
+			VideoSvcApi.VIDEO_SVC_PATH + "/[^/]+/" + VideoSvcApi.DATA_PARAMETER + "/?");
+
+	@Override
+	public boolean isMultipart(HttpServletRequest request) {
+		if (isStreamed(request)) {
+			return false;
+		}
+		return super.isMultipart(request);
+	}
+
+	/**
+	 * Returns true if the body of the request is streamed by the controller
+	 * rather than resolved into MultipartFiles.
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public static boolean isStreamed(HttpServletRequest request) {
+		String path = request.getRequestURI().substring(request.getContextPath().length());
+		return "POST".equals(request.getMethod()) && STREAMED_PATH.matcher(path).matches();
+	}
+
+}
@@ -0,0 +1,366 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.model.UploadSession;
+import org.magnum.dataup.model.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of resumable uploads of video data. A client creates a
+ * session for a video, appends chunks to it at the offset the server
+ * reports, asks for the current offset after a dropped connection, and
+ * finally completes the session, after which everything that was received
+ * atomically replaces the video's data.
+ * 
+ * Chunks are written straight into a staging file owned by the
+ * VideoStorage, so publishing is a rename rather than another copy.
+ * Every byte that makes it to the staging file counts toward the offset,
+ * even if the connection drops in the middle of a chunk. The same bytes
+ * are hashed as they are written, so the digest of a completed upload is
+ * known without reading the file back. Sessions are only kept in memory,
+ * so a restart ends them, and the storage deletes their staging files
+ * when it starts.
+ * 
+ * Only one chunk is written to an upload at a time. Reading the offset
+ * never waits for it, so a client can ask where to resume while the
+ * server is still reading the body of a chunk whose connection the
+ * client gave up on. A chunk sent (or a completion asked for) while
+ * another chunk is still being written is turned away with the offset
+ * so far, rather than waiting behind it.
+ */
+@Component
+public class UploadSessionManager {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Upper bound on the size of a single chunk so that no one request
+	// has to carry an unbounded amount of data
+	@Value("${video.upload.maxChunkSize:8388608}")
+	private long maxChunkSize = 8 * 1024 * 1024;
+
+	// Sessions that haven't been touched for this long are discarded
+	@Value("${video.upload.sessionTimeoutMinutes:1440}")
+	private long sessionTimeoutMinutes = 24 * 60;
+
+	@Autowired
+	private VideoStorage storage;
+
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	public UploadSessionManager() {
+	}
+
+	public UploadSessionManager(VideoStorage storage, long maxChunkSize, long sessionTimeoutMinutes) {
+		this.storage = storage;
+		this.maxChunkSize = maxChunkSize;
+		this.sessionTimeoutMinutes = sessionTimeoutMinutes;
+	}
+
+	/**
+	 * Starts a new upload for the given video.
+	 * 
+	 * @param v
+	 * @param length the total number of bytes the client will send, or -1 if unknown
+	 * @return
+	 * @throws IOException
+	 */
+	public UploadSession create(Video v, long length) throws IOException {
+		expireIdleSessions();
+
+		Path file = storage.createStagingFile();
+		Session session = new Session(UUID.randomUUID().toString(), v.getId(), length, file);
+		sessions.put(session.id, session);
+		return session.toUploadSession();
+	}
+
+	/**
+	 * Returns the current state of an upload, or null if there is no
+	 * such upload for the given video.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @return
+	 */
+	public UploadSession get(long videoId, String uploadId) {
+		Session session = find(videoId, uploadId);
+		return session == null ? null : session.toUploadSession();
+	}
+
+	/**
+	 * Appends a chunk of data to an upload. The chunk must start exactly at
+	 * the upload's current offset; if it doesn't, nothing is written and an
+	 * OffsetMismatchException reporting the real offset is thrown. Chunks
+	 * larger than the configured maximum (or running past the announced
+	 * length) are cut off at the limit and a ChunkTooLargeException is thrown
+	 * after the accepted part has been stored. If another chunk is still
+	 * being written to the upload, an OffsetMismatchException is thrown
+	 * right away.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @param offset
+	 * @param chunk
+	 * @return the state of the upload after the chunk, or null if there is no such upload
+	 * @throws IOException
+	 */
+	public UploadSession append(long videoId, String uploadId, long offset, InputStream chunk) throws IOException {
+		Session session = find(videoId, uploadId);
+		if (session == null) {
+			return null;
+		}
+
+		if (!session.busy.compareAndSet(false, true)) {
+			throw new OffsetMismatchException(session.toUploadSession());
+		}
+		try {
+			if (sessions.get(session.id) != session) {
+				// Completed or discarded in the meantime
+				return null;
+			}
+			session.touch();
+			if (offset != session.offset) {
+				throw new OffsetMismatchException(session.toUploadSession());
+			}
+
+			long limit = maxChunkSize;
+			if (session.length >= 0) {
+				limit = Math.min(limit, session.length - session.offset);
+			}
+
+			boolean truncated = false;
+			try (FileChannel channel = FileChannel.open(session.file, StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				long accepted = 0;
+				try {
+					while (true) {
+						int read = chunk.read(buffer.array(), 0, buffer.capacity());
+						if (read < 0) {
+							break;
+						}
+						if (accepted + read > limit) {
+							read = (int) (limit - accepted);
+							truncated = true;
+						}
+						buffer.clear();
+						buffer.limit(read);
+						while (buffer.hasRemaining()) {
+							int start = buffer.position();
+							int written = channel.write(buffer, session.offset);
+							session.digest.update(buffer.array(), start, written);
+							session.offset += written;
+						}
+						accepted += read;
+						if (truncated) {
+							break;
+						}
+					}
+				} finally {
+					// Whatever reached the staging file is kept, so that a
+					// client whose connection dropped can resume after it
+					channel.force(false);
+				}
+			}
+
+			if (truncated) {
+				throw new ChunkTooLargeException(session.toUploadSession());
+			}
+			return session.toUploadSession();
+		} finally {
+			session.busy.set(false);
+		}
+	}
+
+	/**
+	 * Completes a finished upload and discards the session, handing its
+	 * staging file over to the caller, who publishes it as the binary data of
+	 * the video (see GroupCommitter). If the client announced a length, the
+	 * upload must have reached it; otherwise, or while a chunk is still
+	 * being written to it, an OffsetMismatchException is thrown.
+	 * 
+	 * @param v
+	 * @param uploadId
+	 * @return the staging file and its digest, or null if there is no such upload
+	 * @throws IOException
+	 */
+	public CompletedUpload complete(Video v, String uploadId) throws IOException {
+		Session session = find(v.getId(), uploadId);
+		if (session == null) {
+			return null;
+		}
+
+		if (!session.busy.compareAndSet(false, true)) {
+			throw new OffsetMismatchException(session.toUploadSession());
+		}
+		try {
+			if (session.length >= 0 && session.offset != session.length) {
+				throw new OffsetMismatchException(session.toUploadSession());
+			}
+			if (sessions.remove(session.id, session)) {
+				return new CompletedUpload(session.file, Hex.encodeHexString(session.digest.digest()));
+			}
+			return null;
+		} finally {
+			session.busy.set(false);
+		}
+	}
+
+	/**
+	 * Discards an upload and any data received for it.
+	 * 
+	 * @param videoId
+	 * @param uploadId
+	 * @throws IOException
+	 */
+	public void abort(long videoId, String uploadId) throws IOException {
+		Session session = find(videoId, uploadId);
+		if (session != null) {
+			discard(session);
+		}
+	}
+
+	private Session find(long videoId, String uploadId) {
+		Session session = sessions.get(uploadId);
+		return (session != null && session.videoId == videoId) ? session : null;
+	}
+
+	// A chunk still being written goes on into the deleted file and is
+	// lost along with it
+	private void discard(Session session) throws IOException {
+		if (sessions.remove(session.id, session)) {
+			Files.deleteIfExists(session.file);
+		}
+	}
+
+	private void expireIdleSessions() throws IOException {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(sessionTimeoutMinutes);
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			Session session = it.next();
+			if (session.lastTouched < cutoff) {
+				discard(session);
+			}
+		}
+	}
+
+	private static class Session {
+		private final String id;
+		private final long videoId;
+		private final long length;
+		private final Path file;
+		private final MessageDigest digest = VideoDataDigests.newDigest();
+		// Set while a chunk is written or the upload is completed
+		private final AtomicBoolean busy = new AtomicBoolean();
+		// Only the writer holding busy moves it, but anyone may read it
+		private volatile long offset;
+		private volatile long lastTouched = System.currentTimeMillis();
+
+		private Session(String id, long videoId, long length, Path file) {
+			this.id = id;
+			this.videoId = videoId;
+			this.length = length;
+			this.file = file;
+		}
+
+		private void touch() {
+			lastTouched = System.currentTimeMillis();
+		}
+
+		private UploadSession toUploadSession() {
+			return new UploadSession(id, videoId, offset, length);
+		}
+	}
+
+	/**
+	 * The staging file of a completed upload along with the SHA-256 digest
+	 * of its data.
+	 */
+	public static class CompletedUpload {
+		private final Path file;
+		private final String digest;
+
+		public CompletedUpload(Path file, String digest) {
+			this.file = file;
+			this.digest = digest;
+		}
+
+		public Path getFile() {
+			return file;
+		}
+
+		public String getDigest() {
+			return digest;
+		}
+	}
+
+	/**
+	 * Thrown when a chunk doesn't start at the upload's current offset, when
+	 * another chunk is still being written, or when an upload is published
+	 * before all of its data has arrived.
+	 */
+	public static class OffsetMismatchException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final UploadSession session;
+
+		public OffsetMismatchException(UploadSession session) {
+			super("Upload " + session.getId() + " is at offset " + session.getOffset());
+			this.session = session;
+		}
+
+		public UploadSession getSession() {
+			return session;
+		}
+	}
+
+	/**
+	 * Thrown when a chunk is larger than the server accepts. The part of the
+	 * chunk up to the limit has been stored.
+	 */
+	public static class ChunkTooLargeException extends IOException {
+		private static final long serialVersionUID = 1L;
+		private final UploadSession session;
+
+		public ChunkTooLargeException(UploadSession session) {
+			super("Chunk too large for upload " + session.getId());
+			this.session = session;
+		}
+
+		public UploadSession getSession() {
+			return session;
+		}
+	}
+
+}
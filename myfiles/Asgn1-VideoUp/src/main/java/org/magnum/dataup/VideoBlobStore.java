@@ -0,0 +1,281 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+
+import org.magnum.dataup.model.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * An optional content-addressed store for video data, enabled with the
+ * video.storage.dedup property. Each distinct piece of content is kept
+ * once as a blob named by its SHA-256 digest, and every video with that
+ * content is a hard link to the blob. Identical uploads therefore cost no
+ * extra disk space, and a client that already knows the digest of its
+ * file can attach it to a video without uploading anything.
+ * 
+ * The digest is computed while the upload is written, so storing a video
+ * still writes its bytes only once. Which digest each video points to is
+ * recorded in a small ref file, and the number of videos pointing to a
+ * blob is its reference count. A blob is deleted as soon as its count
+ * drops to zero. Deciding whether a blob exists, linking to it, and
+ * deleting it all happen under a lock for that digest, so an upload can
+ * never link to a blob that is being collected.
+ */
+@Component
+public class VideoBlobStore {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VideoBlobStore.class);
+
+	public static final String DIGEST_ALGORITHM = VideoDataDigests.ALGORITHM;
+
+	private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	private static final Pattern REF_NAME_PATTERN = Pattern.compile("-?[0-9]+");
+
+	private static final String BLOBS_DIR = "blobs";
+	private static final String REFS_DIR = "refs";
+
+	@Value("${video.storage.dedup:false}")
+	private boolean enabled;
+
+	@Autowired
+	private VideoStorage storage;
+
+	@Autowired
+	private VideoDataDigests digests;
+
+	private Path blobsDir_;
+	private Path refsDir_;
+
+	// Which digest each video's data currently points to
+	private final ConcurrentMap<Long, String> refs = new ConcurrentHashMap<Long, String>();
+
+	// How many videos point to each blob
+	private final ConcurrentMap<String, Integer> refCounts = new ConcurrentHashMap<String, Integer>();
+
+	private final Striped<Lock> videoLocks = Striped.lock(64);
+	private final Striped<Lock> blobLocks = Striped.lock(64);
+
+	/**
+	 * Loads the ref files and removes blobs that no video points to, e.g.,
+	 * because the server stopped between writing a blob and linking it.
+	 * 
+	 * @throws IOException
+	 */
+	@PostConstruct
+	public void init() throws IOException {
+		if (!enabled) {
+			return;
+		}
+
+		blobsDir_ = storage.getStorageDirectory(BLOBS_DIR);
+		refsDir_ = storage.getStorageDirectory(REFS_DIR);
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(refsDir_)) {
+			for (Path ref : files) {
+				if (!REF_NAME_PATTERN.matcher(ref.getFileName().toString()).matches()) {
+					Files.deleteIfExists(ref);
+					continue;
+				}
+				String digest = new String(Files.readAllBytes(ref), StandardCharsets.US_ASCII).trim();
+				if (DIGEST_PATTERN.matcher(digest).matches()) {
+					refs.put(Long.valueOf(ref.getFileName().toString()), digest);
+					increment(digest);
+				}
+			}
+		}
+
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(blobsDir_)) {
+			for (Path blob : files) {
+				if (!refCounts.containsKey(blob.getFileName().toString())) {
+					LOG.info("Removing unreferenced blob {}", blob.getFileName());
+					Files.deleteIfExists(blob);
+				}
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Returns the directories the store keeps its blobs and refs in, or an
+	 * empty list if the store is disabled.
+	 * 
+	 * @return
+	 */
+	public List<Path> getDirectories() {
+		if (!enabled) {
+			return Collections.emptyList();
+		}
+		return Arrays.asList(blobsDir_, refsDir_);
+	}
+
+	/**
+	 * Stores a staging file whose digest is already known as the given
+	 * video's data. The file either becomes the blob or is discarded in
+	 * favor of an existing blob with the same digest.
+	 * 
+	 * @param v
+	 * @param staged
+	 * @param digest
+	 * @throws IOException
+	 */
+	public void publish(Video v, Path staged, String digest) throws IOException {
+		try {
+			attach(v, digest, staged);
+		} finally {
+			Files.deleteIfExists(staged);
+		}
+	}
+
+	/**
+	 * Points the given video at an existing blob without any data being
+	 * uploaded. Returns false if no blob with that digest is stored, in
+	 * which case the client has to upload the data.
+	 * 
+	 * @param v
+	 * @param digest
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean link(Video v, String digest) throws IOException {
+		if (!enabled || digest == null || !DIGEST_PATTERN.matcher(digest.toLowerCase()).matches()) {
+			return false;
+		}
+		return attach(v, digest.toLowerCase(), null);
+	}
+
+	/**
+	 * Returns the digest of the given video's data, or null if it has none
+	 * in this store.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public String getDigest(Video v) {
+		return refs.get(v.getId());
+	}
+
+	/**
+	 * Returns the number of videos whose data is the blob with the given
+	 * digest.
+	 * 
+	 * @param digest
+	 * @return
+	 */
+	public int getReferenceCount(String digest) {
+		Integer count = refCounts.get(digest);
+		return count == null ? 0 : count;
+	}
+
+	// Links the video to the blob with the given digest, first turning the
+	// staged file into that blob if it doesn't exist yet. With no staged
+	// file, a missing blob means there is nothing to link to.
+	private boolean attach(Video v, String digest, Path staged) throws IOException {
+		Lock videoLock = videoLocks.get(v.getId());
+		videoLock.lock();
+		try {
+			String previous;
+			Lock blobLock = blobLocks.get(digest);
+			blobLock.lock();
+			try {
+				Path blob = blobsDir_.resolve(digest);
+				if (!Files.exists(blob)) {
+					if (staged == null) {
+						return false;
+					}
+					Files.move(staged, blob, StandardCopyOption.ATOMIC_MOVE);
+				}
+				storage.linkVideoData(v, blob);
+				// Still under the video's lock, so the file can't have been
+				// replaced by another upload yet
+				digests.record(v, digest, storage.getVideoDataAttributes(v));
+				writeRef(v.getId(), digest);
+				previous = refs.put(v.getId(), digest);
+				increment(digest);
+			} finally {
+				blobLock.unlock();
+			}
+
+			if (previous != null) {
+				release(previous);
+			}
+			return true;
+		} finally {
+			videoLock.unlock();
+		}
+	}
+
+	// Drops one reference to a blob and deletes the blob if that was the
+	// last one
+	private void release(String digest) throws IOException {
+		Lock blobLock = blobLocks.get(digest);
+		blobLock.lock();
+		try {
+			Integer count = refCounts.get(digest);
+			if (count == null || count <= 1) {
+				refCounts.remove(digest);
+				Files.deleteIfExists(blobsDir_.resolve(digest));
+			} else {
+				refCounts.put(digest, count - 1);
+			}
+		} finally {
+			blobLock.unlock();
+		}
+	}
+
+	private void increment(String digest) {
+		Integer count = refCounts.get(digest);
+		refCounts.put(digest, count == null ? 1 : count + 1);
+	}
+
+	private void writeRef(long videoId, String digest) throws IOException {
+		Path ref = refsDir_.resolve(Long.toString(videoId));
+		Path temp = refsDir_.resolve(videoId + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			out.write(digest.getBytes(StandardCharsets.US_ASCII));
+		}
+		Files.move(temp, ref, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
@@ -0,0 +1,459 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * A concurrent map from video ids to videos, keyed by primitive longs so
+ * that looking up a video never boxes its id.
+ * 
+ * The ids are spread over a fixed number of segments, each guarded by its
+ * own lock, so writers only contend when they hit the same segment. Every
+ * segment is an open-addressing hash table with linear probing, stored in
+ * two parallel arrays (keys and videos) instead of one node object per
+ * entry, which keeps the footprint at a few bytes per video beyond the
+ * videos themselves.
+ * 
+ * Reads take no locks. A writer stores the video before the key, and a
+ * resized table is only published once it is complete, so a reader that
+ * finds a key always sees its video. Removed entries keep their key with no
+ * video (a tombstone) until the next resize, so probing never has to move
+ * entries around under a reader.
+ * 
+ * The collection returned by values() is a live view whose iterators are
+ * weakly consistent, like those of ConcurrentHashMap: they never throw
+ * ConcurrentModificationException and see every video that was in the
+ * catalog when iteration started and wasn't removed since, and may or
+ * may not see later changes.
+ * 
+ * The hash tables have no order, so the ids are also kept in a sorted
+ * VideoIdIndex, which lets keysAfter() resume a walk in id order from any
+ * id. The index has locks of its own, one per block of ids, and is updated
+ * after the segment lock is released, so writers never wait for each
+ * other's index updates while holding a segment. Each update looks up
+ * whether the id is in the catalog once it holds the index lock, so the
+ * index never misses an id once the put() that added it has returned.
+ */
+public class VideoCatalog {
+
+	private static final int DEFAULT_SEGMENTS = 16;
+
+	private static final int MIN_CAPACITY = 16;
+
+	// Marks an unused slot. Id 0 means "no id yet" (see Video.getId()), but
+	// it is still a valid key and lives outside of the tables.
+	private static final long EMPTY = 0L;
+
+	private final Segment[] segments;
+
+	private final int segmentShift;
+
+	private final ReentrantLock zeroLock = new ReentrantLock();
+
+	private final VideoIdIndex index = new VideoIdIndex();
+
+	private final VideoIdIndex.Membership members = new VideoIdIndex.Membership() {
+		@Override
+		public boolean contains(long id) {
+			return containsKey(id);
+		}
+	};
+
+	private volatile Video zeroValue;
+
+	public VideoCatalog() {
+		this(DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * Creates a catalog that allows about the given number of concurrent
+	 * writers, rounded up to a power of two.
+	 * 
+	 * @param concurrencyLevel
+	 */
+	public VideoCatalog(int concurrencyLevel) {
+		int count = 1;
+		int bits = 0;
+		while (count < concurrencyLevel) {
+			count <<= 1;
+			bits++;
+		}
+		segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment();
+		}
+		segmentShift = 64 - bits;
+	}
+
+	/**
+	 * Returns the video with the given id, or null if there is none.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public Video get(long id) {
+		if (id == EMPTY) {
+			return zeroValue;
+		}
+		long hash = hash(id);
+		return segmentFor(hash).get(id, hash);
+	}
+
+	public boolean containsKey(long id) {
+		return get(id) != null;
+	}
+
+	/**
+	 * Stores the video under the given id and returns the video that was
+	 * stored under it before, if any.
+	 * 
+	 * @param id
+	 * @param v
+	 * @return
+	 */
+	public Video put(long id, Video v) {
+		return put(id, v, false);
+	}
+
+	/**
+	 * Stores the video under the given id unless there already is one, in
+	 * which case the existing video is returned and nothing changes.
+	 * 
+	 * @param id
+	 * @param v
+	 * @return
+	 */
+	public Video putIfAbsent(long id, Video v) {
+		return put(id, v, true);
+	}
+
+	/**
+	 * Removes the video with the given id and returns it, or null if there
+	 * was none.
+	 * 
+	 * @param id
+	 * @return
+	 */
+	public Video remove(long id) {
+		Video previous;
+		if (id == EMPTY) {
+			zeroLock.lock();
+			try {
+				previous = zeroValue;
+				zeroValue = null;
+			} finally {
+				zeroLock.unlock();
+			}
+		} else {
+			long hash = hash(id);
+			previous = segmentFor(hash).remove(id, hash);
+		}
+		if (previous != null) {
+			index.update(id, members);
+		}
+		return previous;
+	}
+
+	/**
+	 * Returns the number of videos in the catalog. Like the values() view,
+	 * this may or may not reflect changes that happen while it is counting.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		long size = zeroValue == null ? 0 : 1;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Copies the ids of up to max videos into the given array in ascending
+	 * order, starting with the first id greater than after, or with the
+	 * smallest id if after is null. Calling it again with the last id that
+	 * was copied continues where it left off, no matter what was added or
+	 * removed in between. Like values(), it is weakly consistent, and an id
+	 * may belong to a video that has been removed by the time it is looked
+	 * up.
+	 * 
+	 * @param after
+	 * @param ids
+	 * @param max
+	 * @return the number of ids copied
+	 */
+	public int keysAfter(Long after, long[] ids, int max) {
+		return index.walk(after, ids, max);
+	}
+
+	/**
+	 * Returns a live, read-only view of the videos in the catalog.
+	 * 
+	 * @return
+	 */
+	public Collection<Video> values() {
+		return new AbstractCollection<Video>() {
+			@Override
+			public Iterator<Video> iterator() {
+				return new ValueIterator();
+			}
+
+			@Override
+			public int size() {
+				return VideoCatalog.this.size();
+			}
+		};
+	}
+
+	private Video put(long id, Video v, boolean onlyIfAbsent) {
+		if (v == null) {
+			throw new NullPointerException();
+		}
+		Video previous;
+		if (id == EMPTY) {
+			zeroLock.lock();
+			try {
+				previous = zeroValue;
+				if (previous == null || !onlyIfAbsent) {
+					zeroValue = v;
+				}
+			} finally {
+				zeroLock.unlock();
+			}
+		} else {
+			long hash = hash(id);
+			previous = segmentFor(hash).put(id, hash, v, onlyIfAbsent);
+		}
+		if (previous == null) {
+			index.update(id, members);
+		}
+		return previous;
+	}
+
+	private Segment segmentFor(long hash) {
+		return segments.length == 1 ? segments[0] : segments[(int) (hash >>> segmentShift)];
+	}
+
+	// Spreads sequential ids over the segments and slots (the finalizer of
+	// MurmurHash3)
+	private static long hash(long id) {
+		long h = id;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private static final class Table {
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<Video> values;
+		private final int mask;
+
+		private Table(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<Video>(capacity);
+			mask = capacity - 1;
+		}
+	}
+
+	private static final class Segment extends ReentrantLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private volatile Table table = new Table(MIN_CAPACITY);
+
+		// Live entries, and slots that hold a key (live or removed)
+		private volatile int size;
+		private int used;
+
+		private Video get(long id, long hash) {
+			Table t = table;
+			for (int i = (int) hash & t.mask;; i = (i + 1) & t.mask) {
+				long key = t.keys.get(i);
+				if (key == id) {
+					return t.values.get(i);
+				}
+				if (key == EMPTY) {
+					return null;
+				}
+			}
+		}
+
+		private Video put(long id, long hash, Video v, boolean onlyIfAbsent) {
+			lock();
+			try {
+				Table t = table;
+				int i = (int) hash & t.mask;
+				for (;; i = (i + 1) & t.mask) {
+					long key = t.keys.get(i);
+					if (key == id) {
+						Video previous = t.values.get(i);
+						if (previous == null || !onlyIfAbsent) {
+							t.values.set(i, v);
+						}
+						if (previous == null) {
+							size++;
+						}
+						return previous;
+					}
+					if (key == EMPTY) {
+						break;
+					}
+				}
+
+				// The video has to be visible before the key is
+				t.values.set(i, v);
+				t.keys.set(i, id);
+				size++;
+				if (++used > (t.mask + 1) * 3 / 4) {
+					resize(t);
+				}
+				return null;
+			} finally {
+				unlock();
+			}
+		}
+
+		private Video remove(long id, long hash) {
+			lock();
+			try {
+				Table t = table;
+				for (int i = (int) hash & t.mask;; i = (i + 1) & t.mask) {
+					long key = t.keys.get(i);
+					if (key == id) {
+						Video previous = t.values.getAndSet(i, null);
+						if (previous != null) {
+							size--;
+						}
+						return previous;
+					}
+					if (key == EMPTY) {
+						return null;
+					}
+				}
+			} finally {
+				unlock();
+			}
+		}
+
+		// Copies the live entries into a new table, dropping tombstones, and
+		// grows it if it is more than half full of live entries
+		private void resize(Table old) {
+			int capacity = old.mask + 1;
+			if (size > capacity / 2) {
+				capacity <<= 1;
+			}
+			Table t = new Table(capacity);
+			for (int j = 0; j <= old.mask; j++) {
+				Video v = old.values.get(j);
+				if (v == null) {
+					continue;
+				}
+				long key = old.keys.get(j);
+				int i = (int) hash(key) & t.mask;
+				while (t.keys.get(i) != EMPTY) {
+					i = (i + 1) & t.mask;
+				}
+				t.values.lazySet(i, v);
+				t.keys.lazySet(i, key);
+			}
+			used = size;
+			table = t;
+		}
+	}
+
+	// Walks the segments in order, reading each one's table as it was when
+	// the iterator got to it
+	private final class ValueIterator implements Iterator<Video> {
+
+		private int segment = -1;
+		private Table table;
+		private int slot;
+		private Video next;
+
+		private ValueIterator() {
+			next = zeroValue;
+			if (next == null) {
+				advance();
+			}
+		}
+
+		private void advance() {
+			Table t = table;
+			int i = slot;
+			for (;;) {
+				if (t != null) {
+					AtomicReferenceArray<Video> values = t.values;
+					int length = values.length();
+					while (i < length) {
+						Video v = values.get(i++);
+						if (v != null) {
+							table = t;
+							slot = i;
+							next = v;
+							return;
+						}
+					}
+				}
+				if (++segment >= segments.length) {
+					table = null;
+					next = null;
+					return;
+				}
+				t = segments[segment].table;
+				i = 0;
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public Video next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Video v = next;
+			advance();
+			return v;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+}
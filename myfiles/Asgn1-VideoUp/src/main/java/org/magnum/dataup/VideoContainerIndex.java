@@ -0,0 +1,202 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.magnum.dataup.Mp4Boxes.Layout;
+import org.magnum.dataup.model.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers what the index stage of VideoProcessingPipeline found out about
+ * each video's data:
+ * 
+ * - its container layout, i.e., where its top-level boxes are, its brand and
+ *   how long the movie runs (only for ISO base media files, and only in
+ *   memory), and
+ * - its time index (see VideoTimeIndex), which maps playback times to the
+ *   offsets of keyframes or pack headers.
+ * 
+ * Time indexes are kept in the "index" storage directory next to the video
+ * data, in a file named after the SHA-256 digest of the data they index.
+ * So they outlive restarts, are shared by videos with the same data, and
+ * can never be used with data they weren't built from. The index of each
+ * video's current data is cached in memory once it has been read.
+ */
+@Component
+public class VideoContainerIndex {
+
+	private static final String INDEX_DIR = "index";
+
+	private static final String INDEX_SUFFIX = ".idx";
+
+	private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	@Autowired
+	private VideoStorage storage;
+
+	private final ConcurrentMap<Long, Layout> layouts = new ConcurrentHashMap<Long, Layout>();
+
+	private final ConcurrentMap<Long, CachedIndex> timeIndexes = new ConcurrentHashMap<Long, CachedIndex>();
+
+	public VideoContainerIndex() {
+	}
+
+	/**
+	 * Creates a VideoContainerIndex that keeps its time indexes in the given
+	 * storage.
+	 * 
+	 * @param storage
+	 */
+	public VideoContainerIndex(VideoStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Reads the layout of a staged or stored file, or returns null if the
+	 * file isn't an ISO base media file.
+	 * 
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 *             if the file is an ISO base media file that is broken
+	 */
+	public static Layout read(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return Mp4Boxes.isIsoMedia(channel) ? Mp4Boxes.readLayout(channel) : null;
+		}
+	}
+
+	/**
+	 * Builds the time index of a staged or stored file with the given
+	 * layout, or returns null if there is nothing to index.
+	 * 
+	 * @param file
+	 * @param layout
+	 * @return
+	 * @throws IOException
+	 */
+	public static VideoTimeIndex buildTimeIndex(Path file, Layout layout) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return VideoTimeIndex.build(channel, layout);
+		}
+	}
+
+	/**
+	 * Records the layout of the data that was just published for a video,
+	 * or forgets the old one if the new data has none.
+	 * 
+	 * @param v
+	 * @param layout
+	 */
+	public void record(Video v, Layout layout) {
+		if (layout == null) {
+			layouts.remove(v.getId());
+		} else {
+			layouts.put(v.getId(), layout);
+		}
+	}
+
+	/**
+	 * Returns the layout of the video's data, or null.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Layout get(Video v) {
+		return layouts.get(v.getId());
+	}
+
+	/**
+	 * Stores the time index of the data with the given digest, replacing
+	 * any index stored for it before.
+	 * 
+	 * @param digest
+	 * @param index
+	 * @throws IOException
+	 */
+	public void saveTimeIndex(String digest, VideoTimeIndex index) throws IOException {
+		Path file = indexFile(digest);
+		Path temp = Files.createTempFile(file.getParent(), digest, ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+				index.write(out);
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Returns the time index of a video's data, whose digest is given, or
+	 * null if the data has none.
+	 * 
+	 * @param v
+	 * @param digest
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoTimeIndex getTimeIndex(Video v, String digest) throws IOException {
+		if (digest == null || !DIGEST_PATTERN.matcher(digest).matches()) {
+			return null;
+		}
+		CachedIndex cached = timeIndexes.get(v.getId());
+		if (cached == null || !cached.digest.equals(digest)) {
+			VideoTimeIndex index = null;
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(indexFile(digest)))) {
+				index = VideoTimeIndex.read(in);
+			} catch (NoSuchFileException e) {
+				// Not indexed; remembered as such
+			}
+			cached = new CachedIndex(digest, index);
+			timeIndexes.put(v.getId(), cached);
+		}
+		return cached.index;
+	}
+
+	private Path indexFile(String digest) throws IOException {
+		return storage.getStorageDirectory(INDEX_DIR).resolve(digest + INDEX_SUFFIX);
+	}
+
+	private static class CachedIndex {
+		private final String digest;
+		private final VideoTimeIndex index;
+
+		private CachedIndex(String digest, VideoTimeIndex index) {
+			this.digest = digest;
+			this.index = index;
+		}
+	}
+
+}
@@ -0,0 +1,234 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnum.dataup.model.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+/**
+ * A bounded cache of memory-mapped video files for the videos that are
+ * downloaded most. A hit serves the bytes straight out of the mapping,
+ * without issuing read calls. The mappings live outside the Java heap,
+ * and the cache keeps their total size under video.cache.maxBytes by
+ * evicting the least recently used file. Files larger than
+ * video.cache.maxEntryBytes are never cached.
+ * 
+ * Every hit checks that the cached mapping is of the version of the data
+ * that the reader acquired (same file key, size and modification time;
+ * see VideoDataVersion), so a reader never gets bytes from another version
+ * than the one its headers describe. Since new data always replaces a
+ * video's file rather than writing into it, a mapping never sees a
+ * half-written file. Only current versions are cached; once a video's
+ * data is replaced, the new version is mapped on its first read. Writers can also call
+ * invalidate() to drop a mapping right away.
+ * 
+ * Hits, misses, evictions and the number of cached bytes are published as
+ * the gauges video.cache.hits, video.cache.misses, video.cache.evictions
+ * and video.cache.bytes.
+ */
+@Component
+public class VideoDataCache {
+
+	private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+	@Value("${video.cache.maxBytes:268435456}")
+	private long maxBytes = 256L * 1024 * 1024;
+
+	@Value("${video.cache.maxEntryBytes:67108864}")
+	private long maxEntryBytes = 64L * 1024 * 1024;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	// Access-ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+
+	private long cachedBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Returns a read-only buffer holding the given version of a video's
+	 * data, mapping it if it isn't cached yet. Returns null if the cache is
+	 * disabled, the data is too large to cache or isn't in a file at all,
+	 * or the version has been replaced and isn't cached, in which case the
+	 * caller should read the version itself. The returned buffer is private
+	 * to the caller.
+	 * 
+	 * @param version
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer get(VideoDataVersion version, Video v) throws IOException {
+		if (maxBytes <= 0) {
+			return null;
+		}
+
+		// Only data kept in files can be mapped
+		if (version.getPath() == null) {
+			return null;
+		}
+		BasicFileAttributes attrs = version.getAttributes();
+
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(v.getId());
+			if (entry != null && entry.matches(attrs)) {
+				hits.incrementAndGet();
+				publish();
+				return entry.data.duplicate();
+			}
+		}
+
+		misses.incrementAndGet();
+		// A reader still holding a replaced version mustn't push the current
+		// one out of the cache
+		if (attrs.size() > Math.min(maxEntryBytes, maxBytes) || attrs.size() == 0 || !version.isCurrent()) {
+			publish();
+			return null;
+		}
+
+		ByteBuffer data = version.map();
+		if (data == null) {
+			publish();
+			return null;
+		}
+		entry = new Entry(data, attrs);
+
+		synchronized (this) {
+			Entry previous = entries.put(v.getId(), entry);
+			if (previous != null) {
+				cachedBytes -= previous.size;
+			}
+			cachedBytes += entry.size;
+			evictIfNeeded();
+		}
+		publish();
+		return data.duplicate();
+	}
+
+	/**
+	 * Writes length bytes of a buffer returned by get(), starting at offset,
+	 * to the output stream.
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer data, long offset, long length, OutputStream out) throws IOException {
+		byte[] chunk = new byte[(int) Math.min(WRITE_CHUNK_SIZE, Math.max(length, 1))];
+		data.position((int) offset);
+		long remaining = length;
+		while (remaining > 0) {
+			int n = (int) Math.min(chunk.length, remaining);
+			data.get(chunk, 0, n);
+			out.write(chunk, 0, n);
+			remaining -= n;
+		}
+	}
+
+	/**
+	 * Drops the cached mapping of a video's data, e.g., because new data
+	 * has just been stored for it.
+	 * 
+	 * @param videoId
+	 */
+	public synchronized void invalidate(long videoId) {
+		remove(videoId);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public synchronized long getCachedBytes() {
+		return cachedBytes;
+	}
+
+	private void remove(long videoId) {
+		Entry entry = entries.remove(videoId);
+		if (entry != null) {
+			cachedBytes -= entry.size;
+		}
+	}
+
+	private void evictIfNeeded() {
+		Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+		while (cachedBytes > maxBytes && it.hasNext()) {
+			cachedBytes -= it.next().getValue().size;
+			it.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private void publish() {
+		if (gauges == null) {
+			return;
+		}
+		gauges.submit("video.cache.hits", hits.get());
+		gauges.submit("video.cache.misses", misses.get());
+		gauges.submit("video.cache.evictions", evictions.get());
+		gauges.submit("video.cache.bytes", getCachedBytes());
+	}
+
+	private static class Entry {
+		private final ByteBuffer data;
+		private final long size;
+		private final Object fileKey;
+		private final long lastModified;
+
+		private Entry(ByteBuffer data, BasicFileAttributes attrs) {
+			this.data = data;
+			this.size = attrs.size();
+			this.fileKey = attrs.fileKey();
+			this.lastModified = attrs.lastModifiedTime().toMillis();
+		}
+
+		private boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size()
+					&& lastModified == attrs.lastModifiedTime().toMillis()
+					&& (fileKey == null ? attrs.fileKey() == null : fileKey.equals(attrs.fileKey()));
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.magnum.dataup.model.Video;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the SHA-256 digest of each video's data, which the controller
+ * uses as the data's strong ETag.
+ * 
+ * Digests are never computed by reading published data back. Whoever
+ * writes video data hashes it on the way to disk (see UploadSessionManager),
+ * or the processing pipeline hashes the staged data (see
+ * VideoProcessingPipeline), and the digest is recorded once the data is
+ * published.
+ * 
+ * A digest is recorded together with the identity, size and modification
+ * time of the file it belongs to, and is only handed out while the file
+ * still matches. So if the data is replaced without a digest being
+ * recorded (or the server stops in between), the video simply has no ETag
+ * rather than a wrong one. Digests are kept in memory and in a small file
+ * in the videos folder, so revalidating a cached video costs one stat call.
+ * When the data moves to another storage tier, VideoTierManager records
+ * the digest again for the moved file.
+ */
+@Component
+public class VideoDataDigests {
+
+	public static final String ALGORITHM = "SHA-256";
+
+	private static final Pattern DIGEST_PATTERN = Pattern.compile("[0-9a-f]{64}");
+
+	@Autowired
+	private VideoStorage storage;
+
+	private final ConcurrentMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+
+	public VideoDataDigests() {
+	}
+
+	/**
+	 * Creates a VideoDataDigests that keeps its files in the given storage.
+	 * 
+	 * @param storage
+	 */
+	public VideoDataDigests(VideoStorage storage) {
+		this.storage = storage;
+	}
+
+	/**
+	 * Returns a new SHA-256 MessageDigest.
+	 * 
+	 * @return
+	 */
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Records the digest of a video's data. The attributes must be those of
+	 * the file that was published with exactly this data, e.g., read from a
+	 * staging file right before it was renamed into place.
+	 * 
+	 * @param v
+	 * @param digest
+	 * @param attrs
+	 * @throws IOException
+	 */
+	public void record(Video v, String digest, BasicFileAttributes attrs) throws IOException {
+		Entry entry = new Entry(digest, attrs);
+		entries.put(v.getId(), entry);
+		storage.saveVideoDataDigest(v, entry.toString());
+	}
+
+	/**
+	 * Returns the digest of a video's data, or null if it isn't known for
+	 * the file with the given attributes.
+	 * 
+	 * @param v
+	 * @param attrs the current attributes of the video's data file
+	 * @return
+	 * @throws IOException
+	 */
+	public String get(Video v, BasicFileAttributes attrs) throws IOException {
+		Entry entry = entries.get(v.getId());
+		if (entry == null || !entry.matches(attrs)) {
+			entry = Entry.parse(storage.loadVideoDataDigest(v));
+			if (entry == null || !entry.matches(attrs)) {
+				return null;
+			}
+			entries.put(v.getId(), entry);
+		}
+		return entry.digest;
+	}
+
+	private static class Entry {
+		private final String digest;
+		private final String fileKey;
+		private final long size;
+		private final long lastModified;
+
+		private Entry(String digest, BasicFileAttributes attrs) {
+			this(digest, String.valueOf(attrs.fileKey()), attrs.size(), attrs.lastModifiedTime().toMillis());
+		}
+
+		private Entry(String digest, String fileKey, long size, long lastModified) {
+			this.digest = digest;
+			this.fileKey = fileKey;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		private boolean matches(BasicFileAttributes attrs) {
+			return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis()
+					&& fileKey.equals(String.valueOf(attrs.fileKey()));
+		}
+
+		// "<digest> <size> <lastModified> <fileKey>"
+		@Override
+		public String toString() {
+			return digest + " " + size + " " + lastModified + " " + fileKey;
+		}
+
+		private static Entry parse(String s) {
+			if (s == null) {
+				return null;
+			}
+			String[] parts = s.trim().split(" ", 4);
+			if (parts.length != 4 || !DIGEST_PATTERN.matcher(parts[0]).matches()) {
+				return null;
+			}
+			try {
+				return new Entry(parts[0], parts[3], Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+}
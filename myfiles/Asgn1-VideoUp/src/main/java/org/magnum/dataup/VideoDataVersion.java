@@ -0,0 +1,125 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * One version of a video's data, as returned by
+ * VideoStorage.acquireVideoData(). Stored data is never changed in place:
+ * publishing writes a new version next to the old one and then flips the
+ * video over to it in one step. A reader that holds a version keeps
+ * reading the same bytes, whatever is published, moved or deleted in the
+ * meantime, until it closes the version. Each open version counts as a
+ * reference to its data, and the space of a version that has been
+ * replaced is reclaimed when the last reference to it is closed.
+ * 
+ * A download should acquire the data once and take its length, ETag and
+ * every range it sends from that one version, so that a response never
+ * mixes the headers of one version with the bytes of another. Acquiring
+ * and reading take no locks, so readers never wait for each other or for
+ * a writer. Versions are meant to be used by one thread at a time.
+ */
+public interface VideoDataVersion extends Closeable {
+
+	/**
+	 * Returns the size, modification time and identity (file key) of this
+	 * version. They don't change while it is held.
+	 * 
+	 * @return
+	 */
+	public BasicFileAttributes getAttributes();
+
+	/**
+	 * Copies length bytes of this version, starting at offset, to the
+	 * output stream. The range must lie within the data.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	public void copyTo(long offset, long length, OutputStream out) throws IOException;
+
+	/**
+	 * Writes length bytes of this version, starting at offset, to the
+	 * channel, without copying them through the Java heap where the
+	 * backend can.
+	 * 
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	public void transferTo(long offset, long length, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Returns a read-only mapping of all of this version, or null if the
+	 * backend doesn't keep it in a file of its own or it is too large to
+	 * map in one piece.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public ByteBuffer map() throws IOException;
+
+	/**
+	 * Returns the absolute path of the file this version was read from, for
+	 * handing to the web container (e.g., for sendfile), or null if the
+	 * backend doesn't keep the data in files. Whoever opens the path gets
+	 * the video's current data, so it only names this version while
+	 * isCurrent() is true (see getPinnedPath()).
+	 * 
+	 * @return
+	 */
+	public Path getPath();
+
+	/**
+	 * Returns the absolute path of a file that holds this version and goes
+	 * on naming it after the version is closed, whatever is published in
+	 * the meantime, or null if the backend can't provide one. This is the
+	 * path to hand to a web container that opens the file by its name once
+	 * the request has returned, as sendfile does. The file is removed a
+	 * while after the version is closed, which leaves the container plenty
+	 * of time to open it.
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public Path getPinnedPath() throws IOException;
+
+	/**
+	 * Returns true if this is still the video's current data.
+	 * 
+	 * @return
+	 */
+	public boolean isCurrent();
+
+	/**
+	 * Releases this version. Closing it more than once does nothing.
+	 */
+	@Override
+	public void close();
+
+}
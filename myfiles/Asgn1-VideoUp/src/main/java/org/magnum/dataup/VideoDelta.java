@@ -0,0 +1,443 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.model.BlockSignatures;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * Rsync-style deltas between two versions of a video, shared by the server
+ * and DeltaVideoUploader. The server signs its current data (Signer), the
+ * client finds the blocks of that data in its new file with a rolling
+ * checksum and encodes the new file as copies of those blocks and literal
+ * bytes (encode()), and the server rebuilds the new file from its current
+ * data and the delta (apply()). A few changed bytes cost about a block of
+ * literal data, and data that moved is still found, at any offset.
+ * 
+ * The weak checksum is the one rsync uses: two 16-bit sums over the block
+ * that can be rolled forward by a byte in constant time. Blocks whose weak
+ * checksums match are confirmed with a 128-bit murmur3 hash. Neither is
+ * meant to stand up to someone crafting collisions; the client sends the
+ * SHA-256 of the new file along with the delta, and the server only
+ * publishes the result if it matches.
+ * 
+ * A delta is a stream of big-endian values:
+ * 
+ *   int magic, int blockSize, long baseLength, then any number of
+ *     byte 1 (copy), int firstBlock, int blockCount
+ *     byte 2 (literal), int length, and length bytes
+ *   and finally byte 0 (end)
+ */
+public final class VideoDelta {
+
+	public static final int MAGIC = 0x56444c31;
+
+	public static final int MIN_BLOCK_SIZE = 2 * 1024;
+
+	public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+
+	private static final byte END = 0;
+	private static final byte COPY = 1;
+	private static final byte LITERAL = 2;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final HashFunction STRONG = Hashing.murmur3_128();
+
+	private VideoDelta() {
+	}
+
+	/**
+	 * Picks a block size for data of the given length: about its square
+	 * root, as rsync does, so that the signatures and the literal data
+	 * around each change grow at the same rate, rounded up to a whole KB.
+	 * 
+	 * @param length
+	 * @return
+	 */
+	public static int blockSizeFor(long length) {
+		long size = ((long) Math.sqrt(length) + 1023) / 1024 * 1024;
+		return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+	}
+
+	/**
+	 * Computes the block signatures of the data written to it.
+	 */
+	public static class Signer extends OutputStream {
+		private final int blockSize;
+		private final byte[] block;
+		private int filled;
+		private long length;
+
+		private final MessageDigest digest = VideoDataDigests.newDigest();
+		private final List<Integer> weak = new ArrayList<Integer>();
+		private final List<String> strong = new ArrayList<String>();
+
+		public Signer(int blockSize) {
+			this.blockSize = blockSize;
+			this.block = new byte[blockSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			digest.update(b, off, len);
+			length += len;
+			while (len > 0) {
+				int n = Math.min(len, blockSize - filled);
+				System.arraycopy(b, off, block, filled, n);
+				filled += n;
+				off += n;
+				len -= n;
+				if (filled == blockSize) {
+					weak.add(weak(ByteBuffer.wrap(block), 0, blockSize));
+					strong.add(strong(block, 0, blockSize));
+					filled = 0;
+				}
+			}
+		}
+
+		/**
+		 * Returns the signatures of the full blocks written so far. A
+		 * shorter block at the end isn't signed, and is sent literally.
+		 * 
+		 * @return
+		 */
+		public BlockSignatures getSignatures() {
+			int[] weaks = new int[weak.size()];
+			for (int i = 0; i < weaks.length; i++) {
+				weaks[i] = weak.get(i);
+			}
+			return new BlockSignatures(blockSize, length, Hex.encodeHexString(digest.digest()), weaks,
+					strong.toArray(new String[strong.size()]));
+		}
+	}
+
+	/**
+	 * Encodes the data as a delta against the data with the given
+	 * signatures.
+	 * 
+	 * @param data the new version, from its position to its limit
+	 * @param base
+	 * @param out
+	 * @return the number of literal bytes in the delta
+	 * @throws IOException
+	 */
+	public static long encode(ByteBuffer data, BlockSignatures base, OutputStream out) throws IOException {
+		int blockSize = base.getBlockSize();
+		Map<Integer, List<Integer>> blocks = new HashMap<Integer, List<Integer>>();
+		for (int i = 0; i < base.getWeak().length; i++) {
+			List<Integer> same = blocks.get(base.getWeak()[i]);
+			if (same == null) {
+				same = new ArrayList<Integer>(1);
+				blocks.put(base.getWeak()[i], same);
+			}
+			same.add(i);
+		}
+
+		DataOutputStream delta = new DataOutputStream(out);
+		delta.writeInt(MAGIC);
+		delta.writeInt(blockSize);
+		delta.writeLong(base.getLength());
+
+		Encoder encoder = new Encoder(data, base.getStrong(), blockSize, delta);
+		int end = data.limit();
+		int pos = data.position();
+		RollingChecksum checksum = null;
+		while (pos + blockSize <= end) {
+			if (checksum == null) {
+				checksum = new RollingChecksum(data, pos, blockSize);
+			}
+			int block = encoder.find(blocks.get(checksum.value()), pos);
+			if (block >= 0) {
+				encoder.copy(pos, block);
+				pos += blockSize;
+				checksum = null;
+			} else {
+				if (pos + blockSize < end) {
+					checksum.roll(data.get(pos), data.get(pos + blockSize));
+				}
+				pos++;
+			}
+		}
+		encoder.finish(end);
+		delta.writeByte(END);
+		delta.flush();
+		return encoder.literal;
+	}
+
+	// The state of encoding a delta: the literal bytes not written yet, and
+	// the run of consecutive blocks being copied
+	private static class Encoder {
+		private final ByteBuffer data;
+		private final String[] strong;
+		private final int blockSize;
+		private final DataOutputStream delta;
+		private final byte[] buffer;
+
+		private int literalStart;
+		private int copyFirst = -1;
+		private int copyCount;
+		private long literal;
+
+		private Encoder(ByteBuffer data, String[] strong, int blockSize, DataOutputStream delta) {
+			this.data = data;
+			this.strong = strong;
+			this.blockSize = blockSize;
+			this.delta = delta;
+			this.buffer = new byte[Math.max(blockSize, BUFFER_SIZE)];
+			this.literalStart = data.position();
+		}
+
+		// Returns the base block that the data at pos matches, preferring
+		// the one after the last block copied, or -1
+		private int find(List<Integer> candidates, int pos) {
+			if (candidates == null) {
+				return -1;
+			}
+			for (int i = 0; i < blockSize; i++) {
+				buffer[i] = data.get(pos + i);
+			}
+			String hash = strong(buffer, 0, blockSize);
+			int found = -1;
+			for (int block : candidates) {
+				if (strong[block].equals(hash)) {
+					if (block == copyFirst + copyCount) {
+						return block;
+					}
+					if (found < 0) {
+						found = block;
+					}
+				}
+			}
+			return found;
+		}
+
+		private void copy(int pos, int block) throws IOException {
+			writeLiteral(pos);
+			if (copyCount > 0 && block == copyFirst + copyCount) {
+				copyCount++;
+			} else {
+				writeCopy();
+				copyFirst = block;
+				copyCount = 1;
+			}
+			literalStart = pos + blockSize;
+		}
+
+		private void finish(int end) throws IOException {
+			writeLiteral(end);
+			writeCopy();
+		}
+
+		private void writeCopy() throws IOException {
+			if (copyCount > 0) {
+				delta.writeByte(COPY);
+				delta.writeInt(copyFirst);
+				delta.writeInt(copyCount);
+				copyCount = 0;
+			}
+		}
+
+		private void writeLiteral(int end) throws IOException {
+			if (literalStart >= end) {
+				return;
+			}
+			writeCopy();
+			delta.writeByte(LITERAL);
+			delta.writeInt(end - literalStart);
+			for (int pos = literalStart; pos < end;) {
+				int n = Math.min(buffer.length, end - pos);
+				for (int i = 0; i < n; i++) {
+					buffer[i] = data.get(pos + i);
+				}
+				delta.write(buffer, 0, n);
+				pos += n;
+			}
+			literal += end - literalStart;
+			literalStart = end;
+		}
+	}
+
+	/**
+	 * Reads the data of blocks of the version a delta was made against.
+	 */
+	public interface BlockSource {
+		/**
+		 * Writes the given range of the data to the stream.
+		 */
+		public void copy(long offset, long length, OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Rebuilds the new version of the data from the delta and the data it
+	 * was made against, writing it to the stream.
+	 * 
+	 * @param in the delta
+	 * @param baseLength the length of the data the delta was made against
+	 * @param base
+	 * @param out
+	 * @param maxLength the longest the new version may be
+	 * @return the length of the new version
+	 * @throws IOException
+	 */
+	public static long apply(InputStream in, long baseLength, BlockSource base, OutputStream out, long maxLength)
+			throws IOException {
+		DataInputStream delta = new DataInputStream(in);
+		try {
+			if (delta.readInt() != MAGIC) {
+				throw new InvalidDeltaException("Not a video delta");
+			}
+			int blockSize = delta.readInt();
+			if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+				throw new InvalidDeltaException("Unsupported block size " + blockSize);
+			}
+			if (delta.readLong() != baseLength) {
+				throw new InvalidDeltaException("The delta was made against other data");
+			}
+			long baseBlocks = baseLength / blockSize;
+
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long length = 0;
+			while (true) {
+				byte op = delta.readByte();
+				if (op == END) {
+					return length;
+				}
+				long n;
+				if (op == COPY) {
+					int first = delta.readInt();
+					int count = delta.readInt();
+					if (first < 0 || count <= 0 || first + (long) count > baseBlocks) {
+						throw new InvalidDeltaException("Blocks " + first + "+" + count + " aren't in the data");
+					}
+					n = (long) count * blockSize;
+					checkLength(length + n, maxLength);
+					base.copy((long) first * blockSize, n, out);
+				} else if (op == LITERAL) {
+					n = delta.readInt();
+					if (n < 0) {
+						throw new InvalidDeltaException("Negative literal length");
+					}
+					checkLength(length + n, maxLength);
+					for (long left = n; left > 0;) {
+						int read = delta.read(buffer, 0, (int) Math.min(buffer.length, left));
+						if (read < 0) {
+							throw new EOFException();
+						}
+						out.write(buffer, 0, read);
+						left -= read;
+					}
+				} else {
+					throw new InvalidDeltaException("Unknown delta operation " + op);
+				}
+				length += n;
+			}
+		} catch (EOFException e) {
+			throw new InvalidDeltaException("The delta ended early");
+		}
+	}
+
+	private static void checkLength(long length, long maxLength) throws DeltaTooLargeException {
+		if (length > maxLength) {
+			throw new DeltaTooLargeException(maxLength);
+		}
+	}
+
+	/**
+	 * The weak checksum of a block, which can be rolled forward a byte at a
+	 * time: a is the sum of the bytes, b the sum of the running values of a.
+	 */
+	static class RollingChecksum {
+		private final int blockSize;
+		private int a;
+		private int b;
+
+		RollingChecksum(ByteBuffer data, int pos, int blockSize) {
+			this.blockSize = blockSize;
+			for (int i = 0; i < blockSize; i++) {
+				int x = data.get(pos + i) & 0xff;
+				a += x;
+				b += (blockSize - i) * x;
+			}
+		}
+
+		// Slides the block one byte forward
+		void roll(byte out, byte in) {
+			a += (in & 0xff) - (out & 0xff);
+			b += a - blockSize * (out & 0xff);
+		}
+
+		int value() {
+			return (a & 0xffff) | (b << 16);
+		}
+	}
+
+	static int weak(ByteBuffer data, int pos, int blockSize) {
+		return new RollingChecksum(data, pos, blockSize).value();
+	}
+
+	static String strong(byte[] data, int off, int len) {
+		return STRONG.hashBytes(data, off, len).toString();
+	}
+
+	/**
+	 * Thrown when a delta is malformed or doesn't fit the data it is
+	 * applied to.
+	 */
+	public static class InvalidDeltaException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public InvalidDeltaException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Thrown when the data rebuilt from a delta would be longer than the
+	 * server accepts.
+	 */
+	public static class DeltaTooLargeException extends InvalidDeltaException {
+		private static final long serialVersionUID = 1L;
+
+		public DeltaTooLargeException(long maxLength) {
+			super("The video data would be longer than " + maxLength + " bytes");
+		}
+	}
+
+}
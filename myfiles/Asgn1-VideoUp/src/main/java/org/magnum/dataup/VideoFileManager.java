@@ -21,55 +21,293 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import org.magnum.dataup.model.Video;
 
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Striped;
+
 /**
  * This class provides a simple implementation to store video binary
  * data on the file system in a "videos" folder. The class provides
- * methods for saving videos and retrieving their binary data.
+ * methods for saving videos and retrieving their binary data. It is the
+ * "flat" VideoStorage backend, and the base of the other file-based ones,
+ * which change where a video's file goes (resolveVideoFile()) or how it
+ * is read.
+ * 
+ * The "videos" folder is the fast tier. A second, capacity tier folder
+ * (e.g., on a larger but slower disk) can be added with
+ * setCapacityDirectory(), after which a video's data lives in exactly one
+ * of the two and is read from whichever holds it. New data is always
+ * written to the fast tier; moveVideoData() moves it between the tiers
+ * (see VideoTierManager, which decides what goes where).
  * 
  * @author jules
  *
  */
-public class VideoFileManager {
+public class VideoFileManager implements VideoStorage {
 
+	// The instance for the "videos" folder, created on first use
+	private static VideoFileManager instance_;
+	
 	/**
-	 * This static factory method creates and returns a 
-	 * VideoFileManager object to the caller. Feel free to customize
-	 * this method to take parameters, etc. if you want.
+	 * This static factory method returns the VideoFileManager for the
+	 * "videos" folder. It is created, and the folder checked, only once;
+	 * every caller shares it. Inside the application, the VideoStorage bean
+	 * should be used instead.
 	 * 
 	 * @return
 	 * @throws IOException
 	 */
-	public static VideoFileManager get() throws IOException {
-		try {
-			return new VideoFileManager();
-		} catch (IOException e) {
-			throw e;
+	public static synchronized VideoFileManager get() throws IOException {
+		if (instance_ == null) {
+			instance_ = new VideoFileManager(Paths.get(DEFAULT_DIR));
 		}
-		
+		return instance_;
+	}
+	
+	// Size of the buffer used when copying a byte range of a video
+	private static final int RANGE_BUFFER_SIZE = 64 * 1024;
+
+	private static final String DIGEST_SUFFIX = ".sha256";
+
+	private static final String VIDEO_PREFIX = "video";
+	private static final String VIDEO_SUFFIX = ".mpg";
+
+	private static final String STAGING_DIR = ".staging";
+
+	// How often acquireVideoData() tries to open data that keeps changing
+	private static final int MAX_ACQUIRE_ATTEMPTS = 8;
+
+	// Links made by getPinnedPath() live in the staging folders
+	private static final String PINNED_PREFIX = "pinned";
+	private static final String PINNED_SUFFIX = ".tmp";
+
+	// Deletes the links of closed versions once they have lingered
+	private static class PinnedLinkReaper {
+		static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "video-pinned-link-reaper");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	public static final String DEFAULT_DIR = "videos";
+
+	// Subfolders of a sharded layout are named with two hex digits
+	private static final String SHARD_GLOB = "[0-9a-f][0-9a-f]";
+
+	/**
+	 * The storage tiers that a video's data can live in.
+	 */
+	public enum Tier {
+		FAST, CAPACITY
 	}
+
+	/**
+	 * Called by moveVideoData() once the data is in its new tier, while
+	 * nothing else can change it, with the attributes of the old and the new
+	 * file.
+	 */
+	public interface TierMoveListener {
+		public void moved(Video v, BasicFileAttributes from, BasicFileAttributes to) throws IOException;
+	}
+
+	// Null until a capacity tier is configured
+	private volatile Path capacityDir_;
+
+	// Publishing, deleting and moving a video's data between the tiers all
+	// happen under the video's lock, so a move can't resurrect old data or
+	// delete new data
+	private final Striped<Lock> tierLocks = Striped.lock(64);
+
+	private final Path targetDir_;
+	
+	// Partially received data is kept here until it is published. It lives
+	// inside the target directory so that publishing is a same-filesystem
+	// atomic rename.
+	private final Path stagingDir_;
 	
-	private Path targetDir_ = Paths.get("videos");
+	// How long the link of a pinned version outlives the version. The web
+	// container opens it as soon as the request returns, so this only has
+	// to cover a stalled thread.
+	private volatile long pinnedLinkLingerMillis = 60000;
 	
-	// The VideoFileManager.get() method should be used
-	// to obtain an instance
-	private VideoFileManager() throws IOException{
+	/**
+	 * Creates a VideoFileManager that keeps the videos in the given folder.
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public VideoFileManager(Path dir) throws IOException{
+		targetDir_ = dir;
+		stagingDir_ = targetDir_.resolve(STAGING_DIR);
 		if(!Files.exists(targetDir_)){
 			Files.createDirectories(targetDir_);
 		}
+		if(!Files.exists(stagingDir_)){
+			Files.createDirectories(stagingDir_);
+		}
+		deleteStagingFiles(stagingDir_);
+	}
+	
+	/**
+	 * This method sets how long the file returned by a version's
+	 * getPinnedPath() is kept after the version is closed.
+	 * 
+	 * @param millis
+	 */
+	public void setPinnedLinkLingerMillis(long millis) {
+		pinnedLinkLingerMillis = millis;
 	}
 	
-	// Private helper method for resolving video file paths
+	/**
+	 * This method adds a capacity tier in the given directory, or removes
+	 * it if the directory is null. Copies left behind in the capacity tier
+	 * by a move that was interrupted before it finished are deleted.
+	 * 
+	 * @param dir
+	 * @throws IOException
+	 */
+	public void setCapacityDirectory(Path dir) throws IOException {
+		if (dir != null) {
+			Path staging = dir.resolve(STAGING_DIR);
+			Files.createDirectories(staging);
+			deleteStagingFiles(staging);
+			for (Long id : listVideoData(dir).keySet()) {
+				Video v = new Video();
+				v.setId(id);
+				if (Files.exists(getFastPath(v))) {
+					Files.deleteIfExists(resolveVideoFile(dir, v));
+				}
+			}
+		}
+		capacityDir_ = dir;
+	}
+	
+	/**
+	 * This method returns the directory of the capacity tier, or null if
+	 * there is none.
+	 * 
+	 * @return
+	 */
+	public Path getCapacityDirectory() {
+		return capacityDir_;
+	}
+	
+	// Private helper method for resolving video file paths. Data in the
+	// fast tier wins, so a move that has put the data in its new tier but
+	// not yet removed it from the old one is never a problem.
 	private Path getVideoPath(Video v){
 		assert(v != null);
 		
-		return targetDir_.resolve("video"+v.getId()+".mpg");
+		Path fast = getFastPath(v);
+		Path capacity = capacityDir_;
+		if (capacity == null || Files.exists(fast)) {
+			return fast;
+		}
+		Path slow = resolveVideoFile(capacity, v);
+		return Files.exists(slow) ? slow : fast;
+	}
+	
+	/**
+	 * Returns the path of the given video's file below the given folder.
+	 * The flat layout puts every file right in the folder. A subclass
+	 * that puts them in subfolders has to return their depth from
+	 * getShardLevels(), and name each one with two hex digits.
+	 * 
+	 * @param root
+	 * @param v
+	 * @return
+	 */
+	protected Path resolveVideoFile(Path root, Video v) {
+		return root.resolve(VIDEO_PREFIX+v.getId()+VIDEO_SUFFIX);
+	}
+	
+	/**
+	 * Returns how many levels of subfolders resolveVideoFile() puts
+	 * between the folder and the video files.
+	 * 
+	 * @return
+	 */
+	protected int getShardLevels() {
+		return 0;
+	}
+	
+	private Path getFastPath(Video v) {
+		return resolveVideoFile(targetDir_, v);
+	}
+	
+	private Path getTierPath(Video v, Tier tier) {
+		return tier == Tier.FAST ? getFastPath(v) : resolveVideoFile(capacityDir_, v);
+	}
+	
+	// Creates the subfolder a video's file goes into, if the layout has any
+	private Path prepareVideoFile(Path file) throws IOException {
+		if (getShardLevels() > 0 && !Files.isDirectory(file.getParent())) {
+			Files.createDirectories(file.getParent());
+		}
+		return file;
+	}
+	
+	/**
+	 * Opens the video's data for reading. If the data was moved to the
+	 * other tier between finding it and opening it, it is looked up again.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	protected FileChannel openVideoData(Video v) throws IOException {
+		Path source = getVideoPath(v);
+		try {
+			return FileChannel.open(source, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			Path moved = getVideoPath(v);
+			if (!moved.equals(source) && Files.exists(moved)) {
+				return FileChannel.open(moved, StandardOpenOption.READ);
+			}
+			throw new FileNotFoundException("Unable to find the referenced video file for videoId:"+v.getId());
+		}
+	}
+	
+	private BasicFileAttributes readVideoDataAttributes(Video v) throws IOException {
+		Path source = getVideoPath(v);
+		try {
+			return Files.readAttributes(source, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			Path moved = getVideoPath(v);
+			if (moved.equals(source)) {
+				throw e;
+			}
+			return Files.readAttributes(moved, BasicFileAttributes.class);
+		}
 	}
 	
 	/**
@@ -95,11 +333,190 @@ public class VideoFileManager {
 	 * @throws IOException 
 	 */
 	public void copyVideoData(Video v, OutputStream out) throws IOException {
-		Path source = getVideoPath(v);
-		if(!Files.exists(source)){
-			throw new FileNotFoundException("Unable to find the referenced video file for videoId:"+v.getId());
+		try (FileChannel channel = openVideoData(v)) {
+			ByteStreams.copy(Channels.newInputStream(channel), out);
+		}
+	}
+	
+	/**
+	 * This method copies length bytes of the binary data for the given video,
+	 * starting at offset, to the provided output stream. The data is read
+	 * with positional reads, so only the requested bytes are read from disk
+	 * no matter where in the file they are. The caller is responsible for
+	 * ensuring that the range lies within the video's data.
+	 * 
+	 * @param v
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	public void copyVideoData(Video v, long offset, long length, OutputStream out) throws IOException {
+		try (FileChannel channel = openVideoData(v)) {
+			copyVideoData(v, channel, offset, length, out);
+		}
+	}
+	
+	/**
+	 * Copies a range of the video's data from a channel that the data was
+	 * opened with to the output stream, for copyVideoData() and for the
+	 * versions returned by acquireVideoData(). Subclasses that read the
+	 * data differently override this.
+	 * 
+	 * @param v
+	 * @param channel
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	protected void copyVideoData(Video v, FileChannel channel, long offset, long length, OutputStream out)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(RANGE_BUFFER_SIZE, Math.max(length, 1)));
+		long position = offset;
+		long remaining = length;
+		while (remaining > 0) {
+			buffer.clear();
+			if (remaining < buffer.capacity()) {
+				buffer.limit((int) remaining);
+			}
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new IOException("Unexpected end of video data for videoId:"+v.getId());
+			}
+			out.write(buffer.array(), 0, read);
+			position += read;
+			remaining -= read;
 		}
-		Files.copy(source, out);
+	}
+	
+	/**
+	 * This method transfers length bytes of the binary data for the given
+	 * video, starting at offset, to the provided channel using
+	 * FileChannel.transferTo. When the target is a socket or file, the
+	 * operating system can move the bytes without copying them through the
+	 * Java heap.
+	 * 
+	 * @param v
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	public void transferVideoData(Video v, long offset, long length, WritableByteChannel target) throws IOException {
+		try (FileChannel channel = openVideoData(v)) {
+			transferVideoData(v, channel, offset, length, target);
+		}
+	}
+	
+	/**
+	 * Transfers a range of the video's data from a channel that the data was
+	 * opened with to the target, for transferVideoData() and for the
+	 * versions returned by acquireVideoData(). Subclasses that read the
+	 * data differently override this.
+	 * 
+	 * @param v
+	 * @param channel
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	protected void transferVideoData(Video v, FileChannel channel, long offset, long length,
+			WritableByteChannel target) throws IOException {
+		long position = offset;
+		long remaining = length;
+		while (remaining > 0) {
+			long sent = channel.transferTo(position, remaining, target);
+			if (sent <= 0 && position >= channel.size()) {
+				throw new IOException("Unexpected end of video data for videoId:"+v.getId());
+			}
+			position += sent;
+			remaining -= sent;
+		}
+	}
+	
+	/**
+	 * This method acquires the current version of the given video's data
+	 * by opening its file. Publishing renames a new file over the old one
+	 * and tier moves and deletes unlink it, none of which touch a file that
+	 * is open: the holder of the version keeps reading the old file, and
+	 * the file system frees it once the last one is closed. No lock is
+	 * taken. The file's attributes are read before and after opening it,
+	 * and if the data was replaced in between, it is opened again.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoDataVersion acquireVideoData(Video v) throws IOException {
+		for (int attempt = 1;; attempt++) {
+			Path source = getVideoPath(v);
+			BasicFileAttributes before;
+			FileChannel channel;
+			try {
+				before = Files.readAttributes(source, BasicFileAttributes.class);
+				channel = FileChannel.open(source, StandardOpenOption.READ);
+			} catch (NoSuchFileException e) {
+				if (attempt < MAX_ACQUIRE_ATTEMPTS && !getVideoPath(v).equals(source)) {
+					continue;
+				}
+				throw new FileNotFoundException("Unable to find the referenced video file for videoId:"+v.getId());
+			}
+			try {
+				if (isSameFile(before, Files.readAttributes(source, BasicFileAttributes.class))) {
+					FileVersion version = new FileVersion(v, source.toAbsolutePath(), channel, before);
+					channel = null;
+					return version;
+				}
+			} catch (NoSuchFileException e) {
+				// Replaced or moved right after it was opened
+			} finally {
+				if (channel != null) {
+					channel.close();
+				}
+			}
+			if (attempt >= MAX_ACQUIRE_ATTEMPTS) {
+				throw new IOException("The data of videoId:"+v.getId()+" kept changing while it was being opened");
+			}
+		}
+	}
+	
+	/**
+	 * This method returns the absolute path of the file that holds the
+	 * binary data for the given video. It is meant for handing the file to
+	 * the web container (e.g., for sendfile) and must not be written to.
+	 * The path is that of the tier that holds the data right now.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Path getVideoDataPath(Video v) {
+		return getVideoPath(v).toAbsolutePath();
+	}
+	
+	/**
+	 * This method returns the size, in bytes, of the binary data stored
+	 * for the given video.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public long getVideoDataLength(Video v) throws IOException {
+		return readVideoDataAttributes(v).size();
+	}
+	
+	/**
+	 * This method returns the time, in milliseconds since the epoch, that the
+	 * binary data for the given video was last stored.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public long getVideoDataLastModified(Video v) throws IOException {
+		return readVideoDataAttributes(v).lastModifiedTime().toMillis();
 	}
 	
 	/**
@@ -107,6 +524,10 @@ public class VideoFileManager {
 	 * it on the file system. The data is associated with the Video object that
 	 * is provided by the caller.
 	 * 
+	 * The data is streamed into a staging file next to the videos with a
+	 * small fixed buffer, as it is read, and then renamed into place, so it
+	 * is written to disk exactly once and readers never see a partial file.
+	 * 
 	 * @param v
 	 * @param videoData
 	 * @throws IOException
@@ -114,8 +535,457 @@ public class VideoFileManager {
 	public void saveVideoData(Video v, InputStream videoData) throws IOException{
 		assert(videoData != null);
 		
-		Path target = getVideoPath(v);
-		Files.copy(videoData, target, StandardCopyOption.REPLACE_EXISTING);
+		Path staged = createStagingFile();
+		try {
+			Files.copy(videoData, staged, StandardCopyOption.REPLACE_EXISTING);
+			publishVideoData(v, staged);
+		} finally {
+			Files.deleteIfExists(staged);
+		}
+	}
+	
+	/**
+	 * This method creates a new, empty staging file that data can be
+	 * written to before it is published with publishVideoData().
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public Path createStagingFile() throws IOException {
+		return Files.createTempFile(stagingDir_, "upload", ".part");
+	}
+	
+	/**
+	 * This method atomically makes the contents of a staging file the binary
+	 * data of the given video. Readers see either the old data or the new
+	 * data, never a partially written file. The staging file is consumed.
+	 * The new data goes to the fast tier.
+	 * 
+	 * @param v
+	 * @param staged
+	 * @throws IOException
+	 */
+	public void publishVideoData(Video v, Path staged) throws IOException {
+		Lock lock = tierLocks.get(v.getId());
+		lock.lock();
+		try {
+			Files.move(staged, prepareVideoFile(getFastPath(v)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			deleteCapacityCopy(v);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * This method atomically makes an existing file the binary data of the
+	 * given video by hard linking to it, so that several videos with the
+	 * same content share one copy on disk. If the file system doesn't
+	 * support hard links, the file is copied instead.
+	 * 
+	 * @param v
+	 * @param existing
+	 * @throws IOException
+	 */
+	public void linkVideoData(Video v, Path existing) throws IOException {
+		Path link = stagingDir_.resolve("link" + UUID.randomUUID() + ".tmp");
+		try {
+			Files.createLink(link, existing);
+		} catch (UnsupportedOperationException | FileSystemException e) {
+			if (!Files.exists(existing)) {
+				throw e;
+			}
+			Files.copy(existing, link);
+		}
+		Lock lock = tierLocks.get(v.getId());
+		lock.lock();
+		try {
+			Files.move(link, prepareVideoFile(getFastPath(v)), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			deleteCapacityCopy(v);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * This method returns the directory that holds the given video's file
+	 * in the fast tier, which new data is published into.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Path getVideoDataDirectory(Video v) {
+		return getFastPath(v).getParent();
+	}
+	
+	/**
+	 * This method does nothing, since the data of a video is durable once
+	 * its file has been forced, published, and the directory it was
+	 * published into has been forced.
+	 */
+	public void sync() throws IOException {
+	}
+	
+	/**
+	 * This method returns a directory for the given purpose inside the
+	 * folder that holds the videos, creating it if necessary. Files in it
+	 * can be moved into place or linked as video data atomically.
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public Path getStorageDirectory(String name) throws IOException {
+		Path dir = targetDir_.resolve(name);
+		if(!Files.exists(dir)){
+			Files.createDirectories(dir);
+		}
+		return dir;
+	}
+	
+	/**
+	 * This method removes any binary data stored for the given video. It
+	 * returns true if there was data to remove.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean deleteVideoData(Video v) throws IOException {
+		Files.deleteIfExists(getDigestPath(v));
+		Lock lock = tierLocks.get(v.getId());
+		lock.lock();
+		try {
+			boolean deleted = Files.deleteIfExists(getFastPath(v));
+			return deleteCapacityCopy(v) || deleted;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	// Called under the video's tier lock
+	private boolean deleteCapacityCopy(Video v) throws IOException {
+		return capacityDir_ != null && Files.deleteIfExists(getTierPath(v, Tier.CAPACITY));
+	}
+	
+	/**
+	 * This method returns the tier that holds the binary data of the given
+	 * video, or null if it has none.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Tier getVideoDataTier(Video v) {
+		if (Files.exists(getFastPath(v))) {
+			return Tier.FAST;
+		}
+		return capacityDir_ != null && Files.exists(getTierPath(v, Tier.CAPACITY)) ? Tier.CAPACITY : null;
+	}
+	
+	/**
+	 * This method returns the attributes of the binary data of every video
+	 * in the given tier, by video id.
+	 * 
+	 * @param tier
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<Long, BasicFileAttributes> listVideoData(Tier tier) throws IOException {
+		if (tier == Tier.CAPACITY && capacityDir_ == null) {
+			return new HashMap<Long, BasicFileAttributes>();
+		}
+		return listVideoData(tier == Tier.FAST ? targetDir_ : capacityDir_);
+	}
+	
+	private Map<Long, BasicFileAttributes> listVideoData(Path dir) throws IOException {
+		Map<Long, BasicFileAttributes> found = new HashMap<Long, BasicFileAttributes>();
+		listVideoData(dir, getShardLevels(), found);
+		return found;
+	}
+	
+	private void listVideoData(Path dir, int levels, Map<Long, BasicFileAttributes> found) throws IOException {
+		if (levels > 0) {
+			try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir, SHARD_GLOB)) {
+				for (Path shard : shards) {
+					if (Files.isDirectory(shard)) {
+						listVideoData(shard, levels - 1, found);
+					}
+				}
+			}
+			return;
+		}
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, VIDEO_PREFIX + "*" + VIDEO_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long id;
+				try {
+					id = Long.parseLong(name.substring(VIDEO_PREFIX.length(), name.length() - VIDEO_SUFFIX.length()));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				try {
+					found.put(id, Files.readAttributes(file, BasicFileAttributes.class));
+				} catch (NoSuchFileException e) {
+					// Deleted or moved while listing
+				}
+			}
+		}
+	}
+	
+	/**
+	 * This method moves the binary data of the given video to the given
+	 * tier and returns the number of bytes moved. It returns -1, and leaves
+	 * everything as it was, if the video has no data in the other tier or
+	 * its data was replaced or deleted while it was being copied.
+	 * 
+	 * The data is copied, with its modification time, into a temporary file
+	 * in the target tier and forced to disk without holding any lock. Then,
+	 * under the video's lock, it is renamed into place, the listener is
+	 * told, and the old copy is deleted. A reader that opened the old copy
+	 * keeps reading it; later readers find the new one.
+	 * 
+	 * @param v
+	 * @param tier
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	public long moveVideoData(Video v, Tier tier, TierMoveListener listener) throws IOException {
+		Path capacity = capacityDir_;
+		if (capacity == null) {
+			throw new IllegalStateException("There is no capacity tier");
+		}
+		Path from = getTierPath(v, tier == Tier.FAST ? Tier.CAPACITY : Tier.FAST);
+		Path to = getTierPath(v, tier);
+		Path temp = (tier == Tier.FAST ? stagingDir_ : capacity.resolve(STAGING_DIR))
+				.resolve("tier" + UUID.randomUUID() + ".tmp");
+
+		BasicFileAttributes before;
+		try {
+			before = Files.readAttributes(from, BasicFileAttributes.class);
+			Files.copy(from, temp, StandardCopyOption.COPY_ATTRIBUTES);
+		} catch (NoSuchFileException e) {
+			Files.deleteIfExists(temp);
+			return -1;
+		}
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			Lock lock = tierLocks.get(v.getId());
+			lock.lock();
+			try {
+				BasicFileAttributes current;
+				try {
+					current = Files.readAttributes(from, BasicFileAttributes.class);
+				} catch (NoSuchFileException e) {
+					return -1;
+				}
+				if (!isSameFile(before, current)) {
+					return -1;
+				}
+				Files.move(temp, prepareVideoFile(to), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				forceDirectory(to.getParent());
+				BasicFileAttributes after = Files.readAttributes(to, BasicFileAttributes.class);
+				if (listener != null) {
+					listener.moved(v, before, after);
+				}
+				Files.delete(from);
+				return after.size();
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	// Uploads, copies and links left behind by a previous run, in this or
+	// another backend's staging folder. Upload sessions only live in memory
+	// (see UploadSessionManager and MultipartUploadManager), so nothing can
+	// resume into these files.
+	static void deleteStagingFiles(Path staging) throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(staging)) {
+			for (Path file : files) {
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+	
+	private static boolean isSameFile(BasicFileAttributes a, BasicFileAttributes b) {
+		return a.size() == b.size()
+				&& a.lastModifiedTime().equals(b.lastModifiedTime())
+				&& (a.fileKey() == null ? b.fileKey() == null : a.fileKey().equals(b.fileKey()));
+	}
+	
+	// The rename has to be on disk before the old copy is deleted. Not every
+	// platform lets a directory be forced (see GroupCommitter).
+	private static void forceDirectory(Path dir) throws IOException {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			if (!System.getProperty("os.name", "").startsWith("Windows")) {
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * This method returns the size, modification time, etc. of the binary
+	 * data of the given video in one call.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public BasicFileAttributes getVideoDataAttributes(Video v) throws IOException {
+		return readVideoDataAttributes(v);
 	}
 	
+	/**
+	 * This method atomically stores a short piece of text describing the
+	 * digest of the given video's data next to the data (see
+	 * VideoDataDigests).
+	 * 
+	 * @param v
+	 * @param digest
+	 * @throws IOException
+	 */
+	public void saveVideoDataDigest(Video v, String digest) throws IOException {
+		Path temp = stagingDir_.resolve("digest" + UUID.randomUUID() + ".tmp");
+		try {
+			Files.write(temp, digest.getBytes(StandardCharsets.US_ASCII));
+			Files.move(temp, getDigestPath(v), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+	
+	/**
+	 * This method returns the text stored with saveVideoDataDigest(), or
+	 * null if there is none.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public String loadVideoDataDigest(Video v) throws IOException {
+		try {
+			return new String(Files.readAllBytes(getDigestPath(v)), StandardCharsets.US_ASCII);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+	
+	// The digest always stays in the fast tier, wherever the data is
+	private Path getDigestPath(Video v) {
+		Path data = getFastPath(v);
+		return data.resolveSibling(data.getFileName() + DIGEST_SUFFIX);
+	}
+	
+
+	/**
+	 * A version of a video's data held by an open channel to its file.
+	 */
+	private class FileVersion implements VideoDataVersion {
+		private final Video video;
+		private final Path file;
+		private final FileChannel channel;
+		private final BasicFileAttributes attributes;
+		private Path pinned;
+
+		private FileVersion(Video video, Path file, FileChannel channel, BasicFileAttributes attributes) {
+			this.video = video;
+			this.file = file;
+			this.channel = channel;
+			this.attributes = attributes;
+		}
+
+		@Override
+		public BasicFileAttributes getAttributes() {
+			return attributes;
+		}
+
+		@Override
+		public void copyTo(long offset, long length, OutputStream out) throws IOException {
+			copyVideoData(video, channel, offset, length, out);
+		}
+
+		@Override
+		public void transferTo(long offset, long length, WritableByteChannel target) throws IOException {
+			transferVideoData(video, channel, offset, length, target);
+		}
+
+		@Override
+		public ByteBuffer map() throws IOException {
+			if (attributes.size() == 0 || attributes.size() > Integer.MAX_VALUE) {
+				return null;
+			}
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, attributes.size());
+		}
+
+		@Override
+		public Path getPath() {
+			return file;
+		}
+
+		// Links the file under a name of its own, in the staging folder of
+		// the tier that holds it so that the link is on the same file
+		// system, and checks that the name still led to this version
+		@Override
+		public Path getPinnedPath() throws IOException {
+			if (pinned != null) {
+				return pinned;
+			}
+			Path capacity = capacityDir_;
+			Path staging = capacity != null && file.startsWith(capacity.toAbsolutePath())
+					? capacity.resolve(STAGING_DIR) : stagingDir_;
+			Path link = staging.resolve(PINNED_PREFIX + UUID.randomUUID() + PINNED_SUFFIX).toAbsolutePath();
+			try {
+				Files.createLink(link, file);
+			} catch (UnsupportedOperationException | FileSystemException e) {
+				// Replaced, moved or deleted since, or no hard links here
+				return null;
+			}
+			if (!isSameFile(attributes, Files.readAttributes(link, BasicFileAttributes.class))) {
+				Files.deleteIfExists(link);
+				return null;
+			}
+			pinned = link;
+			return link;
+		}
+
+		@Override
+		public boolean isCurrent() {
+			try {
+				return getVideoPath(video).toAbsolutePath().equals(file)
+						&& isSameFile(attributes, Files.readAttributes(file, BasicFileAttributes.class));
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing was written, so there is nothing to lose
+			}
+			if (pinned != null) {
+				final Path link = pinned;
+				pinned = null;
+				PinnedLinkReaper.REAPER.schedule(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Files.deleteIfExists(link);
+						} catch (IOException e) {
+							// Deleted at the next start
+						}
+					}
+				}, pinnedLinkLingerMillis, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
 }
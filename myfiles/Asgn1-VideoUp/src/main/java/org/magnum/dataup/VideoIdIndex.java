@@ -0,0 +1,216 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A sorted set of video ids that can be walked in ascending order starting
+ * at any id, which is what cursor-based paging through the catalog needs
+ * (see VideoCatalog.keysAfter()).
+ * 
+ * The ids are kept in sorted blocks of primitive longs of up to BLOCK_SIZE
+ * ids each, found through a skip list keyed by the lowest id each block
+ * may hold. That costs about eight bytes per id instead of a boxed Long and
+ * a node per id, and since new videos get increasing ids, almost every add
+ * lands at the end of the last block.
+ * 
+ * Each block has a lock of its own, so writers only contend when they
+ * change the same block. A block's ids are never changed in place: a writer
+ * copies them, changes the copy and publishes it, so readers take no locks.
+ * A full block is split by publishing a new block for its upper half before
+ * the lower half replaces it, so a reader may see some ids twice, which
+ * walk() skips since it only ever moves forward. Blocks are never merged or
+ * removed, not even when they are empty, so the range a block covers only
+ * ever shrinks, which is what lets a writer check that it locked the right
+ * block.
+ */
+public class VideoIdIndex {
+
+	public static final int BLOCK_SIZE = 512;
+
+	/**
+	 * Tells update() whether an id belongs in the index.
+	 */
+	public interface Membership {
+		public boolean contains(long id);
+	}
+
+	private static final long[] NO_IDS = new long[0];
+
+	// Always has a block for Long.MIN_VALUE, so every id has a block
+	private final ConcurrentNavigableMap<Long, Block> blocks = new ConcurrentSkipListMap<Long, Block>();
+
+	public VideoIdIndex() {
+		blocks.put(Long.MIN_VALUE, new Block(NO_IDS));
+	}
+
+	/**
+	 * Adds the id to the index if it isn't there yet.
+	 * 
+	 * @param id
+	 */
+	public void add(long id) {
+		change(id, true, null);
+	}
+
+	/**
+	 * Removes the id from the index if it is there.
+	 * 
+	 * @param id
+	 */
+	public void remove(long id) {
+		change(id, false, null);
+	}
+
+	/**
+	 * Adds the id to the index or removes it from it, depending on whether
+	 * it belongs to the given set at the time its block is locked. Calling
+	 * this after every change to the set keeps the index in step with it
+	 * without holding a lock on the set: whichever call locks the block last
+	 * sees the set as it is after the last change.
+	 * 
+	 * @param id
+	 * @param members
+	 */
+	public void update(long id, Membership members) {
+		change(id, false, members);
+	}
+
+	/**
+	 * Copies up to max ids in ascending order into the given array, starting
+	 * with the first id greater than after, or with the smallest id if after
+	 * is null. Like the catalog's iterators, this is weakly consistent: it
+	 * sees every id that was in the index when it started and wasn't removed
+	 * since, and may or may not see later changes.
+	 * 
+	 * @param after
+	 * @param ids
+	 * @param max
+	 * @return the number of ids copied
+	 */
+	public int walk(Long after, long[] ids, int max) {
+		Map.Entry<Long, Block> entry = after == null ? blocks.firstEntry() : blocks.floorEntry(after);
+
+		int count = 0;
+		boolean started = after != null;
+		long last = started ? after : 0;
+		while (entry != null) {
+			long[] block = entry.getValue().ids;
+			int i = 0;
+			if (started) {
+				i = Arrays.binarySearch(block, last);
+				i = i >= 0 ? i + 1 : -i - 1;
+			}
+			for (; i < block.length && count < max; i++) {
+				ids[count++] = block[i];
+			}
+			if (count == max) {
+				break;
+			}
+			if (count > 0) {
+				last = ids[count - 1];
+				started = true;
+			}
+			entry = blocks.higherEntry(entry.getKey());
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of ids in the index.
+	 * 
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Block block : blocks.values()) {
+			size += block.ids.length;
+		}
+		return size;
+	}
+
+	private void change(long id, boolean add, Membership members) {
+		while (true) {
+			Map.Entry<Long, Block> entry = blocks.floorEntry(id);
+			Block block = entry.getValue();
+			synchronized (block) {
+				// The block was split after it was looked up, and the id now
+				// belongs to the new block
+				Long next = blocks.higherKey(entry.getKey());
+				if (next != null && next <= id) {
+					continue;
+				}
+				if (members == null ? add : members.contains(id)) {
+					insert(block, id);
+				} else {
+					delete(block, id);
+				}
+				return;
+			}
+		}
+	}
+
+	private void insert(Block block, long id) {
+		long[] ids = block.ids;
+		int i = Arrays.binarySearch(ids, id);
+		if (i >= 0) {
+			return;
+		}
+		i = -i - 1;
+
+		long[] grown = new long[ids.length + 1];
+		System.arraycopy(ids, 0, grown, 0, i);
+		grown[i] = id;
+		System.arraycopy(ids, i, grown, i + 1, ids.length - i);
+
+		if (grown.length > BLOCK_SIZE) {
+			// New ids usually go at the end, so leave the left block nearly
+			// full and start a fresh one on the right
+			int split = i == ids.length ? grown.length - 1 : grown.length / 2;
+			long[] right = Arrays.copyOfRange(grown, split, grown.length);
+			blocks.put(right[0], new Block(right));
+			grown = Arrays.copyOf(grown, split);
+		}
+		block.ids = grown;
+	}
+
+	private void delete(Block block, long id) {
+		long[] ids = block.ids;
+		int i = Arrays.binarySearch(ids, id);
+		if (i < 0) {
+			return;
+		}
+		long[] shrunk = new long[ids.length - 1];
+		System.arraycopy(ids, 0, shrunk, 0, i);
+		System.arraycopy(ids, i + 1, shrunk, i, shrunk.length - i);
+		block.ids = shrunk;
+	}
+
+	private static final class Block {
+		private volatile long[] ids;
+
+		private Block(long[] ids) {
+			this.ids = ids;
+		}
+	}
+
+}
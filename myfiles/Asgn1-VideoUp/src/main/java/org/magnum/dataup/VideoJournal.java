@@ -0,0 +1,563 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.magnum.dataup.model.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persists the video catalog across restarts with an append-only journal
+ * and periodic snapshots, stored in videos/journal.
+ * 
+ * Every video that is added or changed is appended to the current journal
+ * file as a record holding its length, a CRC32 checksum and the video's
+ * fields. Appends go to the operating system right away and are forced to
+ * disk every video.journal.fsyncMillis (0 forces every append, at the cost
+ * of one disk flush per addVideo).
+ * 
+ * After video.journal.snapshotInterval appends, and when the server shuts
+ * down, the journal starts a new file and writes a compacted snapshot of
+ * the whole catalog in the background. Once the snapshot is durable, the
+ * journal files it covers are deleted. The snapshot and the journal files
+ * share a "generation" number: the snapshot of generation g holds
+ * everything that was written to journal files before g.
+ * 
+ * Recovery loads the snapshot and replays the journal files of its
+ * generation and later. Replaying a video that the snapshot already holds
+ * is harmless, since records always carry the whole video. A record that
+ * is cut short or fails its checksum marks the end of what was written
+ * before a crash, and the journal is truncated there. The id generator is
+ * restored to the highest id that was ever handed out, so that new videos
+ * never reuse the id (and the data file) of an old one.
+ */
+@Component
+public class VideoJournal {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VideoJournal.class);
+
+	private static final String JOURNAL_DIR = "journal";
+	private static final String SNAPSHOT_FILE = "catalog.snapshot";
+	private static final String JOURNAL_PREFIX = "journal-";
+	private static final String JOURNAL_SUFFIX = ".log";
+	private static final Pattern JOURNAL_NAME = Pattern.compile("journal-([0-9]+)\\.log");
+
+	private static final int SNAPSHOT_MAGIC = 0x56434154; // "VCAT"
+	private static final int SNAPSHOT_VERSION = 1;
+
+	private static final byte PUT = 1;
+	private static final byte END = 2;
+
+	// Records larger than this can only come from a damaged file
+	private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	@Value("${video.journal.enabled:true}")
+	private boolean enabled = true;
+
+	@Value("${video.journal.fsyncMillis:100}")
+	private long fsyncMillis = 100;
+
+	@Value("${video.journal.snapshotInterval:100000}")
+	private long snapshotInterval = 100000;
+
+	// Where the journal goes unless a directory is given
+	@Autowired(required = false)
+	private VideoStorage storage;
+
+	private Path dir_;
+
+	private VideoCatalog catalog;
+	private AtomicLong ids;
+
+	private final Object lock = new Object();
+
+	// Guarded by lock
+	private FileChannel journal;
+	private long generation;
+	private long appendsSinceSnapshot;
+	private boolean dirty;
+	private boolean snapshotting;
+
+	private ScheduledExecutorService background;
+
+	public VideoJournal() {
+	}
+
+	/**
+	 * Creates a journal in the given directory rather than in videos/journal.
+	 * 
+	 * @param dir
+	 * @param fsyncMillis
+	 * @param snapshotInterval
+	 */
+	public VideoJournal(Path dir, long fsyncMillis, long snapshotInterval) {
+		this.dir_ = dir;
+		this.fsyncMillis = fsyncMillis;
+		this.snapshotInterval = snapshotInterval;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Fills the catalog with the videos in the snapshot and the journal, sets
+	 * the id generator past every id that was handed out, and opens the
+	 * journal for appending. Both are kept for taking snapshots later on.
+	 * 
+	 * @param catalog
+	 * @param ids
+	 * @return the number of videos recovered
+	 * @throws IOException
+	 */
+	public int recover(VideoCatalog catalog, AtomicLong ids) throws IOException {
+		if (!enabled) {
+			return 0;
+		}
+		long start = System.nanoTime();
+		this.catalog = catalog;
+		this.ids = ids;
+		if (dir_ == null) {
+			dir_ = storage.getStorageDirectory(JOURNAL_DIR);
+		} else {
+			Files.createDirectories(dir_);
+		}
+
+		long maxId = 0;
+		long snapshotGeneration = 0;
+		long snapshotRecords = 0;
+		long records = 0;
+		Path snapshot = dir_.resolve(SNAPSHOT_FILE);
+		if (Files.exists(snapshot)) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Files.newInputStream(snapshot), BUFFER_SIZE))) {
+				if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+					throw new IOException("Not a catalog snapshot: " + snapshot);
+				}
+				snapshotGeneration = in.readLong();
+				maxId = in.readLong();
+				long count = 0;
+				for (;;) {
+					byte[] record = readRecord(in);
+					if (record == null) {
+						throw new IOException("Incomplete catalog snapshot: " + snapshot);
+					}
+					if (record[0] == END) {
+						break;
+					}
+					maxId = Math.max(maxId, apply(record));
+					count++;
+				}
+				snapshotRecords = count;
+			}
+		}
+
+		List<Long> generations = listJournals();
+		for (long g : generations) {
+			Path file = journalPath(g);
+			if (g < snapshotGeneration) {
+				// Already in the snapshot; left over from a crash right
+				// after the snapshot was written
+				Files.deleteIfExists(file);
+				continue;
+			}
+			long valid = 0;
+			try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(
+					Files.newInputStream(file), BUFFER_SIZE))) {
+				DataInputStream in = new DataInputStream(counter);
+				byte[] record;
+				while ((record = readRecord(in)) != null) {
+					maxId = Math.max(maxId, apply(record));
+					valid = counter.getByteCount();
+					records++;
+					appendsSinceSnapshot++;
+				}
+			}
+			if (valid < Files.size(file)) {
+				LOG.warn("Discarding the damaged end of " + file + " after " + valid + " bytes");
+				try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+					channel.truncate(valid);
+					channel.force(true);
+				}
+			}
+		}
+
+		synchronized (ids) {
+			if (ids.get() < maxId) {
+				ids.set(maxId);
+			}
+		}
+
+		generation = generations.isEmpty()
+				? snapshotGeneration : Math.max(snapshotGeneration, generations.get(generations.size() - 1));
+		journal = openJournal(generation);
+
+		background = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "video-journal");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		if (fsyncMillis > 0) {
+			background.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sync();
+				}
+			}, fsyncMillis, fsyncMillis, TimeUnit.MILLISECONDS);
+		}
+
+		LOG.info("Recovered " + catalog.size() + " videos from a snapshot of " + snapshotRecords
+				+ " and " + records + " journal records in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		return catalog.size();
+	}
+
+	/**
+	 * Appends the current state of a video to the journal. Call it after the
+	 * video has been put into the catalog, so that a snapshot that misses the
+	 * record is sure to see the video.
+	 * 
+	 * @param v
+	 * @throws IOException
+	 */
+	public void append(Video v) throws IOException {
+		if (!enabled) {
+			return;
+		}
+		ByteBuffer record = ByteBuffer.wrap(frame(encode(v)));
+		boolean snapshotDue;
+		synchronized (lock) {
+			if (journal == null) {
+				return;
+			}
+			while (record.hasRemaining()) {
+				journal.write(record);
+			}
+			if (fsyncMillis <= 0) {
+				journal.force(false);
+			} else {
+				dirty = true;
+			}
+			snapshotDue = ++appendsSinceSnapshot >= snapshotInterval && !snapshotting;
+			if (snapshotDue) {
+				snapshotting = true;
+			}
+		}
+		if (snapshotDue) {
+			try {
+				background.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							snapshot();
+						} catch (IOException e) {
+							LOG.warn("Could not snapshot the video catalog", e);
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Shutting down, which takes a snapshot anyway
+			}
+		}
+	}
+
+	/**
+	 * Writes a snapshot of the catalog now and deletes the journal files it
+	 * replaces. Appends can go on while the snapshot is being written; they
+	 * go to a new journal file.
+	 * 
+	 * @throws IOException
+	 */
+	public void snapshot() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		long snapshotGeneration;
+		long nextId;
+		synchronized (lock) {
+			if (journal == null) {
+				snapshotting = false;
+				return;
+			}
+			snapshotting = true;
+			journal.force(false);
+			journal.close();
+			snapshotGeneration = generation + 1;
+			journal = openJournal(snapshotGeneration);
+			generation = snapshotGeneration;
+			appendsSinceSnapshot = 0;
+			dirty = false;
+			// Every video in the older journals is in the catalog by now
+			nextId = ids.get();
+		}
+
+		try {
+			Path temp = dir_.resolve(SNAPSHOT_FILE + ".tmp");
+			long count = 0;
+			try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE));
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeLong(snapshotGeneration);
+				out.writeLong(nextId);
+				for (Video v : catalog.values()) {
+					out.write(frame(encode(v)));
+					count++;
+				}
+				ByteArrayOutputStream end = new ByteArrayOutputStream();
+				DataOutputStream endOut = new DataOutputStream(end);
+				endOut.writeByte(END);
+				endOut.writeLong(count);
+				out.write(frame(end.toByteArray()));
+				out.flush();
+				file.getFD().sync();
+			}
+			Files.move(temp, dir_.resolve(SNAPSHOT_FILE), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			forceDirectory();
+
+			for (long g : listJournals()) {
+				if (g < snapshotGeneration) {
+					Files.deleteIfExists(journalPath(g));
+				}
+			}
+			LOG.info("Wrote a snapshot of " + count + " videos (generation " + snapshotGeneration + ")");
+		} finally {
+			synchronized (lock) {
+				snapshotting = false;
+			}
+		}
+	}
+
+	/**
+	 * Forces appended records to disk, if there are any.
+	 */
+	public void sync() {
+		synchronized (lock) {
+			if (!dirty || journal == null) {
+				return;
+			}
+			try {
+				journal.force(false);
+				dirty = false;
+			} catch (IOException e) {
+				LOG.warn("Could not force the video journal", e);
+			}
+		}
+	}
+
+	/**
+	 * Snapshots the catalog so that the next start doesn't have to replay
+	 * the journal, and closes it.
+	 * 
+	 * @throws IOException
+	 */
+	@PreDestroy
+	public void shutdown() throws IOException {
+		if (journal == null) {
+			return;
+		}
+		try {
+			background.shutdown();
+			background.awaitTermination(1, TimeUnit.MINUTES);
+			snapshot();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Forces and closes the journal without taking a snapshot. Videos that
+	 * are appended afterwards are not journaled.
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (background != null) {
+			background.shutdownNow();
+		}
+		synchronized (lock) {
+			if (journal != null) {
+				journal.force(false);
+				journal.close();
+				journal = null;
+			}
+		}
+	}
+
+	// Puts the video in a record into the catalog and returns its id
+	private long apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		if (in.readByte() != PUT) {
+			throw new IOException("Unknown journal record");
+		}
+		Video v = new Video();
+		v.setId(in.readLong());
+		v.setTitle(readString(in));
+		v.setDuration(in.readLong());
+		v.setLocation(readString(in));
+		v.setSubject(readString(in));
+		v.setContentType(readString(in));
+		v.setDataUrl(readString(in));
+		catalog.put(v.getId(), v);
+		return v.getId();
+	}
+
+	private static byte[] encode(Video v) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(PUT);
+		out.writeLong(v.getId());
+		writeString(out, v.getTitle());
+		out.writeLong(v.getDuration());
+		writeString(out, v.getLocation());
+		writeString(out, v.getSubject());
+		writeString(out, v.getContentType());
+		writeString(out, v.getDataUrl());
+		return bytes.toByteArray();
+	}
+
+	// Prefixes a record with its length and checksum
+	private static byte[] frame(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer framed = ByteBuffer.allocate(8 + payload.length);
+		framed.putInt(payload.length);
+		framed.putInt((int) crc.getValue());
+		framed.put(payload);
+		return framed.array();
+	}
+
+	// Returns the next record, or null at the end of the file or at a
+	// record that wasn't written completely
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length <= 0 || length > MAX_RECORD_SIZE) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			in.readFully(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			return (int) crc.getValue() == checksum ? payload : null;
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private Path journalPath(long g) {
+		return dir_.resolve(JOURNAL_PREFIX + g + JOURNAL_SUFFIX);
+	}
+
+	private FileChannel openJournal(long g) throws IOException {
+		FileChannel channel = FileChannel.open(journalPath(g), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		forceDirectory();
+		return channel;
+	}
+
+	private List<Long> listJournals() throws IOException {
+		List<Long> generations = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir_)) {
+			for (Path file : files) {
+				Matcher m = JOURNAL_NAME.matcher(file.getFileName().toString());
+				if (m.matches()) {
+					generations.add(Long.parseLong(m.group(1)));
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+
+	// Makes created and renamed files in the journal directory durable.
+	// Windows can't open a directory; there, this is left to the file system.
+	private void forceDirectory() {
+		try (FileChannel channel = FileChannel.open(dir_, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			LOG.debug("Could not force " + dir_, e);
+		}
+	}
+
+}
@@ -0,0 +1,104 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoPage;
+
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Client-side walker for the paged video list of VideoSvcApi. Iterating
+ * over it fetches one page at a time, and only when the videos of the
+ * previous page have been used up, so a client that stops early never
+ * downloads the rest of the list and memory use is bounded by one page.
+ * 
+ * VideoSvcApi videoSvc = ... // use retrofit to create the client
+ * for (Video v : new VideoPages(videoSvc).withSubject("cats")) {
+ *     ...
+ * }
+ * 
+ * Every iterator starts over from the first page.
+ */
+public class VideoPages implements Iterable<Video> {
+
+	public static final int DEFAULT_PAGE_SIZE = 100;
+
+	private final VideoSvcApi videoSvc;
+
+	private final int pageSize;
+
+	private final String subject;
+
+	private final String contentType;
+
+	public VideoPages(VideoSvcApi videoSvc) {
+		this(videoSvc, DEFAULT_PAGE_SIZE, null, null);
+	}
+
+	public VideoPages(VideoSvcApi videoSvc, int pageSize, String subject, String contentType) {
+		this.videoSvc = videoSvc;
+		this.pageSize = pageSize;
+		this.subject = subject;
+		this.contentType = contentType;
+	}
+
+	public VideoPages withPageSize(int pageSize) {
+		return new VideoPages(videoSvc, pageSize, subject, contentType);
+	}
+
+	public VideoPages withSubject(String subject) {
+		return new VideoPages(videoSvc, pageSize, subject, contentType);
+	}
+
+	public VideoPages withContentType(String contentType) {
+		return new VideoPages(videoSvc, pageSize, subject, contentType);
+	}
+
+	@Override
+	public Iterator<Video> iterator() {
+		return new AbstractIterator<Video>() {
+			private Iterator<Video> page = Collections.<Video> emptyIterator();
+			private String cursor;
+			private boolean last;
+
+			@Override
+			protected Video computeNext() {
+				// Pages may come back empty when the server skipped videos
+				// that don't match the filters, so keep going until one has
+				// videos or there is no cursor left
+				while (!page.hasNext()) {
+					if (last) {
+						return endOfData();
+					}
+					VideoPage next = videoSvc.getVideoPage(pageSize, cursor, subject, contentType);
+					cursor = next.getCursor();
+					last = cursor == null;
+					if (next.getVideos() != null) {
+						page = next.getVideos().iterator();
+					}
+				}
+				return page.next();
+			}
+		};
+	}
+
+}
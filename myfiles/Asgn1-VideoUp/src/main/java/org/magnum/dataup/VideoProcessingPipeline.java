@@ -0,0 +1,740 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.Mp4Boxes.InvalidContainerException;
+import org.magnum.dataup.Mp4Boxes.Layout;
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoStatus;
+import org.magnum.dataup.model.VideoStatus.VideoState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Processes received video data off of the request threads before it is
+ * published. An upload only writes the data to a staging file and hands it
+ * to process(); the file then moves through these stages, each with a pool
+ * of its own (video.pipeline.[stage]Threads):
+ * 
+ * 1. VERIFY checks the size of the data, that an MP4 or QuickTime file is
+ *    complete, i.e., that its boxes cover the file and it has a movie box,
+ *    and that data declared as MP4 (or as QuickTime) is such a file, with
+ *    a file type box (or at least a movie box).
+ * 2. FASTSTART moves the movie box of an MP4 or QuickTime file in front of
+ *    its media data, so that players can start before they have all of it
+ *    (see Mp4FastStart; video.pipeline.fastStart turns this off).
+ * 3. CHECKSUM hashes the data, unless whoever staged it already did and it
+ *    wasn't rewritten.
+ * 4. INDEX reads the container layout and builds and stores the time index
+ *    that seeking by time uses (see VideoContainerIndex).
+ * 5. PUBLISH hands the data to the group committer, which makes it durable
+ *    and publishes it (see GroupCommitter). The stage doesn't wait for the
+ *    commit: the upload is finished when the commit completes, so the
+ *    uploads in a commit batch aren't limited to the number of PUBLISH
+ *    threads.
+ * 
+ * At most video.pipeline.maxPending uploads are in the pipeline at once.
+ * Beyond that, process() throws a PipelineSaturatedException, and the
+ * controller turns uploads away with a 503 and a Retry-After header before
+ * it reads their data (see isSaturated()). The stage queues are as long as
+ * that limit, so a stage never turns away work that an earlier stage hands
+ * it.
+ * 
+ * process() waits up to video.pipeline.ackTimeoutMillis for the upload to
+ * finish, so quick uploads are READY when the request returns, while the
+ * request time of large ones no longer depends on how long processing
+ * takes: they return PROCESSING, and clients follow them with getStatus()
+ * and nextStatus(). An upload that is still in the pipeline when a newer
+ * one for the same video arrives is dropped at its next stage. Once the
+ * newest upload of a video is done, only its final status is kept.
+ * 
+ * The pipeline is published as the gauges video.pipeline.pending and
+ * video.pipeline.rejected.
+ */
+@Component
+public class VideoProcessingPipeline {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VideoProcessingPipeline.class);
+
+	// Content types of ISO base media files, which start with a file type
+	// box. QuickTime files may not have one.
+	private static final Set<String> ISO_MEDIA_TYPES = new HashSet<String>(Arrays.asList(
+			"video/mp4", "video/x-m4v", "video/3gpp", "video/3gpp2", "audio/mp4"));
+
+	private static final String QUICKTIME_TYPE = "video/quicktime";
+
+	public enum Stage {
+		VERIFY, FASTSTART, CHECKSUM, INDEX, PUBLISH
+	}
+
+	/**
+	 * Publishes the processed data of a video, and returns a future that
+	 * completes once it is published and durable, or fails with the
+	 * IOException that kept it from being published. The staging file
+	 * belongs to the publisher, which must delete it if it doesn't move it
+	 * into place.
+	 */
+	public interface Publisher {
+		public ListenableFuture<Void> publish(Video video, Path staged, String digest) throws IOException;
+	}
+
+	@Value("${video.pipeline.verifyThreads:2}")
+	private int verifyThreads = 2;
+
+	@Value("${video.pipeline.fastStartThreads:1}")
+	private int fastStartThreads = 1;
+
+	@Value("${video.pipeline.checksumThreads:2}")
+	private int checksumThreads = 2;
+
+	@Value("${video.pipeline.indexThreads:1}")
+	private int indexThreads = 1;
+
+	@Value("${video.pipeline.publishThreads:2}")
+	private int publishThreads = 2;
+
+	@Value("${video.pipeline.maxPending:32}")
+	private int maxPending = 32;
+
+	@Value("${video.pipeline.fastStart:true}")
+	private boolean fastStart = true;
+
+	// Larger movie boxes are left where they are rather than read into
+	// memory
+	@Value("${video.pipeline.maxMoovBytes:67108864}")
+	private int maxMoovBytes = 64 * 1024 * 1024;
+
+	@Value("${video.pipeline.ackTimeoutMillis:5000}")
+	private long ackTimeoutMillis = 5000;
+
+	@Value("${video.upload.maxBytes:157286400}")
+	private long maxBytes = 150 * 1024 * 1024;
+
+	@Autowired
+	private VideoStorage storage;
+
+	@Autowired
+	private VideoBlobStore blobStore;
+
+	@Autowired
+	private VideoDataDigests digests;
+
+	@Autowired
+	private VideoDataCache dataCache;
+
+	@Autowired
+	private GroupCommitter committer;
+
+	@Autowired
+	private VideoContainerIndex containerIndex;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	private Publisher publisher;
+
+	private Semaphore slots;
+
+	private final Map<Stage, ThreadPoolExecutor> executors = new EnumMap<Stage, ThreadPoolExecutor>(Stage.class);
+
+	// The newest upload of each video while it is in the pipeline, which its
+	// status is taken from
+	private final Map<Long, Job> latest = new HashMap<Long, Job>();
+
+	// The final status of the newest upload of each video that is done.
+	// Guarded by latest.
+	private final Map<Long, VideoStatus> finished = new HashMap<Long, VideoStatus>();
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	public VideoProcessingPipeline() {
+	}
+
+	/**
+	 * Creates a pipeline that hands processed data to the given publisher,
+	 * with the given number of threads in every stage. Call start() before
+	 * using it.
+	 * 
+	 * @param publisher
+	 * @param containerIndex
+	 * @param maxBytes
+	 * @param fastStart
+	 * @param threads
+	 * @param maxPending
+	 * @param ackTimeoutMillis
+	 */
+	public VideoProcessingPipeline(Publisher publisher, VideoContainerIndex containerIndex, long maxBytes,
+			boolean fastStart, int threads, int maxPending, long ackTimeoutMillis) {
+		this.publisher = publisher;
+		this.containerIndex = containerIndex;
+		this.maxBytes = maxBytes;
+		this.fastStart = fastStart;
+		this.verifyThreads = threads;
+		this.fastStartThreads = threads;
+		this.checksumThreads = threads;
+		this.indexThreads = threads;
+		this.publishThreads = threads;
+		this.maxPending = maxPending;
+		this.ackTimeoutMillis = ackTimeoutMillis;
+	}
+
+	@PostConstruct
+	public void start() {
+		if (publisher == null) {
+			publisher = new CommittingPublisher();
+		}
+		slots = new Semaphore(maxPending);
+		executors.put(Stage.VERIFY, newExecutor(Stage.VERIFY, verifyThreads));
+		executors.put(Stage.FASTSTART, newExecutor(Stage.FASTSTART, fastStartThreads));
+		executors.put(Stage.CHECKSUM, newExecutor(Stage.CHECKSUM, checksumThreads));
+		executors.put(Stage.INDEX, newExecutor(Stage.INDEX, indexThreads));
+		executors.put(Stage.PUBLISH, newExecutor(Stage.PUBLISH, publishThreads));
+	}
+
+	/**
+	 * Stops the pipeline after the uploads in it have been processed. The
+	 * stages are shut down in order, since each one hands its work to the
+	 * next.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		for (ThreadPoolExecutor executor : executors.values()) {
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	/**
+	 * Returns whether the pipeline is full, in which case uploads should be
+	 * turned away before their data is received.
+	 * 
+	 * @return
+	 */
+	public boolean isSaturated() {
+		return slots.availablePermits() == 0;
+	}
+
+	/**
+	 * Runs a staging file through the pipeline as the given video's new data
+	 * and waits up to the ack timeout for it. Returns READY if the data was
+	 * published in that time and PROCESSING otherwise. The staging file
+	 * belongs to the pipeline from here on.
+	 * 
+	 * @param video
+	 * @param staged
+	 * @param digest
+	 *            the SHA-256 of the data, or null to have it computed
+	 * @return
+	 * @throws PipelineSaturatedException
+	 *             if maxPending uploads are already in the pipeline
+	 * @throws IOException
+	 *             if the data failed a stage within the ack timeout; a
+	 *             VerificationException if it isn't valid video data
+	 */
+	public VideoStatus process(Video video, Path staged, String digest) throws IOException {
+		Reservation slot;
+		try {
+			slot = reserve();
+		} catch (PipelineSaturatedException e) {
+			Files.deleteIfExists(staged);
+			throw e;
+		}
+		return slot.process(video, staged, digest);
+	}
+
+	/**
+	 * Takes one of the maxPending places in the pipeline for an upload that
+	 * isn't staged yet, e.g., before a resumable upload is completed, so
+	 * that a pipeline that fills up in the meantime can't turn the upload
+	 * away once it has been consumed. The place is given back when the
+	 * reservation is closed without having been used.
+	 * 
+	 * @return
+	 * @throws PipelineSaturatedException
+	 *             if maxPending uploads are already in the pipeline
+	 */
+	public Reservation reserve() {
+		if (!slots.tryAcquire()) {
+			rejected.incrementAndGet();
+			publishMetrics();
+			throw new PipelineSaturatedException();
+		}
+		publishMetrics();
+		return new Reservation();
+	}
+
+	// Starts a job in a place that has been taken for it, and waits up to
+	// the ack timeout for it
+	private VideoStatus run(Job job) throws IOException {
+		Video video = job.video;
+		synchronized (latest) {
+			latest.put(video.getId(), job);
+			finished.remove(video.getId());
+		}
+		executors.get(Stage.VERIFY).execute(job);
+
+		try {
+			job.done.get(ackTimeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			return job.getStatus();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return job.getStatus();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+		return getStatus(video.getId());
+	}
+
+	/**
+	 * Returns the processing status of the video's newest upload, or null
+	 * if none was processed since the server started. An upload that has
+	 * been published is READY once its data is durable.
+	 * 
+	 * @param videoId
+	 * @return
+	 */
+	public VideoStatus getStatus(long videoId) {
+		Job job;
+		VideoStatus status;
+		synchronized (latest) {
+			job = latest.get(videoId);
+			status = job == null ? finished.get(videoId) : null;
+		}
+		if (job != null) {
+			status = job.getStatus();
+		} else if (status == null) {
+			return null;
+		} else {
+			status = new VideoStatus(status.getState(), status.getStage(), status.getMessage());
+		}
+		if (status.getState() == VideoState.READY && committer != null) {
+			status.setState(committer.getState(videoId));
+		}
+		return status;
+	}
+
+	/**
+	 * Returns a future that completes when the status of the video's newest
+	 * upload changes, or when a newer upload arrives, for clients that
+	 * long-poll the status. Returns null if the video has no upload being
+	 * processed.
+	 * 
+	 * @param videoId
+	 * @return
+	 */
+	public ListenableFuture<Void> nextStatus(long videoId) {
+		Job job;
+		synchronized (latest) {
+			job = latest.get(videoId);
+		}
+		if (job == null) {
+			return null;
+		}
+		synchronized (job) {
+			return job.state == VideoState.PROCESSING ? job.changed : null;
+		}
+	}
+
+	/**
+	 * Returns how many videos have an upload in the pipeline.
+	 * 
+	 * @return
+	 */
+	int getInFlight() {
+		synchronized (latest) {
+			return latest.size();
+		}
+	}
+
+	private ThreadPoolExecutor newExecutor(final Stage stage, int threads) {
+		final String name = "video-pipeline-" + stage.name().toLowerCase();
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(maxPending), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	private boolean isLatest(Job job) {
+		synchronized (latest) {
+			return latest.get(job.video.getId()) == job;
+		}
+	}
+
+	// The content type without its parameters, in lower case
+	private static String mediaType(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		int semicolon = contentType.indexOf(';');
+		return (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+	}
+
+	private void publishMetrics() {
+		if (gauges == null) {
+			return;
+		}
+		gauges.submit("video.pipeline.pending", maxPending - slots.availablePermits());
+		gauges.submit("video.pipeline.rejected", rejected.get());
+	}
+
+	/**
+	 * One upload on its way through the stages. The same job is handed from
+	 * stage to stage, and runs the stage it is in.
+	 */
+	private class Job implements Runnable {
+		private final Video video;
+		private final Path staged;
+		private String digest;
+		private Layout layout;
+
+		private final SettableFuture<Void> done = SettableFuture.create();
+
+		// Guarded by this job
+		private Stage stage = Stage.VERIFY;
+		private VideoState state = VideoState.PROCESSING;
+		private String message;
+		private SettableFuture<Void> changed = SettableFuture.create();
+
+		private Job(Video video, Path staged, String digest) {
+			this.video = video;
+			this.staged = staged;
+			this.digest = digest;
+		}
+
+		@Override
+		public void run() {
+			Stage current;
+			synchronized (this) {
+				current = stage;
+			}
+			try {
+				if (!isLatest(this)) {
+					// A newer upload of the same video replaces this one
+					Files.deleteIfExists(staged);
+					finish(current, VideoState.READY, "superseded by a newer upload", null);
+					return;
+				}
+				switch (current) {
+				case VERIFY:
+					verify();
+					break;
+				case FASTSTART:
+					fastStart();
+					break;
+				case CHECKSUM:
+					checksum();
+					break;
+				case INDEX:
+					index();
+					break;
+				case PUBLISH:
+					awaitPublished(publisher.publish(video, staged, digest));
+					return;
+				}
+			} catch (IOException | RuntimeException e) {
+				LOG.warn("Could not process data of video " + video.getId() + " in stage " + current, e);
+				try {
+					Files.deleteIfExists(staged);
+				} catch (IOException ignored) {
+					// It's in the staging folder, which is cleaned up later
+				}
+				finish(current, VideoState.FAILED, e.getMessage(), e);
+				return;
+			}
+			Stage next = Stage.values()[current.ordinal() + 1];
+			transition(next, VideoState.PROCESSING, null);
+			executors.get(next).execute(this);
+		}
+
+		// Finishes the job when the data is published, on whichever thread
+		// completes the future (usually the group committer's)
+		private void awaitPublished(final ListenableFuture<Void> published) {
+			published.addListener(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						published.get();
+					} catch (InterruptedException | ExecutionException e) {
+						Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+						IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+						LOG.warn("Could not process data of video " + video.getId() + " in stage " + Stage.PUBLISH,
+								failure);
+						finish(Stage.PUBLISH, VideoState.FAILED, failure.getMessage(), failure);
+						return;
+					}
+					containerIndex.record(video, layout);
+					finish(Stage.PUBLISH, VideoState.READY, null, null);
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+
+		private void verify() throws IOException {
+			long size = Files.size(staged);
+			if (size > maxBytes) {
+				throw new VerificationException("video data larger than " + maxBytes + " bytes");
+			}
+			Layout container;
+			try {
+				// Only box headers are read, a few bytes each. The index
+				// stage reads them again along with the movie header.
+				container = VideoContainerIndex.read(staged);
+			} catch (InvalidContainerException e) {
+				throw new VerificationException("broken video container: " + e.getMessage());
+			}
+
+			// A layout always has a movie box
+			String type = mediaType(video.getContentType());
+			if (ISO_MEDIA_TYPES.contains(type) && (container == null || container.find("ftyp") == null)) {
+				throw new VerificationException("video data is not a " + type + " file: no ftyp box");
+			}
+			if (QUICKTIME_TYPE.equals(type) && container == null) {
+				throw new VerificationException("video data is not a " + type + " file: no moov box");
+			}
+		}
+
+		private void fastStart() throws IOException {
+			if (!fastStart) {
+				return;
+			}
+			Layout original = VideoContainerIndex.read(staged);
+			if (!Mp4FastStart.needsRelocation(original)) {
+				return;
+			}
+			// Written next to the staging file, so it can be renamed over it
+			Path rewritten = Files.createTempFile(staged.getParent(), "faststart", ".tmp");
+			try {
+				boolean relocated;
+				try (FileChannel in = FileChannel.open(staged, StandardOpenOption.READ);
+						FileChannel out = FileChannel.open(rewritten, StandardOpenOption.WRITE)) {
+					relocated = Mp4FastStart.relocate(in, original, out, maxMoovBytes);
+				}
+				if (relocated) {
+					Files.move(rewritten, staged, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					// The digest the data was staged with is not its digest
+					// any more
+					digest = null;
+				}
+			} finally {
+				Files.deleteIfExists(rewritten);
+			}
+		}
+
+		private void index() throws IOException {
+			layout = VideoContainerIndex.read(staged);
+			// Stored before the data is published, so that seeking works as
+			// soon as the data can be read
+			VideoTimeIndex timeIndex = null;
+			try {
+				timeIndex = VideoContainerIndex.buildTimeIndex(staged, layout);
+			} catch (InvalidContainerException e) {
+				// The data plays, it just can't be sought by time
+				LOG.warn("Could not index the sample tables of video " + video.getId() + ": " + e.getMessage());
+			}
+			if (timeIndex != null) {
+				containerIndex.saveTimeIndex(digest, timeIndex);
+			}
+		}
+
+		private void checksum() throws IOException {
+			if (digest != null) {
+				return;
+			}
+			MessageDigest md = VideoDataDigests.newDigest();
+			try (InputStream in = new DigestInputStream(Files.newInputStream(staged), md)) {
+				byte[] buffer = new byte[64 * 1024];
+				while (in.read(buffer) >= 0) {
+					// just hashing
+				}
+			}
+			digest = Hex.encodeHexString(md.digest());
+		}
+
+		private void finish(Stage stage, VideoState state, String message, Exception failure) {
+			transition(stage, state, message);
+			// Only the status outlives the job
+			synchronized (latest) {
+				if (latest.get(video.getId()) == this) {
+					latest.remove(video.getId());
+					finished.put(video.getId(), getStatus());
+				}
+			}
+			slots.release();
+			publishMetrics();
+			if (failure == null) {
+				done.set(null);
+			} else {
+				done.setException(failure);
+			}
+		}
+
+		private void transition(Stage stage, VideoState state, String message) {
+			SettableFuture<Void> waiting;
+			synchronized (this) {
+				this.stage = stage;
+				this.state = state;
+				this.message = message;
+				waiting = changed;
+				changed = SettableFuture.create();
+			}
+			waiting.set(null);
+		}
+
+		private synchronized VideoStatus getStatus() {
+			return new VideoStatus(state, stage.name(), message);
+		}
+	}
+
+	/**
+	 * Publishes data through the group committer, and through the blob
+	 * store if it is enabled, records the data's digest for its ETag, and
+	 * drops any cached copy of the old data.
+	 */
+	private class CommittingPublisher implements Publisher {
+		@Override
+		public ListenableFuture<Void> publish(final Video video, Path staged, final String digest) {
+			return committer.submit(video.getId(), staged, new GroupCommitter.Publisher() {
+				@Override
+				public void publish(Path staged) throws IOException {
+					if (blobStore.isEnabled()) {
+						// The blob store records the digest itself
+						blobStore.publish(video, staged, digest);
+					} else {
+						// A rename keeps the file's attributes, so these are
+						// the attributes the published data will have
+						BasicFileAttributes attrs = Files.readAttributes(staged, BasicFileAttributes.class);
+						storage.publishVideoData(video, staged);
+						digests.record(video, digest, attrs);
+					}
+					dataCache.invalidate(video.getId());
+				}
+			});
+		}
+	}
+
+	/**
+	 * A place in the pipeline taken by reserve(). It is used by handing it
+	 * one upload with process(), and given back by close() otherwise.
+	 */
+	public class Reservation implements Closeable {
+
+		private final AtomicBoolean used = new AtomicBoolean();
+
+		private Reservation() {
+		}
+
+		/**
+		 * Like VideoProcessingPipeline.process(), but in the place that was
+		 * reserved, so it never throws a PipelineSaturatedException.
+		 * 
+		 * @param video
+		 * @param staged
+		 * @param digest
+		 * @return
+		 * @throws IOException
+		 */
+		public VideoStatus process(Video video, Path staged, String digest) throws IOException {
+			if (!used.compareAndSet(false, true)) {
+				throw new IllegalStateException("the reserved place has already been used");
+			}
+			return run(new Job(video, staged, digest));
+		}
+
+		@Override
+		public void close() {
+			if (used.compareAndSet(false, true)) {
+				slots.release();
+				publishMetrics();
+			}
+		}
+	}
+
+	/**
+	 * Thrown when maxPending uploads are already in the pipeline.
+	 */
+	public static class PipelineSaturatedException extends RejectedExecutionException {
+		private static final long serialVersionUID = 1L;
+
+		public PipelineSaturatedException() {
+			super("the video processing pipeline is full");
+		}
+	}
+
+	/**
+	 * Thrown when uploaded data isn't valid video data.
+	 */
+	public static class VerificationException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public VerificationException(String message) {
+			super(message);
+		}
+	}
+
+}
@@ -0,0 +1,267 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * Where the binary data of videos is kept. There is one VideoStorage for
+ * the whole application, a Spring bean chosen with the
+ * video.storage.backend property (see Application.videoStorage()):
+ * 
+ *   flat    - one file per video in a single directory (VideoFileManager)
+ *   sharded - one file per video, spread over a two-level tree of 65536
+ *             directories by a hash of the id, so that no directory grows
+ *             to millions of entries (ShardedVideoStorage)
+ *   mapped  - like flat, but reads are served from memory mappings of the
+ *             files (MappedVideoStorage)
+ *   memory  - the data of every video in memory, for benchmarks and tests
+ *             (InMemoryVideoStorage)
+ *   packed  - the data of many videos appended to a few large segment
+ *             files, for catalogs of many small clips (PackedVideoStorage)
+ * 
+ * The file-based backends keep their data under video.storage.dir.
+ * 
+ * New data is written to a staging file first and then published, which
+ * makes it visible to readers all at once. Readers only ever see the old
+ * data or the complete new data of a video. Each call reads whatever is
+ * current at the time, though, so a reader that needs several calls to
+ * agree (e.g., the length and then a range) acquires one version of the
+ * data with acquireVideoData() and reads it from that.
+ */
+public interface VideoStorage {
+
+	/**
+	 * The values of the video.storage.backend property.
+	 */
+	public enum Backend {
+		FLAT, SHARDED, MAPPED, MEMORY, PACKED;
+
+		/**
+		 * Creates a storage of this kind in the given directory. The flat
+		 * storage in the default directory is the one VideoFileManager.get()
+		 * returns.
+		 * 
+		 * @param dir
+		 * @return
+		 * @throws IOException
+		 */
+		public VideoStorage create(Path dir) throws IOException {
+			switch (this) {
+			case SHARDED:
+				return new ShardedVideoStorage(dir);
+			case MAPPED:
+				return new MappedVideoStorage(dir);
+			case MEMORY:
+				return new InMemoryVideoStorage(dir);
+			case PACKED:
+				return new PackedVideoStorage(dir);
+			default:
+				return dir.equals(Paths.get(VideoFileManager.DEFAULT_DIR)) ? VideoFileManager.get() : new VideoFileManager(dir);
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the given video has binary data stored.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public boolean hasVideoData(Video v);
+
+	/**
+	 * Copies all of the given video's data to the output stream. Throws a
+	 * FileNotFoundException if it has none.
+	 * 
+	 * @param v
+	 * @param out
+	 * @throws IOException
+	 */
+	public void copyVideoData(Video v, OutputStream out) throws IOException;
+
+	/**
+	 * Copies length bytes of the given video's data, starting at offset, to
+	 * the output stream. The range must lie within the data.
+	 * 
+	 * @param v
+	 * @param offset
+	 * @param length
+	 * @param out
+	 * @throws IOException
+	 */
+	public void copyVideoData(Video v, long offset, long length, OutputStream out) throws IOException;
+
+	/**
+	 * Writes length bytes of the given video's data, starting at offset, to
+	 * the channel, without copying them through the Java heap where the
+	 * backend can.
+	 * 
+	 * @param v
+	 * @param offset
+	 * @param length
+	 * @param target
+	 * @throws IOException
+	 */
+	public void transferVideoData(Video v, long offset, long length, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Acquires the current version of the given video's data, which stays
+	 * readable, unchanged, until it is closed, even if the video's data is
+	 * replaced or deleted in the meantime (see VideoDataVersion). Throws a
+	 * FileNotFoundException if the video has no data.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public VideoDataVersion acquireVideoData(Video v) throws IOException;
+
+	/**
+	 * Returns the absolute path of the file that holds the given video's
+	 * data, for handing to the web container (e.g., for sendfile), or null
+	 * if the backend doesn't keep the data in files.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Path getVideoDataPath(Video v);
+
+	public long getVideoDataLength(Video v) throws IOException;
+
+	public long getVideoDataLastModified(Video v) throws IOException;
+
+	/**
+	 * Returns the size, modification time and identity of the given video's
+	 * data. The file key changes whenever the data is replaced.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public BasicFileAttributes getVideoDataAttributes(Video v) throws IOException;
+
+	/**
+	 * Stores everything read from the input stream as the given video's
+	 * data, replacing any data it had.
+	 * 
+	 * @param v
+	 * @param videoData
+	 * @throws IOException
+	 */
+	public void saveVideoData(Video v, InputStream videoData) throws IOException;
+
+	/**
+	 * Creates a new, empty staging file that data can be written to before
+	 * it is published with publishVideoData().
+	 * 
+	 * @return
+	 * @throws IOException
+	 */
+	public Path createStagingFile() throws IOException;
+
+	/**
+	 * Atomically makes the contents of a staging file the given video's
+	 * data. The staging file is consumed.
+	 * 
+	 * @param v
+	 * @param staged
+	 * @throws IOException
+	 */
+	public void publishVideoData(Video v, Path staged) throws IOException;
+
+	/**
+	 * Atomically makes the contents of an existing file, which stays where
+	 * it is, the given video's data. File-based backends share the file
+	 * with a hard link where they can.
+	 * 
+	 * @param v
+	 * @param existing
+	 * @throws IOException
+	 */
+	public void linkVideoData(Video v, Path existing) throws IOException;
+
+	/**
+	 * Removes the given video's data. Returns true if there was any.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean deleteVideoData(Video v) throws IOException;
+
+	/**
+	 * Returns the directory that publishVideoData() renames the given
+	 * video's data into, which has to be forced for the rename to be
+	 * durable, or null if the backend doesn't keep the data in files.
+	 * 
+	 * @param v
+	 * @return
+	 */
+	public Path getVideoDataDirectory(Video v);
+
+	/**
+	 * Makes all of the data published so far durable, as far as the backend
+	 * keeps anything besides files that were forced before they were
+	 * published and the directories they were published into. Called once
+	 * per batch of commits (see GroupCommitter).
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException;
+
+	/**
+	 * Returns a directory for the given purpose (e.g., the catalog journal)
+	 * next to the video data, creating it if necessary. Files in it can be
+	 * moved into place or linked as video data.
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	public Path getStorageDirectory(String name) throws IOException;
+
+	/**
+	 * Stores a short piece of text describing the digest of the given
+	 * video's data (see VideoDataDigests).
+	 * 
+	 * @param v
+	 * @param digest
+	 * @throws IOException
+	 */
+	public void saveVideoDataDigest(Video v, String digest) throws IOException;
+
+	/**
+	 * Returns the text stored with saveVideoDataDigest(), or null if there
+	 * is none.
+	 * 
+	 * @param v
+	 * @return
+	 * @throws IOException
+	 */
+	public String loadVideoDataDigest(Video v) throws IOException;
+
+}
@@ -43,19 +43,31 @@ package org.magnum.dataup;
      \/__/         \/__/         \/__/         \/__/       \/__/           \/__/        
  */
 import java.util.Collection;
+import java.util.List;
 
+import org.magnum.dataup.model.BlockSignatures;
+import org.magnum.dataup.model.DataUrl;
+import org.magnum.dataup.model.MultipartUpload;
+import org.magnum.dataup.model.UploadPart;
+import org.magnum.dataup.model.UploadSession;
 import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoPage;
 import org.magnum.dataup.model.VideoStatus;
 
 import retrofit.client.Response;
 import retrofit.http.Body;
+import retrofit.http.DELETE;
 import retrofit.http.GET;
+import retrofit.http.Header;
 import retrofit.http.Multipart;
 import retrofit.http.POST;
+import retrofit.http.PUT;
 import retrofit.http.Part;
 import retrofit.http.Path;
+import retrofit.http.Query;
 import retrofit.http.Streaming;
 import retrofit.mime.TypedFile;
+import retrofit.mime.TypedOutput;
 
 /**
  * This interface defines an API for a VideoSvc. The
@@ -136,6 +148,64 @@ public interface VideoSvcApi {
 	
 	public static final String VIDEO_DATA_PATH = VIDEO_SVC_PATH + "/{id}/data";
 
+	public static final String DIGEST_PARAMETER = "digest";
+
+	public static final String VIDEO_DATA_DIGEST_PATH = VIDEO_DATA_PATH + "/{digest}";
+
+	public static final String UPLOAD_ID_PARAMETER = "uploadId";
+
+	public static final String OFFSET_PARAMETER = "offset";
+
+	public static final String LENGTH_PARAMETER = "length";
+
+	public static final String VIDEO_UPLOADS_PATH = VIDEO_SVC_PATH + "/{id}/uploads";
+
+	public static final String VIDEO_UPLOAD_PATH = VIDEO_UPLOADS_PATH + "/{uploadId}";
+
+	public static final String VIDEO_UPLOAD_FINALIZE_PATH = VIDEO_UPLOAD_PATH + "/finalize";
+
+	public static final String PART_NUMBER_PARAMETER = "partNumber";
+
+	public static final String PART_SIZE_PARAMETER = "partSize";
+
+	public static final String VIDEO_MULTIPART_UPLOADS_PATH = VIDEO_SVC_PATH + "/{id}/multipart";
+
+	public static final String VIDEO_MULTIPART_UPLOAD_PATH = VIDEO_MULTIPART_UPLOADS_PATH + "/{uploadId}";
+
+	public static final String VIDEO_MULTIPART_PART_PATH = VIDEO_MULTIPART_UPLOAD_PATH + "/parts/{partNumber}";
+
+	public static final String VIDEO_MULTIPART_COMPLETE_PATH = VIDEO_MULTIPART_UPLOAD_PATH + "/complete";
+
+	public static final String BLOCK_SIZE_PARAMETER = "blockSize";
+
+	public static final String BASE_PARAMETER = "base";
+
+	public static final String VIDEO_SIGNATURES_PATH = VIDEO_SVC_PATH + "/{id}/signatures";
+
+	public static final String VIDEO_DELTA_PATH = VIDEO_SVC_PATH + "/{id}/delta";
+
+	public static final String WAIT_PARAMETER = "wait";
+
+	public static final String TIME_PARAMETER = "t";
+
+	public static final String SEEK_TIME_HEADER = "X-Seek-Time";
+
+	public static final String VIDEO_STATUS_PATH = VIDEO_SVC_PATH + "/{id}/status";
+
+	public static final String VIDEO_DATA_URL_PATH = VIDEO_SVC_PATH + "/{id}/dataUrl";
+
+	public static final String RANGE_HEADER = "Range";
+
+	public static final String IF_RANGE_HEADER = "If-Range";
+
+	public static final String LIMIT_PARAMETER = "limit";
+
+	public static final String CURSOR_PARAMETER = "cursor";
+
+	public static final String SUBJECT_PARAMETER = "subject";
+
+	public static final String CONTENT_TYPE_PARAMETER = "contentType";
+
 	/**
 	 * This endpoint in the API returns a list of the videos that have
 	 * been added to the server. The Video objects should be returned as
@@ -149,6 +219,29 @@ public interface VideoSvcApi {
 	@GET(VIDEO_SVC_PATH)
 	public Collection<Video> getVideoList();
 	
+	/**
+	 * This endpoint returns one page of the video list in ascending id
+	 * order, so that the size of a response doesn't grow with the number of
+	 * videos on the server. The first page is requested without a cursor;
+	 * each page carries the cursor for the next one, which is null on the
+	 * last page. The subject and contentType filters are optional (pass
+	 * null to leave them out) and must be the same for every page.
+	 * 
+	 * VideoPages walks all the pages lazily.
+	 * 
+	 * To manually test this endpoint, run your server and open this URL in a browser:
+	 * http://localhost:8080/video?limit=10
+	 * 
+	 * @param limit the largest number of videos to return
+	 * @param cursor the cursor of the previous page, or null for the first page
+	 * @param subject
+	 * @param contentType
+	 * @return
+	 */
+	@GET(VIDEO_SVC_PATH)
+	public VideoPage getVideoPage(@Query(LIMIT_PARAMETER) int limit, @Query(CURSOR_PARAMETER) String cursor,
+			@Query(SUBJECT_PARAMETER) String subject, @Query(CONTENT_TYPE_PARAMETER) String contentType);
+	
 	/**
 	 * This endpoint allows clients to add Video objects by sending POST requests
 	 * that have an application/json body containing the Video object information. 
@@ -172,6 +265,29 @@ public interface VideoSvcApi {
 	@POST(VIDEO_DATA_PATH)
 	public VideoStatus setVideoData(@Path(ID_PARAMETER) long id, @Part(DATA_PARAMETER) TypedFile videoData);
 	
+	/**
+	 * This endpoint sets the mpeg video data of a previously added Video
+	 * like setVideoData(), but the data is the raw body of a PUT request
+	 * rather than a part of a multipart request. The body should be sent
+	 * as application/octet-stream, e.g., as a TypedFile with that type.
+	 * 
+	 * @return
+	 */
+	@PUT(VIDEO_DATA_PATH)
+	public VideoStatus putVideoData(@Path(ID_PARAMETER) long id, @Body TypedOutput videoData);
+	
+	/**
+	 * This endpoint lets a client skip uploading data the server already has.
+	 * The digest is the lowercase hex SHA-256 of the video file. If the server
+	 * stores data with that digest, it becomes the data of the Video and the
+	 * call succeeds right away; otherwise the server responds with a 404 and
+	 * the client should upload the data with setVideoData().
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_DATA_DIGEST_PATH)
+	public VideoStatus setVideoDataByDigest(@Path(ID_PARAMETER) long id, @Path(DIGEST_PARAMETER) String digest);
+	
 	/**
 	 * This endpoint should return the video data that has been associated with
 	 * a Video object or a 404 if no video data has been set yet. The URL scheme
@@ -194,4 +310,208 @@ public interface VideoSvcApi {
     @GET(VIDEO_DATA_PATH)
     Response getData(@Path(ID_PARAMETER) long id);
 	
+	/**
+	 * This endpoint returns the video data from the last keyframe at or
+	 * before the given time, in seconds, to the end. The server answers
+	 * with a 206 whose Content-Range header tells where in the data the
+	 * response starts, and whose X-Seek-Time header holds the time of that
+	 * keyframe in milliseconds. Data the server couldn't index is sent
+	 * whole, with a 200.
+	 * 
+	 * A player that already has the start of an MP4 file, with its movie
+	 * box, can continue from the returned offset; MPEG program streams can
+	 * be played from there on their own.
+	 * 
+	 * @param id
+	 * @param seconds
+	 * @return
+	 */
+	@Streaming
+	@GET(VIDEO_DATA_PATH)
+	Response getDataAt(@Path(ID_PARAMETER) long id, @Query(TIME_PARAMETER) double seconds);
+	
+	/**
+	 * This endpoint returns part of the video data, as selected by a Range
+	 * header such as "bytes=0-1023". The server answers a single range with
+	 * a 206 and a Content-Range header that also carries the total length.
+	 * If the If-Range header (pass null to leave it out) holds an ETag that
+	 * no longer matches the data, the server sends all of it with a 200
+	 * instead.
+	 * 
+	 * ParallelVideoDownloader uses this to fetch a video over several
+	 * connections at once.
+	 * 
+	 * @param id
+	 * @param range
+	 * @param ifRange
+	 * @return
+	 */
+	@Streaming
+	@GET(VIDEO_DATA_PATH)
+	Response getDataRange(@Path(ID_PARAMETER) long id, @Header(RANGE_HEADER) String range,
+			@Header(IF_RANGE_HEADER) String ifRange);
+	
+	/**
+	 * This endpoint returns the block signatures of the video's current
+	 * data, for making a delta against it with VideoDelta. Pass null as the
+	 * block size to let the server pick one that suits the data's length.
+	 * The server responds with a 404 if the video has no data.
+	 * 
+	 * @return
+	 */
+	@GET(VIDEO_SIGNATURES_PATH)
+	public BlockSignatures getBlockSignatures(@Path(ID_PARAMETER) long id, @Query(BLOCK_SIZE_PARAMETER) Integer blockSize);
+	
+	/**
+	 * This endpoint replaces the video's data with the result of applying a
+	 * delta (see VideoDelta) to its current data, which must be the data
+	 * with the base digest that the signatures were made from. The digest
+	 * is the SHA-256 of the new data, which the server checks before
+	 * publishing it. The server responds with a 409 if its data isn't the
+	 * base or the result doesn't match the digest, and with a 400 if the
+	 * delta is malformed.
+	 * 
+	 * DeltaVideoUploader does all of this for a file.
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_DELTA_PATH)
+	public VideoStatus putVideoDelta(@Path(ID_PARAMETER) long id, @Query(BASE_PARAMETER) String base,
+			@Query(DIGEST_PARAMETER) String digest, @Body TypedOutput delta);
+	
+	/**
+	 * This endpoint returns the processing status of the video's newest
+	 * upload. Uploads that take the server longer than a few seconds to
+	 * process return PROCESSING; their status then goes through the stages
+	 * of the server's processing pipeline and ends up READY, or FAILED with
+	 * a message saying why. Pass the number of milliseconds to wait for the
+	 * status to change while it is PROCESSING, or null to return at once.
+	 * 
+	 * @return
+	 */
+	@GET(VIDEO_STATUS_PATH)
+	public VideoStatus getVideoStatus(@Path(ID_PARAMETER) long id, @Query(WAIT_PARAMETER) Long waitMillis);
+	
+	/**
+	 * This endpoint returns a fresh URL for the video's data. If the server
+	 * signs its data URLs, the URL carries a signature that lets anyone who
+	 * has it download the data, with as many range requests as they like,
+	 * until it expires; ask for a new one after that. Otherwise it is the
+	 * plain data URL, with an expiry of 0.
+	 * 
+	 * @return
+	 */
+	@GET(VIDEO_DATA_URL_PATH)
+	public DataUrl getDataUrl(@Path(ID_PARAMETER) long id);
+	
+	/**
+	 * This endpoint starts a resumable upload of the mpeg video data for a
+	 * previously added Video. Instead of sending the whole file in one
+	 * request, the client sends it in chunks with appendUploadChunk() and
+	 * then calls finalizeUpload(). If a chunk fails (e.g., the connection
+	 * drops), the client asks getUploadSession() how much data the server
+	 * has and continues from there. Pass -1 as the length if it isn't known.
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_UPLOADS_PATH)
+	public UploadSession createUploadSession(@Path(ID_PARAMETER) long id, @Query(LENGTH_PARAMETER) long length);
+	
+	/**
+	 * This endpoint returns the state of a resumable upload, including the
+	 * offset that the next chunk must start at.
+	 * 
+	 * @return
+	 */
+	@GET(VIDEO_UPLOAD_PATH)
+	public UploadSession getUploadSession(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId);
+	
+	/**
+	 * This endpoint appends a chunk of raw video data to a resumable upload.
+	 * The offset must match the upload's current offset, or the server
+	 * responds with a 409. Chunks larger than the server's limit are
+	 * answered with a 413 after the part up to the limit has been stored.
+	 * 
+	 * @return
+	 */
+	@PUT(VIDEO_UPLOAD_PATH)
+	public UploadSession appendUploadChunk(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId,
+			@Query(OFFSET_PARAMETER) long offset, @Body TypedOutput chunk);
+	
+	/**
+	 * This endpoint atomically publishes everything received for a resumable
+	 * upload as the video's data. If the client announced a length and not
+	 * all of it has arrived, the server responds with a 409.
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_UPLOAD_FINALIZE_PATH)
+	public VideoStatus finalizeUpload(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId);
+	
+	/**
+	 * This endpoint abandons a resumable upload and discards its data.
+	 * 
+	 * @return
+	 */
+	@DELETE(VIDEO_UPLOAD_PATH)
+	public Response abortUpload(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId);
+	
+	/**
+	 * This endpoint starts a multipart upload of the mpeg video data for a
+	 * previously added Video. The client splits the file into parts of
+	 * partSize bytes (the last part may be shorter), sends them with
+	 * uploadPart() in any order and over several connections at once, and
+	 * then calls completeMultipartUpload(). The server responds with a 400
+	 * if it doesn't accept the part size. Pass -1 as the length if it isn't
+	 * known.
+	 * 
+	 * ParallelVideoUploader does all of this for a file.
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_MULTIPART_UPLOADS_PATH)
+	public MultipartUpload createMultipartUpload(@Path(ID_PARAMETER) long id, @Query(LENGTH_PARAMETER) long length,
+			@Query(PART_SIZE_PARAMETER) long partSize);
+	
+	/**
+	 * This endpoint returns the state of a multipart upload, including the
+	 * parts that the server has received.
+	 * 
+	 * @return
+	 */
+	@GET(VIDEO_MULTIPART_UPLOAD_PATH)
+	public MultipartUpload getMultipartUpload(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId);
+	
+	/**
+	 * This endpoint stores one part of a multipart upload as the raw body of
+	 * the request, replacing the part if it was sent before. Parts are
+	 * numbered from 1. The server responds with a 400 if the part is longer
+	 * than the part size or is already being sent on another connection.
+	 * 
+	 * @return the part, with the etag to pass to completeMultipartUpload()
+	 */
+	@PUT(VIDEO_MULTIPART_PART_PATH)
+	public UploadPart uploadPart(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId,
+			@Path(PART_NUMBER_PARAMETER) int partNumber, @Body TypedOutput data);
+	
+	/**
+	 * This endpoint atomically publishes the listed parts of a multipart
+	 * upload as the video's data. The list must hold parts 1 to n in order,
+	 * each with the etag the server returned for it, and every part but the
+	 * last must be a full part; otherwise the server responds with a 400.
+	 * 
+	 * @return
+	 */
+	@POST(VIDEO_MULTIPART_COMPLETE_PATH)
+	public VideoStatus completeMultipartUpload(@Path(ID_PARAMETER) long id,
+			@Path(UPLOAD_ID_PARAMETER) String uploadId, @Body List<UploadPart> parts);
+	
+	/**
+	 * This endpoint abandons a multipart upload and discards its parts.
+	 * 
+	 * @return
+	 */
+	@DELETE(VIDEO_MULTIPART_UPLOAD_PATH)
+	public Response abortMultipartUpload(@Path(ID_PARAMETER) long id, @Path(UPLOAD_ID_PARAMETER) String uploadId);
+	
 }
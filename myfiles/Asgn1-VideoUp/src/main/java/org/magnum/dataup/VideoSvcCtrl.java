@@ -17,18 +17,66 @@
  */
 package org.magnum.dataup;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase.FileSizeLimitExceededException;
+import org.apache.commons.fileupload.FileUploadBase.FileUploadIOException;
+import org.apache.commons.fileupload.FileUploadException;
+import org.apache.commons.fileupload.servlet.ServletFileUpload;
+import org.apache.commons.fileupload.util.LimitedInputStream;
+import org.apache.commons.codec.binary.Hex;
+import org.magnum.dataup.BandwidthShaper.Direction;
+import org.magnum.dataup.MultipartUploadManager.InvalidPartException;
+import org.magnum.dataup.UploadSessionManager.ChunkTooLargeException;
+import org.magnum.dataup.UploadSessionManager.CompletedUpload;
+import org.magnum.dataup.UploadSessionManager.OffsetMismatchException;
+import org.magnum.dataup.VideoDelta.DeltaTooLargeException;
+import org.magnum.dataup.VideoDelta.InvalidDeltaException;
+import org.magnum.dataup.VideoProcessingPipeline.PipelineSaturatedException;
+import org.magnum.dataup.VideoProcessingPipeline.Reservation;
+import org.magnum.dataup.VideoProcessingPipeline.VerificationException;
+import org.magnum.dataup.VideoTransferMetrics.ServeMode;
+import org.magnum.dataup.VideoTransferMetrics.Transfer;
+import org.magnum.dataup.model.BlockSignatures;
+import org.magnum.dataup.model.DataUrl;
+import org.magnum.dataup.model.MultipartUpload;
+import org.magnum.dataup.model.UploadPart;
+import org.magnum.dataup.model.UploadSession;
 import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoPage;
 import org.magnum.dataup.model.VideoStatus;
 import org.magnum.dataup.model.VideoStatus.VideoState;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.data.rest.webmvc.ResourceNotFoundException;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -39,7 +87,11 @@ import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 @Controller
 public class VideoSvcCtrl {
@@ -61,25 +113,249 @@ public class VideoSvcCtrl {
 	 * 
 	 */
 
-	// Initialize a list of videos that the controller will maintain in memory
-	private final Map<Long, Video> videos = new HashMap<Long, Video>();
+	// Initialize a list of videos that the controller will maintain in memory.
+	// The catalog is safe for concurrent requests and looks videos up by their
+	// primitive id, without boxing it.
+	private final VideoCatalog videos = new VideoCatalog();
 
 	private static AtomicLong currentId = new AtomicLong(0L);
 
-	private VideoFileManager mVideoFileManager;
+	// Where video data is kept (see Application.videoStorage())
+	@Autowired
+	private VideoStorage storage;
+
+	@Autowired
+	private VideoTransferMetrics transferMetrics;
+
+	@Autowired
+	private UploadSessionManager uploads;
+
+	@Autowired
+	private MultipartUploadManager multipartUploads;
+
+	@Autowired
+	private VideoBlobStore blobStore;
+
+	@Autowired
+	private VideoDataCache dataCache;
+
+	@Autowired
+	private GroupCommitter committer;
+
+	@Autowired
+	private VideoProcessingPipeline pipeline;
+
+	@Autowired
+	private VideoContainerIndex containerIndex;
+
+	@Autowired
+	private VideoJournal journal;
+
+	@Autowired
+	private VideoDataDigests digests;
+
+	@Autowired
+	private BandwidthShaper shaper;
+
+	@Autowired
+	private SignedDataUrls signedUrls;
+
+	@Autowired
+	private VideoTierManager tiers;
+
+	// The mapper Spring Boot configures for the application's message
+	// converters, so the streamed list is written like any other response
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	// Bounded pool that streams video data so that request threads don't
+	// have to wait on slow clients (see Application.videoIoExecutor())
+	@Autowired
+	@Qualifier(Application.VIDEO_IO_EXECUTOR)
+	private TaskExecutor videoIoExecutor;
+
+	// The largest video data that can be uploaded in one request
+	@Value("${video.upload.maxBytes:157286400}")
+	private long maxUploadBytes;
+
+	// Page sizes of the paged video list, when the client asks for none
+	// and the most it may ask for
+	@Value("${video.list.defaultPageSize:100}")
+	private int defaultPageSize = 100;
+
+	@Value("${video.list.maxPageSize:1000}")
+	private int maxPageSize = 1000;
+
+	// How many videos one page request may look at before it stops, so
+	// that filters which match few videos can't make a request scan the
+	// whole catalog. The client continues from the returned cursor.
+	@Value("${video.list.maxScan:10000}")
+	private int maxListScan = 10000;
+
+	// The longest a GET /video/{id}/status request may wait for the status
+	// to change
+	@Value("${video.pipeline.maxStatusWaitMillis:30000}")
+	private long maxStatusWaitMillis = 30000;
+
+	// How long a streamed download may take; 0 means no limit
+	@Value("${video.io.asyncTimeoutMillis:0}")
+	private long asyncTimeoutMillis;
+
+	// Writes the full video list as it walks the catalog. The flush
+	// threshold can be changed with the video.list.flushEvery property.
+	@Value("${video.list.flushEvery:256}")
+	private int listFlushEvery = JsonArrayWriter.DEFAULT_FLUSH_EVERY;
+
+	private JsonArrayWriter listWriter;
+
+	// How video data is written to the client. Can be changed with the
+	// video.serve.mode property (sendfile, transfer, or copy).
+	private ServeMode serveMode = ServeMode.SENDFILE;
 	
 
 	public static final String DATA_PARAMETER = "data";
 	public static final String ID_PARAMETER = "id";
 	public static final String VIDEO_SVC_PATH = "/video";
 	public static final String VIDEO_DATA_PATH = VIDEO_SVC_PATH + "/{id}/data";
+	public static final String DIGEST_PARAMETER = VideoSvcApi.DIGEST_PARAMETER;
+	public static final String VIDEO_DATA_DIGEST_PATH = VideoSvcApi.VIDEO_DATA_DIGEST_PATH;
+	public static final String UPLOAD_ID_PARAMETER = VideoSvcApi.UPLOAD_ID_PARAMETER;
+	public static final String LIMIT_PARAMETER = VideoSvcApi.LIMIT_PARAMETER;
+	public static final String CURSOR_PARAMETER = VideoSvcApi.CURSOR_PARAMETER;
+	public static final String SUBJECT_PARAMETER = VideoSvcApi.SUBJECT_PARAMETER;
+	public static final String CONTENT_TYPE_PARAMETER = VideoSvcApi.CONTENT_TYPE_PARAMETER;
+	public static final String OFFSET_PARAMETER = VideoSvcApi.OFFSET_PARAMETER;
+	public static final String LENGTH_PARAMETER = VideoSvcApi.LENGTH_PARAMETER;
+	public static final String VIDEO_UPLOADS_PATH = VideoSvcApi.VIDEO_UPLOADS_PATH;
+	public static final String VIDEO_UPLOAD_PATH = VideoSvcApi.VIDEO_UPLOAD_PATH;
+	public static final String VIDEO_UPLOAD_FINALIZE_PATH = VideoSvcApi.VIDEO_UPLOAD_FINALIZE_PATH;
+	public static final String BLOCK_SIZE_PARAMETER = VideoSvcApi.BLOCK_SIZE_PARAMETER;
+	public static final String BASE_PARAMETER = VideoSvcApi.BASE_PARAMETER;
+	public static final String VIDEO_SIGNATURES_PATH = VideoSvcApi.VIDEO_SIGNATURES_PATH;
+	public static final String VIDEO_DELTA_PATH = VideoSvcApi.VIDEO_DELTA_PATH;
+	public static final String WAIT_PARAMETER = VideoSvcApi.WAIT_PARAMETER;
+	public static final String VIDEO_STATUS_PATH = VideoSvcApi.VIDEO_STATUS_PATH;
+
+	public static final String VIDEO_DATA_URL_PATH = VideoSvcApi.VIDEO_DATA_URL_PATH;
+	public static final String TIME_PARAMETER = VideoSvcApi.TIME_PARAMETER;
+	public static final String PART_NUMBER_PARAMETER = VideoSvcApi.PART_NUMBER_PARAMETER;
+	public static final String PART_SIZE_PARAMETER = VideoSvcApi.PART_SIZE_PARAMETER;
+	public static final String VIDEO_MULTIPART_UPLOADS_PATH = VideoSvcApi.VIDEO_MULTIPART_UPLOADS_PATH;
+	public static final String VIDEO_MULTIPART_UPLOAD_PATH = VideoSvcApi.VIDEO_MULTIPART_UPLOAD_PATH;
+	public static final String VIDEO_MULTIPART_PART_PATH = VideoSvcApi.VIDEO_MULTIPART_PART_PATH;
+	public static final String VIDEO_MULTIPART_COMPLETE_PATH = VideoSvcApi.VIDEO_MULTIPART_COMPLETE_PATH;
 	public static final String ERROR_MSG = "video not found";
+	public static final String BAD_CURSOR_MSG = "invalid cursor";
+	public static final String BAD_TIME_MSG = "invalid seek time";
+	public static final String MISSING_DATA_MSG = "no video data in request";
+	public static final String TOO_LARGE_MSG = "video data too large";
+	public static final String BUSY_MSG = "too many uploads being processed";
+	public static final String OCTET_STREAM = "application/octet-stream";
 
+	public static final String RANGE_HEADER = VideoSvcApi.RANGE_HEADER;
+	public static final String IF_RANGE_HEADER = VideoSvcApi.IF_RANGE_HEADER;
+	public static final String SEEK_TIME_HEADER = VideoSvcApi.SEEK_TIME_HEADER;
+	public static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+	public static final String CONTENT_RANGE_HEADER = "Content-Range";
+	public static final String CONTENT_LENGTH_HEADER = "Content-Length";
+	public static final String CONTENT_TYPE_HEADER = "Content-Type";
+	public static final String LAST_MODIFIED_HEADER = "Last-Modified";
+	public static final String ETAG_HEADER = "ETag";
+	public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	public static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+	public static final String RETRY_AFTER_HEADER = "Retry-After";
+	public static final String RETRY_AFTER_SECONDS = "1";
+	public static final String MULTIPART_BYTERANGES = "multipart/byteranges";
 
+	// Request attributes that Tomcat's NIO and APR connectors use to hand a
+	// file to the kernel's sendfile instead of writing it through the servlet
+	public static final String SENDFILE_SUPPORTED_ATTR = "org.apache.tomcat.sendfile.support";
+	public static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+	public static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+	public static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+
+	@Value("${video.serve.mode:sendfile}")
+	public void setServeMode(String mode) {
+		serveMode = ServeMode.valueOf(mode.trim().toUpperCase());
+	}
+
+
+	@PostConstruct
+	public void createListWriter() {
+		listWriter = new JsonArrayWriter(objectMapper, listFlushEvery);
+	}
+
+
+	/**
+	 * Returns all videos, or one page of them (see getVideoPage()) if the
+	 * client asks for a limit. All videos are streamed to the client as
+	 * they are read from the catalog, without copying them into a list
+	 * first. Both are served by this one mapping: a second
+	 * mapping with params = "limit" would make Spring read the parameters of
+	 * every request, which parses, and so uses up, multipart uploads.
+	 * @throws IOException 
+	 */
 	@RequestMapping(value=VIDEO_SVC_PATH, method = RequestMethod.GET)
-	public @ResponseBody Collection<Video> getVideoList() {
+	public @ResponseBody Object getVideoList(
+			@RequestParam(value = LIMIT_PARAMETER, required = false) Integer limit,
+			@RequestParam(value = CURSOR_PARAMETER, required = false) String cursor,
+			@RequestParam(value = SUBJECT_PARAMETER, required = false) String subject,
+			@RequestParam(value = CONTENT_TYPE_PARAMETER, required = false) String contentType,
+			HttpServletResponse response) throws IOException {
+
+		if (limit == null) {
+			listWriter.write(videos.values().iterator(), response);
+			return null;
+		}
+		return getVideoPage(limit, cursor, subject, contentType, response);
+	}
 
-		return videos.values();	
+
+	/**
+	 * Returns one page of the video list in ascending id order, starting
+	 * after the id in the cursor, optionally only with videos of the given
+	 * subject and content type. The work per request is bounded by the page
+	 * size and maxListScan, no matter how many videos there are.
+	 * @throws IOException 
+	 */
+	public VideoPage getVideoPage(int limit, String cursor, String subject, String contentType,
+			HttpServletResponse response) throws IOException {
+
+		Long after = null;
+		if (cursor != null && !cursor.isEmpty()) {
+			after = decodeCursor(cursor);
+			if (after == null) {
+				response.sendError(400, BAD_CURSOR_MSG);
+				return null;
+			}
+		}
+		if (limit <= 0) {
+			limit = defaultPageSize;
+		}
+		limit = Math.min(limit, maxPageSize);
+
+		List<Video> page = new ArrayList<Video>(limit);
+		long[] ids = new long[limit];
+		int scanned = 0;
+		while (page.size() < limit && scanned < maxListScan) {
+			int wanted = Math.min(limit - page.size(), maxListScan - scanned);
+			int count = videos.keysAfter(after, ids, wanted);
+			for (int i = 0; i < count; i++) {
+				after = ids[i];
+				Video v = videos.get(after);
+				if (v != null && (subject == null || subject.equals(v.getSubject()))
+						&& (contentType == null || contentType.equalsIgnoreCase(v.getContentType()))) {
+					page.add(v);
+				}
+			}
+			scanned += count;
+			if (count < wanted) {
+				// There are no videos after this page
+				return new VideoPage(page, null);
+			}
+		}
+		return new VideoPage(page, encodeCursor(after));
 	}
 
 
@@ -105,6 +381,7 @@ public class VideoSvcCtrl {
 		try {
 			save(v);
 			v.setDataUrl(getDataUrl(v.getId()));
+			journal.append(v);
 			return v;
 		} catch (Throwable e) {
 			response.sendError(404, ERROR_MSG);
@@ -122,28 +399,564 @@ public class VideoSvcCtrl {
 	 * request as a part with the key "data". The id in the path should be
 	 * replaced with the unique identifier generated by the server for the
 	 * Video
-	 * @param videoData
+	 * 
+	 * The request body is not resolved into a MultipartFile (see
+	 * StreamingMultipartResolver). It is read with the streaming API of
+	 * commons-fileupload instead, so the "data" part goes to disk while it
+	 * is being received, without the container spooling it first.
 	 * @return
 	 * @throws IOException 
 	 */
 	@RequestMapping(value = VIDEO_DATA_PATH, method = RequestMethod.POST) 
 	public @ResponseBody VideoStatus addVideoData(
 			@PathVariable(ID_PARAMETER) long id,
-			final @RequestParam(DATA_PARAMETER) MultipartFile videoData,
+			HttpServletRequest request,
 			HttpServletResponse response) 
 					throws IOException {
 
-		Video video;
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		if (!ServletFileUpload.isMultipartContent(request)) {
+			response.sendError(400, MISSING_DATA_MSG);
+			return null;
+		}
+		if (pipeline.isSaturated()) {
+			sendBusy(response);
+			return null;
+		}
+
+		ServletFileUpload upload = new ServletFileUpload();
+		upload.setFileSizeMax(maxUploadBytes);
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.UPLOAD, request, request.getContentLength())) {
+			FileItemIterator parts = upload.getItemIterator(shaped.wrap(request));
+			while (parts.hasNext()) {
+				FileItemStream part = parts.next();
+				if (!part.isFormField() && DATA_PARAMETER.equals(part.getFieldName())) {
+					try (InputStream videoData = part.openStream()) {
+						return streamSomeData(video, videoData, response);
+					}
+				}
+			}
+		} catch (FileUploadException e) {
+			response.sendError(400, MISSING_DATA_MSG);
+			return null;
+		}
+		response.sendError(400, MISSING_DATA_MSG);
+		return null;
+	}
+
+	/**
+	 * PUT /video/{id}/data
+	 * 
+	 * Upload a video's data as the raw application/octet-stream body of the
+	 * request, without multipart framing. The body is written to disk while
+	 * it is being received. Returns a 404 if the video doesn't exist and a
+	 * 413 if the data is larger than video.upload.maxBytes.
+	 * @return
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_DATA_PATH, method = RequestMethod.PUT, consumes = OCTET_STREAM)
+	public @ResponseBody VideoStatus putVideoData(
+			@PathVariable(ID_PARAMETER) long id,
+			HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		if (request.getContentLength() > maxUploadBytes) {
+			response.sendError(413, TOO_LARGE_MSG);
+			return null;
+		}
+		if (pipeline.isSaturated()) {
+			sendBusy(response);
+			return null;
+		}
+
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.UPLOAD, request, request.getContentLength())) {
+			InputStream videoData = new LimitedInputStream(shaped.wrap(request).getInputStream(), maxUploadBytes) {
+				@Override
+				protected void raiseError(long pSizeMax, long pCount) throws IOException {
+					throw new FileUploadIOException(new FileSizeLimitExceededException(
+							TOO_LARGE_MSG, pCount, pSizeMax));
+				}
+			};
+			return streamSomeData(video, videoData, response);
+		}
+	}
+
+	/**
+	 * POST /video/{id}/data/{digest}
+	 * 
+	 * Attaches data the server already stores to a video, identified by its
+	 * SHA-256 digest, so the client doesn't have to upload it again. Returns
+	 * a 404 if the video doesn't exist or no data with that digest is stored.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_DATA_DIGEST_PATH, method = RequestMethod.POST)
+	public @ResponseBody VideoStatus addVideoDataByDigest(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(DIGEST_PARAMETER) String digest,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null || !blobStore.link(video, digest)) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		dataCache.invalidate(id);
+		return new VideoStatus(committer.commit(id, null, null));
+	}
+
+
+	/**
+	 * GET /video/{id}/status?wait={millis}
+	 * 
+	 * Returns the processing status of the video's newest upload: the stage
+	 * of the processing pipeline it is in while it is PROCESSING, READY once
+	 * it is published, or FAILED along with the stage and the reason. While
+	 * it is PROCESSING, a client can ask to wait up to the given time (at
+	 * most video.pipeline.maxStatusWaitMillis) for the status to change
+	 * rather than polling; the request thread is given back while it waits.
+	 * Returns a 404 if the video doesn't exist or has neither data nor an
+	 * upload.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_STATUS_PATH, method = RequestMethod.GET)
+	public @ResponseBody DeferredResult<VideoStatus> getVideoStatus(
+			@PathVariable(ID_PARAMETER) final long id,
+			@RequestParam(value = WAIT_PARAMETER, required = false, defaultValue = "0") long wait,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		// Asked for before the status is read, so that a change in between
+		// ends the wait right away
+		ListenableFuture<Void> next = wait > 0 ? pipeline.nextStatus(id) : null;
+		VideoStatus status = pipeline.getStatus(id);
+		if (status == null) {
+			if (!storage.hasVideoData(video)) {
+				response.sendError(404, ERROR_MSG);
+				return null;
+			}
+			status = new VideoStatus(committer.getState(id));
+		}
+
+		if (next == null || status.getState() != VideoState.PROCESSING) {
+			DeferredResult<VideoStatus> result = new DeferredResult<VideoStatus>();
+			result.setResult(status);
+			return result;
+		}
+		final DeferredResult<VideoStatus> result = new DeferredResult<VideoStatus>(Math.min(wait, maxStatusWaitMillis));
+		Runnable update = new Runnable() {
+			@Override
+			public void run() {
+				result.setResult(pipeline.getStatus(id));
+			}
+		};
+		next.addListener(update, MoreExecutors.sameThreadExecutor());
+		result.onTimeout(update);
+		return result;
+	}
+
+
+	/**
+	 * GET /video/{id}/dataUrl
+	 * 
+	 * Returns a data URL for the video that is signed for the next
+	 * video.url.signing.ttlSeconds, along with when it expires (see
+	 * SignedDataUrls). If URLs aren't signed, it is the plain data URL and
+	 * never expires. Returns a 404 if the video doesn't exist.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_DATA_URL_PATH, method = RequestMethod.GET)
+	public @ResponseBody DataUrl getSignedDataUrl(
+			@PathVariable(ID_PARAMETER) long id,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		String dataUrl = getDataUrl(id);
+		if (!signedUrls.isEnabled()) {
+			return new DataUrl(dataUrl, 0);
+		}
+		long expires = signedUrls.expiresFromNow();
+		return new DataUrl(signedUrls.sign(dataUrl, id, expires), expires);
+	}
+
+
+	/**
+	 * GET /video/{id}/signatures?blockSize={bytes}
+	 * 
+	 * Returns the block signatures of the video's data, which a client
+	 * makes a delta against. The block size is picked from the data's
+	 * length unless the client asks for one. Returns a 404 if the video has
+	 * no data and a 400 if the block size isn't supported.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_SIGNATURES_PATH, method = RequestMethod.GET)
+	public @ResponseBody BlockSignatures getBlockSignatures(
+			@PathVariable(ID_PARAMETER) long id,
+			@RequestParam(value = BLOCK_SIZE_PARAMETER, required = false, defaultValue = "0") int blockSize,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null || !storage.hasVideoData(video)) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		if (blockSize == 0) {
+			blockSize = VideoDelta.blockSizeFor(storage.getVideoDataLength(video));
+		} else if (blockSize < VideoDelta.MIN_BLOCK_SIZE || blockSize > VideoDelta.MAX_BLOCK_SIZE) {
+			response.sendError(400, "block size must be between " + VideoDelta.MIN_BLOCK_SIZE + " and "
+					+ VideoDelta.MAX_BLOCK_SIZE);
+			return null;
+		}
+		VideoDelta.Signer signer = new VideoDelta.Signer(blockSize);
+		storage.copyVideoData(video, signer);
+		return signer.getSignatures();
+	}
+
+
+	/**
+	 * POST /video/{id}/delta?base={digest}&digest={digest}
+	 * 
+	 * Rebuilds the video's data from the delta in the request body and the
+	 * current data, whose digest must be the base. The result is written to
+	 * a staging file and published like an upload, but only if its SHA-256
+	 * is the digest the client sent. Returns a 409 if the current data isn't
+	 * the base or the result doesn't match, a 400 if the delta is malformed
+	 * and a 413 if the result is larger than video.upload.maxBytes.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_DELTA_PATH, method = RequestMethod.POST)
+	public @ResponseBody VideoStatus putVideoDelta(
+			@PathVariable(ID_PARAMETER) long id,
+			@RequestParam(BASE_PARAMETER) String base,
+			@RequestParam(DIGEST_PARAMETER) String digest,
+			HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+
+		final Video video = videos.get(id);
+		if (video == null || !storage.hasVideoData(video)) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		BasicFileAttributes attrs = storage.getVideoDataAttributes(video);
+		String current = digests.get(video, attrs);
+		if (current != null && !current.equalsIgnoreCase(base)) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, "the video data is no longer the base");
+			return null;
+		}
+		if (pipeline.isSaturated()) {
+			sendBusy(response);
+			return null;
+		}
+
+		// Copied blocks are read from the current data as the delta is
+		// applied. If that data is replaced in the meantime, the result
+		// won't match the digest.
+		Path staged = storage.createStagingFile();
+		MessageDigest md = VideoDataDigests.newDigest();
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.UPLOAD, request, request.getContentLength());
+				OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(staged)), md)) {
+			VideoDelta.apply(new BufferedInputStream(shaped.wrap(request).getInputStream()), attrs.size(),
+					new VideoDelta.BlockSource() {
+						@Override
+						public void copy(long offset, long length, OutputStream out) throws IOException {
+							storage.copyVideoData(video, offset, length, out);
+						}
+					}, out, maxUploadBytes);
+		} catch (DeltaTooLargeException e) {
+			Files.deleteIfExists(staged);
+			response.sendError(413, TOO_LARGE_MSG);
+			return null;
+		} catch (InvalidDeltaException e) {
+			Files.deleteIfExists(staged);
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		} catch (IOException e) {
+			Files.deleteIfExists(staged);
+			throw e;
+		}
+
+		String result = Hex.encodeHexString(md.digest());
+		if (!result.equalsIgnoreCase(digest)) {
+			Files.deleteIfExists(staged);
+			response.sendError(HttpServletResponse.SC_CONFLICT, "the rebuilt video data doesn't match the digest");
+			return null;
+		}
+		return processSomeData(video, staged, result, response);
+	}
+
+
+	/**
+	 * POST /video/{id}/uploads?length={bytes}
+	 * 
+	 * Starts a resumable upload of the video's data. The length is the
+	 * total number of bytes the client will send, if it knows it.
+	 * @return the new upload, whose offset is 0
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_UPLOADS_PATH, method = RequestMethod.POST)
+	public @ResponseBody UploadSession createUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@RequestParam(value = LENGTH_PARAMETER, required = false, defaultValue = "-1") long length,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
+		return uploads.create(video, length);
+	}
+
+
+	/**
+	 * GET /video/{id}/uploads/{uploadId}
+	 * 
+	 * Returns the state of an upload, so that a client that lost its
+	 * connection knows which offset to resume from.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_UPLOAD_PATH, method = RequestMethod.GET)
+	public @ResponseBody UploadSession getUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			HttpServletResponse response) throws IOException {
+
+		UploadSession session = uploads.get(id, uploadId);
+		if (session == null) {
+			response.sendError(404, ERROR_MSG);
+		}
+		return session;
+	}
+
+
+	/**
+	 * PUT /video/{id}/uploads/{uploadId}?offset={offset}
+	 * 
+	 * Appends the raw request body to an upload. Responds with a 409 and
+	 * the upload's real offset if the chunk doesn't start there or another
+	 * chunk is still being written, and with a 413 if the chunk is larger
+	 * than the server accepts.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_UPLOAD_PATH, method = RequestMethod.PUT)
+	public @ResponseBody UploadSession appendUploadChunk(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			@RequestParam(OFFSET_PARAMETER) long offset,
+			HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.UPLOAD, request, request.getContentLength())) {
+			UploadSession session = uploads.append(id, uploadId, offset, shaped.wrap(request).getInputStream());
+			if (session == null) {
+				response.sendError(404, ERROR_MSG);
+			}
+			return session;
+		} catch (OffsetMismatchException e) {
+			response.setStatus(HttpServletResponse.SC_CONFLICT);
+			return e.getSession();
+		} catch (ChunkTooLargeException e) {
+			response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+			return e.getSession();
+		}
+	}
+
+
+	/**
+	 * POST /video/{id}/uploads/{uploadId}/finalize
+	 * 
+	 * Atomically publishes the data received for an upload as the video's
+	 * data. Responds with a 409 if the upload hasn't reached the length
+	 * that was announced when it was created.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_UPLOAD_FINALIZE_PATH, method = RequestMethod.POST)
+	public @ResponseBody VideoStatus finalizeUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		// The place in the pipeline is taken before the upload is completed,
+		// so that a client that is turned away can try again
+		try (Reservation slot = pipeline.reserve()) {
+			CompletedUpload upload = video == null ? null : uploads.complete(video, uploadId);
+			if (upload == null) {
+				response.sendError(404, ERROR_MSG);
+				return null;
+			}
+			return processSomeData(slot, video, upload.getFile(), upload.getDigest(), response);
+		} catch (PipelineSaturatedException e) {
+			sendBusy(response);
+			return null;
+		} catch (OffsetMismatchException e) {
+			response.sendError(HttpServletResponse.SC_CONFLICT, e.getMessage());
+			return null;
+		}
+	}
+
+
+	/**
+	 * DELETE /video/{id}/uploads/{uploadId}
+	 * 
+	 * Abandons an upload and discards its data.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_UPLOAD_PATH, method = RequestMethod.DELETE)
+	public void abortUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			HttpServletResponse response) throws IOException {
+
+		uploads.abort(id, uploadId);
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+
+
+	/**
+	 * POST /video/{id}/multipart?length={bytes}&partSize={bytes}
+	 * 
+	 * Starts a multipart upload of the video's data, whose parts can be
+	 * sent in parallel. Responds with a 400 if the part size is out of the
+	 * range the server accepts.
+	 * @return the new upload, without any parts
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_MULTIPART_UPLOADS_PATH, method = RequestMethod.POST)
+	public @ResponseBody MultipartUpload createMultipartUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@RequestParam(value = LENGTH_PARAMETER, required = false, defaultValue = "-1") long length,
+			@RequestParam(PART_SIZE_PARAMETER) long partSize,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		if (video == null) {
+			response.sendError(404, ERROR_MSG);
+			return null;
+		}
 		try {
-			video = videos.get(id);
-			saveSomeData(video, videoData);	
-		} catch (Throwable e) {
+			return multipartUploads.create(video, length, partSize);
+		} catch (InvalidPartException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+	}
+
+
+	/**
+	 * GET /video/{id}/multipart/{uploadId}
+	 * 
+	 * Returns the state of a multipart upload and the parts received so far.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_MULTIPART_UPLOAD_PATH, method = RequestMethod.GET)
+	public @ResponseBody MultipartUpload getMultipartUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			HttpServletResponse response) throws IOException {
+
+		MultipartUpload upload = multipartUploads.get(id, uploadId);
+		if (upload == null) {
 			response.sendError(404, ERROR_MSG);
-		} finally {
-			return new VideoStatus(VideoState.READY);
 		}
+		return upload;
+	}
+
+
+	/**
+	 * PUT /video/{id}/multipart/{uploadId}/parts/{partNumber}
+	 * 
+	 * Stores the raw request body as one part of a multipart upload.
+	 * Responds with a 400 if the part doesn't fit the upload.
+	 * @return the part and its etag
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_MULTIPART_PART_PATH, method = RequestMethod.PUT)
+	public @ResponseBody UploadPart uploadPart(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			@PathVariable(PART_NUMBER_PARAMETER) int partNumber,
+			HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.UPLOAD, request, request.getContentLength())) {
+			UploadPart part = multipartUploads.putPart(id, uploadId, partNumber, shaped.wrap(request).getInputStream());
+			if (part == null) {
+				response.sendError(404, ERROR_MSG);
+			}
+			return part;
+		} catch (InvalidPartException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+	}
+
+
+	/**
+	 * POST /video/{id}/multipart/{uploadId}/complete
+	 * 
+	 * Atomically publishes the parts listed in the JSON body as the video's
+	 * data. Responds with a 400 if the list doesn't match the parts that
+	 * were received.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_MULTIPART_COMPLETE_PATH, method = RequestMethod.POST)
+	public @ResponseBody VideoStatus completeMultipartUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			@RequestBody List<UploadPart> parts,
+			HttpServletResponse response) throws IOException {
+
+		Video video = videos.get(id);
+		// The place in the pipeline is taken before the upload is completed,
+		// so that a client that is turned away can try again
+		try (Reservation slot = pipeline.reserve()) {
+			CompletedUpload upload = video == null ? null : multipartUploads.complete(video, uploadId, parts);
+			if (upload == null) {
+				response.sendError(404, ERROR_MSG);
+				return null;
+			}
+			return processSomeData(slot, video, upload.getFile(), upload.getDigest(), response);
+		} catch (PipelineSaturatedException e) {
+			sendBusy(response);
+			return null;
+		} catch (InvalidPartException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return null;
+		}
+	}
 
 
+	/**
+	 * DELETE /video/{id}/multipart/{uploadId}
+	 * 
+	 * Abandons a multipart upload and discards its parts.
+	 * @throws IOException 
+	 */
+	@RequestMapping(value = VIDEO_MULTIPART_UPLOAD_PATH, method = RequestMethod.DELETE)
+	public void abortMultipartUpload(
+			@PathVariable(ID_PARAMETER) long id,
+			@PathVariable(UPLOAD_ID_PARAMETER) String uploadId,
+			HttpServletResponse response) throws IOException {
+
+		multipartUploads.abort(id, uploadId);
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
 	}
 
 	/**
@@ -152,6 +965,19 @@ public class VideoSvcCtrl {
 	 * Returns the binary mpeg data (if any) for the video with the given
 	 * identifier. If no mpeg data has been uploaded for the specified video,
 	 * then the server should return a 404 status code.
+	 * 
+	 * Clients that seek or resume a download can send a Range header with one
+	 * or more byte ranges. A single range is answered with a 206 and a
+	 * Content-Range header, several ranges with a 206 multipart/byteranges
+	 * body, and ranges that lie entirely past the end of the data with a 416.
+	 * An If-Range header that no longer matches the stored data causes the
+	 * whole video to be sent instead.
+	 * 
+	 * Clients that seek by time instead send a t parameter with the time in
+	 * seconds. If the data has a time index (see VideoContainerIndex), the
+	 * answer is a 206 from the last keyframe at or before that time to the
+	 * end, with the keyframe's time in milliseconds in an X-Seek-Time header,
+	 * and any Range header is ignored. Otherwise the whole video is sent.
 	 * @param id
 	 * @return video
 	 * @throws IOException 
@@ -159,18 +985,51 @@ public class VideoSvcCtrl {
 	@RequestMapping(value = VIDEO_DATA_PATH, method = RequestMethod.GET)
 	public void getData(
 			@PathVariable("id") long id,
+			HttpServletRequest request,
 			HttpServletResponse response) throws IOException {
 
+		// SignedDataUrlFilter should have turned away unsigned requests
+		// already; this catches any path it didn't recognize as video data
+		if (signedUrls.isRequired() && !SignedDataUrls.isVerified(request)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN, SignedDataUrlFilter.SIGNATURE_REQUIRED_MSG);
+			return;
+		}
+
 		//response.setContentType("video/mpeg");
-		Video video = videos.get(id);
+		final Video video = videos.get(id);
 
-		try {
-			serveSomeVideo(video, response);
-		} catch (Throwable e) {
-			//throw new FileNotFoundException();
-			response.sendError(404, ERROR_MSG);
+		// With sendfile the connector streams the file after we return, so
+		// there is nothing to gain from handing the request off
+		if (!request.isAsyncSupported() || resolveServeMode(request, video) == ServeMode.SENDFILE) {
+			serveSomeVideoOrNotFound(video, request, response);
+			return;
 		}
 
+		// Otherwise stream the data from the I/O pool and give this request
+		// thread back to the container right away, so that slow downloads
+		// can't starve quick calls like GET /video
+		final AsyncContext async = request.startAsync(request, response);
+		async.setTimeout(asyncTimeoutMillis);
+		try {
+			videoIoExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						serveSomeVideoOrNotFound(video,
+								(HttpServletRequest) async.getRequest(),
+								(HttpServletResponse) async.getResponse());
+					} catch (IOException e) {
+						// The client went away
+					} finally {
+						async.complete();
+					}
+				}
+			});
+		} catch (TaskRejectedException e) {
+			response.setHeader(RETRY_AFTER_HEADER, RETRY_AFTER_SECONDS);
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			async.complete();
+		}
 	}
 
 
@@ -180,6 +1039,16 @@ public class VideoSvcCtrl {
 	///////////////////////////////////// HELPERS //////////////////////////////////////////
 
 
+	/**
+	 * Loads the videos that were added before the last restart, and makes
+	 * sure new videos get ids that were never used before
+	 * @throws IOException 
+	 */
+	@PostConstruct
+	public void recoverVideos() throws IOException {
+		journal.recover(videos, currentId);
+	}
+
 	/**
 	 * Saving a video to the database
 	 */
@@ -202,28 +1071,432 @@ public class VideoSvcCtrl {
 	}
 
 	/**
-	 * Save some or part of a videos data when
-	 * we're initially uploading it from MultipartFile data
+	 * Save some or part of a videos data while
+	 * it is being read from the request. The data
+	 * is only written to a staging file here, and
+	 * hashed as it is written, so that the pipeline
+	 * doesn't have to read it back to hash it; it is
+	 * published by the processing pipeline, and the
+	 * returned status tells whether that happened
+	 * within its ack timeout
 	 * @throws IOException 
 	 */
-	public void saveSomeData(Video video, MultipartFile videoData) throws IOException {
+	public VideoStatus saveSomeData(Video video, InputStream videoData) throws IOException {
 		
-		mVideoFileManager = VideoFileManager.get();
-		
-		mVideoFileManager.saveVideoData(video, videoData.getInputStream());
+		Path staged = storage.createStagingFile();
+		String digest;
+		try {
+			MessageDigest md = VideoDataDigests.newDigest();
+			Files.copy(new DigestInputStream(videoData, md), staged, StandardCopyOption.REPLACE_EXISTING);
+			digest = Hex.encodeHexString(md.digest());
+		} catch (IOException e) {
+			Files.deleteIfExists(staged);
+			throw e;
+		}
+		return pipeline.process(video, staged, digest);
+	}
+
+	/**
+	 * Hand a staging file to the processing pipeline as a video's new data,
+	 * or send a 503 if the pipeline is full and a 400 if the data isn't
+	 * valid video data
+	 * @throws IOException 
+	 */
+	private VideoStatus processSomeData(Video video, Path staged, String digest, HttpServletResponse response)
+			throws IOException {
+		try {
+			return pipeline.process(video, staged, digest);
+		} catch (PipelineSaturatedException e) {
+			sendBusy(response);
+			return null;
+		} catch (VerificationException e) {
+			response.sendError(400, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Hand a staging file to the processing pipeline as a video's new data,
+	 * in a place that was reserved for it, or send a 400 if the data isn't
+	 * valid video data
+	 * @throws IOException 
+	 */
+	private VideoStatus processSomeData(Reservation slot, Video video, Path staged, String digest,
+			HttpServletResponse response) throws IOException {
+		try {
+			return slot.process(video, staged, digest);
+		} catch (VerificationException e) {
+			response.sendError(400, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Turn an upload away because the processing pipeline is full
+	 * @throws IOException 
+	 */
+	private void sendBusy(HttpServletResponse response) throws IOException {
+		response.setHeader(RETRY_AFTER_HEADER, RETRY_AFTER_SECONDS);
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, BUSY_MSG);
+	}
+
+	/**
+	 * Save a video's data from a streamed request body, or send a 413 if
+	 * the body turns out to be larger than the upload limit
+	 * @throws IOException 
+	 */
+	private VideoStatus streamSomeData(Video video, InputStream videoData, HttpServletResponse response)
+			throws IOException {
+		try {
+			return saveSomeData(video, videoData);
+		} catch (PipelineSaturatedException e) {
+			sendBusy(response);
+			return null;
+		} catch (VerificationException e) {
+			response.sendError(400, e.getMessage());
+			return null;
+		} catch (FileUploadIOException e) {
+			if (e.getCause() instanceof FileSizeLimitExceededException) {
+				response.sendError(413, TOO_LARGE_MSG);
+				return null;
+			}
+			throw e;
+		}
 	}
 
 
 	/**
-	 * Serve video to the client through an HttpServletResponse
+	 * Serve video to the client, or send a 404 if there is no data for it
+	 * @throws IOException 
+	 */
+	private void serveSomeVideoOrNotFound(Video video, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
+		try {
+			serveSomeVideo(video, request, response);
+		} catch (Throwable e) {
+			//throw new FileNotFoundException();
+			if (!response.isCommitted()) {
+				response.sendError(404, ERROR_MSG);
+			}
+		}
+	}
+
+
+	/**
+	 * Serve video to the client through an HttpServletResponse, honoring
+	 * any Range and If-Range headers on the request. The data's SHA-256
+	 * digest is sent as its ETag, and a client whose cached copy is still
+	 * current, going by If-None-Match or If-Modified-Since, gets a 304
+	 * without any data
+	 * 
+	 * The response is made from one version of the data, acquired up
+	 * front: the headers and every byte of every range come from it, even
+	 * if a new upload is published while the response is being sent
 	 * @param video
+	 * @param request
 	 * @param response
 	 * @throws IOException 
 	 */
-	public void serveSomeVideo(Video video, HttpServletResponse response) throws IOException {
-		response.setContentType(video.getContentType());
-		mVideoFileManager = VideoFileManager.get();
-		mVideoFileManager.copyVideoData(video, response.getOutputStream());
+	public void serveSomeVideo(Video video, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		try (VideoDataVersion data = storage.acquireVideoData(video)) {
+			serveSomeVideo(video, data, request, response);
+		}
+	}
+
+	private void serveSomeVideo(Video video, VideoDataVersion data, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		BasicFileAttributes attrs = data.getAttributes();
+		long length = attrs.size();
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		String digest = digests.get(video, attrs);
+		String etag = digest == null ? null : "\"" + digest + "\"";
+
+		response.setHeader(ACCEPT_RANGES_HEADER, ByteRange.BYTES_UNIT);
+		response.setDateHeader(LAST_MODIFIED_HEADER, lastModified);
+		if (etag != null) {
+			response.setHeader(ETAG_HEADER, etag);
+		}
+
+		if (isNotModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		List<ByteRange> ranges = null;
+		String time = request.getParameter(TIME_PARAMETER);
+		if (time != null) {
+			Long millis = parseSeekTime(time);
+			if (millis == null) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, BAD_TIME_MSG);
+				return;
+			}
+			ranges = seekRanges(video, digest, millis, length, response);
+		} else if (isIfRangeSatisfied(request, etag, lastModified)) {
+			ranges = ByteRange.parse(request.getHeader(RANGE_HEADER), length);
+		}
+
+		if (ranges != null && ranges.isEmpty()) {
+			response.setHeader(CONTENT_RANGE_HEADER, ByteRange.toUnsatisfiedContentRange(length));
+			response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			return;
+		}
+
+		long bodyLength = length;
+		if (ranges != null) {
+			bodyLength = 0;
+			for (ByteRange range : ranges) {
+				bodyLength += range.getLength();
+			}
+		}
+
+		tiers.recordAccess(video);
+
+		// The body goes out through the bandwidth shaper, if it's limiting
+		// downloads
+		try (BandwidthShaper.Transfer shaped = shaper.begin(Direction.DOWNLOAD, request, bodyLength)) {
+			response = shaped.wrap(response);
+			if (ranges == null) {
+				response.setContentType(video.getContentType());
+				response.setHeader(CONTENT_LENGTH_HEADER, Long.toString(length));
+				sendSomeBytes(data, video, 0, length, request, response);
+			} else if (ranges.size() == 1) {
+				ByteRange range = ranges.get(0);
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setContentType(video.getContentType());
+				response.setHeader(CONTENT_RANGE_HEADER, range.toContentRange(length));
+				response.setHeader(CONTENT_LENGTH_HEADER, Long.toString(range.getLength()));
+				sendSomeBytes(data, video, range.getFirst(), range.getLength(), request, response);
+			} else {
+				serveSomeRanges(data, video, ranges, length, response);
+			}
+		}
+	}
+
+
+	/**
+	 * Send one contiguous run of a video's bytes as the whole response body
+	 * using the configured serving mode. Sendfile is only used when the
+	 * connector advertises support for it; otherwise the bytes are copied
+	 * through the servlet output stream as before.
+	 * @throws IOException 
+	 */
+	private void sendSomeBytes(VideoDataVersion data, Video video, long offset, long length,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+		ServeMode mode = resolveServeMode(request, video);
+		// The connector opens the file by its name after this request has
+		// returned and the version has been closed, so it gets a name that
+		// goes on naming this version whatever is published by then. If
+		// there is none, the bytes have to come from the version itself.
+		Path pinned = null;
+		if (mode == ServeMode.SENDFILE) {
+			pinned = data.getPinnedPath();
+			if (pinned == null) {
+				mode = ServeMode.TRANSFER;
+			}
+		}
+		Transfer transfer = transferMetrics.begin(mode);
+		switch (mode) {
+		case SENDFILE:
+			// The connector streams the file once this request returns
+			request.setAttribute(SENDFILE_FILENAME_ATTR, pinned.toString());
+			request.setAttribute(SENDFILE_START_ATTR, Long.valueOf(offset));
+			request.setAttribute(SENDFILE_END_ATTR, Long.valueOf(offset + length));
+			break;
+		case TRANSFER:
+			data.transferTo(offset, length, Channels.newChannel(response.getOutputStream()));
+			break;
+		default:
+			copySomeBytes(data, video, offset, length, response.getOutputStream());
+			break;
+		}
+		transferMetrics.end(transfer, length);
+	}
+
+
+	/**
+	 * The serving mode to use for a request: the configured one, except that
+	 * sendfile falls back to a plain copy when the connector can't do it,
+	 * and to a transfer through the shaped response stream when downloads
+	 * are being shaped, since the connector's sendfile can't be throttled,
+	 * or when the storage doesn't keep the data in files
+	 */
+	private ServeMode resolveServeMode(HttpServletRequest request, Video video) {
+		if (serveMode == ServeMode.SENDFILE && !Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTR))) {
+			return ServeMode.COPY;
+		}
+		if (serveMode == ServeMode.SENDFILE
+				&& (shaper.isShaping(Direction.DOWNLOAD) || video != null && storage.getVideoDataPath(video) == null)) {
+			return ServeMode.TRANSFER;
+		}
+		return serveMode;
+	}
+
+
+	/**
+	 * Copy a run of a video's bytes to the client, straight out of the
+	 * memory-mapped cache if the video is hot enough to be cached
+	 * @throws IOException 
+	 */
+	private void copySomeBytes(VideoDataVersion data, Video video, long offset, long length,
+			OutputStream out) throws IOException {
+
+		ByteBuffer cached = dataCache.get(data, video);
+		if (cached != null) {
+			dataCache.write(cached, offset, length, out);
+		} else {
+			data.copyTo(offset, length, out);
+		}
+	}
+
+
+	/**
+	 * Serve several ranges of a video as a multipart/byteranges body. Each
+	 * part carries its own Content-Type and Content-Range headers.
+	 * @throws IOException 
+	 */
+	private void serveSomeRanges(VideoDataVersion data, Video video,
+			List<ByteRange> ranges, long length, HttpServletResponse response) throws IOException {
+
+		String boundary = UUID.randomUUID().toString().replace("-", "");
+		List<byte[]> partHeaders = new ArrayList<byte[]>(ranges.size());
+		byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+		long contentLength = trailer.length;
+		for (ByteRange range : ranges) {
+			StringBuilder part = new StringBuilder();
+			part.append("\r\n--").append(boundary).append("\r\n");
+			if (video.getContentType() != null) {
+				part.append(CONTENT_TYPE_HEADER).append(": ").append(video.getContentType()).append("\r\n");
+			}
+			part.append(CONTENT_RANGE_HEADER).append(": ").append(range.toContentRange(length)).append("\r\n\r\n");
+			byte[] header = part.toString().getBytes(StandardCharsets.US_ASCII);
+			partHeaders.add(header);
+			contentLength += header.length + range.getLength();
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType(MULTIPART_BYTERANGES + "; boundary=" + boundary);
+		response.setHeader(CONTENT_LENGTH_HEADER, Long.toString(contentLength));
+
+		OutputStream out = response.getOutputStream();
+		for (int i = 0; i < ranges.size(); i++) {
+			ByteRange range = ranges.get(i);
+			out.write(partHeaders.get(i));
+			copySomeBytes(data, video, range.getFirst(), range.getLength(), out);
+		}
+		out.write(trailer);
+	}
+
+
+	/**
+	 * A client's copy is current if one of the entity tags in its
+	 * If-None-Match header matches the data's ETag (weak tags are compared
+	 * by their value), or if it has no If-None-Match header and the data
+	 * hasn't changed since its If-Modified-Since date.
+	 */
+	private boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader(IF_NONE_MATCH_HEADER);
+		if (ifNoneMatch != null) {
+			if (ifNoneMatch.trim().equals("*")) {
+				return true;
+			}
+			if (etag == null) {
+				return false;
+			}
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/")) {
+					tag = tag.substring(2);
+				}
+				if (tag.equals(etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		try {
+			long since = request.getDateHeader(IF_MODIFIED_SINCE_HEADER);
+			// HTTP dates only have one second resolution
+			return since >= 0 && lastModified / 1000 <= since / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * A Range header only applies if the request has no If-Range header or
+	 * if its If-Range entity tag or date still matches the stored data.
+	 * Only a strong match of the ETag counts.
+	 */
+	private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader(IF_RANGE_HEADER);
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(etag);
+		}
+		try {
+			// HTTP dates only have one second resolution
+			return request.getDateHeader(IF_RANGE_HEADER) / 1000 == lastModified / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+
+	/**
+	 * The range to send for a request that seeks to the given time: from
+	 * the last indexed keyframe at or before it to the end of the data.
+	 * Returns null, for the whole data, if the data has no time index
+	 * @throws IOException 
+	 */
+	private List<ByteRange> seekRanges(Video video, String digest, long millis, long length,
+			HttpServletResponse response) throws IOException {
+		VideoTimeIndex index = containerIndex.getTimeIndex(video, digest);
+		int entry = index == null ? -1 : index.seek(millis);
+		if (entry < 0 || index.getOffset(entry) >= length) {
+			return null;
+		}
+		response.setHeader(SEEK_TIME_HEADER, Long.toString(index.getMillis(entry)));
+		return Collections.singletonList(new ByteRange(index.getOffset(entry), length - 1));
+	}
+
+	/**
+	 * A seek time is a non-negative number of seconds, e.g., "720" or
+	 * "12.5"
+	 */
+	private static Long parseSeekTime(String time) {
+		try {
+			double seconds = Double.parseDouble(time);
+			if (seconds < 0 || Double.isNaN(seconds) || Double.isInfinite(seconds)) {
+				return null;
+			}
+			return (long) (seconds * 1000);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+
+	/**
+	 * A cursor is the id of the last video a page looked at. Clients treat
+	 * it as opaque, which leaves room to change what it holds.
+	 */
+	private static String encodeCursor(long id) {
+		return Long.toString(id);
+	}
+
+	private static Long decodeCursor(String cursor) {
+		try {
+			return Long.valueOf(cursor);
+		} catch (NumberFormatException e) {
+			return null;
+		}
 	}
 
 
@@ -0,0 +1,496 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.magnum.dataup.VideoFileManager.Tier;
+import org.magnum.dataup.VideoFileManager.TierMoveListener;
+import org.magnum.dataup.model.Video;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the most watched videos in the fast storage tier (the "videos"
+ * folder) and the rest in the capacity tier, when video.tier.capacityDir
+ * names a directory for one. Without it, all of the data stays in the
+ * videos folder, as before.
+ * 
+ * Every download counts as an access to the video. Each video has a heat
+ * score that goes up by one with every access and halves every
+ * video.tier.halfLifeMillis, so it reflects both how often and how
+ * recently the video was watched. Every video.tier.intervalMillis a
+ * background pass ranks the videos by heat (videos nobody has watched yet
+ * by how recently they were uploaded) and fills the fast tier, up to
+ * video.tier.fastBudgetBytes, with the hottest ones. Videos that don't
+ * make the cut are demoted first, and a video in the capacity tier is only
+ * promoted once its heat reaches video.tier.promoteMinHeat, so that a
+ * single look at an old video doesn't move it. A pass moves at most
+ * video.tier.maxBytesPerPass bytes, so migrations never swamp the disks.
+ * 
+ * New uploads always go to the fast tier, so it can run over its budget
+ * until the next pass. Data shared through the blob store (see
+ * VideoBlobStore) stays where it is, since moving one name of a shared
+ * file would only make a second copy of it. Reads find the data in
+ * whichever tier holds it (see VideoFileManager), and moves keep the
+ * data's ETag by recording its digest again for the moved file. Tiering
+ * needs one of the file-based storage backends; with the memory backend
+ * there is nothing to tier.
+ * 
+ * The tiers are described by the gauges:
+ * 
+ *   gauge.video.tier.fastHits / capacityHits - downloads served from each tier
+ *   gauge.video.tier.hitRate                 - share of downloads served from the fast tier
+ *   gauge.video.tier.fastBytes / capacityBytes
+ *   gauge.video.tier.promotions / demotions
+ *   gauge.video.tier.promotedBytes / demotedBytes
+ *   gauge.video.tier.migrationMbPerSecond    - bytes moved / time spent moving them
+ */
+@Component
+public class VideoTierManager {
+
+	private static final Logger LOG = LoggerFactory.getLogger(VideoTierManager.class);
+
+	private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+	@Value("${video.tier.capacityDir:}")
+	private String capacityDir = "";
+
+	@Value("${video.tier.fastBudgetBytes:1073741824}")
+	private long fastBudgetBytes = 1024L * 1024 * 1024;
+
+	@Value("${video.tier.intervalMillis:30000}")
+	private long intervalMillis = 30000;
+
+	@Value("${video.tier.halfLifeMillis:3600000}")
+	private long halfLifeMillis = 3600000;
+
+	@Value("${video.tier.promoteMinHeat:2}")
+	private double promoteMinHeat = 2;
+
+	@Value("${video.tier.maxBytesPerPass:268435456}")
+	private long maxBytesPerPass = 256L * 1024 * 1024;
+
+	@Autowired
+	private VideoStorage storage;
+
+	@Autowired(required = false)
+	private VideoDataDigests digests;
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	@Autowired(required = false)
+	private VideoBlobStore blobStore;
+
+	private final ConcurrentMap<Long, Heat> heat = new ConcurrentHashMap<Long, Heat>();
+
+	private final AtomicLong fastHits = new AtomicLong();
+	private final AtomicLong capacityHits = new AtomicLong();
+	private final AtomicLong promotions = new AtomicLong();
+	private final AtomicLong demotions = new AtomicLong();
+	private final AtomicLong promotedBytes = new AtomicLong();
+	private final AtomicLong demotedBytes = new AtomicLong();
+	private final AtomicLong migrationNanos = new AtomicLong();
+
+	private volatile long fastBytes;
+	private volatile long capacityBytes;
+
+	private volatile boolean enabled;
+
+	private VideoFileManager fileManager;
+
+	private ScheduledExecutorService mover;
+
+	// Moves the data's digest along with it, so the video keeps its ETag
+	private final TierMoveListener keepDigest = new TierMoveListener() {
+		@Override
+		public void moved(Video v, BasicFileAttributes from, BasicFileAttributes to) throws IOException {
+			if (digests == null) {
+				return;
+			}
+			String digest = digests.get(v, from);
+			if (digest != null) {
+				digests.record(v, digest, to);
+			}
+		}
+	};
+
+	public VideoTierManager() {
+	}
+
+	/**
+	 * Creates a manager for a capacity tier of the given storage in the given
+	 * directory. With an interval of 0 there is no background pass and
+	 * rebalance() has to be called instead.
+	 * 
+	 * @param storage
+	 * @param capacityDir
+	 * @param fastBudgetBytes
+	 * @param intervalMillis
+	 * @param halfLifeMillis
+	 * @param promoteMinHeat
+	 * @throws IOException
+	 */
+	public VideoTierManager(VideoFileManager storage, Path capacityDir, long fastBudgetBytes, long intervalMillis,
+			long halfLifeMillis, double promoteMinHeat) throws IOException {
+		this.storage = storage;
+		this.capacityDir = capacityDir.toString();
+		this.fastBudgetBytes = fastBudgetBytes;
+		this.intervalMillis = intervalMillis;
+		this.halfLifeMillis = halfLifeMillis;
+		this.promoteMinHeat = promoteMinHeat;
+		init();
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		if (capacityDir == null || capacityDir.isEmpty()) {
+			return;
+		}
+		if (!(storage instanceof VideoFileManager)) {
+			LOG.warn("Ignoring video.tier.capacityDir, since the video storage doesn't keep its data in files");
+			return;
+		}
+		fileManager = (VideoFileManager) storage;
+		fileManager.setCapacityDirectory(Paths.get(capacityDir));
+		enabled = true;
+
+		if (intervalMillis > 0) {
+			mover = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "video-tier-mover");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			mover.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						rebalance();
+					} catch (IOException | RuntimeException e) {
+						LOG.warn("Could not rebalance the video storage tiers", e);
+					}
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Stops the background pass, letting a move that is under way finish.
+	 * 
+	 * @throws InterruptedException
+	 */
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		if (mover != null) {
+			mover.shutdown();
+			mover.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Records a download of the given video, counting it as a hit for the
+	 * tier that holds its data and warming the video up.
+	 * 
+	 * @param v
+	 */
+	public void recordAccess(Video v) {
+		if (!enabled) {
+			return;
+		}
+		Tier tier = fileManager.getVideoDataTier(v);
+		if (tier == null) {
+			return;
+		}
+		(tier == Tier.FAST ? fastHits : capacityHits).incrementAndGet();
+
+		long now = System.currentTimeMillis();
+		Heat h = heat.get(v.getId());
+		if (h == null) {
+			Heat created = new Heat();
+			h = heat.putIfAbsent(v.getId(), created);
+			if (h == null) {
+				h = created;
+			}
+		}
+		h.touch(now, halfLifeMillis);
+		publish();
+	}
+
+	/**
+	 * Runs one pass of the mover: demotes the videos that no longer belong
+	 * in the fast tier and promotes the ones that do, within the fast
+	 * tier's budget. Normally called in the background.
+	 * 
+	 * @throws IOException
+	 */
+	public synchronized void rebalance() throws IOException {
+		if (!enabled) {
+			return;
+		}
+		Map<Long, BasicFileAttributes> fast = fileManager.listVideoData(Tier.FAST);
+		Map<Long, BasicFileAttributes> capacity = fileManager.listVideoData(Tier.CAPACITY);
+		long now = System.currentTimeMillis();
+
+		long fastUsed = 0;
+		long capacityUsed = 0;
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (Map.Entry<Long, BasicFileAttributes> e : fast.entrySet()) {
+			Video v = video(e.getKey());
+			if (isInBlobStore(v)) {
+				continue;
+			}
+			fastUsed += e.getValue().size();
+			candidates.add(new Candidate(v, Tier.FAST, e.getValue(), heat.get(e.getKey()), now));
+		}
+		for (Map.Entry<Long, BasicFileAttributes> e : capacity.entrySet()) {
+			if (!fast.containsKey(e.getKey())) {
+				capacityUsed += e.getValue().size();
+				candidates.add(new Candidate(video(e.getKey()), Tier.CAPACITY, e.getValue(), heat.get(e.getKey()), now));
+			}
+		}
+		// Forget deleted videos
+		heat.keySet().retainAll(union(fast, capacity));
+
+		// The hottest videos that fit the budget belong in the fast tier
+		Collections.sort(candidates, HOTTEST_FIRST);
+		long wanted = 0;
+		List<Candidate> demote = new ArrayList<Candidate>();
+		List<Candidate> promote = new ArrayList<Candidate>();
+		for (Candidate c : candidates) {
+			boolean eligible = c.tier == Tier.FAST || c.heat >= promoteMinHeat;
+			if (eligible && wanted + c.size <= fastBudgetBytes) {
+				wanted += c.size;
+				if (c.tier == Tier.CAPACITY) {
+					promote.add(c);
+				}
+			} else if (c.tier == Tier.FAST) {
+				demote.add(c);
+			}
+		}
+		Collections.reverse(demote);
+
+		long moved = 0;
+		for (Candidate c : demote) {
+			if (moved >= maxBytesPerPass) {
+				break;
+			}
+			long bytes = move(c.video, Tier.CAPACITY);
+			if (bytes >= 0) {
+				moved += bytes;
+				fastUsed -= bytes;
+				capacityUsed += bytes;
+				demotions.incrementAndGet();
+				demotedBytes.addAndGet(bytes);
+			}
+		}
+		for (Candidate c : promote) {
+			if (moved >= maxBytesPerPass) {
+				break;
+			}
+			if (fastUsed + c.size > fastBudgetBytes) {
+				continue;
+			}
+			long bytes = move(c.video, Tier.FAST);
+			if (bytes >= 0) {
+				moved += bytes;
+				fastUsed += bytes;
+				capacityUsed -= bytes;
+				promotions.incrementAndGet();
+				promotedBytes.addAndGet(bytes);
+			}
+		}
+
+		fastBytes = fastUsed;
+		capacityBytes = capacityUsed;
+		publish();
+	}
+
+	private long move(Video v, Tier tier) throws IOException {
+		long start = System.nanoTime();
+		long bytes = fileManager.moveVideoData(v, tier, keepDigest);
+		migrationNanos.addAndGet(System.nanoTime() - start);
+		return bytes;
+	}
+
+	// Asks the blob store rather than counting the file's links, since a
+	// download being sent with sendfile links the file too
+	private boolean isInBlobStore(Video v) {
+		return blobStore != null && blobStore.isEnabled() && blobStore.getDigest(v) != null;
+	}
+
+	private static Video video(long id) {
+		Video v = new Video();
+		v.setId(id);
+		return v;
+	}
+
+	private static Set<Long> union(Map<Long, ?> a, Map<Long, ?> b) {
+		Set<Long> ids = new HashSet<Long>(a.keySet());
+		ids.addAll(b.keySet());
+		return ids;
+	}
+
+	public long getFastHits() {
+		return fastHits.get();
+	}
+
+	public long getCapacityHits() {
+		return capacityHits.get();
+	}
+
+	public double getHitRate() {
+		long f = fastHits.get();
+		long all = f + capacityHits.get();
+		return all == 0 ? 0 : (double) f / all;
+	}
+
+	public long getPromotions() {
+		return promotions.get();
+	}
+
+	public long getDemotions() {
+		return demotions.get();
+	}
+
+	public long getPromotedBytes() {
+		return promotedBytes.get();
+	}
+
+	public long getDemotedBytes() {
+		return demotedBytes.get();
+	}
+
+	public double getMigrationMegabytesPerSecond() {
+		long nanos = migrationNanos.get();
+		long bytes = promotedBytes.get() + demotedBytes.get();
+		return nanos == 0 ? 0 : (bytes / BYTES_PER_MB) / (nanos / 1e9);
+	}
+
+	/**
+	 * The bytes of movable data in the fast tier, as of the last pass.
+	 * 
+	 * @return
+	 */
+	public long getFastBytes() {
+		return fastBytes;
+	}
+
+	public long getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	private void publish() {
+		if (gauges == null) {
+			return;
+		}
+		gauges.submit("video.tier.fastHits", fastHits.get());
+		gauges.submit("video.tier.capacityHits", capacityHits.get());
+		gauges.submit("video.tier.hitRate", getHitRate());
+		gauges.submit("video.tier.fastBytes", fastBytes);
+		gauges.submit("video.tier.capacityBytes", capacityBytes);
+		gauges.submit("video.tier.promotions", promotions.get());
+		gauges.submit("video.tier.demotions", demotions.get());
+		gauges.submit("video.tier.promotedBytes", promotedBytes.get());
+		gauges.submit("video.tier.demotedBytes", demotedBytes.get());
+		gauges.submit("video.tier.migrationMbPerSecond", getMigrationMegabytesPerSecond());
+	}
+
+	private static final Comparator<Candidate> HOTTEST_FIRST = new Comparator<Candidate>() {
+		@Override
+		public int compare(Candidate a, Candidate b) {
+			int c = Double.compare(b.heat, a.heat);
+			return c != 0 ? c : Long.compare(b.lastUsed, a.lastUsed);
+		}
+	};
+
+	/**
+	 * An exponentially decaying access count.
+	 */
+	private static class Heat {
+		private double value;
+		private long lastAccess;
+
+		private synchronized void touch(long now, long halfLifeMillis) {
+			value = valueAt(now, halfLifeMillis) + 1;
+			lastAccess = now;
+		}
+
+		private synchronized double valueAt(long now, long halfLifeMillis) {
+			if (lastAccess == 0 || halfLifeMillis <= 0) {
+				return value;
+			}
+			return value * Math.pow(0.5, (double) Math.max(0, now - lastAccess) / halfLifeMillis);
+		}
+
+		private synchronized long getLastAccess() {
+			return lastAccess;
+		}
+	}
+
+	/**
+	 * A video's data, where it is and how hot it is at the start of a pass.
+	 */
+	private class Candidate {
+		private final Video video;
+		private final Tier tier;
+		private final long size;
+		private final double heat;
+		private final long lastUsed;
+
+		private Candidate(Video video, Tier tier, BasicFileAttributes attrs, Heat h, long now) {
+			this.video = video;
+			this.tier = tier;
+			this.size = attrs.size();
+			this.heat = h == null ? 0 : h.valueAt(now, halfLifeMillis);
+			this.lastUsed = Math.max(h == null ? 0 : h.getLastAccess(), attrs.lastModifiedTime().toMillis());
+		}
+	}
+
+}
@@ -0,0 +1,390 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.magnum.dataup.Mp4Boxes.Box;
+import org.magnum.dataup.Mp4Boxes.InvalidContainerException;
+import org.magnum.dataup.Mp4Boxes.Layout;
+
+/**
+ * A compact map from playback time to byte offset in a video's data, so
+ * that a client can start at "minute 12" without guessing offsets or
+ * downloading everything before it.
+ * 
+ * Each entry is a point a player can start decoding from, at least
+ * MIN_INTERVAL_MILLIS after the one before it:
+ * 
+ * - For MP4 and QuickTime files, the sync samples (keyframes) of the first
+ *   video track, from its stss, stts, stsc, stsz and stco/co64 tables. A
+ *   track without an stss box has only sync samples. Edit lists are
+ *   ignored, so times are decode times.
+ * - For MPEG program streams, the pack headers, timed by their system clock
+ *   reference. The stream is read once, front to back.
+ * 
+ * The index is written as a small binary file (see write()), 12 bytes per
+ * entry.
+ */
+public class VideoTimeIndex {
+
+	public static final long MIN_INTERVAL_MILLIS = 1000;
+
+	private static final int MAGIC = 0x56544931;
+
+	private static final int PACK_START_CODE = 0x000001ba;
+
+	// The system clock of a program stream runs at 90kHz
+	private static final long SCR_HZ = 90000;
+
+	private final int[] millis;
+	private final long[] offsets;
+
+	public VideoTimeIndex(int[] millis, long[] offsets) {
+		this.millis = millis;
+		this.offsets = offsets;
+	}
+
+	public int size() {
+		return millis.length;
+	}
+
+	public long getMillis(int entry) {
+		return millis[entry];
+	}
+
+	public long getOffset(int entry) {
+		return offsets[entry];
+	}
+
+	/**
+	 * Returns the last entry at or before the given time, or -1 if the
+	 * index is empty. Times before the first entry map to the first entry.
+	 * 
+	 * @param time
+	 *            in milliseconds
+	 * @return
+	 */
+	public int seek(long time) {
+		if (millis.length == 0) {
+			return -1;
+		}
+		int i = Arrays.binarySearch(millis, (int) Math.min(time, Integer.MAX_VALUE));
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return Math.max(i, 0);
+	}
+
+	public void write(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeInt(millis.length);
+		for (int i = 0; i < millis.length; i++) {
+			data.writeInt(millis[i]);
+			data.writeLong(offsets[i]);
+		}
+		data.flush();
+	}
+
+	public static VideoTimeIndex read(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("not a video time index");
+		}
+		int count = data.readInt();
+		if (count < 0) {
+			throw new IOException("bad video time index length " + count);
+		}
+		int[] millis = new int[count];
+		long[] offsets = new long[count];
+		for (int i = 0; i < count; i++) {
+			millis[i] = data.readInt();
+			offsets[i] = data.readLong();
+		}
+		return new VideoTimeIndex(millis, offsets);
+	}
+
+	/**
+	 * Builds the index of a file, or returns null if it is neither an ISO
+	 * base media file nor a program stream, or has nothing to index.
+	 * 
+	 * @param channel
+	 * @param layout
+	 *            the file's layout, or null if it isn't an ISO base media
+	 *            file
+	 * @return
+	 * @throws IOException
+	 */
+	public static VideoTimeIndex build(FileChannel channel, Layout layout) throws IOException {
+		if (layout != null) {
+			return buildMp4(channel, layout);
+		}
+		if (channel.size() >= 4 && Mp4Boxes.read(channel, 0, 4).getInt() == PACK_START_CODE) {
+			return buildProgramStream(channel);
+		}
+		return null;
+	}
+
+	private static VideoTimeIndex buildMp4(FileChannel channel, Layout layout) throws IOException {
+		Box moovBox = layout.find("moov");
+		if (moovBox.getSize() > Integer.MAX_VALUE) {
+			return null;
+		}
+		ByteBuffer moov = Mp4Boxes.read(channel, moovBox.getOffset(), (int) moovBox.getSize());
+		Box root = new Box("moov", 0, moov.limit(), moovBox.getHeaderSize());
+
+		Box stbl = null;
+		long timescale = 0;
+		for (Box trak : Mp4Boxes.scan(moov, (int) root.getContentOffset(), (int) root.getEnd())) {
+			if (!trak.getType().equals("trak")) {
+				continue;
+			}
+			Box mdia = Mp4Boxes.child(moov, trak, "mdia");
+			Box hdlr = mdia == null ? null : Mp4Boxes.child(moov, mdia, "hdlr");
+			Box mdhd = mdia == null ? null : Mp4Boxes.child(moov, mdia, "mdhd");
+			Box minf = mdia == null ? null : Mp4Boxes.child(moov, mdia, "minf");
+			if (hdlr == null || mdhd == null || minf == null
+					|| !Mp4Boxes.type(moov, (int) hdlr.getContentOffset() + 8).equals("vide")) {
+				continue;
+			}
+			stbl = Mp4Boxes.child(moov, minf, "stbl");
+			int at = (int) mdhd.getContentOffset();
+			// Version and flags, then the creation and modification times
+			// (32 or 64 bits each), then the time scale
+			timescale = moov.getInt(at + (moov.get(at) == 1 ? 20 : 12)) & 0xffffffffL;
+			break;
+		}
+		if (stbl == null || timescale == 0) {
+			return null;
+		}
+
+		Table stts = Table.of(moov, Mp4Boxes.child(moov, stbl, "stts"), 8);
+		Table stss = Table.of(moov, Mp4Boxes.child(moov, stbl, "stss"), 4);
+		Table stsc = Table.of(moov, Mp4Boxes.child(moov, stbl, "stsc"), 12);
+		Box stsz = Mp4Boxes.child(moov, stbl, "stsz");
+		Table chunks = Table.of(moov, Mp4Boxes.child(moov, stbl, "stco"), 4);
+		boolean co64 = false;
+		if (chunks == null) {
+			chunks = Table.of(moov, Mp4Boxes.child(moov, stbl, "co64"), 8);
+			co64 = true;
+		}
+		if (stts == null || stsc == null || stsz == null || chunks == null || chunks.count == 0) {
+			return null;
+		}
+		// Version and flags, then the size of all samples (or 0 if they
+		// have sizes of their own), then the number of samples
+		int sizes = (int) stsz.getContentOffset() + 12;
+		long uniformSize = moov.getInt(sizes - 8) & 0xffffffffL;
+		long samples = moov.getInt(sizes - 4) & 0xffffffffL;
+		if (uniformSize == 0 && sizes + samples * 4 > stsz.getEnd()) {
+			throw new InvalidContainerException("stsz box too short for " + samples + " samples");
+		}
+
+		Builder index = new Builder();
+		long time = 0;
+		int sttsEntry = 0;
+		long sttsLeft = stts.count > 0 ? stts.u32(0, 0) : 0;
+		int stscEntry = 0;
+		int chunk = 1;
+		long chunkLeft = stsc.count > 0 ? stsc.u32(0, 4) : 0;
+		long position = chunks.offset(co64, 0);
+		int syncEntry = 0;
+
+		for (long sample = 1; sample <= samples; sample++) {
+			// Skip chunks without samples, moving on through the
+			// sample-to-chunk table as the chunks go by
+			while (chunkLeft == 0) {
+				if (++chunk > chunks.count) {
+					return index.build();
+				}
+				if (stscEntry + 1 < stsc.count && stsc.u32(stscEntry + 1, 0) <= chunk) {
+					stscEntry++;
+				}
+				chunkLeft = stsc.u32(stscEntry, 4);
+				position = chunks.offset(co64, chunk - 1);
+			}
+
+			boolean sync;
+			if (stss == null) {
+				sync = true;
+			} else {
+				while (syncEntry < stss.count && stss.u32(syncEntry, 0) < sample) {
+					syncEntry++;
+				}
+				sync = syncEntry < stss.count && stss.u32(syncEntry, 0) == sample;
+			}
+			if (sync) {
+				index.add(time * 1000 / timescale, position);
+			}
+
+			position += uniformSize != 0 ? uniformSize : moov.getInt(sizes + (int) (sample - 1) * 4) & 0xffffffffL;
+			chunkLeft--;
+			while (sttsLeft == 0 && sttsEntry + 1 < stts.count) {
+				sttsEntry++;
+				sttsLeft = stts.u32(sttsEntry, 0);
+			}
+			if (sttsLeft > 0) {
+				time += stts.u32(sttsEntry, 4);
+				sttsLeft--;
+			}
+		}
+		return index.build();
+	}
+
+	private static VideoTimeIndex buildProgramStream(FileChannel channel) throws IOException {
+		Builder index = new Builder();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long position = 0;
+		long first = -1;
+		// The last four bytes seen, and where a pack header being read
+		// started and the bytes of it that have been seen so far
+		int window = -1;
+		long packOffset = -1;
+		byte[] header = new byte[6];
+		int headerBytes = 0;
+
+		while (true) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				break;
+			}
+			buffer.flip();
+			for (int i = 0; i < n; i++) {
+				byte b = buffer.get(i);
+				if (packOffset >= 0) {
+					header[headerBytes++] = b;
+					if (headerBytes == header.length) {
+						long scr = systemClockReference(header);
+						if (scr >= 0) {
+							if (first < 0) {
+								first = scr;
+							}
+							index.add((scr - first) * 1000 / SCR_HZ, packOffset);
+						}
+						packOffset = -1;
+						headerBytes = 0;
+					}
+					continue;
+				}
+				window = (window << 8) | (b & 0xff);
+				if (window == PACK_START_CODE) {
+					packOffset = position + i - 3;
+				}
+			}
+			position += n;
+		}
+		return index.build();
+	}
+
+	/**
+	 * Reads the 33-bit system clock reference of an MPEG-2 or MPEG-1 pack
+	 * header from the bytes that follow the start code, or returns -1 if
+	 * they are neither.
+	 */
+	static long systemClockReference(byte[] h) {
+		int b0 = h[0] & 0xff;
+		if ((b0 & 0xc0) == 0x40) {
+			// MPEG-2: '01', SCR[32..30], '1', SCR[29..15] and SCR[14..0]
+			// with a marker bit after each
+			return ((long) (b0 & 0x38) << 27) | ((long) (b0 & 0x03) << 28) | ((h[1] & 0xffL) << 20)
+					| ((long) (h[2] & 0xf8) << 12) | ((long) (h[2] & 0x03) << 13) | ((h[3] & 0xffL) << 5)
+					| ((h[4] & 0xffL) >> 3);
+		}
+		if ((b0 & 0xf0) == 0x20) {
+			// MPEG-1: '0010', SCR[32..30], '1', then 15 bits, '1', 15 bits
+			return ((long) (b0 & 0x0e) << 29) | ((h[1] & 0xffL) << 22) | ((long) (h[2] & 0xfe) << 14)
+					| ((h[3] & 0xffL) << 7) | ((h[4] & 0xffL) >> 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * One of the tables of a sample table box: a full box header, an entry
+	 * count and entries of the given width.
+	 */
+	private static class Table {
+		private final ByteBuffer buffer;
+		private final int entries;
+		private final int width;
+		private final int count;
+
+		private Table(ByteBuffer buffer, int entries, int width, int count) {
+			this.buffer = buffer;
+			this.entries = entries;
+			this.width = width;
+			this.count = count;
+		}
+
+		private static Table of(ByteBuffer buffer, Box box, int width) throws IOException {
+			if (box == null) {
+				return null;
+			}
+			int content = (int) box.getContentOffset();
+			long count = buffer.getInt(content + 4) & 0xffffffffL;
+			if (content + 8 + count * width > box.getEnd()) {
+				throw new InvalidContainerException(box.getType() + " box too short for " + count + " entries");
+			}
+			return new Table(buffer, content + 8, width, (int) count);
+		}
+
+		private long u32(int entry, int field) {
+			return buffer.getInt(entries + entry * width + field) & 0xffffffffL;
+		}
+
+		private long offset(boolean co64, int entry) {
+			return co64 ? buffer.getLong(entries + entry * width) : u32(entry, 0);
+		}
+	}
+
+	/**
+	 * Collects entries in time order, keeping only those at least
+	 * MIN_INTERVAL_MILLIS after the last one kept.
+	 */
+	private static class Builder {
+		private int[] millis = new int[64];
+		private long[] offsets = new long[64];
+		private int size;
+
+		private void add(long time, long offset) {
+			if (time > Integer.MAX_VALUE || size > 0 && time < millis[size - 1] + MIN_INTERVAL_MILLIS) {
+				return;
+			}
+			if (size == millis.length) {
+				millis = Arrays.copyOf(millis, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			millis[size] = (int) time;
+			offsets[size] = offset;
+			size++;
+		}
+
+		private VideoTimeIndex build() {
+			return size == 0 ? null : new VideoTimeIndex(Arrays.copyOf(millis, size), Arrays.copyOf(offsets, size));
+		}
+	}
+
+}
@@ -0,0 +1,157 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.metrics.GaugeService;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps running totals for the video data served through each of the
+ * serving modes so that they can be compared side by side. The totals are
+ * published as gauges, which show up under /metrics:
+ * 
+ *   gauge.video.serve.{mode}.requests
+ *   gauge.video.serve.{mode}.bytes
+ *   gauge.video.serve.{mode}.mbPerSecond     - bytes served / wall time spent serving
+ *   gauge.video.serve.{mode}.cpuMillisPerGB  - request thread CPU time per GB served
+ * 
+ * For sendfile, the request thread only hands the file to the connector,
+ * which moves the bytes after the request returns. Its wall time and CPU
+ * figures therefore only cover that hand-off, so compare its throughput
+ * from the client side and its CPU cost from the process as a whole.
+ */
+@Component
+public class VideoTransferMetrics {
+
+	public enum ServeMode {
+		SENDFILE, TRANSFER, COPY
+	}
+
+	private static final double BYTES_PER_GB = 1024.0 * 1024.0 * 1024.0;
+	private static final double BYTES_PER_MB = 1024.0 * 1024.0;
+
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final Totals[] totals = new Totals[ServeMode.values().length];
+
+	@Autowired(required = false)
+	private GaugeService gauges;
+
+	public VideoTransferMetrics() {
+		for (ServeMode mode : ServeMode.values()) {
+			totals[mode.ordinal()] = new Totals();
+		}
+	}
+
+	/**
+	 * Marks the start of a transfer on the calling thread. The returned
+	 * token must be handed back to {@link #end(Transfer, long)} on the
+	 * same thread.
+	 * 
+	 * @param mode
+	 * @return
+	 */
+	public Transfer begin(ServeMode mode) {
+		return new Transfer(mode, System.nanoTime(), currentThreadCpuTime());
+	}
+
+	/**
+	 * Records a finished transfer of the given number of bytes.
+	 * 
+	 * @param transfer
+	 * @param bytes
+	 */
+	public void end(Transfer transfer, long bytes) {
+		Totals t = totals[transfer.mode.ordinal()];
+		t.requests.incrementAndGet();
+		t.bytes.addAndGet(bytes);
+		t.wallNanos.addAndGet(System.nanoTime() - transfer.startNanos);
+		long cpu = currentThreadCpuTime();
+		if (cpu >= 0 && transfer.startCpuNanos >= 0) {
+			t.cpuNanos.addAndGet(cpu - transfer.startCpuNanos);
+		}
+		publish(transfer.mode, t);
+	}
+
+	public long getBytes(ServeMode mode) {
+		return totals[mode.ordinal()].bytes.get();
+	}
+
+	public long getRequests(ServeMode mode) {
+		return totals[mode.ordinal()].requests.get();
+	}
+
+	public double getCpuMillisPerGB(ServeMode mode) {
+		Totals t = totals[mode.ordinal()];
+		long bytes = t.bytes.get();
+		return bytes == 0 ? 0 : (t.cpuNanos.get() / 1e6) / (bytes / BYTES_PER_GB);
+	}
+
+	public double getMegabytesPerSecond(ServeMode mode) {
+		Totals t = totals[mode.ordinal()];
+		long nanos = t.wallNanos.get();
+		return nanos == 0 ? 0 : (t.bytes.get() / BYTES_PER_MB) / (nanos / 1e9);
+	}
+
+	private void publish(ServeMode mode, Totals t) {
+		if (gauges == null) {
+			return;
+		}
+		String prefix = "video.serve." + mode.name().toLowerCase() + ".";
+		gauges.submit(prefix + "requests", t.requests.get());
+		gauges.submit(prefix + "bytes", t.bytes.get());
+		gauges.submit(prefix + "mbPerSecond", getMegabytesPerSecond(mode));
+		gauges.submit(prefix + "cpuMillisPerGB", getCpuMillisPerGB(mode));
+	}
+
+	private long currentThreadCpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+	}
+
+	/**
+	 * A transfer that has been started but not yet recorded.
+	 */
+	public static class Transfer {
+		private final ServeMode mode;
+		private final long startNanos;
+		private final long startCpuNanos;
+
+		private Transfer(ServeMode mode, long startNanos, long startCpuNanos) {
+			this.mode = mode;
+			this.startNanos = startNanos;
+			this.startCpuNanos = startCpuNanos;
+		}
+
+		public ServeMode getMode() {
+			return mode;
+		}
+	}
+
+	private static class Totals {
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong wallNanos = new AtomicLong();
+		private final AtomicLong cpuNanos = new AtomicLong();
+	}
+
+}
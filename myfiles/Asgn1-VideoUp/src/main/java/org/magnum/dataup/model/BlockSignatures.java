@@ -0,0 +1,89 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+/**
+ * The block signatures of a video's current data, which let a client that
+ * has a slightly different version of the video upload only what changed
+ * (see VideoDelta). The data is split into blocks of blockSize bytes; for
+ * every full block there is a weak rolling checksum, which can be computed
+ * cheaply at every offset of the new file, and a strong hash to confirm a
+ * match. The digest is the SHA-256 of all of the data, which the delta is
+ * applied against.
+ */
+public class BlockSignatures {
+
+	private int blockSize;
+	private long length;
+	private String digest;
+	private int[] weak = new int[0];
+	private String[] strong = new String[0];
+
+	public BlockSignatures() {
+	}
+
+	public BlockSignatures(int blockSize, long length, String digest, int[] weak, String[] strong) {
+		super();
+		this.blockSize = blockSize;
+		this.length = length;
+		this.digest = digest;
+		this.weak = weak;
+		this.strong = strong;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	public int[] getWeak() {
+		return weak;
+	}
+
+	public void setWeak(int[] weak) {
+		this.weak = weak;
+	}
+
+	public String[] getStrong() {
+		return strong;
+	}
+
+	public void setStrong(String[] strong) {
+		this.strong = strong;
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+/**
+                    ___                    ___           ___                            
+     _____         /\  \                  /\  \         /\  \                           
+    /::\  \       /::\  \                 \:\  \       /::\  \         ___              
+   /:/\:\  \     /:/\:\  \                 \:\  \     /:/\:\  \       /\__\             
+  /:/  \:\__\   /:/  \:\  \            _____\:\  \   /:/  \:\  \     /:/  /             
+ /:/__/ \:|__| /:/__/ \:\__\          /::::::::\__\ /:/__/ \:\__\   /:/__/              
+ \:\  \ /:/  / \:\  \ /:/  /          \:\~~\~~\/__/ \:\  \ /:/  /  /::\  \              
+  \:\  /:/  /   \:\  /:/  /            \:\  \        \:\  /:/  /  /:/\:\  \             
+   \:\/:/  /     \:\/:/  /              \:\  \        \:\/:/  /   \/__\:\  \            
+    \::/  /       \::/  /                \:\__\        \::/  /         \:\__\           
+     \/__/         \/__/                  \/__/         \/__/           \/__/           
+      ___           ___                                     ___                         
+     /\  \         /\  \         _____                     /\__\                        
+    |::\  \       /::\  \       /::\  \       ___         /:/ _/_         ___           
+    |:|:\  \     /:/\:\  \     /:/\:\  \     /\__\       /:/ /\__\       /|  |          
+  __|:|\:\  \   /:/  \:\  \   /:/  \:\__\   /:/__/      /:/ /:/  /      |:|  |          
+ /::::|_\:\__\ /:/__/ \:\__\ /:/__/ \:|__| /::\  \     /:/_/:/  /       |:|  |          
+ \:\~~\  \/__/ \:\  \ /:/  / \:\  \ /:/  / \/\:\  \__  \:\/:/  /      __|:|__|          
+  \:\  \        \:\  /:/  /   \:\  /:/  /   ~~\:\/\__\  \::/__/      /::::\  \          
+   \:\  \        \:\/:/  /     \:\/:/  /       \::/  /   \:\  \      ~~~~\:\  \         
+    \:\__\        \::/  /       \::/  /        /:/  /     \:\__\          \:\__\        
+     \/__/         \/__/         \/__/         \/__/       \/__/           \/__/        
+ *
+ */
+public class DataUrl {
+
+	private String url;
+
+	// When a signed url stops working, in seconds since the epoch, or 0 if
+	// it is a plain url that doesn't expire
+	private long expires;
+
+	public DataUrl() {
+	}
+
+	public DataUrl(String url, long expires) {
+		super();
+		this.url = url;
+		this.expires = expires;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public long getExpires() {
+		return expires;
+	}
+
+	public void setExpires(long expires) {
+		this.expires = expires;
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a multipart upload of a video's binary data. Part n covers
+ * the bytes from (n - 1) * partSize, so every part but the last is exactly
+ * partSize bytes long and the parts can be sent in any order and in
+ * parallel. The parts are those the server has received so far, ordered
+ * by number. The length is the total size the client announced when it
+ * started the upload, or -1 if unknown.
+ */
+public class MultipartUpload {
+
+	private String id;
+	private long videoId;
+	private long partSize;
+	private long length = -1;
+	private List<UploadPart> parts = new ArrayList<UploadPart>();
+
+	public MultipartUpload() {
+	}
+
+	public MultipartUpload(String id, long videoId, long partSize, long length, List<UploadPart> parts) {
+		super();
+		this.id = id;
+		this.videoId = videoId;
+		this.partSize = partSize;
+		this.length = length;
+		this.parts = parts;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public long getVideoId() {
+		return videoId;
+	}
+
+	public void setVideoId(long videoId) {
+		this.videoId = videoId;
+	}
+
+	public long getPartSize() {
+		return partSize;
+	}
+
+	public void setPartSize(long partSize) {
+		this.partSize = partSize;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+	public List<UploadPart> getParts() {
+		return parts;
+	}
+
+	public void setParts(List<UploadPart> parts) {
+		this.parts = parts;
+	}
+
+}
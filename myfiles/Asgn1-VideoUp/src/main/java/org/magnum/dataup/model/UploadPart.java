@@ -0,0 +1,67 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+/**
+ * One part of a multipart upload of a video's binary data, as acknowledged
+ * by the server. Parts are numbered from 1; the etag is the lowercase hex
+ * SHA-256 of the part's data. Completing an upload takes the list of parts
+ * that make up the video, in order, each with the etag the server returned
+ * for it.
+ */
+public class UploadPart {
+
+	private int partNumber;
+	private long size;
+	private String etag;
+
+	public UploadPart() {
+	}
+
+	public UploadPart(int partNumber, long size, String etag) {
+		super();
+		this.partNumber = partNumber;
+		this.size = size;
+		this.etag = etag;
+	}
+
+	public int getPartNumber() {
+		return partNumber;
+	}
+
+	public void setPartNumber(int partNumber) {
+		this.partNumber = partNumber;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	public void setEtag(String etag) {
+		this.etag = etag;
+	}
+
+}
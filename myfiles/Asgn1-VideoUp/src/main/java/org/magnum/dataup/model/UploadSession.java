@@ -0,0 +1,76 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+/**
+ * The state of a resumable upload of a video's binary data. The offset is
+ * the number of bytes the server has durably received so far, which is
+ * where the client's next chunk must start. The length is the total size
+ * the client announced when it created the session, or -1 if unknown.
+ */
+public class UploadSession {
+
+	private String id;
+	private long videoId;
+	private long offset;
+	private long length = -1;
+
+	public UploadSession() {
+	}
+
+	public UploadSession(String id, long videoId, long offset, long length) {
+		super();
+		this.id = id;
+		this.videoId = videoId;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public long getVideoId() {
+		return videoId;
+	}
+
+	public void setVideoId(long videoId) {
+		this.videoId = videoId;
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public void setLength(long length) {
+		this.length = length;
+	}
+
+}
@@ -0,0 +1,60 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of the video list, in ascending id order. The cursor is an
+ * opaque token that is passed back to the server to get the next page, or
+ * null if there are no more videos. A page may hold fewer videos than were
+ * asked for, or none at all, and still have a cursor if the server
+ * stopped looking for videos that match the filters before filling it.
+ */
+public class VideoPage {
+
+	private List<Video> videos = new ArrayList<Video>();
+	private String cursor;
+
+	public VideoPage() {
+	}
+
+	public VideoPage(List<Video> videos, String cursor) {
+		super();
+		this.videos = videos;
+		this.cursor = cursor;
+	}
+
+	public List<Video> getVideos() {
+		return videos;
+	}
+
+	public void setVideos(List<Video> videos) {
+		this.videos = videos;
+	}
+
+	public String getCursor() {
+		return cursor;
+	}
+
+	public void setCursor(String cursor) {
+		this.cursor = cursor;
+	}
+
+}
@@ -45,16 +45,29 @@ package org.magnum.dataup.model;
 public class VideoStatus {
 
 	public enum VideoState {
-		READY, PROCESSING
+		READY, PROCESSING, FAILED
 	}
 
 	private VideoState state;
 
+	// While the data is PROCESSING, the stage of the processing pipeline it
+	// is in; if it FAILED, the stage it failed in and why
+	private String stage;
+
+	private String message;
+
 	public VideoStatus(VideoState state) {
 		super();
 		this.state = state;
 	}
 
+	public VideoStatus(VideoState state, String stage, String message) {
+		super();
+		this.state = state;
+		this.stage = stage;
+		this.message = message;
+	}
+
 	public VideoState getState() {
 		return state;
 	}
@@ -63,4 +76,20 @@ public class VideoStatus {
 		this.state = state;
 	}
 
+	public String getStage() {
+		return stage;
+	}
+
+	public void setStage(String stage) {
+		this.stage = stage;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+
 }
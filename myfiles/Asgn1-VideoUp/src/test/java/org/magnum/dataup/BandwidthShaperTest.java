@@ -0,0 +1,127 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+import org.magnum.dataup.BandwidthShaper.Direction;
+import org.magnum.dataup.BandwidthShaper.Transfer;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Checks how BandwidthShaper splits its limits between concurrent
+ * transfers, and that a shaped stream really runs at its rate.
+ */
+public class BandwidthShaperTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private static final double DELTA = 1;
+
+	@Test
+	public void testGlobalLimitIsSharedFairly() {
+		BandwidthShaper shaper = new BandwidthShaper(8 * MB, 0, 0, 0, 0);
+
+		Transfer a = shaper.begin(Direction.DOWNLOAD, "a", -1);
+		assertEquals(8 * MB, a.getRate(), DELTA);
+
+		Transfer b = shaper.begin(Direction.DOWNLOAD, "b", -1);
+		assertEquals(4 * MB, a.getRate(), DELTA);
+		assertEquals(4 * MB, b.getRate(), DELTA);
+
+		// A small transfer gets four times the share of a large one
+		Transfer small = shaper.begin(Direction.DOWNLOAD, "c", 1000);
+		assertEquals(8 * MB * 4 / 6, small.getRate(), DELTA);
+		assertEquals(8 * MB / 6, a.getRate(), DELTA);
+
+		small.close();
+		b.close();
+		assertEquals(8 * MB, a.getRate(), DELTA);
+		a.close();
+		assertEquals(0, shaper.getActiveTransfers(Direction.DOWNLOAD));
+	}
+
+	@Test
+	public void testClientLimitLeavesRestToOthers() {
+		BandwidthShaper shaper = new BandwidthShaper(8 * MB, 1 * MB, 0, 0, 0);
+
+		// Two transfers of one client split its limit...
+		Transfer a1 = shaper.begin(Direction.DOWNLOAD, "a", -1);
+		Transfer a2 = shaper.begin(Direction.DOWNLOAD, "a", -1);
+		Transfer b = shaper.begin(Direction.DOWNLOAD, "b", -1);
+		assertEquals(MB / 2, a1.getRate(), DELTA);
+		assertEquals(MB / 2, a2.getRate(), DELTA);
+
+		// ...and what they can't use doesn't go to waste
+		assertEquals(MB, b.getRate(), DELTA);
+
+		a1.close();
+		a2.close();
+		b.close();
+	}
+
+	@Test
+	public void testUnlimitedDirectionIsNotShaped() {
+		BandwidthShaper shaper = new BandwidthShaper(8 * MB, 0, 0, 0, 0);
+		assertTrue(shaper.isShaping(Direction.DOWNLOAD));
+		assertTrue(!shaper.isShaping(Direction.UPLOAD));
+
+		HttpServletResponse response = new MockHttpServletResponse();
+		try (Transfer upload = shaper.begin(Direction.UPLOAD, "a", -1)) {
+			assertSame(response, upload.wrap(response));
+			assertTrue(Double.isInfinite(upload.getRate()));
+		}
+	}
+
+	@Test
+	public void testShapedStreamKeepsToItsRate() throws Exception {
+		long rate = 4 * MB;
+		long burst = 256 * 1024;
+		int size = 2 * (int) MB;
+		BandwidthShaper shaper = new BandwidthShaper(0, rate, 0, 0, burst);
+
+		long start = System.nanoTime();
+		try (Transfer t = shaper.begin(Direction.DOWNLOAD, "a", size)) {
+			OutputStream out = t.wrap(new MockHttpServletResponse()).getOutputStream();
+			byte[] chunk = new byte[64 * 1024];
+			for (int sent = 0; sent < size; sent += chunk.length) {
+				out.write(chunk);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// The first burst goes through right away, the rest at the rate
+		double expected = (double) (size - burst) / rate;
+		assertTrue("took " + seconds + "s", seconds > expected * 0.9);
+		assertTrue("took " + seconds + "s", seconds < expected * 1.5 + 0.2);
+
+		assertEquals(size, shaper.getBytes(Direction.DOWNLOAD));
+		// Writes that come in after the bucket has refilled don't wait
+		long throttled = shaper.getThrottledBytes(Direction.DOWNLOAD);
+		assertTrue("throttled " + throttled, throttled > size / 2 && throttled <= size - burst);
+		assertTrue(shaper.getWaitMillis(Direction.DOWNLOAD) > 0);
+	}
+
+}
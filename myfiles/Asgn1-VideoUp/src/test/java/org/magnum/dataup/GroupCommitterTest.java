@@ -0,0 +1,189 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoStatus.VideoState;
+
+/**
+ * Checks that concurrent uploads share their directory flushes, that the
+ * staging files of a batch are forced at the same time rather than one
+ * after another, and that a file that can't be forced only fails its own
+ * commit.
+ */
+public class GroupCommitterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private VideoFileManager storage;
+
+	private GroupCommitter committer;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		storage = new VideoFileManager(dir.resolve("videos"));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (committer != null) {
+			committer.stop();
+		}
+	}
+
+	@Test
+	public void testConcurrentUploadsShareForces() throws Exception {
+		committer = new GroupCommitter(storage, 20, 64, 4);
+		committer.start();
+
+		int uploads = 32;
+		List<Future<VideoState>> results = commitConcurrently(uploads);
+		for (Future<VideoState> result : results) {
+			assertEquals(VideoState.READY, result.get(10, TimeUnit.SECONDS));
+		}
+		for (int i = 1; i <= uploads; i++) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			storage.copyVideoData(video(i), out);
+			assertArrayEquals(data(i), out.toByteArray());
+		}
+
+		// Committed one at a time, every upload forces its file and the
+		// directory it is renamed into; batched, the directory is forced
+		// once per batch
+		long forces = committer.getForces();
+		assertEquals(uploads, committer.getCommits());
+		assertTrue("forces: " + forces, forces < 2 * uploads);
+		assertTrue("forces: " + forces, forces <= uploads + uploads / 4);
+	}
+
+	@Test
+	public void testStagedFilesAreForcedInParallel() throws Exception {
+		final int uploads = 4;
+		final CountDownLatch forcing = new CountDownLatch(uploads);
+		committer = new GroupCommitter(storage, 5000, uploads, uploads) {
+			@Override
+			protected void forceFile(Path staged) throws IOException {
+				// Only returns once every file of the batch is being forced
+				forcing.countDown();
+				try {
+					if (!forcing.await(5, TimeUnit.SECONDS)) {
+						throw new IOException("staging files were forced one at a time");
+					}
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				super.forceFile(staged);
+			}
+		};
+		committer.start();
+
+		for (Future<VideoState> result : commitConcurrently(uploads)) {
+			assertEquals(VideoState.READY, result.get(10, TimeUnit.SECONDS));
+		}
+		assertEquals(uploads, committer.getCommits());
+	}
+
+	@Test
+	public void testForceFailureOnlyFailsItsCommit() throws Exception {
+		final int uploads = 4;
+		committer = new GroupCommitter(storage, 5000, uploads, 2) {
+			@Override
+			protected void forceFile(Path staged) throws IOException {
+				if (staged.getFileName().toString().startsWith("2-")) {
+					throw new IOException("disk error");
+				}
+				super.forceFile(staged);
+			}
+		};
+		committer.start();
+
+		List<Future<VideoState>> results = commitConcurrently(uploads);
+		for (int i = 0; i < uploads; i++) {
+			try {
+				assertEquals(VideoState.READY, results.get(i).get(10, TimeUnit.SECONDS));
+				assertFalse(i == 1);
+			} catch (ExecutionException e) {
+				assertEquals(1, i);
+				assertTrue(e.getCause() instanceof IOException);
+			}
+		}
+		assertTrue(storage.hasVideoData(video(1)));
+		assertFalse(storage.hasVideoData(video(2)));
+	}
+
+	private List<Future<VideoState>> commitConcurrently(int uploads) throws Exception {
+		ExecutorService uploaders = Executors.newFixedThreadPool(uploads);
+		List<Future<VideoState>> results = new ArrayList<Future<VideoState>>();
+		for (int i = 1; i <= uploads; i++) {
+			final Video v = video(i);
+			final Path staged = Files.createTempFile(dir, i + "-", ".tmp");
+			Files.write(staged, data(i));
+			results.add(uploaders.submit(new Callable<VideoState>() {
+				@Override
+				public VideoState call() throws Exception {
+					return committer.commit(v.getId(), staged, new GroupCommitter.Publisher() {
+						@Override
+						public void publish(Path staged) throws IOException {
+							storage.publishVideoData(v, staged);
+						}
+					});
+				}
+			}));
+		}
+		uploaders.shutdown();
+		return results;
+	}
+
+	private static byte[] data(int i) {
+		byte[] data = new byte[4096];
+		for (int j = 0; j < data.length; j++) {
+			data[j] = (byte) (i * 31 + j);
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Checks that JsonArrayWriter produces the same JSON as serializing the
+ * whole collection at once, and that it writes a large list in bounded
+ * chunks without ever holding it in memory.
+ */
+public class JsonArrayWriterTest {
+
+	private static final int MANY_VIDEOS = 200000;
+
+	private static final int FLUSH_EVERY = 1000;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	public void testMatchesCollectionSerialization() throws Exception {
+		List<Video> list = new ArrayList<Video>();
+		for (int i = 0; i < 10; i++) {
+			list.add(video(i));
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int count = new JsonArrayWriter(mapper, 3).write(list.iterator(), response(out));
+
+		assertEquals(list.size(), count);
+		assertEquals(mapper.writeValueAsString(list), new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+		out.reset();
+		new JsonArrayWriter(mapper, 3).write(new ArrayList<Video>().iterator(), response(out));
+		assertEquals("[]", new String(out.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testStreamsLargeListInFlushedChunks() throws Exception {
+		// The videos are made up as they are asked for, so nothing but the
+		// writer could hold on to them
+		Iterator<Video> videos = new AbstractIterator<Video>() {
+			private int next;
+
+			@Override
+			protected Video computeNext() {
+				return next < MANY_VIDEOS ? video(next++) : endOfData();
+			}
+		};
+
+		final long[] bytes = new long[1];
+		final List<Long> flushes = new ArrayList<Long>();
+		OutputStream counter = new OutputStream() {
+			@Override
+			public void write(int b) {
+				bytes[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				bytes[0] += len;
+			}
+
+			@Override
+			public void flush() {
+				flushes.add(bytes[0]);
+			}
+		};
+
+		int count = new JsonArrayWriter(mapper, FLUSH_EVERY).write(videos, response(counter));
+
+		assertEquals(MANY_VIDEOS, count);
+		assertTrue(flushes.size() >= MANY_VIDEOS / FLUSH_EVERY);
+		long bytesPerVideo = mapper.writeValueAsBytes(video(MANY_VIDEOS / 2)).length + 1;
+		long previous = 0;
+		for (long flushed : flushes) {
+			// Every flush only pushes out about FLUSH_EVERY videos' worth
+			assertTrue(flushed - previous <= 2 * FLUSH_EVERY * bytesPerVideo);
+			previous = flushed;
+		}
+		assertEquals(bytes[0], previous);
+	}
+
+	private static Video video(long id) {
+		Video v = Video.create().withContentType("video/mp4").withDuration(id)
+				.withSubject("subject" + id).withTitle("title" + id).build();
+		v.setId(id);
+		return v;
+	}
+
+	private static MockHttpServletResponse response(final OutputStream out) {
+		return new MockHttpServletResponse() {
+			private final ServletOutputStream stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					out.flush();
+				}
+			};
+
+			@Override
+			public ServletOutputStream getOutputStream() {
+				return stream;
+			}
+		};
+	}
+
+}
@@ -0,0 +1,227 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.Mp4Boxes.Box;
+import org.magnum.dataup.Mp4Boxes.Layout;
+
+/**
+ * Checks that moving the movie box to the front keeps every chunk offset
+ * pointing at the same media data, and that files which can't be
+ * rewritten safely are left alone.
+ */
+public class Mp4FastStartTest {
+
+	private static final int CHUNKS = 6;
+	private static final int CHUNK_SIZE = 1000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+	}
+
+	@Test
+	public void testMovieBoxIsMovedInFrontOfTheMediaData() throws Exception {
+		byte[] original = movie("stco", "co64");
+		Path in = write(original);
+		Layout before = VideoContainerIndex.read(in);
+		assertTrue(Mp4FastStart.needsRelocation(before));
+
+		Path out = relocate(in, true);
+		byte[] rewritten = Files.readAllBytes(out);
+		assertEquals(original.length, rewritten.length);
+
+		Layout after = VideoContainerIndex.read(out);
+		assertTrue(after.isFastStart());
+		assertFalse(Mp4FastStart.needsRelocation(after));
+		List<String> types = new ArrayList<String>();
+		for (Box box : after.getBoxes()) {
+			types.add(box.getType());
+		}
+		assertEquals(Arrays.asList("ftyp", "free", "moov", "mdat", "udta"), types);
+		assertEquals(before.getDurationMillis(), after.getDurationMillis());
+
+		// Every chunk offset of both tracks still points at its chunk
+		List<Long> offsets = chunkOffsets(rewritten);
+		assertEquals(2 * CHUNKS, offsets.size());
+		for (int i = 0; i < offsets.size(); i++) {
+			int chunk = i % CHUNKS;
+			byte[] expected = new byte[CHUNK_SIZE];
+			Arrays.fill(expected, (byte) chunk);
+			int at = offsets.get(i).intValue();
+			assertArrayEquals(expected, Arrays.copyOfRange(rewritten, at, at + CHUNK_SIZE));
+		}
+	}
+
+	@Test
+	public void testFastStartFilesAreLeftAlone() throws Exception {
+		Path in = write(VideoProcessingPipelineTest.mp4(true));
+		assertFalse(Mp4FastStart.needsRelocation(VideoContainerIndex.read(in)));
+		relocate(in, false);
+	}
+
+	@Test
+	public void testCompressedMovieBoxesAreLeftAlone() throws Exception {
+		relocate(write(movie("stco", "cmov")), false);
+	}
+
+	@Test
+	public void testTooLargeMovieBoxesAreLeftAlone() throws Exception {
+		Path in = write(movie("stco", "co64"));
+		try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(dir.resolve("out"), StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE)) {
+			assertFalse(Mp4FastStart.relocate(channel, VideoContainerIndex.read(in), out, 100));
+		}
+	}
+
+	private Path relocate(Path in, boolean expected) throws IOException {
+		Path out = dir.resolve("out");
+		Files.deleteIfExists(out);
+		try (FileChannel channel = FileChannel.open(in, StandardOpenOption.READ);
+				FileChannel rewritten = FileChannel.open(out, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			assertEquals(expected, Mp4FastStart.relocate(channel, VideoContainerIndex.read(in), rewritten,
+					1024 * 1024));
+		}
+		return out;
+	}
+
+	private Path write(byte[] data) throws IOException {
+		Path file = Files.createTempFile(dir, "movie", ".mp4");
+		Files.write(file, data);
+		return file;
+	}
+
+	/**
+	 * A movie with two tracks that share the same chunks, with the movie
+	 * box after the media data. The tables of the tracks are of the given
+	 * types; a cmov "table" compresses the second track's movie data.
+	 */
+	private static byte[] movie(String firstTable, String secondTable) throws IOException {
+		byte[] ftyp = "isom\0\0\2\0isom".getBytes("ISO-8859-1");
+		byte[] free = new byte[100];
+
+		ByteArrayOutputStream media = new ByteArrayOutputStream();
+		for (int chunk = 0; chunk < CHUNKS; chunk++) {
+			byte[] bytes = new byte[CHUNK_SIZE];
+			Arrays.fill(bytes, (byte) chunk);
+			media.write(bytes);
+		}
+		long mdatOffset = (8 + ftyp.length) + (8 + free.length);
+		long firstChunk = mdatOffset + 8;
+
+		ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(mvhd);
+		header.writeInt(0);
+		header.writeInt(0);
+		header.writeInt(0);
+		header.writeInt(1000);
+		header.writeInt(60000);
+		header.write(new byte[80]);
+
+		ByteArrayOutputStream moov = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(moov, "mvhd", mvhd.toByteArray());
+		VideoProcessingPipelineTest.box(moov, "trak", track(firstTable, firstChunk));
+		VideoProcessingPipelineTest.box(moov, "trak", track(secondTable, firstChunk));
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(file, "ftyp", ftyp);
+		VideoProcessingPipelineTest.box(file, "free", free);
+		VideoProcessingPipelineTest.box(file, "mdat", media.toByteArray());
+		VideoProcessingPipelineTest.box(file, "moov", moov.toByteArray());
+		VideoProcessingPipelineTest.box(file, "udta", new byte[20]);
+		return file.toByteArray();
+	}
+
+	private static byte[] track(String table, long firstChunk) throws IOException {
+		ByteArrayOutputStream offsets = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(offsets);
+		out.writeInt(0);
+		out.writeInt(CHUNKS);
+		for (int chunk = 0; chunk < CHUNKS; chunk++) {
+			if (table.equals("co64")) {
+				out.writeLong(firstChunk + chunk * CHUNK_SIZE);
+			} else {
+				out.writeInt((int) (firstChunk + chunk * CHUNK_SIZE));
+			}
+		}
+		ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(stbl, table, offsets.toByteArray());
+		ByteArrayOutputStream minf = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(minf, "stbl", stbl.toByteArray());
+		ByteArrayOutputStream mdia = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(mdia, "minf", minf.toByteArray());
+		ByteArrayOutputStream trak = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(trak, "mdia", mdia.toByteArray());
+		return trak.toByteArray();
+	}
+
+	/**
+	 * The chunk offsets of every track, read back by walking the boxes.
+	 */
+	private static List<Long> chunkOffsets(byte[] file) {
+		List<Long> offsets = new ArrayList<Long>();
+		collect(ByteBuffer.wrap(file), 0, file.length, offsets);
+		return offsets;
+	}
+
+	private static void collect(ByteBuffer buffer, int start, int end, List<Long> offsets) {
+		for (int offset = start; offset < end;) {
+			int size = buffer.getInt(offset);
+			String type = new String(new byte[] { buffer.get(offset + 4), buffer.get(offset + 5),
+					buffer.get(offset + 6), buffer.get(offset + 7) });
+			if (Arrays.asList("moov", "trak", "mdia", "minf", "stbl").contains(type)) {
+				collect(buffer, offset + 8, offset + size, offsets);
+			} else if (type.equals("stco") || type.equals("co64")) {
+				int count = buffer.getInt(offset + 12);
+				for (int i = 0; i < count; i++) {
+					offsets.add(type.equals("stco") ? buffer.getInt(offset + 16 + 4 * i) & 0xffffffffL
+							: buffer.getLong(offset + 16 + 8 * i));
+				}
+			}
+			offset += size;
+		}
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.MultipartUploadManager.InvalidPartException;
+import org.magnum.dataup.UploadSessionManager.CompletedUpload;
+import org.magnum.dataup.model.MultipartUpload;
+import org.magnum.dataup.model.UploadPart;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks that parts sent in any order, at once, or more than once are
+ * assembled into exactly the uploaded file with the right digest, and that
+ * a part list that doesn't match what was received is turned away.
+ */
+public class MultipartUploadManagerTest {
+
+	private static final int PART_SIZE = 16 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private MultipartUploadManager manager;
+
+	private Video video = video(1);
+
+	private byte[] data = new byte[5 * PART_SIZE + 1234];
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		manager = new MultipartUploadManager(new VideoFileManager(dir), PART_SIZE, 1024 * 1024, 100);
+		new Random(1).nextBytes(data);
+	}
+
+	@Test
+	public void testPartsInAnyOrderMakeTheFile() throws Exception {
+		MultipartUpload upload = manager.create(video, data.length, PART_SIZE);
+		List<UploadPart> parts = new ArrayList<UploadPart>(Collections.<UploadPart> nCopies(partCount(), null));
+		for (int partNumber : new int[] { 4, 2, 6, 1, 5, 3 }) {
+			parts.set(partNumber - 1, put(upload, partNumber, part(partNumber)));
+		}
+		assertEquals(partCount(), manager.get(1, upload.getId()).getParts().size());
+
+		assertCompletes(upload, parts);
+		assertNull(manager.get(1, upload.getId()));
+	}
+
+	@Test
+	public void testPartsSentAtOnceMakeTheFile() throws Exception {
+		final MultipartUpload upload = manager.create(video, -1, PART_SIZE);
+		ExecutorService executor = Executors.newFixedThreadPool(partCount());
+		try {
+			List<Future<UploadPart>> pending = new ArrayList<Future<UploadPart>>();
+			for (int i = 1; i <= partCount(); i++) {
+				final int partNumber = i;
+				pending.add(executor.submit(new Callable<UploadPart>() {
+					@Override
+					public UploadPart call() throws Exception {
+						return put(upload, partNumber, part(partNumber));
+					}
+				}));
+			}
+			List<UploadPart> parts = new ArrayList<UploadPart>();
+			for (Future<UploadPart> part : pending) {
+				parts.add(part.get());
+			}
+			assertCompletes(upload, parts);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testResentPartReplacesTheOldOne() throws Exception {
+		MultipartUpload upload = manager.create(video, data.length, PART_SIZE);
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+		for (int i = 1; i <= partCount(); i++) {
+			byte[] wrong = part(i).clone();
+			wrong[0]++;
+			put(upload, i, wrong);
+		}
+		// Every part again, after all of the wrong data was hashed
+		for (int i = 1; i <= partCount(); i++) {
+			parts.add(put(upload, i, part(i)));
+		}
+		assertCompletes(upload, parts);
+	}
+
+	@Test
+	public void testPartListMustMatch() throws Exception {
+		MultipartUpload upload = manager.create(video, data.length, PART_SIZE);
+		List<UploadPart> parts = new ArrayList<UploadPart>();
+		for (int i = 1; i <= partCount(); i++) {
+			parts.add(put(upload, i, part(i)));
+		}
+
+		List<UploadPart> missing = new ArrayList<UploadPart>(parts);
+		missing.remove(2);
+		assertInvalid(upload, missing);
+
+		List<UploadPart> wrongEtag = new ArrayList<UploadPart>(parts);
+		wrongEtag.set(0, new UploadPart(1, PART_SIZE, DigestUtils.sha256Hex("other")));
+		assertInvalid(upload, wrongEtag);
+
+		// Shorter than the announced length
+		assertInvalid(upload, parts.subList(0, 2));
+
+		// The upload is still there to be completed properly
+		assertCompletes(upload, parts);
+	}
+
+	@Test
+	public void testEmptyUploadHasOneEmptyPart() throws Exception {
+		data = new byte[0];
+		MultipartUpload upload = manager.create(video, 0, PART_SIZE);
+		assertCompletes(upload, Collections.singletonList(put(upload, 1, data)));
+	}
+
+	@Test(expected = InvalidPartException.class)
+	public void testPartLongerThanThePartSize() throws Exception {
+		MultipartUpload upload = manager.create(video, -1, PART_SIZE);
+		manager.putPart(1, upload.getId(), 1, new ByteArrayInputStream(new byte[PART_SIZE + 1]));
+	}
+
+	@Test(expected = InvalidPartException.class)
+	public void testPartSizeBelowTheMinimum() throws Exception {
+		manager.create(video, data.length, PART_SIZE - 1);
+	}
+
+	private void assertCompletes(MultipartUpload upload, List<UploadPart> parts) throws Exception {
+		CompletedUpload completed = manager.complete(video, upload.getId(), parts);
+		assertArrayEquals(data, Files.readAllBytes(completed.getFile()));
+		assertEquals(DigestUtils.sha256Hex(data), completed.getDigest());
+	}
+
+	private void assertInvalid(MultipartUpload upload, List<UploadPart> parts) throws Exception {
+		try {
+			manager.complete(video, upload.getId(), parts);
+			fail("Completed with " + parts.size() + " parts");
+		} catch (InvalidPartException e) {
+			// expected
+		}
+	}
+
+	private UploadPart put(MultipartUpload upload, int partNumber, byte[] part) throws Exception {
+		UploadPart received = manager.putPart(1, upload.getId(), partNumber, new ByteArrayInputStream(part));
+		assertEquals(DigestUtils.sha256Hex(part), received.getEtag());
+		return received;
+	}
+
+	private int partCount() {
+		return (data.length + PART_SIZE - 1) / PART_SIZE;
+	}
+
+	private byte[] part(int partNumber) {
+		int start = (partNumber - 1) * PART_SIZE;
+		return Arrays.copyOfRange(data, start, Math.min(data.length, start + PART_SIZE));
+	}
+
+}
@@ -0,0 +1,237 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks the things that only the packed backend does: finding its videos
+ * again after a restart, cutting off a record that was torn by a crash,
+ * and compacting segments without losing live data. What every backend
+ * does is checked by VideoStorageConformanceTest.
+ */
+public class PackedVideoStorageTest {
+
+	private static final int SIZE = 16 * 1024;
+
+	// Three videos to a segment
+	private static final long SEGMENT_BYTES = 3 * (SIZE + 64);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private PackedVideoStorage storage;
+
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		storage = open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		storage.close();
+	}
+
+	@Test
+	public void testVideosSurviveARestart() throws Exception {
+		byte[][] data = new byte[8][];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = save(video(i + 1));
+		}
+		storage.deleteVideoData(video(3));
+		data[4] = save(video(5));
+		storage.saveVideoDataDigest(video(1), "digest-1");
+		Object key = storage.getVideoDataAttributes(video(2)).fileKey();
+
+		storage.close();
+		storage = open();
+
+		assertTrue(storage.getSegmentCount() > 1);
+		assertFalse(storage.hasVideoData(video(3)));
+		for (int i = 0; i < data.length; i++) {
+			if (i != 2) {
+				assertArrayEquals(data[i], read(video(i + 1)));
+			}
+		}
+		assertEquals("digest-1", storage.loadVideoDataDigest(video(1)));
+		assertEquals(key, storage.getVideoDataAttributes(video(2)).fileKey());
+	}
+
+	@Test
+	public void testTornRecordIsCutOff() throws Exception {
+		byte[] kept = save(video(1));
+		save(video(2));
+		storage.close();
+
+		// Lose the end of the second video, as in a crash mid-write
+		Path segment = onlySegment();
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - SIZE / 2);
+		}
+		storage = open();
+
+		assertArrayEquals(kept, read(video(1)));
+		assertFalse(storage.hasVideoData(video(2)));
+
+		// The log carries on from the end of the intact record
+		byte[] again = save(video(2));
+		storage.close();
+		storage = open();
+		assertArrayEquals(again, read(video(2)));
+	}
+
+	@Test
+	public void testCorruptRecordAtTheEndIsCutOff() throws Exception {
+		save(video(1));
+		storage.close();
+
+		try (FileChannel channel = FileChannel.open(onlySegment(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), channel.size() - 10);
+		}
+		storage = open();
+
+		assertFalse(storage.hasVideoData(video(1)));
+	}
+
+	@Test
+	public void testCompactionKeepsLiveDataAndReclaimsTheRest() throws Exception {
+		byte[] live = save(video(1));
+		storage.saveVideoDataDigest(video(1), "digest-1");
+		Object key = storage.getVideoDataAttributes(video(1)).fileKey();
+		for (int i = 0; i < 6; i++) {
+			save(video(2));
+		}
+		storage.deleteVideoData(video(2));
+		long garbage = storage.getGarbageBytes();
+		int segments = storage.getSegmentCount();
+
+		storage.compact();
+
+		assertTrue(storage.getCompactions() > 0);
+		assertTrue(storage.getSegmentCount() < segments);
+		assertTrue(storage.getGarbageBytes() < garbage);
+		assertArrayEquals(live, read(video(1)));
+		assertEquals("digest-1", storage.loadVideoDataDigest(video(1)));
+		assertEquals(key, storage.getVideoDataAttributes(video(1)).fileKey());
+
+		// The deleted video stays deleted after a restart, with the
+		// segments that held its data gone
+		storage.close();
+		storage = open();
+		assertArrayEquals(live, read(video(1)));
+		assertFalse(storage.hasVideoData(video(2)));
+	}
+
+	@Test
+	public void testHeldVersionKeepsItsSegmentThroughCompaction() throws Exception {
+		byte[] first = save(video(1));
+		Path firstSegment = onlySegment();
+		VideoDataVersion version = storage.acquireVideoData(video(1));
+		byte[] last = null;
+		for (int i = 0; i < 6; i++) {
+			last = save(video(1));
+		}
+
+		// The first segment is all garbage now, but it is still being read
+		storage.compact();
+		assertTrue(storage.getCompactions() > 0);
+		assertTrue(Files.exists(firstSegment));
+		assertFalse(version.isCurrent());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		version.copyTo(0, SIZE, out);
+		assertArrayEquals(first, out.toByteArray());
+		assertArrayEquals(last, read(video(1)));
+
+		version.close();
+		version.close();
+		assertFalse(Files.exists(firstSegment));
+	}
+
+	@Test
+	public void testMappedReadsOfFullSegments() throws Exception {
+		storage.close();
+		storage = new PackedVideoStorage(dir, SEGMENT_BYTES, true, 0.5, 0);
+		byte[][] data = new byte[5][];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = save(video(i + 1));
+		}
+		for (int i = 0; i < data.length; i++) {
+			assertArrayEquals(data[i], read(video(i + 1)));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			storage.copyVideoData(video(i + 1), 100, 1000, out);
+			assertArrayEquals(Arrays.copyOfRange(data[i], 100, 1100), out.toByteArray());
+		}
+	}
+
+	private PackedVideoStorage open() throws IOException {
+		return new PackedVideoStorage(dir, SEGMENT_BYTES, false, 0.5, 0);
+	}
+
+	private Path onlySegment() throws IOException {
+		Path only = null;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir.resolve("pack"))) {
+			for (Path file : files) {
+				assertEquals(null, only);
+				only = file;
+			}
+		}
+		return only;
+	}
+
+	private byte[] save(Video v) throws IOException {
+		byte[] data = new byte[SIZE];
+		random.nextBytes(data);
+		storage.saveVideoData(v, new ByteArrayInputStream(data));
+		return data;
+	}
+
+	private byte[] read(Video v) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		storage.copyVideoData(v, out);
+		return out.toByteArray();
+	}
+
+}
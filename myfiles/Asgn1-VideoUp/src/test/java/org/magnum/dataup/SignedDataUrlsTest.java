@@ -0,0 +1,251 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.magnum.dataup.SignedDataUrls.Verdict;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Checks that signed data URLs are accepted for their video until they
+ * expire, that tampered or foreign signatures are turned down, that a
+ * rotated key keeps working for the lifetime of the URLs it signed, and
+ * that the filter marks, passes and rejects requests accordingly, for
+ * every form of the data path that reaches the controller.
+ */
+public class SignedDataUrlsTest {
+
+	private static final String DATA_URL = "http://localhost:8080/video/7/data";
+
+	private static final String KEY_A = "a=" + Base64.encodeBase64String(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+			11, 12, 13, 14, 15, 16 });
+
+	private static final String KEY_B = "b=" + Base64.encodeBase64String(new byte[] { 16, 15, 14, 13, 12, 11, 10, 9,
+			8, 7, 6, 5, 4, 3, 2, 1 });
+
+	@Test
+	public void testSignedUrlIsValidUntilItExpires() throws Exception {
+		SignedDataUrls urls = new SignedDataUrls("", 60, 0, false);
+		long now = System.currentTimeMillis();
+		long expires = now / 1000 + 60;
+		URI signed = URI.create(urls.sign(DATA_URL, 7, expires));
+
+		assertEquals("/video/7/data", signed.getPath());
+		assertEquals(Verdict.VALID, verify(urls, 7, signed, now));
+		assertEquals(Verdict.VALID, verify(urls, 7, signed, now + 59 * 1000));
+		assertEquals(Verdict.EXPIRED, verify(urls, 7, signed, (expires + 1) * 1000));
+		assertEquals(Verdict.UNSIGNED, urls.verify(7, null, null, null, now));
+	}
+
+	@Test
+	public void testTamperedUrlsAreRejected() throws Exception {
+		SignedDataUrls urls = new SignedDataUrls(KEY_A, 60, 0, false);
+		long now = System.currentTimeMillis();
+		long expires = now / 1000 + 60;
+		URI signed = URI.create(urls.sign(DATA_URL, 7, expires));
+		String kid = param(signed, SignedDataUrls.KEY_ID_PARAMETER);
+		String sig = param(signed, SignedDataUrls.SIGNATURE_PARAMETER);
+
+		// Another video, a later expiry, or a forged signature
+		assertEquals(Verdict.BAD_SIGNATURE, verify(urls, 8, signed, now));
+		assertEquals(Verdict.BAD_SIGNATURE, urls.verify(7, Long.toString(expires + 3600), kid, sig, now));
+		assertEquals(Verdict.BAD_SIGNATURE, urls.verify(7, Long.toString(expires), kid,
+				Base64.encodeBase64URLSafeString(new byte[32]), now));
+		assertEquals(Verdict.UNKNOWN_KEY, urls.verify(7, Long.toString(expires), "nope", sig, now));
+		assertEquals(Verdict.MALFORMED, urls.verify(7, "soon", kid, sig, now));
+		assertEquals(Verdict.MALFORMED, urls.verify(7, Long.toString(expires), null, sig, now));
+
+		// A server with a different key doesn't accept it either
+		SignedDataUrls other = new SignedDataUrls("a=" + Base64.encodeBase64String(new byte[16]), 60, 0, false);
+		assertEquals(Verdict.BAD_SIGNATURE, verify(other, 7, signed, now));
+	}
+
+	@Test
+	public void testRotatedKeysAreAcceptedForTheTtl() throws Exception {
+		SignedDataUrls urls = new SignedDataUrls("", 60, 0, false);
+		long now = System.currentTimeMillis();
+		String oldKey = urls.getCurrentKeyId();
+		URI before = URI.create(urls.sign(DATA_URL, 7, now / 1000 + 60));
+
+		String newKey = urls.rotate();
+		assertNotEquals(oldKey, newKey);
+		assertEquals(newKey, urls.getCurrentKeyId());
+		URI after = URI.create(urls.sign(DATA_URL, 7, now / 1000 + 60));
+		assertEquals(newKey, param(after, SignedDataUrls.KEY_ID_PARAMETER));
+
+		assertEquals(Verdict.VALID, verify(urls, 7, before, now));
+		assertEquals(Verdict.VALID, verify(urls, 7, after, now));
+
+		// The old key stops being accepted once the URLs it signed have expired
+		assertEquals(Verdict.UNKNOWN_KEY, urls.verify(7, Long.toString(now / 1000 + 120), oldKey,
+				param(before, SignedDataUrls.SIGNATURE_PARAMETER), now + 61 * 1000));
+	}
+
+	@Test
+	public void testConfiguredKeysSignWithTheFirstAndAcceptTheRest() throws Exception {
+		SignedDataUrls a = new SignedDataUrls(KEY_A, 60, 0, false);
+		SignedDataUrls b = new SignedDataUrls(KEY_B, 60, 0, false);
+		SignedDataUrls both = new SignedDataUrls(KEY_B + ", " + KEY_A, 60, 0, false);
+		long now = System.currentTimeMillis();
+		long expires = now / 1000 + 60;
+
+		assertEquals("b", both.getCurrentKeyId());
+		assertEquals(Verdict.VALID, verify(both, 7, URI.create(a.sign(DATA_URL, 7, expires)), now));
+		assertEquals(Verdict.VALID, verify(both, 7, URI.create(b.sign(DATA_URL, 7, expires)), now));
+		assertEquals(Verdict.UNKNOWN_KEY, verify(a, 7, URI.create(both.sign(DATA_URL, 7, expires)), now));
+
+		try {
+			new SignedDataUrls("short=" + Base64.encodeBase64String(new byte[8]), 60, 0, false);
+			assertTrue("A short secret was accepted", false);
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFilterMarksPassesAndRejectsRequests() throws Exception {
+		SignedDataUrls urls = new SignedDataUrls("", 60, 0, true);
+		SignedDataUrlFilter filter = new SignedDataUrlFilter(urls);
+		URI signed = URI.create(urls.sign(DATA_URL, 7, urls.expiresFromNow()));
+
+		MockHttpServletRequest request = dataRequest(signed);
+		MockFilterChain chain = new MockFilterChain();
+		filter.doFilter(request, new MockHttpServletResponse(), chain);
+		assertTrue(SignedDataUrls.isVerified(request));
+		assertEquals(request, chain.getRequest());
+
+		// Signatures are required here, so an unsigned request doesn't get
+		// through, and neither does a signed URL used for another video
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, filter(filter, dataRequest(URI.create(DATA_URL))));
+		MockHttpServletRequest other = dataRequest(signed);
+		other.setRequestURI("/video/8/data");
+		assertEquals(HttpServletResponse.SC_FORBIDDEN, filter(filter, other));
+
+		// Requests for anything but the data aren't checked
+		MockHttpServletRequest list = new MockHttpServletRequest("GET", "/video");
+		assertEquals(HttpServletResponse.SC_OK, filter(filter, list));
+		MockHttpServletRequest upload = new MockHttpServletRequest("POST", "/video/7/data");
+		assertEquals(HttpServletResponse.SC_OK, filter(filter, upload));
+		assertFalse(SignedDataUrls.isVerified(upload));
+
+		// Unsigned data requests pass, unmarked, when signatures are optional
+		SignedDataUrlFilter optional = new SignedDataUrlFilter(new SignedDataUrls("", 60, 0, false));
+		MockHttpServletRequest unsigned = dataRequest(URI.create(DATA_URL));
+		assertEquals(HttpServletResponse.SC_OK, filter(optional, unsigned));
+		assertFalse(SignedDataUrls.isVerified(unsigned));
+	}
+
+	@Test
+	public void testFilterSeesTheIdTheControllerIsCalledWith() throws Exception {
+		SignedDataUrls urls = new SignedDataUrls("", 60, 0, true);
+		SignedDataUrlFilter filter = new SignedDataUrlFilter(urls);
+		URI signed = URI.create(urls.sign(DATA_URL, 7, urls.expiresFromNow()));
+
+		// Spring maps all of these to GET /video/{id}/data with id 7, so the
+		// signature for video 7 is good for them, and nothing gets through
+		// them unsigned
+		String[] paths = { "/video/7/data/", "/video/7/data.mp4", "/video/7/data;x=1", "/video/7;x=1/data",
+				"/video/007/data", "/video/%37/data", "/video/00000000000000000000007/data" };
+		for (String path : paths) {
+			MockHttpServletRequest request = dataRequest(path, signed);
+			assertEquals(path, HttpServletResponse.SC_OK, filter(filter, request));
+			assertTrue(path, SignedDataUrls.isVerified(request));
+			assertEquals(path, HttpServletResponse.SC_FORBIDDEN, filter(filter, dataRequest(path, null)));
+		}
+
+		// The same paths for video 8 don't take video 7's signature
+		for (String path : paths) {
+			String other = path.replace('7', '8');
+			assertEquals(other, HttpServletResponse.SC_FORBIDDEN, filter(filter, dataRequest(other, signed)));
+		}
+
+		// Paths under the data path whose id the filter can't read are
+		// turned away when signatures are required, signed or not
+		for (String path : new String[] { "/video/99999999999999999999/data", "/video/0x7/data", "/video/-7/data",
+				"/video/7/data/more", "/video/7/data.mp4/" }) {
+			assertEquals(path, HttpServletResponse.SC_FORBIDDEN, filter(filter, dataRequest(path, signed)));
+			assertEquals(path, HttpServletResponse.SC_FORBIDDEN, filter(filter, dataRequest(path, null)));
+		}
+
+		// Other paths that start the same way are none of the filter's business
+		assertEquals(HttpServletResponse.SC_OK, filter(filter, dataRequest("/video/7/dataUrl", null)));
+
+		// and let through, unmarked, when they are optional
+		SignedDataUrlFilter optional = new SignedDataUrlFilter(new SignedDataUrls("", 60, 0, false));
+		MockHttpServletRequest unreadable = dataRequest("/video/0x7/data", null);
+		assertEquals(HttpServletResponse.SC_OK, filter(optional, unreadable));
+		assertFalse(SignedDataUrls.isVerified(unreadable));
+	}
+
+	private static Verdict verify(SignedDataUrls urls, long videoId, URI signed, long now) {
+		return urls.verify(videoId, param(signed, SignedDataUrls.EXPIRES_PARAMETER),
+				param(signed, SignedDataUrls.KEY_ID_PARAMETER), param(signed, SignedDataUrls.SIGNATURE_PARAMETER), now);
+	}
+
+	private static int filter(SignedDataUrlFilter filter, MockHttpServletRequest request) throws Exception {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		filter.doFilter(request, response, new MockFilterChain());
+		return response.getStatus();
+	}
+
+	private static MockHttpServletRequest dataRequest(URI uri) {
+		return dataRequest(uri.getPath(), uri);
+	}
+
+	// A GET of the given raw path with the signature parameters of the
+	// given URL, if any
+	private static MockHttpServletRequest dataRequest(String path, URI uri) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", path);
+		if (uri == null) {
+			return request;
+		}
+		for (String name : new String[] { SignedDataUrls.EXPIRES_PARAMETER, SignedDataUrls.KEY_ID_PARAMETER,
+				SignedDataUrls.SIGNATURE_PARAMETER }) {
+			String value = param(uri, name);
+			if (value != null) {
+				request.setParameter(name, value);
+			}
+		}
+		return request;
+	}
+
+	private static String param(URI uri, String name) {
+		if (uri.getRawQuery() == null) {
+			return null;
+		}
+		for (String pair : uri.getRawQuery().split("&")) {
+			if (pair.startsWith(name + "=")) {
+				return pair.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+
+}
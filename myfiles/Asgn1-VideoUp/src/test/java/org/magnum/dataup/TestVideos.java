@@ -0,0 +1,43 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import org.magnum.dataup.model.Video;
+
+/**
+ * Videos for the tests of the storage and upload classes, which only care
+ * about a video's id and, at times, its content type.
+ */
+final class TestVideos {
+
+	private TestVideos() {
+	}
+
+	static Video video(long id) {
+		Video v = new Video();
+		v.setId(id);
+		return v;
+	}
+
+	static Video video(long id, String contentType) {
+		Video v = video(id);
+		v.setContentType(contentType);
+		return v;
+	}
+
+}
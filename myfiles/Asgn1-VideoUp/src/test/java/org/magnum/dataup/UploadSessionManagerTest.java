@@ -0,0 +1,158 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.UploadSessionManager.CompletedUpload;
+import org.magnum.dataup.UploadSessionManager.OffsetMismatchException;
+import org.magnum.dataup.model.UploadSession;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks that the offset of an upload can be read while a chunk is still
+ * arriving, and that a second chunk sent meanwhile is turned away instead
+ * of waiting behind the first.
+ */
+public class UploadSessionManagerTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private UploadSessionManager uploads;
+
+	private Video video = video(1);
+
+	private ExecutorService executor = Executors.newSingleThreadExecutor();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		uploads = new UploadSessionManager(new VideoFileManager(dir), 1024 * 1024, 60);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testOffsetCanBeReadWhileAChunkIsArriving() throws Exception {
+		final UploadSession session = uploads.create(video, 200);
+		final StalledChunk chunk = new StalledChunk(chunk(0, 100));
+		Future<UploadSession> appended = executor.submit(new Callable<UploadSession>() {
+			@Override
+			public UploadSession call() throws Exception {
+				return uploads.append(1, session.getId(), 0, chunk);
+			}
+		});
+		assertTrue(chunk.stalled.await(10, TimeUnit.SECONDS));
+
+		// Neither waits for the stalled chunk
+		assertEquals(100, uploads.get(1, session.getId()).getOffset());
+		try {
+			uploads.append(1, session.getId(), 100, new ByteArrayInputStream(chunk(100, 100)));
+			fail("A second chunk was accepted while the first was being written");
+		} catch (OffsetMismatchException e) {
+			assertEquals(100, e.getSession().getOffset());
+		}
+		try {
+			uploads.complete(video, session.getId());
+			fail("The upload was completed while a chunk was being written");
+		} catch (OffsetMismatchException e) {
+			assertEquals(100, e.getSession().getOffset());
+		}
+
+		chunk.release.countDown();
+		assertEquals(100, appended.get(10, TimeUnit.SECONDS).getOffset());
+		assertEquals(200, uploads.append(1, session.getId(), 100, new ByteArrayInputStream(chunk(100, 100)))
+				.getOffset());
+
+		CompletedUpload upload = uploads.complete(video, session.getId());
+		byte[] data = chunk(0, 200);
+		assertArrayEquals(data, Files.readAllBytes(upload.getFile()));
+		assertEquals(DigestUtils.sha256Hex(data), upload.getDigest());
+	}
+
+	private static byte[] chunk(int from, int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (from + i);
+		}
+		return data;
+	}
+
+	// Hands out its data and then blocks, like a client whose connection
+	// went quiet in the middle of a chunk, until it is released
+	private static class StalledChunk extends InputStream {
+		private final CountDownLatch stalled = new CountDownLatch(1);
+		private final CountDownLatch release = new CountDownLatch(1);
+		private final InputStream data;
+
+		private StalledChunk(byte[] data) {
+			this.data = new ByteArrayInputStream(data);
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = data.read(b, off, len);
+			if (read >= 0) {
+				return read;
+			}
+			stalled.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			return -1;
+		}
+	}
+
+}
@@ -0,0 +1,246 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks the map operations of VideoCatalog across resizes and removals,
+ * that keysAfter() walks the ids in order and keeps up with concurrent
+ * writers, and that readers and iterators stay consistent while several
+ * threads add videos.
+ */
+public class VideoCatalogTest {
+
+	private static final int THREADS = 8;
+
+	private static final int VIDEOS_PER_THREAD = 50000;
+
+	@Test
+	public void testPutGetRemove() {
+		VideoCatalog catalog = new VideoCatalog(4);
+		int count = 100000;
+		for (long id = 0; id < count; id++) {
+			assertNull(catalog.put(id, video(id)));
+		}
+		assertEquals(count, catalog.size());
+
+		for (long id = 0; id < count; id++) {
+			assertEquals(id, catalog.get(id).getId());
+		}
+		assertNull(catalog.get(count));
+		assertNull(catalog.get(-1));
+
+		Video replacement = video(42);
+		assertEquals(42, catalog.put(42, replacement).getId());
+		assertSame(replacement, catalog.putIfAbsent(42, video(42)));
+		assertSame(replacement, catalog.get(42));
+
+		// Remove every other video, then put some back, so that the
+		// tables are full of tombstones when they resize
+		for (long id = 0; id < count; id += 2) {
+			assertEquals(id, catalog.remove(id).getId());
+		}
+		assertNull(catalog.remove(0));
+		assertEquals(count / 2, catalog.size());
+		for (long id = 0; id < count; id += 4) {
+			assertNull(catalog.putIfAbsent(id, video(id)));
+		}
+		for (long id = count; id < 2 * count; id++) {
+			catalog.put(id, video(id));
+		}
+
+		for (long id = 0; id < 2 * count; id++) {
+			boolean present = id >= count || id % 2 == 1 || id % 4 == 0;
+			assertEquals("id " + id, present, catalog.containsKey(id));
+		}
+
+		Set<Long> seen = new HashSet<Long>();
+		for (Video v : catalog.values()) {
+			assertTrue(seen.add(v.getId()));
+		}
+		assertEquals(catalog.size(), seen.size());
+	}
+
+	@Test
+	public void testKeysAfterWalksIdsInOrder() {
+		VideoCatalog catalog = new VideoCatalog(4);
+		List<Long> expected = new ArrayList<Long>();
+		Random random = new Random(1);
+
+		// Random ids (including 0 and negative ones) so that blocks split
+		// in the middle and get new first ids, then remove a third of them
+		while (expected.size() < 20000) {
+			long id = random.nextInt(100000) - 1000;
+			if (catalog.putIfAbsent(id, video(id)) == null) {
+				expected.add(id);
+			}
+		}
+		catalog.put(0, video(0));
+		if (!expected.contains(0L)) {
+			expected.add(0L);
+		}
+		for (int i = 0; i < expected.size(); i += 3) {
+			catalog.remove(expected.get(i));
+			expected.set(i, null);
+		}
+		expected.removeAll(Collections.singleton((Long) null));
+		Collections.sort(expected);
+
+		// Walk in pages of different sizes, resuming from the last id
+		for (int pageSize : new int[] { 1, 7, 512, 513, 100000 }) {
+			List<Long> walked = new ArrayList<Long>();
+			long[] ids = new long[pageSize];
+			Long after = null;
+			int count;
+			do {
+				count = catalog.keysAfter(after, ids, pageSize);
+				for (int i = 0; i < count; i++) {
+					walked.add(ids[i]);
+					after = ids[i];
+				}
+			} while (count == pageSize);
+			assertEquals("page size " + pageSize, expected, walked);
+		}
+
+		long[] ids = new long[10];
+		assertEquals(0, catalog.keysAfter(expected.get(expected.size() - 1), ids, 10));
+		assertEquals(10, catalog.keysAfter(Long.MIN_VALUE, ids, 10));
+		assertEquals((long) expected.get(0), ids[0]);
+	}
+
+	@Test
+	public void testConcurrentWritersAndReaders() throws Exception {
+		final VideoCatalog catalog = new VideoCatalog();
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread[] writers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final long first = 1 + (long) t * VIDEOS_PER_THREAD;
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (long id = first; id < first + VIDEOS_PER_THREAD; id++) {
+							catalog.put(id, video(id));
+							// A writer must always find what it just wrote
+							if (catalog.get(id) == null) {
+								throw new AssertionError("lost video " + id);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			writers[t].start();
+		}
+
+		start.countDown();
+		// Iterate while the writers are resizing the tables; every video
+		// seen must be complete and seen once
+		while (catalog.size() < THREADS * VIDEOS_PER_THREAD && failure.get() == null) {
+			Set<Long> seen = new HashSet<Long>();
+			for (Video v : catalog.values()) {
+				assertTrue(v.getId() > 0);
+				assertTrue(seen.add(v.getId()));
+			}
+		}
+		for (Thread writer : writers) {
+			writer.join();
+		}
+
+		assertNull(failure.get());
+		assertEquals(THREADS * VIDEOS_PER_THREAD, catalog.size());
+		for (long id = 1; id <= THREADS * VIDEOS_PER_THREAD; id++) {
+			assertEquals(id, catalog.get(id).getId());
+		}
+	}
+
+	@Test
+	public void testIndexKeepsUpWithConcurrentChurn() throws Exception {
+		final VideoCatalog catalog = new VideoCatalog(4);
+		final int range = 3 * VideoIdIndex.BLOCK_SIZE;
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		// Several threads add and remove the same ids (including 0), so that
+		// index updates for an id race with each other and blocks split
+		Thread[] writers = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			writers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < 20000; i++) {
+							long id = random.nextInt(range) - 10;
+							if (random.nextBoolean()) {
+								catalog.put(id, video(id));
+							} else {
+								catalog.remove(id);
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			});
+			writers[t].start();
+		}
+		start.countDown();
+		for (Thread writer : writers) {
+			writer.join();
+		}
+		assertNull(failure.get());
+
+		List<Long> expected = new ArrayList<Long>();
+		for (long id = -10; id < range; id++) {
+			if (catalog.containsKey(id)) {
+				expected.add(id);
+			}
+		}
+		long[] ids = new long[range];
+		int count = catalog.keysAfter(null, ids, range);
+		List<Long> walked = new ArrayList<Long>();
+		for (int i = 0; i < count; i++) {
+			walked.add(ids[i]);
+		}
+		assertEquals(expected, walked);
+	}
+
+}
@@ -0,0 +1,88 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks that a video's recorded digest is only handed out while its data
+ * file is the one the digest was recorded for, and that it survives a
+ * restart.
+ */
+public class VideoDataDigestsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Video video = video(1);
+
+	private byte[] data = new byte[64 * 1024];
+
+	private VideoFileManager fileManager;
+
+	@Before
+	public void setUp() throws Exception {
+		new Random(1).nextBytes(data);
+		fileManager = new VideoFileManager(folder.getRoot().toPath());
+		fileManager.saveVideoData(video, new ByteArrayInputStream(data));
+	}
+
+	@Test
+	public void testDigestIsRememberedAcrossInstances() throws Exception {
+		String digest = DigestUtils.sha256Hex(data);
+		BasicFileAttributes attrs = fileManager.getVideoDataAttributes(video);
+
+		VideoDataDigests digests = new VideoDataDigests(fileManager);
+		digests.record(video, digest, attrs);
+		assertEquals(digest, digests.get(video, attrs));
+
+		// A new instance, as after a restart, reads the digest back from disk
+		assertEquals(digest, new VideoDataDigests(fileManager).get(video, fileManager.getVideoDataAttributes(video)));
+	}
+
+	@Test
+	public void testDigestIsDroppedWhenDataChanges() throws Exception {
+		VideoDataDigests digests = new VideoDataDigests(fileManager);
+		digests.record(video, DigestUtils.sha256Hex(data), fileManager.getVideoDataAttributes(video));
+
+		// Replaced without recording a new digest
+		fileManager.saveVideoData(video, new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		BasicFileAttributes attrs = fileManager.getVideoDataAttributes(video);
+		assertNull(digests.get(video, attrs));
+		assertNull(new VideoDataDigests(fileManager).get(video, attrs));
+	}
+
+	@Test
+	public void testUnknownVideoHasNoDigest() throws Exception {
+		assertNull(new VideoDataDigests(fileManager).get(video, fileManager.getVideoDataAttributes(video)));
+	}
+
+}
@@ -0,0 +1,162 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.dataup.VideoDelta.DeltaTooLargeException;
+import org.magnum.dataup.VideoDelta.InvalidDeltaException;
+import org.magnum.dataup.model.BlockSignatures;
+
+import com.google.common.primitives.Bytes;
+
+/**
+ * Checks that deltas rebuild the new version exactly, and that a small
+ * edit, wherever it moves the rest of the data, costs about a block of
+ * literal data rather than the whole file.
+ */
+public class VideoDeltaTest {
+
+	private static final int BLOCK_SIZE = 2048;
+
+	private byte[] base = new byte[200 * 1024 + 123];
+
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() {
+		random.nextBytes(base);
+	}
+
+	@Test
+	public void testSignatures() throws Exception {
+		BlockSignatures signatures = sign(base);
+		assertEquals(base.length / BLOCK_SIZE, signatures.getWeak().length);
+		assertEquals(base.length / BLOCK_SIZE, signatures.getStrong().length);
+		assertEquals(base.length, signatures.getLength());
+		assertEquals(DigestUtils.sha256Hex(base), signatures.getDigest());
+	}
+
+	@Test
+	public void testRollingChecksumMatchesAFreshOne() {
+		ByteBuffer data = ByteBuffer.wrap(base);
+		VideoDelta.RollingChecksum checksum = new VideoDelta.RollingChecksum(data, 0, BLOCK_SIZE);
+		for (int pos = 1; pos < 5000; pos++) {
+			checksum.roll(base[pos - 1], base[pos - 1 + BLOCK_SIZE]);
+			assertEquals(VideoDelta.weak(data, pos, BLOCK_SIZE), checksum.value());
+		}
+	}
+
+	@Test
+	public void testUnchangedDataIsAllCopies() throws Exception {
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		long literal = VideoDelta.encode(ByteBuffer.wrap(base), sign(base), delta);
+
+		// Only the short block at the end is sent
+		assertEquals(base.length % BLOCK_SIZE, literal);
+		assertArrayEquals(base, apply(delta.toByteArray()));
+	}
+
+	@Test
+	public void testSmallEditsCostAboutABlockEach() throws Exception {
+		byte[] inserted = new byte[100];
+		random.nextBytes(inserted);
+		byte[] edited = Bytes.concat(Arrays.copyOfRange(base, 0, 50000), inserted,
+				Arrays.copyOfRange(base, 50000, 170000), Arrays.copyOfRange(base, 170500, base.length));
+		edited[120000] ^= 1;
+
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		long literal = VideoDelta.encode(ByteBuffer.wrap(edited), sign(base), delta);
+
+		// Three edits, and the short block at the end
+		assertTrue(literal + " literal bytes", literal <= 4 * BLOCK_SIZE + inserted.length);
+		assertTrue(delta.size() < 5 * BLOCK_SIZE + inserted.length);
+		assertArrayEquals(edited, apply(delta.toByteArray()));
+	}
+
+	@Test
+	public void testUnrelatedDataIsAllLiteral() throws Exception {
+		byte[] other = new byte[50000];
+		random.nextBytes(other);
+
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		assertEquals(other.length, VideoDelta.encode(ByteBuffer.wrap(other), sign(base), delta));
+		assertArrayEquals(other, apply(delta.toByteArray()));
+	}
+
+	@Test(expected = InvalidDeltaException.class)
+	public void testTruncatedDelta() throws Exception {
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		VideoDelta.encode(ByteBuffer.wrap(base), sign(base), delta);
+		apply(Arrays.copyOf(delta.toByteArray(), delta.size() - 1));
+	}
+
+	@Test(expected = InvalidDeltaException.class)
+	public void testDeltaAgainstOtherData() throws Exception {
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		VideoDelta.encode(ByteBuffer.wrap(base), sign(Arrays.copyOf(base, base.length - 1)), delta);
+		apply(delta.toByteArray());
+	}
+
+	@Test(expected = DeltaTooLargeException.class)
+	public void testResultLongerThanAllowed() throws Exception {
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		VideoDelta.encode(ByteBuffer.wrap(base), sign(base), delta);
+		VideoDelta.apply(new ByteArrayInputStream(delta.toByteArray()), base.length, source(),
+				new ByteArrayOutputStream(), base.length - 1);
+	}
+
+	private BlockSignatures sign(byte[] data) throws IOException {
+		VideoDelta.Signer signer = new VideoDelta.Signer(BLOCK_SIZE);
+		// In uneven pieces, as a storage might write them
+		for (int pos = 0; pos < data.length; pos += 1000) {
+			signer.write(data, pos, Math.min(1000, data.length - pos));
+		}
+		return signer.getSignatures();
+	}
+
+	private byte[] apply(byte[] delta) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long length = VideoDelta.apply(new ByteArrayInputStream(delta), base.length, source(), out, Long.MAX_VALUE);
+		assertEquals(out.size(), length);
+		return out.toByteArray();
+	}
+
+	private VideoDelta.BlockSource source() {
+		return new VideoDelta.BlockSource() {
+			@Override
+			public void copy(long offset, long length, OutputStream out) throws IOException {
+				out.write(base, (int) offset, (int) length);
+			}
+		};
+	}
+
+}
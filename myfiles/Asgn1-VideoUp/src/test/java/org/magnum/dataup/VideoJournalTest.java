@@ -0,0 +1,182 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Restarts a VideoJournal over the same directory and checks that the
+ * catalog and the id generator come back, from the journal alone, from a
+ * snapshot plus the journal written after it, and after a crash in the
+ * middle of an append.
+ */
+public class VideoJournalTest {
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("journal");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+			for (Path file : files) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(dir);
+	}
+
+	@Test
+	public void testRecoverFromJournal() throws Exception {
+		VideoCatalog catalog = new VideoCatalog();
+		AtomicLong ids = new AtomicLong();
+		VideoJournal journal = open(catalog, ids, Long.MAX_VALUE);
+		add(journal, catalog, ids, 10);
+		Video renamed = catalog.get(3);
+		renamed.setTitle("renamed \u00e9");
+		journal.append(renamed);
+		// No snapshot, like a crash after the last append
+		journal.close();
+
+		catalog = new VideoCatalog();
+		ids = new AtomicLong();
+		open(catalog, ids, Long.MAX_VALUE).close();
+		assertEquals(10, catalog.size());
+		assertEquals(10, ids.get());
+		assertEquals("renamed \u00e9", catalog.get(3).getTitle());
+		assertEquals("title7", catalog.get(7).getTitle());
+		assertEquals("video/mp4", catalog.get(7).getContentType());
+		assertNull(catalog.get(7).getLocation());
+	}
+
+	@Test
+	public void testRecoverFromSnapshotAndJournal() throws Exception {
+		VideoCatalog catalog = new VideoCatalog();
+		AtomicLong ids = new AtomicLong();
+		VideoJournal journal = open(catalog, ids, Long.MAX_VALUE);
+		add(journal, catalog, ids, 100);
+		journal.snapshot();
+		add(journal, catalog, ids, 50);
+		// Ids that were handed out but never made it into the catalog
+		// must not be reused either
+		ids.addAndGet(5);
+		journal.snapshot();
+		add(journal, catalog, ids, 20);
+		journal.close();
+
+		assertEquals(1, countJournals());
+
+		catalog = new VideoCatalog();
+		ids = new AtomicLong();
+		open(catalog, ids, Long.MAX_VALUE).close();
+		assertEquals(170, catalog.size());
+		assertEquals(175, ids.get());
+		assertEquals("title175", catalog.get(175).getTitle());
+		assertNull(catalog.get(152));
+	}
+
+	@Test
+	public void testTornAppendIsDiscarded() throws Exception {
+		VideoCatalog catalog = new VideoCatalog();
+		AtomicLong ids = new AtomicLong();
+		VideoJournal journal = open(catalog, ids, Long.MAX_VALUE);
+		add(journal, catalog, ids, 5);
+		journal.close();
+
+		// Cut the last record in half
+		Path file = dir.resolve("journal-0.log");
+		long size = Files.size(file);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(size - 10);
+		}
+
+		catalog = new VideoCatalog();
+		ids = new AtomicLong();
+		journal = open(catalog, ids, Long.MAX_VALUE);
+		assertEquals(4, catalog.size());
+		assertEquals(4, ids.get());
+
+		// Appends after the recovery land after the last good record
+		add(journal, catalog, ids, 2);
+		journal.close();
+		catalog = new VideoCatalog();
+		ids = new AtomicLong();
+		open(catalog, ids, Long.MAX_VALUE).close();
+		assertEquals(6, catalog.size());
+		assertEquals("title6", catalog.get(6).getTitle());
+	}
+
+	@Test
+	public void testAutomaticSnapshots() throws Exception {
+		VideoCatalog catalog = new VideoCatalog();
+		AtomicLong ids = new AtomicLong();
+		VideoJournal journal = open(catalog, ids, 100);
+		add(journal, catalog, ids, 1000);
+		journal.shutdown();
+
+		catalog = new VideoCatalog();
+		ids = new AtomicLong();
+		open(catalog, ids, 100).close();
+		assertEquals(1000, catalog.size());
+		assertEquals(1000, ids.get());
+	}
+
+	private VideoJournal open(VideoCatalog catalog, AtomicLong ids, long snapshotInterval) throws IOException {
+		VideoJournal journal = new VideoJournal(dir, 0, snapshotInterval);
+		journal.recover(catalog, ids);
+		return journal;
+	}
+
+	private void add(VideoJournal journal, VideoCatalog catalog, AtomicLong ids, int count) throws IOException {
+		for (int i = 0; i < count; i++) {
+			Video v = Video.create().withContentType("video/mp4").withDuration(10)
+					.withSubject("subject").withTitle("title" + (ids.get() + 1)).build();
+			v.setId(ids.incrementAndGet());
+			catalog.put(v.getId(), v);
+			journal.append(v);
+		}
+	}
+
+	private int countJournals() throws IOException {
+		int count = 0;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*.log")) {
+			for (@SuppressWarnings("unused") Path file : files) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
@@ -0,0 +1,451 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.Mp4Boxes.Layout;
+import org.magnum.dataup.VideoProcessingPipeline.PipelineSaturatedException;
+import org.magnum.dataup.VideoProcessingPipeline.Reservation;
+import org.magnum.dataup.VideoProcessingPipeline.VerificationException;
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoStatus;
+import org.magnum.dataup.model.VideoStatus.VideoState;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Checks that uploads come out of the pipeline hashed, indexed and
+ * published, that broken MP4 files and data that doesn't match its content
+ * type are stopped, that only the status of finished uploads is kept, that
+ * a full pipeline turns uploads away instead of queueing them, and that
+ * uploads are committed in batches larger than the publishing pool.
+ */
+public class VideoProcessingPipelineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private VideoContainerIndex containerIndex;
+
+	// The digest each video was last published with
+	private Map<Long, String> published = Collections.synchronizedMap(new HashMap<Long, String>());
+
+	// Every digest that was published, in order
+	private List<String> history = Collections.synchronizedList(new ArrayList<String>());
+
+	// Publishing waits for this, when it is set
+	private volatile CountDownLatch gate;
+
+	// Counted down when publishing starts
+	private CountDownLatch publishing = new CountDownLatch(1);
+
+	private VideoProcessingPipeline pipeline;
+
+	private Random random = new Random(1);
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		containerIndex = new VideoContainerIndex(new VideoFileManager(dir));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (gate != null) {
+			gate.countDown();
+		}
+		pipeline.stop();
+	}
+
+	@Test
+	public void testDataIsHashedAndPublished() throws Exception {
+		start(4, 30000);
+		byte[] data = new byte[300 * 1024];
+		random.nextBytes(data);
+
+		VideoStatus status = pipeline.process(video(1), stage(data), null);
+		assertEquals(VideoState.READY, status.getState());
+		assertEquals(DigestUtils.sha256Hex(data), published.get(1L));
+		assertNull(containerIndex.get(video(1)));
+		assertEquals(VideoState.READY, pipeline.getStatus(1).getState());
+	}
+
+	@Test
+	public void testDigestOfStagedDataIsNotComputedAgain() throws Exception {
+		start(4, 30000);
+		byte[] data = new byte[300 * 1024];
+		random.nextBytes(data);
+
+		// Not the data's digest, so it only gets published if the checksum
+		// stage trusts the one the data was staged with
+		String staged = DigestUtils.sha256Hex("hashed while it was received");
+		assertEquals(VideoState.READY, pipeline.process(video(1), stage(data), staged).getState());
+		assertEquals(staged, published.get(1L));
+	}
+
+	@Test
+	public void testMp4LayoutIsIndexed() throws Exception {
+		start(4, 30000);
+		byte[] data = mp4(true);
+
+		assertEquals(VideoState.READY, pipeline.process(video(1), stage(data), null).getState());
+		Layout layout = containerIndex.get(video(1));
+		assertNotNull(layout);
+		assertEquals("isom", layout.getMajorBrand());
+		assertEquals(12000, layout.getDurationMillis());
+		assertTrue(layout.isFastStart());
+		assertFalse(VideoContainerIndex.read(stage(mp4(false))).isFastStart());
+	}
+
+	@Test
+	public void testMovieBoxIsMovedToTheFront() throws Exception {
+		start(4, 30000);
+		byte[] data = mp4(false);
+
+		// The digest the data was staged with no longer holds once the file
+		// is rewritten
+		String digest = DigestUtils.sha256Hex(data);
+		assertEquals(VideoState.READY, pipeline.process(video(1), stage(data), digest).getState());
+		assertTrue(containerIndex.get(video(1)).isFastStart());
+		assertNotNull(published.get(1L));
+		assertFalse(digest.equals(published.get(1L)));
+	}
+
+	@Test
+	public void testTruncatedMp4Fails() throws Exception {
+		start(4, 30000);
+		byte[] data = mp4(false);
+		Path staged = stage(Arrays.copyOf(data, data.length - 10));
+
+		try {
+			pipeline.process(video(1), staged, null);
+			fail("a truncated MP4 file was accepted");
+		} catch (VerificationException e) {
+			// expected
+		}
+		VideoStatus status = pipeline.getStatus(1);
+		assertEquals(VideoState.FAILED, status.getState());
+		assertEquals(VideoProcessingPipeline.Stage.VERIFY.name(), status.getStage());
+		assertNull(published.get(1L));
+		assertFalse(Files.exists(staged));
+	}
+
+	@Test
+	public void testDataMustMatchItsContentType() throws Exception {
+		start(4, 30000);
+		byte[] noise = new byte[4096];
+		random.nextBytes(noise);
+		// An ISO base media file without a file type box, as older
+		// QuickTime files are
+		byte[] mp4 = mp4(true);
+		byte[] noFileType = Arrays.copyOfRange(mp4, 8 + 20, mp4.length);
+
+		assertRejected(video(1, "video/mp4"), noise, "no ftyp box");
+		assertRejected(video(2, "video/mp4; codecs=avc1"), noFileType, "no ftyp box");
+		assertRejected(video(3, "video/quicktime"), noise, "no moov box");
+
+		assertEquals(VideoState.READY, pipeline.process(video(4, "video/quicktime"), stage(noFileType), null)
+				.getState());
+		assertEquals(VideoState.READY, pipeline.process(video(5, "video/mp4"), stage(mp4), null).getState());
+		// Data of other types isn't checked
+		assertEquals(VideoState.READY, pipeline.process(video(6, "video/webm"), stage(noise), null).getState());
+	}
+
+	@Test
+	public void testOnlyTheStatusOfFinishedUploadsIsKept() throws Exception {
+		start(4, 30000);
+		for (long id = 1; id <= 100; id++) {
+			assertEquals(VideoState.READY, pipeline.process(video(id), stage(new byte[] { (byte) id }), null)
+					.getState());
+		}
+		try {
+			pipeline.process(video(101, "video/mp4"), stage(new byte[] { 1 }), null);
+			fail("data that isn't an MP4 file was accepted as one");
+		} catch (VerificationException e) {
+			// expected
+		}
+
+		assertEquals(0, pipeline.getInFlight());
+		assertEquals(VideoState.READY, pipeline.getStatus(1).getState());
+		assertEquals(VideoState.FAILED, pipeline.getStatus(101).getState());
+		assertNull(pipeline.nextStatus(1));
+		assertNull(pipeline.getStatus(102));
+	}
+
+	@Test
+	public void testFullPipelineTurnsUploadsAway() throws Exception {
+		start(2, 0);
+		gate = new CountDownLatch(1);
+
+		VideoStatus first = pipeline.process(video(1), stage(new byte[] { 1 }), null);
+		assertEquals(VideoState.PROCESSING, first.getState());
+		pipeline.process(video(2), stage(new byte[] { 2 }), null);
+		assertTrue(pipeline.isSaturated());
+
+		Path staged = stage(new byte[] { 3 });
+		try {
+			pipeline.process(video(3), staged, null);
+			fail("the pipeline took more uploads than maxPending");
+		} catch (PipelineSaturatedException e) {
+			// expected
+		}
+		assertFalse(Files.exists(staged));
+
+		gate.countDown();
+		awaitReady(1);
+		awaitReady(2);
+		assertFalse(pipeline.isSaturated());
+	}
+
+	@Test
+	public void testReservedPlaceCantBeTakenByOtherUploads() throws Exception {
+		start(2, 30000);
+		Reservation reserved = pipeline.reserve();
+		Reservation unused = pipeline.reserve();
+		assertTrue(pipeline.isSaturated());
+
+		// A completed upload that has a place never gets turned away
+		Path staged = stage(new byte[] { 3 });
+		try {
+			pipeline.process(video(3), staged, null);
+			fail("the pipeline took more uploads than maxPending");
+		} catch (PipelineSaturatedException e) {
+			// expected
+		}
+		assertEquals(VideoState.READY, reserved.process(video(1), stage(new byte[] { 1 }), null).getState());
+
+		// The finished upload gave its place back, and closing the
+		// reservation doesn't give it back a second time
+		reserved.close();
+		Reservation next = pipeline.reserve();
+		assertTrue(pipeline.isSaturated());
+
+		// Closing a place that wasn't used gives it back, once
+		unused.close();
+		unused.close();
+		next.close();
+		assertEquals(VideoState.READY, pipeline.process(video(2), stage(new byte[] { 2 }), null).getState());
+		pipeline.reserve();
+		assertFalse(pipeline.isSaturated());
+	}
+
+	@Test
+	public void testNewerUploadReplacesQueuedOne() throws Exception {
+		start(4, 0);
+		gate = new CountDownLatch(1);
+
+		// The first upload of video 1 holds up the (one thread) publish
+		// stage, so the second waits in front of it until the third arrives
+		pipeline.process(video(1), stage(new byte[] { 1 }), null);
+		assertTrue(publishing.await(10, TimeUnit.SECONDS));
+		pipeline.process(video(1), stage(new byte[] { 2 }), null);
+		pipeline.process(video(1), stage(new byte[] { 3 }), null);
+		gate.countDown();
+
+		awaitReady(1);
+		assertEquals(Arrays.asList(DigestUtils.sha256Hex(new byte[] { 1 }), DigestUtils.sha256Hex(new byte[] { 3 })),
+				history);
+	}
+
+	@Test
+	public void testStatusChangesCanBeWaitedFor() throws Exception {
+		start(2, 0);
+		gate = new CountDownLatch(1);
+
+		pipeline.process(video(1), stage(new byte[] { 1 }), null);
+		assertTrue(publishing.await(10, TimeUnit.SECONDS));
+		assertEquals(VideoProcessingPipeline.Stage.PUBLISH.name(), pipeline.getStatus(1).getStage());
+		ListenableFuture<Void> next = pipeline.nextStatus(1);
+		assertFalse(next.isDone());
+
+		gate.countDown();
+		next.get(10, TimeUnit.SECONDS);
+		assertEquals(VideoState.READY, pipeline.getStatus(1).getState());
+		assertNull(pipeline.nextStatus(1));
+	}
+
+	@Test
+	public void testUploadsShareCommitBatchesBeyondThePublishThreads() throws Exception {
+		final int uploads = 8;
+		final VideoFileManager storage = new VideoFileManager(dir.resolve("videos"));
+		// Only commits a batch once every upload is in it
+		final GroupCommitter committer = new GroupCommitter(storage, 10000, uploads, 4);
+		committer.start();
+		try {
+			pipeline = new VideoProcessingPipeline(new VideoProcessingPipeline.Publisher() {
+				@Override
+				public ListenableFuture<Void> publish(final Video video, Path staged, String digest) {
+					return committer.submit(video.getId(), staged, new GroupCommitter.Publisher() {
+						@Override
+						public void publish(Path staged) throws IOException {
+							storage.publishVideoData(video, staged);
+						}
+					});
+				}
+			}, containerIndex, 1024 * 1024, true, 1, uploads, 0);
+			pipeline.start();
+
+			for (int i = 1; i <= uploads; i++) {
+				pipeline.process(video(i), stage(new byte[] { (byte) i }), null);
+			}
+			for (int i = 1; i <= uploads; i++) {
+				awaitReady(i);
+				assertTrue(storage.hasVideoData(video(i)));
+			}
+
+			// With a single PUBLISH thread, every upload still went into the
+			// same batch: each staging file was forced, and the directory
+			// they were all renamed into only once
+			assertEquals(uploads, committer.getCommits());
+			assertEquals(uploads + 1, committer.getForces());
+		} finally {
+			committer.stop();
+		}
+	}
+
+	private void start(int maxPending, long ackTimeoutMillis) {
+		pipeline = new VideoProcessingPipeline(new VideoProcessingPipeline.Publisher() {
+			@Override
+			public ListenableFuture<Void> publish(Video video, Path staged, String digest) throws IOException {
+				publishing.countDown();
+				CountDownLatch g = gate;
+				if (g != null) {
+					try {
+						g.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+				}
+				published.put(video.getId(), digest);
+				history.add(digest);
+				Files.delete(staged);
+				return Futures.immediateFuture(null);
+			}
+		}, containerIndex, 1024 * 1024, true, 1, maxPending, ackTimeoutMillis);
+		pipeline.start();
+	}
+
+	private void assertRejected(Video video, byte[] data, String reason) throws Exception {
+		Path staged = stage(data);
+		try {
+			pipeline.process(video, staged, null);
+			fail("data that doesn't match " + video.getContentType() + " was accepted");
+		} catch (VerificationException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(reason));
+		}
+		VideoStatus status = pipeline.getStatus(video.getId());
+		assertEquals(VideoState.FAILED, status.getState());
+		assertEquals(VideoProcessingPipeline.Stage.VERIFY.name(), status.getStage());
+		assertNull(published.get(video.getId()));
+		assertFalse(Files.exists(staged));
+	}
+
+	private void awaitReady(long videoId) throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (System.currentTimeMillis() < deadline) {
+			if (pipeline.getStatus(videoId).getState() == VideoState.READY) {
+				return;
+			}
+			Thread.sleep(5);
+		}
+		fail("video " + videoId + " never got READY");
+	}
+
+	private Path stage(byte[] data) throws IOException {
+		Path staged = Files.createTempFile(dir, "staged", ".tmp");
+		Files.write(staged, data);
+		return staged;
+	}
+
+	/**
+	 * A small MP4 file of 12 seconds, with its movie box before or after
+	 * its media data.
+	 */
+	static byte[] mp4(boolean fastStart) throws IOException {
+		byte[] media = new byte[5000];
+		new Random(1).nextBytes(media);
+		return mp4(fastStart, media);
+	}
+
+	/**
+	 * A small MP4 file of 12 seconds with the given media data.
+	 */
+	static byte[] mp4(boolean fastStart, byte[] media) throws IOException {
+		ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(mvhd);
+		out.writeInt(0); // version and flags
+		out.writeInt(0); // creation time
+		out.writeInt(0); // modification time
+		out.writeInt(600); // time scale
+		out.writeInt(7200); // duration
+		out.write(new byte[80]);
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		box(file, "ftyp", "isom\0\0\2\0isomiso2mp41".getBytes(StandardCharsets.ISO_8859_1));
+		ByteArrayOutputStream moov = new ByteArrayOutputStream();
+		box(moov, "mvhd", mvhd.toByteArray());
+		if (fastStart) {
+			box(file, "moov", moov.toByteArray());
+			box(file, "mdat", media);
+		} else {
+			box(file, "mdat", media);
+			box(file, "moov", moov.toByteArray());
+		}
+		return file.toByteArray();
+	}
+
+	static void box(ByteArrayOutputStream into, String type, byte[] content) throws IOException {
+		DataOutputStream out = new DataOutputStream(into);
+		out.writeInt(8 + content.length);
+		out.write(type.getBytes(StandardCharsets.ISO_8859_1));
+		out.write(content);
+	}
+
+}
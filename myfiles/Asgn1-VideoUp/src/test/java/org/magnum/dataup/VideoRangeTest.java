@@ -0,0 +1,151 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks Range header parsing and compares the number of bytes that
+ * leave the server for a seek-heavy playback trace with and without
+ * range support.
+ */
+public class VideoRangeTest {
+
+	private static final int VIDEO_SIZE = 4 * 1024 * 1024;
+
+	// A player that starts at the beginning, scrubs around, and resumes
+	// a dropped download. Each entry is {offset, bytes watched}.
+	private static final long[][] PLAYBACK_TRACE = {
+		{ 0, 256 * 1024 },
+		{ 1024 * 1024, 128 * 1024 },
+		{ 3 * 1024 * 1024, 64 * 1024 },
+		{ 512 * 1024, 300 * 1024 },
+		{ 2 * 1024 * 1024 + 17, 100 * 1024 },
+		{ 4 * 1024 * 1024 - 4096, 4096 },
+		{ 700 * 1024, 1 },
+		{ 1536 * 1024, 512 * 1024 },
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Video video = video(1);
+
+	private byte[] data = new byte[VIDEO_SIZE];
+
+	private VideoFileManager fileManager;
+
+	@Before
+	public void setUp() throws Exception {
+		new Random(1).nextBytes(data);
+		fileManager = new VideoFileManager(folder.getRoot().toPath());
+		fileManager.saveVideoData(video, new ByteArrayInputStream(data));
+	}
+
+	@Test
+	public void testSeekHeavyTraceTransfersOnlyRequestedBytes() throws Exception {
+		long length = fileManager.getVideoDataLength(video);
+		assertEquals(VIDEO_SIZE, length);
+
+		long withoutRanges = 0;
+		long withRanges = 0;
+		long watched = 0;
+
+		for (long[] seek : PLAYBACK_TRACE) {
+			long offset = seek[0];
+			long count = seek[1];
+			watched += count;
+
+			// Without range support every seek re-pulls the whole file
+			CountingOutputStream full = new CountingOutputStream(new NullOutputStream());
+			fileManager.copyVideoData(video, full);
+			withoutRanges += full.getByteCount();
+
+			List<ByteRange> ranges = ByteRange.parse("bytes=" + offset + "-" + (offset + count - 1), length);
+			assertEquals(1, ranges.size());
+			ByteRange range = ranges.get(0);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			CountingOutputStream partial = new CountingOutputStream(bytes);
+			fileManager.copyVideoData(video, range.getFirst(), range.getLength(), partial);
+			withRanges += partial.getByteCount();
+
+			assertArrayEquals(Arrays.copyOfRange(data, (int) offset, (int) (offset + count)), bytes.toByteArray());
+		}
+
+		assertEquals(PLAYBACK_TRACE.length * (long) VIDEO_SIZE, withoutRanges);
+		assertEquals(watched, withRanges);
+		assertTrue("Ranged playback should transfer far less than re-pulling the file on every seek",
+				withRanges * 10 < withoutRanges);
+	}
+
+	@Test
+	public void testParseSingleRanges() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(0, 499)), ByteRange.parse("bytes=0-499", 1000));
+		assertEquals(Arrays.asList(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", 1000));
+		assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", 1000));
+		assertEquals(Arrays.asList(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", 1000));
+		assertEquals(Arrays.asList(new ByteRange(990, 999)), ByteRange.parse("bytes=990-5000", 1000));
+		assertEquals("bytes 990-999/1000", new ByteRange(990, 999).toContentRange(1000));
+	}
+
+	@Test
+	public void testParseMultipleRanges() throws Exception {
+		assertEquals(Arrays.asList(new ByteRange(500, 599), new ByteRange(0, 99)),
+				ByteRange.parse("bytes=500-599, 0-99", 1000));
+		assertEquals(Arrays.asList(new ByteRange(0, 199), new ByteRange(500, 599)),
+				ByteRange.parse("bytes=500-599,0-99,50-199", 1000));
+
+		StringBuilder many = new StringBuilder("bytes=");
+		for (int i = 0; i < ByteRange.MAX_RANGES + 1; i++) {
+			many.append(i * 10).append('-').append(i * 10 + 1).append(',');
+		}
+		assertEquals(Arrays.asList(new ByteRange(0, ByteRange.MAX_RANGES * 10 + 1)),
+				ByteRange.parse(many.toString(), 1000));
+	}
+
+	@Test
+	public void testParseUnsatisfiableAndInvalidRanges() throws Exception {
+		assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+		assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+		assertNull(ByteRange.parse(null, 1000));
+		assertNull(ByteRange.parse("bytes=abc", 1000));
+		assertNull(ByteRange.parse("bytes=5-1", 1000));
+		assertNull(ByteRange.parse("items=0-1", 1000));
+		assertNull(ByteRange.parse("bytes=", 1000));
+	}
+
+}
@@ -0,0 +1,405 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.magnum.dataup.VideoStorage.Backend;
+import org.magnum.dataup.model.Video;
+
+/**
+ * The behavior every VideoStorage backend has to have, checked against
+ * each of them.
+ */
+@RunWith(Parameterized.class)
+public class VideoStorageConformanceTest {
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> backends() {
+		List<Object[]> backends = new ArrayList<Object[]>();
+		for (Backend backend : Backend.values()) {
+			backends.add(new Object[] { backend });
+		}
+		return backends;
+	}
+
+	private final Backend backend;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	private VideoStorage storage;
+
+	private Video video = video(42);
+
+	private byte[] data = new byte[200 * 1024];
+
+	public VideoStorageConformanceTest(Backend backend) {
+		this.backend = backend;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+		storage = backend.create(dir);
+		new Random(1).nextBytes(data);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (storage instanceof Closeable) {
+			((Closeable) storage).close();
+		}
+	}
+
+	@Test
+	public void testSavedDataReadsBack() throws Exception {
+		assertFalse(storage.hasVideoData(video));
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+
+		assertTrue(storage.hasVideoData(video));
+		assertEquals(data.length, storage.getVideoDataLength(video));
+		assertEquals(data.length, storage.getVideoDataAttributes(video).size());
+		assertEquals(storage.getVideoDataAttributes(video).lastModifiedTime().toMillis(),
+				storage.getVideoDataLastModified(video));
+		assertArrayEquals(data, read(video));
+
+		ByteArrayOutputStream range = new ByteArrayOutputStream();
+		storage.copyVideoData(video, 1000, 70000, range);
+		assertArrayEquals(Arrays.copyOfRange(data, 1000, 71000), range.toByteArray());
+
+		ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+		storage.transferVideoData(video, data.length - 5, 5, Channels.newChannel(transferred));
+		assertArrayEquals(Arrays.copyOfRange(data, data.length - 5, data.length), transferred.toByteArray());
+
+		Path file = storage.getVideoDataPath(video);
+		if (file != null) {
+			assertTrue(file.isAbsolute());
+			assertArrayEquals(data, Files.readAllBytes(file));
+		}
+	}
+
+	@Test
+	public void testPublishReplacesDataAndConsumesStagingFile() throws Exception {
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+		Object key = storage.getVideoDataAttributes(video).fileKey();
+
+		Path staged = storage.createStagingFile();
+		Files.write(staged, new byte[] { 1, 2, 3 });
+		storage.publishVideoData(video, staged);
+
+		assertFalse(Files.exists(staged));
+		assertArrayEquals(new byte[] { 1, 2, 3 }, read(video));
+		assertNotEquals(key, storage.getVideoDataAttributes(video).fileKey());
+	}
+
+	@Test
+	public void testStagingFilesOfAPreviousRunAreRemoved() throws Exception {
+		Path staged = storage.createStagingFile();
+		Files.write(staged, data);
+		if (storage instanceof Closeable) {
+			((Closeable) storage).close();
+		}
+
+		storage = backend.create(dir);
+		assertFalse(Files.exists(staged));
+		Path again = storage.createStagingFile();
+		storage.publishVideoData(video, again);
+		assertEquals(0, storage.getVideoDataLength(video));
+	}
+
+	@Test
+	public void testLinkedDataLeavesOriginalInPlace() throws Exception {
+		Path existing = storage.getStorageDirectory("blobs").resolve("blob");
+		Files.write(existing, data);
+		Video other = video(43);
+
+		storage.linkVideoData(video, existing);
+		storage.linkVideoData(other, existing);
+
+		assertTrue(Files.exists(existing));
+		assertArrayEquals(data, read(video));
+		assertArrayEquals(data, read(other));
+	}
+
+	@Test
+	public void testDeletedDataIsGone() throws Exception {
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+		storage.saveVideoDataDigest(video, "digest");
+
+		assertTrue(storage.deleteVideoData(video));
+		assertFalse(storage.deleteVideoData(video));
+		assertFalse(storage.hasVideoData(video));
+		assertNull(storage.loadVideoDataDigest(video));
+		try {
+			read(video);
+			fail("Deleted data was read");
+		} catch (FileNotFoundException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testDigestIsKeptWithData() throws Exception {
+		assertNull(storage.loadVideoDataDigest(video));
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+		storage.saveVideoDataDigest(video, "abc 1 2 3");
+		assertEquals("abc 1 2 3", storage.loadVideoDataDigest(video));
+	}
+
+	@Test
+	public void testManyVideosAreKeptApart() throws Exception {
+		for (int id = 0; id < 300; id++) {
+			storage.saveVideoData(video(id), new ByteArrayInputStream(Long.toString(id).getBytes("US-ASCII")));
+		}
+		for (int id = 0; id < 300; id++) {
+			assertEquals(Long.toString(id), new String(read(video(id)), "US-ASCII"));
+		}
+	}
+
+	// Readers racing a writer see either the old or the new data, whole
+	@Test
+	public void testReadersNeverSeePartialData() throws Exception {
+		final byte[] a = new byte[256 * 1024];
+		final byte[] b = new byte[128 * 1024];
+		Arrays.fill(a, (byte) 'a');
+		Arrays.fill(b, (byte) 'b');
+		storage.saveVideoData(video, new ByteArrayInputStream(a));
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 3; i++) {
+				readers.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int reads = 0;
+						while (writing.get() || reads == 0) {
+							byte[] seen = read(video);
+							assertTrue(Arrays.equals(a, seen) || Arrays.equals(b, seen));
+							reads++;
+						}
+						return reads;
+					}
+				}));
+			}
+			for (int i = 0; i < 100; i++) {
+				Path staged = storage.createStagingFile();
+				Files.write(staged, i % 2 == 0 ? b : a);
+				storage.publishVideoData(video, staged);
+			}
+			writing.set(false);
+			for (Future<Integer> reader : readers) {
+				assertTrue(reader.get() > 0);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// A version keeps the data it was acquired with until it is closed
+	@Test
+	public void testAcquiredVersionOutlivesReplacementAndDeletion() throws Exception {
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+		byte[] next = Arrays.copyOf(data, data.length / 2);
+		Arrays.fill(next, (byte) 7);
+
+		try (VideoDataVersion first = storage.acquireVideoData(video)) {
+			assertEquals(data.length, first.getAttributes().size());
+			assertTrue(first.isCurrent());
+
+			Path staged = storage.createStagingFile();
+			Files.write(staged, next);
+			storage.publishVideoData(video, staged);
+			assertFalse(first.isCurrent());
+			assertArrayEquals(next, read(video));
+
+			try (VideoDataVersion second = storage.acquireVideoData(video)) {
+				assertTrue(second.isCurrent());
+				assertEquals(next.length, second.getAttributes().size());
+				assertNotEquals(first.getAttributes().fileKey(), second.getAttributes().fileKey());
+			}
+
+			storage.deleteVideoData(video);
+			assertEquals(data.length, first.getAttributes().size());
+			assertArrayEquals(Arrays.copyOfRange(data, 1000, 71000), read(first, 1000, 70000));
+			ByteArrayOutputStream transferred = new ByteArrayOutputStream();
+			first.transferTo(data.length - 5, 5, Channels.newChannel(transferred));
+			assertArrayEquals(Arrays.copyOfRange(data, data.length - 5, data.length), transferred.toByteArray());
+		}
+
+		try {
+			storage.acquireVideoData(video);
+			fail("Acquired data that was deleted");
+		} catch (FileNotFoundException e) {
+			// expected
+		}
+	}
+
+	// What a sendfile download does: the connector opens the file by its
+	// name after the request has returned and the version has been closed,
+	// and new data is published before it gets to it
+	@Test
+	public void testPinnedPathKeepsItsVersionAfterPublish() throws Exception {
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+		byte[] next = Arrays.copyOf(data, data.length / 2);
+		Arrays.fill(next, (byte) 7);
+
+		Path pinned;
+		try (VideoDataVersion version = storage.acquireVideoData(video)) {
+			pinned = version.getPinnedPath();
+			if (pinned == null) {
+				// Only backends that don't keep data in files may have none
+				assertNull(version.getPath());
+				return;
+			}
+			assertTrue(pinned.isAbsolute());
+			assertEquals(pinned, version.getPinnedPath());
+		}
+
+		Path staged = storage.createStagingFile();
+		Files.write(staged, next);
+		storage.publishVideoData(video, staged);
+
+		assertArrayEquals(next, read(video));
+		assertArrayEquals(data, Files.readAllBytes(pinned));
+	}
+
+	// The pinned file only lingers for a while once its version is closed
+	@Test
+	public void testPinnedPathIsRemovedAfterItsVersionIsClosed() throws Exception {
+		if (storage instanceof VideoFileManager) {
+			((VideoFileManager) storage).setPinnedLinkLingerMillis(0);
+		}
+		storage.saveVideoData(video, new ByteArrayInputStream(data));
+
+		Path pinned;
+		try (VideoDataVersion version = storage.acquireVideoData(video)) {
+			pinned = version.getPinnedPath();
+			if (pinned == null) {
+				return;
+			}
+			assertTrue(Files.exists(pinned));
+		}
+		for (int i = 0; i < 500 && Files.exists(pinned); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(Files.exists(pinned));
+		assertArrayEquals(data, read(video));
+	}
+
+	// A reader that takes the length and then several ranges from one
+	// version never mixes two versions, however often the data changes
+	@Test
+	public void testVersionsStayConsistentWhileDataIsReplaced() throws Exception {
+		final byte[] a = new byte[256 * 1024];
+		final byte[] b = new byte[128 * 1024];
+		Arrays.fill(a, (byte) 'a');
+		Arrays.fill(b, (byte) 'b');
+		storage.saveVideoData(video, new ByteArrayInputStream(a));
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Integer>> readers = new ArrayList<Future<Integer>>();
+			for (int i = 0; i < 3; i++) {
+				readers.add(pool.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int reads = 0;
+						while (writing.get() || reads == 0) {
+							try (VideoDataVersion version = storage.acquireVideoData(video)) {
+								long length = version.getAttributes().size();
+								byte[] expected = length == a.length ? a : b;
+								assertEquals(expected.length, length);
+								int half = (int) length / 2;
+								Thread.yield();
+								assertArrayEquals(Arrays.copyOfRange(expected, half, (int) length),
+										read(version, half, length - half));
+								assertArrayEquals(Arrays.copyOf(expected, half), read(version, 0, half));
+							}
+							reads++;
+						}
+						return reads;
+					}
+				}));
+			}
+			for (int i = 0; i < 100; i++) {
+				Path staged = storage.createStagingFile();
+				Files.write(staged, i % 2 == 0 ? b : a);
+				storage.publishVideoData(video, staged);
+			}
+			writing.set(false);
+			for (Future<Integer> reader : readers) {
+				assertTrue(reader.get() > 0);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static byte[] read(VideoDataVersion version, long offset, long length) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		version.copyTo(offset, length, out);
+		return out.toByteArray();
+	}
+
+	private byte[] read(Video v) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		storage.copyVideoData(v, out);
+		return out.toByteArray();
+	}
+
+}
@@ -0,0 +1,177 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnum.dataup.model.Video;
+import org.magnum.dataup.model.VideoStatus;
+import org.magnum.dataup.model.VideoStatus.VideoState;
+
+import retrofit.RestAdapter;
+import retrofit.mime.TypedFile;
+
+/**
+ * A load test for a running server (like AutoGradingTest, it expects the
+ * Application to be up on localhost:8080). It parks a few hundred clients
+ * that download a large video very slowly and checks that the latency of
+ * GET /video stays close to what it is on an idle server, i.e., that slow
+ * downloads don't tie up the threads that serve metadata requests.
+ * 
+ * Run the server with video.serve.mode=copy to exercise the asynchronous
+ * streaming path rather than sendfile.
+ */
+public class VideoStreamingLoadTest {
+
+	private static final String HOST = "localhost";
+
+	private static final int PORT = 8080;
+
+	private static final String SERVER = "http://" + HOST + ":" + PORT;
+
+	private static final int SLOW_DOWNLOADS = 300;
+
+	private static final int VIDEO_SIZE = 16 * 1024 * 1024;
+
+	private static final int SAMPLES = 50;
+
+	private VideoSvcApi videoSvc = new RestAdapter.Builder()
+			.setEndpoint(SERVER).build()
+			.create(VideoSvcApi.class);
+
+	@Test
+	public void testMetadataLatencyStaysFlatUnderSlowDownloads() throws Exception {
+		Video video = videoSvc.addVideo(Video.create().withContentType("video/mp4")
+				.withDuration(123).withSubject(UUID.randomUUID().toString())
+				.withTitle(UUID.randomUUID().toString()).build());
+
+		File data = File.createTempFile("slow", ".mp4");
+		data.deleteOnExit();
+		byte[] media = new byte[VIDEO_SIZE];
+		new Random().nextBytes(media);
+		try (OutputStream out = new FileOutputStream(data)) {
+			// The server only takes MP4 files as video/mp4 data
+			out.write(VideoProcessingPipelineTest.mp4(true, media));
+		}
+		VideoStatus status = videoSvc.setVideoData(video.getId(), new TypedFile(video.getContentType(), data));
+		assertEquals(VideoState.READY, status.getState());
+
+		long idleP95 = p95(sampleListLatency());
+
+		final String request = "GET /video/" + video.getId() + "/data HTTP/1.1\r\n"
+				+ "Host: " + HOST + "\r\n\r\n";
+		final CountDownLatch started = new CountDownLatch(SLOW_DOWNLOADS);
+		final CountDownLatch stop = new CountDownLatch(1);
+		final AtomicInteger streaming = new AtomicInteger();
+		List<Thread> clients = new ArrayList<Thread>();
+
+		for (int i = 0; i < SLOW_DOWNLOADS; i++) {
+			Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// A raw socket with a tiny receive buffer so that the
+					// server really has to wait on us. Downloads that are
+					// queued behind the I/O pool count as in flight too.
+					try (Socket socket = new Socket()) {
+						socket.setReceiveBufferSize(4096);
+						socket.setSoTimeout(100);
+						socket.connect(new InetSocketAddress(HOST, PORT));
+						socket.getOutputStream().write(request.getBytes("US-ASCII"));
+						started.countDown();
+						InputStream in = socket.getInputStream();
+						byte[] buffer = new byte[1024];
+						boolean counted = false;
+						// Trickle the body until the test is done
+						while (!stop.await(100, TimeUnit.MILLISECONDS)) {
+							try {
+								if (in.read(buffer) < 0) {
+									break;
+								}
+								if (!counted) {
+									counted = true;
+									streaming.incrementAndGet();
+								}
+							} catch (SocketTimeoutException e) {
+								// Nothing yet, keep waiting
+							}
+						}
+					} catch (Exception e) {
+						started.countDown();
+					}
+				}
+			});
+			client.setDaemon(true);
+			client.start();
+			clients.add(client);
+		}
+
+		try {
+			assertTrue(started.await(60, TimeUnit.SECONDS));
+			// Give the downloads a moment to fill the I/O pool
+			Thread.sleep(2000);
+			long loadedP95 = p95(sampleListLatency());
+
+			System.out.println("GET /video p95 idle: " + idleP95 + "ms, with " + streaming.get()
+					+ " slow downloads in flight: " + loadedP95 + "ms");
+
+			assertTrue("Slow downloads should be streaming", streaming.get() > 0);
+			assertTrue("GET /video latency should stay flat while slow downloads are in flight",
+					loadedP95 <= Math.max(idleP95 * 5, idleP95 + 250));
+		} finally {
+			stop.countDown();
+			for (Thread client : clients) {
+				client.join(5000);
+			}
+		}
+	}
+
+	private long[] sampleListLatency() {
+		long[] samples = new long[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			long start = System.nanoTime();
+			videoSvc.getVideoList();
+			samples[i] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		}
+		return samples;
+	}
+
+	private long p95(long[] samples) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		return sorted[(int) Math.ceil(sorted.length * 0.95) - 1];
+	}
+
+}
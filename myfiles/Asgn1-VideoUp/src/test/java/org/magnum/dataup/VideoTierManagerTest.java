@@ -0,0 +1,175 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.magnum.dataup.TestVideos.video;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.VideoFileManager.Tier;
+import org.magnum.dataup.VideoFileManager.TierMoveListener;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks that the mover keeps the hottest videos in the fast tier within
+ * its budget, and that video data can be read, replaced and deleted
+ * wherever it lives.
+ */
+public class VideoTierManagerTest {
+
+	private static final int SIZE = 64 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path fastDir;
+	private Path capacityDir;
+
+	private VideoFileManager fileManager;
+
+	private Video hot = video(1);
+	private Video cold = video(2);
+
+	private byte[] hotData = new byte[SIZE];
+	private byte[] coldData = new byte[SIZE];
+
+	@Before
+	public void setUp() throws Exception {
+		fastDir = folder.newFolder("fast").toPath();
+		capacityDir = folder.newFolder("capacity").toPath();
+		fileManager = new VideoFileManager(fastDir);
+		Random random = new Random(1);
+		random.nextBytes(hotData);
+		random.nextBytes(coldData);
+		fileManager.saveVideoData(hot, new ByteArrayInputStream(hotData));
+		fileManager.saveVideoData(cold, new ByteArrayInputStream(coldData));
+	}
+
+	@Test
+	public void testHottestVideosFitTheFastTier() throws Exception {
+		VideoTierManager tiers = newTierManager();
+
+		for (int i = 0; i < 3; i++) {
+			tiers.recordAccess(hot);
+		}
+		tiers.rebalance();
+		assertEquals(Tier.FAST, fileManager.getVideoDataTier(hot));
+		assertEquals(Tier.CAPACITY, fileManager.getVideoDataTier(cold));
+		assertEquals(1, tiers.getDemotions());
+		assertArrayEquals(coldData, read(cold));
+
+		// One look at the cold video isn't enough to promote it...
+		tiers.recordAccess(cold);
+		tiers.rebalance();
+		assertEquals(Tier.CAPACITY, fileManager.getVideoDataTier(cold));
+
+		// ...but once it's the hotter of the two, they trade places
+		for (int i = 0; i < 4; i++) {
+			tiers.recordAccess(cold);
+		}
+		tiers.rebalance();
+		assertEquals(Tier.FAST, fileManager.getVideoDataTier(cold));
+		assertEquals(Tier.CAPACITY, fileManager.getVideoDataTier(hot));
+		assertEquals(1, tiers.getPromotions());
+		assertEquals(SIZE, tiers.getPromotedBytes());
+		assertEquals(2 * SIZE, tiers.getDemotedBytes());
+		assertArrayEquals(hotData, read(hot));
+		assertArrayEquals(coldData, read(cold));
+
+		assertEquals(3, tiers.getFastHits());
+		assertEquals(5, tiers.getCapacityHits());
+		assertTrue(tiers.getMigrationMegabytesPerSecond() > 0);
+	}
+
+	@Test
+	public void testPinnedVideoIsStillMoved() throws Exception {
+		VideoTierManager tiers = newTierManager();
+
+		for (int i = 0; i < 3; i++) {
+			tiers.recordAccess(hot);
+		}
+		// A download sent with sendfile links the file for a while
+		Path pinned;
+		try (VideoDataVersion version = fileManager.acquireVideoData(cold)) {
+			pinned = version.getPinnedPath();
+		}
+		tiers.rebalance();
+		assertEquals(Tier.FAST, fileManager.getVideoDataTier(hot));
+		assertEquals(Tier.CAPACITY, fileManager.getVideoDataTier(cold));
+		assertEquals(SIZE, tiers.getFastBytes());
+		assertArrayEquals(coldData, read(cold));
+		assertArrayEquals(coldData, Files.readAllBytes(pinned));
+	}
+
+	@Test
+	public void testMoveKeepsDataAndTellsListener() throws Exception {
+		fileManager.setCapacityDirectory(capacityDir);
+		final BasicFileAttributes[] moved = new BasicFileAttributes[2];
+
+		long bytes = fileManager.moveVideoData(cold, Tier.CAPACITY, new TierMoveListener() {
+			@Override
+			public void moved(Video v, BasicFileAttributes from, BasicFileAttributes to) throws IOException {
+				moved[0] = from;
+				moved[1] = to;
+			}
+		});
+		assertEquals(SIZE, bytes);
+		assertEquals(moved[0].lastModifiedTime().toMillis(), moved[1].lastModifiedTime().toMillis());
+		assertEquals(moved[1].lastModifiedTime().toMillis(), fileManager.getVideoDataLastModified(cold));
+		assertEquals(SIZE, fileManager.getVideoDataLength(cold));
+		assertArrayEquals(coldData, read(cold));
+
+		// Nothing left to move
+		assertEquals(-1, fileManager.moveVideoData(cold, Tier.CAPACITY, null));
+
+		// New data goes to the fast tier and replaces the demoted copy
+		fileManager.saveVideoData(cold, new ByteArrayInputStream(hotData));
+		assertEquals(Tier.FAST, fileManager.getVideoDataTier(cold));
+		assertTrue(fileManager.listVideoData(Tier.CAPACITY).isEmpty());
+		assertArrayEquals(hotData, read(cold));
+
+		fileManager.moveVideoData(cold, Tier.CAPACITY, null);
+		assertTrue(fileManager.deleteVideoData(cold));
+		assertEquals(null, fileManager.getVideoDataTier(cold));
+	}
+
+	// Room for one of the two videos
+	private VideoTierManager newTierManager() throws IOException {
+		return new VideoTierManager(fileManager, capacityDir, SIZE, 0, 60000, 2);
+	}
+
+	private byte[] read(Video v) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		fileManager.copyVideoData(v, out);
+		return out.toByteArray();
+	}
+
+}
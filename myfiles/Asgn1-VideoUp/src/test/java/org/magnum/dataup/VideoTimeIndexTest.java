@@ -0,0 +1,306 @@
+/*
+ * 
+ * Copyright 2014 Jules White
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package org.magnum.dataup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.magnum.dataup.Mp4Boxes.Layout;
+import org.magnum.dataup.model.Video;
+
+/**
+ * Checks that the time index finds the keyframes of an MP4 video track and
+ * the pack headers of a program stream at the right offsets, that it only
+ * keeps one entry per second, and that it survives being stored.
+ */
+public class VideoTimeIndexTest {
+
+	private static final int SAMPLES = 30;
+	private static final int SAMPLE_MILLIS = 500;
+	private static final int SAMPLES_PER_CHUNK = 3;
+	private static final int KEYFRAME_EVERY = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = folder.getRoot().toPath();
+	}
+
+	@Test
+	public void testMp4KeyframesAreIndexed() throws Exception {
+		List<Long> sampleOffsets = new ArrayList<Long>();
+		Path file = write(mp4(sampleOffsets));
+		Layout layout = VideoContainerIndex.read(file);
+		VideoTimeIndex index = VideoContainerIndex.buildTimeIndex(file, layout);
+
+		// Keyframes are two seconds apart, every fourth sample
+		assertEquals((SAMPLES + KEYFRAME_EVERY - 1) / KEYFRAME_EVERY, index.size());
+		for (int i = 0; i < index.size(); i++) {
+			assertEquals(i * KEYFRAME_EVERY * SAMPLE_MILLIS, index.getMillis(i));
+			assertEquals((long) sampleOffsets.get(i * KEYFRAME_EVERY), index.getOffset(i));
+		}
+
+		assertEquals(0, index.seek(0));
+		assertEquals(0, index.seek(1999));
+		assertEquals(1, index.seek(2000));
+		assertEquals(2, index.seek(5999));
+		assertEquals(index.size() - 1, index.seek(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testTheTestVideoIsIndexed() throws Exception {
+		Path file = Paths.get("src/test/resources/test.mp4");
+		Layout layout = VideoContainerIndex.read(file);
+		VideoTimeIndex index = VideoContainerIndex.buildTimeIndex(file, layout);
+
+		assertNotNull(index);
+		assertEquals(0, index.getMillis(0));
+		long mdat = layout.find("mdat").getContentOffset();
+		for (int i = 0; i < index.size(); i++) {
+			assertTrue(index.getOffset(i) >= mdat && index.getOffset(i) < Files.size(file));
+			assertTrue(i == 0 || index.getMillis(i) >= index.getMillis(i - 1) + VideoTimeIndex.MIN_INTERVAL_MILLIS);
+		}
+	}
+
+	@Test
+	public void testProgramStreamPacksAreIndexed() throws Exception {
+		// A pack every half second, starting at a clock of 10 seconds
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		List<Long> packOffsets = new ArrayList<Long>();
+		byte[] payload = new byte[777];
+		Arrays.fill(payload, (byte) 0xff);
+		for (int pack = 0; pack < 20; pack++) {
+			packOffsets.add((long) stream.size());
+			stream.write(packHeader(90000L * 10 + pack * 45000L));
+			stream.write(payload);
+		}
+		VideoTimeIndex index = VideoContainerIndex.buildTimeIndex(write(stream.toByteArray()), null);
+
+		assertEquals(10, index.size());
+		for (int i = 0; i < index.size(); i++) {
+			assertEquals(i * 1000, index.getMillis(i));
+			assertEquals((long) packOffsets.get(2 * i), index.getOffset(i));
+		}
+	}
+
+	@Test
+	public void testSystemClockReferences() {
+		long scr = (1L << 32) + 123456789L;
+		assertEquals(scr, VideoTimeIndex.systemClockReference(Arrays.copyOfRange(packHeader(scr), 4, 10)));
+
+		// MPEG-1: '0010', SCR[32..30], '1', SCR[29..15], '1', SCR[14..0], '1'
+		byte[] mpeg1 = new byte[] { (byte) (0x21 | ((scr >> 29) & 0x0e)), (byte) (scr >> 22),
+				(byte) (((scr >> 14) & 0xfe) | 1), (byte) (scr >> 7), (byte) (((scr << 1) & 0xfe) | 1), 0 };
+		assertEquals(scr, VideoTimeIndex.systemClockReference(mpeg1));
+	}
+
+	@Test
+	public void testOtherDataHasNoIndex() throws Exception {
+		byte[] data = new byte[10000];
+		new Random(1).nextBytes(data);
+		data[0] = 0;
+		assertNull(VideoContainerIndex.buildTimeIndex(write(data), null));
+	}
+
+	@Test
+	public void testIndexesAreStoredByDigest() throws Exception {
+		VideoContainerIndex indexes = new VideoContainerIndex(new VideoFileManager(dir));
+		VideoTimeIndex index = new VideoTimeIndex(new int[] { 0, 1000, 2500 }, new long[] { 48, 1000, 70000 });
+		String digest = DigestUtils.sha256Hex("data");
+		indexes.saveTimeIndex(digest, index);
+
+		Video video = new Video();
+		video.setId(1);
+		VideoTimeIndex stored = new VideoContainerIndex(new VideoFileManager(dir)).getTimeIndex(video, digest);
+		assertEquals(3, stored.size());
+		assertEquals(2500, stored.getMillis(2));
+		assertEquals(70000, stored.getOffset(2));
+		assertNull(indexes.getTimeIndex(video, DigestUtils.sha256Hex("other data")));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		index.write(out);
+		assertEquals(8 + 3 * 12, out.size());
+		ByteArrayOutputStream again = new ByteArrayOutputStream();
+		VideoTimeIndex.read(new ByteArrayInputStream(out.toByteArray())).write(again);
+		assertArrayEquals(out.toByteArray(), again.toByteArray());
+	}
+
+	private Path write(byte[] data) throws IOException {
+		Path file = Files.createTempFile(dir, "video", ".bin");
+		Files.write(file, data);
+		return file;
+	}
+
+	/**
+	 * An MP4 file with a sound track and a video track, whose samples are
+	 * of different sizes; the offset of each video sample is added to the
+	 * list.
+	 */
+	private static byte[] mp4(List<Long> sampleOffsets) throws IOException {
+		int[] sizes = new int[SAMPLES];
+		Random random = new Random(1);
+		ByteArrayOutputStream media = new ByteArrayOutputStream();
+		for (int i = 0; i < SAMPLES; i++) {
+			sizes[i] = 100 + random.nextInt(900);
+			media.write(new byte[sizes[i]]);
+		}
+		byte[] ftyp = "isom\0\0\2\0isom".getBytes("ISO-8859-1");
+		long firstSample = (8 + ftyp.length) + 8;
+		int chunks = (SAMPLES + SAMPLES_PER_CHUNK - 1) / SAMPLES_PER_CHUNK;
+
+		long position = firstSample;
+		long[] chunkOffsets = new long[chunks];
+		for (int i = 0; i < SAMPLES; i++) {
+			if (i % SAMPLES_PER_CHUNK == 0) {
+				chunkOffsets[i / SAMPLES_PER_CHUNK] = position;
+			}
+			sampleOffsets.add(position);
+			position += sizes[i];
+		}
+
+		ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(stbl, "stts", table(2, new long[] { SAMPLES, SAMPLE_MILLIS }));
+		List<Long> sync = new ArrayList<Long>();
+		for (int i = 0; i < SAMPLES; i += KEYFRAME_EVERY) {
+			sync.add((long) i + 1);
+		}
+		VideoProcessingPipelineTest.box(stbl, "stss", table(1, toArray(sync)));
+		VideoProcessingPipelineTest.box(stbl, "stsc", table(3, new long[] { 1, SAMPLES_PER_CHUNK, 1 }));
+		ByteArrayOutputStream stsz = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(stsz);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(SAMPLES);
+		for (int size : sizes) {
+			out.writeInt(size);
+		}
+		VideoProcessingPipelineTest.box(stbl, "stsz", stsz.toByteArray());
+		VideoProcessingPipelineTest.box(stbl, "stco", table(1, chunkOffsets));
+
+		ByteArrayOutputStream moov = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(moov, "mvhd", mvhd());
+		VideoProcessingPipelineTest.box(moov, "trak", track("soun", new ByteArrayOutputStream().toByteArray()));
+		VideoProcessingPipelineTest.box(moov, "trak", track("vide", stbl.toByteArray()));
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(file, "ftyp", ftyp);
+		VideoProcessingPipelineTest.box(file, "mdat", media.toByteArray());
+		VideoProcessingPipelineTest.box(file, "moov", moov.toByteArray());
+		return file.toByteArray();
+	}
+
+	private static byte[] track(String handler, byte[] stbl) throws IOException {
+		ByteArrayOutputStream mdhd = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(mdhd);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(1000); // time scale
+		out.writeInt(SAMPLES * SAMPLE_MILLIS);
+		out.writeInt(0);
+
+		ByteArrayOutputStream hdlr = new ByteArrayOutputStream();
+		out = new DataOutputStream(hdlr);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeBytes(handler);
+		out.write(new byte[13]);
+
+		ByteArrayOutputStream minf = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(minf, "stbl", stbl);
+		ByteArrayOutputStream mdia = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(mdia, "mdhd", mdhd.toByteArray());
+		VideoProcessingPipelineTest.box(mdia, "hdlr", hdlr.toByteArray());
+		VideoProcessingPipelineTest.box(mdia, "minf", minf.toByteArray());
+		ByteArrayOutputStream trak = new ByteArrayOutputStream();
+		VideoProcessingPipelineTest.box(trak, "mdia", mdia.toByteArray());
+		return trak.toByteArray();
+	}
+
+	private static byte[] mvhd() throws IOException {
+		ByteArrayOutputStream mvhd = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(mvhd);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeInt(1000);
+		out.writeInt(SAMPLES * SAMPLE_MILLIS);
+		out.write(new byte[80]);
+		return mvhd.toByteArray();
+	}
+
+	/**
+	 * A full box with entries of the given number of 32-bit fields: version
+	 * and flags, the number of entries, and the entries' fields one after
+	 * the other
+	 */
+	private static byte[] table(int width, long[] fields) throws IOException {
+		ByteArrayOutputStream table = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(table);
+		out.writeInt(0);
+		out.writeInt(fields.length / width);
+		for (long field : fields) {
+			out.writeInt((int) field);
+		}
+		return table.toByteArray();
+	}
+
+	private static long[] toArray(List<Long> values) {
+		long[] array = new long[values.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * An MPEG-2 pack header with the given system clock reference and no
+	 * stuffing
+	 */
+	private static byte[] packHeader(long scr) {
+		return new byte[] { 0, 0, 1, (byte) 0xba,
+				(byte) (0x44 | ((scr >> 27) & 0x38) | ((scr >> 28) & 0x03)), (byte) (scr >> 20),
+				(byte) (((scr >> 12) & 0xf8) | 0x04 | ((scr >> 13) & 0x03)), (byte) (scr >> 5),
+				(byte) (((scr << 3) & 0xf8) | 0x04), 0x01, 0x01, (byte) 0x89, (byte) 0xc3, (byte) 0xf8 };
+	}
+
+}
@@ -22,9 +22,14 @@ import java.io.IOException;
 import java.security.Principal;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -32,6 +37,8 @@ import org.magnum.mobilecloud.video.client.VideoSvcApi;
 import org.magnum.mobilecloud.video.repository.Video;
 import org.magnum.mobilecloud.video.repository.VideoRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.PathVariable;
@@ -44,7 +51,8 @@ import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.context.request.RequestContextHolder;
 import org.springframework.web.context.request.ServletRequestAttributes;
 
-import com.google.common.collect.Lists;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.AbstractIterator;
 
 @Controller
 public class VideoServiceCtrl {
@@ -52,21 +60,75 @@ public class VideoServiceCtrl {
 	@Autowired
 	VideoRepository videos;
 
+	@PersistenceContext
+	EntityManager entityManager;
+
+	// The mapper that Spring Data REST configures for the application (see
+	// RepositoryRestMvcConfiguration), which the video list is written with
+	@Autowired
+	@Qualifier("objectMapper")
+	ObjectMapper objectMapper;
+
+	// How many videos getVideoList() loads from the repository at a time
+	public static final int LIST_BATCH_SIZE = 256;
+
+	private JsonArrayWriter listWriter;
+
 	Video video = new Video();
 
 	public static final String TITLE_PARAMETER = "title";
 	public static final String DURATION_PARAMETER = "duration";
 
+	@PostConstruct
+	void createListWriter() {
+		listWriter = new JsonArrayWriter(objectMapper, JsonArrayWriter.DEFAULT_FLUSH_EVERY);
+	}
+
 	/*
 	 * - Returns the list of videos that have been added to the server as JSON.
 	 * The list of videos should be persisted using Spring Data. The list of
 	 * Video objects should be able to be unmarshalled by the client into a
 	 * Collection<Video>. - The return content-type should be application/json,
 	 * which will be the default if you use @ResponseBody
+	 * 
+	 * The videos are read from the repository in batches of LIST_BATCH_SIZE
+	 * and each one is written to the response as it comes, so neither the
+	 * list nor its JSON is ever held in memory as a whole.
 	 */
 	@RequestMapping(value = VideoSvcApi.VIDEO_SVC_PATH, method = RequestMethod.GET)
-	public @ResponseBody Collection<Video> getVideoList() {
-		return Lists.newArrayList(videos.findAll());
+	public void getVideoList(HttpServletResponse response) throws IOException {
+		listWriter.write(allVideos(), response);
+	}
+
+	/*
+	 * Iterates over all videos in id order, loading the next batch when the
+	 * previous one has been used up. The entity manager stays open for the
+	 * whole request, so the videos of a batch are detached once it's done
+	 * with; otherwise every video ever loaded would stay in its cache.
+	 */
+	private Iterator<Video> allVideos() {
+		return new AbstractIterator<Video>() {
+			private Iterator<Video> batch;
+			private long lastId = Long.MIN_VALUE;
+			private boolean lastBatch;
+
+			@Override
+			protected Video computeNext() {
+				while (batch == null || !batch.hasNext()) {
+					if (lastBatch) {
+						return endOfData();
+					}
+					entityManager.clear();
+					List<Video> next = videos.findByIdGreaterThanOrderByIdAsc(lastId,
+							new PageRequest(0, LIST_BATCH_SIZE));
+					lastBatch = next.size() < LIST_BATCH_SIZE;
+					batch = next.iterator();
+				}
+				Video v = batch.next();
+				lastId = v.getId();
+				return v;
+			}
+		};
 	}
 
 	/*
@@ -1,11 +1,14 @@
 package org.magnum.mobilecloud.video.repository;
 
 import java.util.Collection;
+import java.util.List;
 
 import org.magnum.mobilecloud.video.client.VideoSvcApi;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.data.repository.query.Param;
 import org.springframework.data.rest.core.annotation.RepositoryRestResource;
+import org.springframework.data.rest.core.annotation.RestResource;
 
 /**
  * An interface for a repository that can store Video
@@ -42,6 +45,13 @@ public interface VideoRepository extends CrudRepository<Video, Long>{
 			// search for Videos
 			@Param(VideoSvcApi.DURATION_PARAMETER) long maxduration);
 	
+	// Find the next batch of videos after the given id, in id order, so that
+	// all videos can be read a batch at a time without an ever growing
+	// offset (see VideoServiceCtrl.getVideoList()). It is only meant for
+	// the controller, so Spring Data Rest doesn't expose it.
+	@RestResource(exported = false)
+	public List<Video> findByIdGreaterThanOrderByIdAsc(long id, Pageable page);
+	
 	/*
 	 * See: http://docs.spring.io/spring-data/jpa/docs/1.3.0.RELEASE/reference/html/jpa.repositories.html 
 	 * for more examples of writing query methods
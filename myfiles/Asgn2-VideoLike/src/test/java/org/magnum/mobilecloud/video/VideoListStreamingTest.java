@@ -0,0 +1,162 @@
+package org.magnum.mobilecloud.video;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Test;
+import org.magnum.mobilecloud.video.repository.Video;
+import org.magnum.mobilecloud.video.repository.VideoRepository;
+import org.springframework.data.domain.Pageable;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.PropertyNamingStrategy;
+
+/**
+ * Checks that GET /video reads the repository a batch at a time, each batch
+ * starting after the last id of the one before, and writes every video to
+ * the response with the application's ObjectMapper.
+ */
+public class VideoListStreamingTest {
+
+	private final NavigableMap<Long, Video> stored = new TreeMap<Long, Video>();
+
+	// The id each batch was asked to start after, and how many it asked for
+	private final List<Long> afterIds = new ArrayList<Long>();
+	private final List<Integer> pageSizes = new ArrayList<Integer>();
+
+	private int clears;
+
+	@Test
+	public void testListsEveryVideoInBatches() throws Exception {
+		int count = 2 * VideoServiceCtrl.LIST_BATCH_SIZE + 88;
+		store(count);
+
+		JsonNode list = list(new ObjectMapper());
+
+		assertEquals(count, list.size());
+		long expectedId = 0;
+		for (JsonNode video : list) {
+			assertEquals(expectedId += 3, video.get("id").asLong());
+			assertEquals("Video-" + expectedId, video.get("name").asText());
+		}
+
+		// Keyset paging: each batch starts after the last id of the previous
+		// one, rather than at a growing offset
+		List<Long> expectedAfter = new ArrayList<Long>();
+		expectedAfter.add(Long.MIN_VALUE);
+		expectedAfter.add(3L * VideoServiceCtrl.LIST_BATCH_SIZE);
+		expectedAfter.add(6L * VideoServiceCtrl.LIST_BATCH_SIZE);
+		assertEquals(expectedAfter, afterIds);
+		for (int size : pageSizes) {
+			assertEquals(VideoServiceCtrl.LIST_BATCH_SIZE, size);
+		}
+		// Every batch is detached before the next one is loaded
+		assertEquals(afterIds.size(), clears);
+	}
+
+	@Test
+	public void testFullLastBatchEndsWithAnEmptyOne() throws Exception {
+		store(2 * VideoServiceCtrl.LIST_BATCH_SIZE);
+
+		assertEquals(2 * VideoServiceCtrl.LIST_BATCH_SIZE, list(new ObjectMapper()).size());
+		assertEquals(3, afterIds.size());
+
+		stored.clear();
+		afterIds.clear();
+		assertEquals(0, list(new ObjectMapper()).size());
+		assertEquals(1, afterIds.size());
+	}
+
+	@Test
+	public void testUsesTheApplicationsMapper() throws Exception {
+		store(VideoServiceCtrl.LIST_BATCH_SIZE + 1);
+
+		// A setting no default ObjectMapper has, so it only shows up in the
+		// output if the controller writes with the injected mapper
+		ObjectMapper mapper = new ObjectMapper();
+		mapper.setPropertyNamingStrategy(PropertyNamingStrategy.PASCAL_CASE_TO_CAMEL_CASE);
+		JsonNode list = list(mapper);
+
+		assertEquals(VideoServiceCtrl.LIST_BATCH_SIZE + 1, list.size());
+		for (JsonNode video : list) {
+			assertTrue(video.has("Id"));
+			assertTrue(video.has("Name"));
+		}
+	}
+
+	private JsonNode list(ObjectMapper mapper) throws Exception {
+		VideoServiceCtrl ctrl = new VideoServiceCtrl();
+		ctrl.videos = repository();
+		ctrl.entityManager = entityManager();
+		ctrl.objectMapper = mapper;
+		ctrl.createListWriter();
+
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		ctrl.getVideoList(response);
+		assertTrue(response.getContentType().startsWith("application/json"));
+		return new ObjectMapper().readTree(response.getContentAsByteArray());
+	}
+
+	// Ids 3, 6, 9, ... so that batches can't line up with offsets by chance
+	private void store(int count) {
+		for (int i = 1; i <= count; i++) {
+			Video v = new Video("Video-" + (3 * i), "http://coursera.org/video-" + (3 * i), 1000, 0);
+			v.setId(3 * i);
+			stored.put(v.getId(), v);
+		}
+	}
+
+	private VideoRepository repository() {
+		return proxy(VideoRepository.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (!method.getName().equals("findByIdGreaterThanOrderByIdAsc")) {
+					throw new UnsupportedOperationException(method.getName());
+				}
+				long after = (Long) args[0];
+				int size = ((Pageable) args[1]).getPageSize();
+				afterIds.add(after);
+				pageSizes.add(size);
+
+				List<Video> batch = new ArrayList<Video>();
+				for (Video v : stored.tailMap(after, false).values()) {
+					if (batch.size() == size) {
+						break;
+					}
+					batch.add(v);
+				}
+				return batch;
+			}
+		});
+	}
+
+	private EntityManager entityManager() {
+		return proxy(EntityManager.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (!method.getName().equals("clear")) {
+					throw new UnsupportedOperationException(method.getName());
+				}
+				clears++;
+				return null;
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+}